@@ -286,7 +286,10 @@ public class AggregationIterator implements SeekableView, DataPoint,
    * ignored.
    * @param aggregator The aggregation function to use.
    * @param method Interpolation method to use when aggregating time series
-   * @param downsampler The downsampling specifier to use (cannot be null)
+   * @param downsampler The downsampling specifier to use (cannot be null).
+   * If {@link FusedSeries#canFuse} accepts it, each span is downsampled and
+   * converted to a rate in a single pass and the results are aggregated by a
+   * {@link FusedAggregationIterator}.
    * @param query_start Start of the actual query
    * @param query_end End of the actual query
    * @param rate If {@code true}, the rate of the series will be used instead
@@ -307,6 +310,17 @@ public class AggregationIterator implements SeekableView, DataPoint,
       final boolean rate,
       final RateOptions rate_options) {
     final int size = spans.size();
+    // downsample and rate each span in a single pass when the downsampler
+    // allows it, then aggregate the aligned results without the iterators
+    if (FusedSeries.canFuse(downsampler)) {
+      final FusedSeries[] series = new FusedSeries[size];
+      for (int i = 0; i < size; i++) {
+        series[i] = new FusedSeries(spans.get(i), downsampler, rate, 
+            rate_options);
+      }
+      return new FusedAggregationIterator(series, start_time, end_time, 
+          aggregator, method, rate);
+    }
     final SeekableView[] iterators = new SeekableView[size];
     for (int i = 0; i < size; i++) {
       SeekableView it;
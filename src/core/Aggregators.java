@@ -149,6 +149,26 @@ public final class Aggregators {
   public static final PercentileAgg ep50r7 = 
       new PercentileAgg(50d, "ep50r7", EstimationType.R_7);
 
+  /** Aggregator that returns an estimated 99.9th percentile from a sketch
+   * with bounded memory. See {@link PercentileSketch} for the accuracy. */
+  public static final SketchPercentileAgg sp999 = 
+      new SketchPercentileAgg(99.9d, "sp999");
+  /** Aggregator that returns an estimated 99th percentile from a sketch. */
+  public static final SketchPercentileAgg sp99 = 
+      new SketchPercentileAgg(99d, "sp99");
+  /** Aggregator that returns an estimated 95th percentile from a sketch. */
+  public static final SketchPercentileAgg sp95 = 
+      new SketchPercentileAgg(95d, "sp95");
+  /** Aggregator that returns an estimated 90th percentile from a sketch. */
+  public static final SketchPercentileAgg sp90 = 
+      new SketchPercentileAgg(90d, "sp90");
+  /** Aggregator that returns an estimated 75th percentile from a sketch. */
+  public static final SketchPercentileAgg sp75 = 
+      new SketchPercentileAgg(75d, "sp75");
+  /** Aggregator that returns an estimated 50th percentile from a sketch. */
+  public static final SketchPercentileAgg sp50 = 
+      new SketchPercentileAgg(50d, "sp50");
+
   static {
     aggregators = new HashMap<String, Aggregator>(8);
     aggregators.put("sum", SUM);
@@ -173,6 +193,13 @@ public final class Aggregators {
     for (PercentileAgg agg : percentiles) {
         aggregators.put(agg.toString(), agg);
     }
+    
+    SketchPercentileAgg[] sketches = {
+       sp999, sp99, sp95, sp90, sp75, sp50
+    };
+    for (SketchPercentileAgg agg : sketches) {
+        aggregators.put(agg.toString(), agg);
+    }
   }
 
   private Aggregators() {
@@ -562,6 +589,56 @@ public final class Aggregators {
     }
 
   }
+  
+  /**
+   * Percentile aggregator that trades exactness for speed and memory. Values
+   * are counted in a {@link PercentileSketch} instead of being copied and
+   * sorted, so the cost is linear in the number of values and the memory is
+   * bounded. The result is within 1% of a value of the requested rank.
+   * @since 2.4
+   */
+  private static final class SketchPercentileAgg extends Aggregator {
+    /** Sketches are reused per thread as aggregators are shared */
+    private static final ThreadLocal<PercentileSketch> SKETCHES = 
+        new ThreadLocal<PercentileSketch>() {
+      @Override
+      protected PercentileSketch initialValue() {
+        return new PercentileSketch();
+      }
+    };
+    
+    private final double percentile;
+
+    public SketchPercentileAgg(final double percentile, final String name) {
+      super(Aggregators.Interpolation.LERP, name);
+      Preconditions.checkArgument(percentile > 0 && percentile <= 100, 
+          "Invalid percentile value");
+      this.percentile = percentile;
+    }
+
+    @Override
+    public long runLong(final Longs values) {
+      final PercentileSketch sketch = SKETCHES.get();
+      sketch.clear();
+      while (values.hasNextValue()) {
+        sketch.add(values.nextLongValue());
+      }
+      // round rather than truncate so the error stays within the accuracy
+      return Math.round(sketch.percentile(percentile));
+    }
+
+    @Override
+    public double runDouble(final Doubles values) {
+      final PercentileSketch sketch = SKETCHES.get();
+      sketch.clear();
+      while (values.hasNextValue()) {
+        // NaNs are skipped by the sketch
+        sketch.add(values.nextDoubleValue());
+      }
+      return sketch.percentile(percentile);
+    }
+  }
+  
   public static final class MovingAverage extends Aggregator {
     private LinkedList<SumPoint> list = new LinkedList<SumPoint>();
     private final long numPoints;
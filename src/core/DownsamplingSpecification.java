@@ -178,6 +178,27 @@ public final class DownsamplingSpecification {
     timezone = DateTime.timezones.get(DateTime.UTC_ID);
   }
 
+  /**
+   * Copies the given specification with a different downsampling function.
+   * Used when the data being downsampled was already partially aggregated, 
+   * e.g. counts read from a rollup table have to be summed.
+   * @param specification The specification to copy
+   * @param function The function to use instead
+   * @since 2.4
+   */
+  DownsamplingSpecification(final DownsamplingSpecification specification,
+      final Aggregator function) {
+    if (function == null) {
+      throw new IllegalArgumentException("downsampling function cannot be null");
+    }
+    interval = specification.interval;
+    string_interval = specification.string_interval;
+    fill_policy = specification.fill_policy;
+    use_calendar = specification.use_calendar;
+    timezone = specification.timezone;
+    this.function = function;
+  }
+  
   /** @param use_calendar Whether or not to use the calendar when downsampling 
    * @since 2.3 */
   public void setUseCalendar(final boolean use_calendar) {
@@ -0,0 +1,198 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import net.opentsdb.core.Internal.Cell;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+
+/**
+ * Downsamples compacted rows as they are read from storage so that a span
+ * only holds one value per interval instead of every raw data point.
+ * <p>
+ * Folding is only done when it yields exactly what the {@link Downsampler}
+ * would compute from the raw data:
+ * <ul>
+ * <li>The interval is fixed (no calendar or "all") and evenly divides
+ * {@link Const#MAX_TIMESPAN} so an interval never straddles two rows.</li>
+ * <li>The function returns the value itself when given a single value, so
+ * downsampling the folded value again at query time is a no-op.</li>
+ * </ul>
+ * Rates, interpolation and fill policies are applied after downsampling so
+ * they are not affected.
+ * @since 2.4
+ */
+final class EarlyDownsampler {
+
+  /** Functions where f(v) == v so that the folded value survives the
+   * downsampler run by the span group. */
+  private static final Set<Aggregator> FOLDABLE = new HashSet<Aggregator>(
+      Arrays.asList(Aggregators.SUM, Aggregators.ZIMSUM, Aggregators.MIN,
+          Aggregators.MIMMIN, Aggregators.MAX, Aggregators.MIMMAX,
+          Aggregators.AVG, Aggregators.MULTIPLY, Aggregators.FIRST,
+          Aggregators.LAST));
+
+  /** Flags for an 8 byte floating point value */
+  private static final short DOUBLE_FLAGS = Const.FLAG_FLOAT | 0x7;
+
+  /** The downsampling specification of the query */
+  private final DownsamplingSpecification specification;
+
+  /**
+   * Private ctor, use {@link #create}.
+   * @param specification The downsampling specification of the query
+   */
+  private EarlyDownsampler(final DownsamplingSpecification specification) {
+    this.specification = specification;
+  }
+
+  /**
+   * Returns a downsampler for the specification if rows can be folded
+   * safely.
+   * @param specification The downsampling specification, may be null
+   * @return A downsampler or null if the raw rows have to be kept
+   */
+  static EarlyDownsampler create(
+      final DownsamplingSpecification specification) {
+    if (!canFold(specification)) {
+      return null;
+    }
+    return new EarlyDownsampler(specification);
+  }
+
+  /**
+   * Whether or not rows can be downsampled as they are read.
+   * @param specification The downsampling specification, may be null
+   * @return True if the folded rows yield the same results as the raw ones
+   */
+  static boolean canFold(final DownsamplingSpecification specification) {
+    if (specification == null ||
+        specification == DownsamplingSpecification.NO_DOWNSAMPLER) {
+      return false;
+    }
+    final long interval = specification.getInterval();
+    if (interval <= 0 || specification.useCalendar()) {
+      return false;
+    }
+    final String string_interval = specification.getStringInterval();
+    if (string_interval != null &&
+        string_interval.toLowerCase().contains("all")) {
+      return false;
+    }
+    if ((Const.MAX_TIMESPAN * 1000L) % interval != 0) {
+      return false;
+    }
+    return FOLDABLE.contains(specification.getFunction());
+  }
+
+  /**
+   * Downsamples a compacted row into a row with one floating point value
+   * per interval, timestamped at the start of the interval.
+   * @param row A compacted row
+   * @return The downsampled row
+   * @throws IllegalDataException if the row could not be parsed
+   */
+  KeyValue downsample(final KeyValue row) {
+    final ArrayList<Cell> cells = Internal.extractDataPoints(row);
+    final long interval = specification.getInterval();
+    final boolean in_seconds = interval % 1000 == 0;
+    final Bucket bucket = new Bucket(cells, Bytes.getUnsignedInt(row.key(),
+        Const.SALT_WIDTH() + TSDB.metrics_width()));
+
+    // we don't know how many intervals have data so size for the worst case
+    final int max_points = Math.min(cells.size(),
+        (int) ((Const.MAX_TIMESPAN * 1000L) / interval));
+    final byte[] qualifiers = new byte[max_points * (in_seconds ? 2 : 4)];
+    // values plus the trailing meta byte of compacted columns
+    final byte[] values = new byte[(max_points * 8) + 1];
+    int q_idx = 0;
+    int v_idx = 0;
+    while (bucket.nextInterval()) {
+      final long timestamp = bucket.start;
+      final double value = specification.getFunction().runDouble(bucket);
+      // make sure the next interval starts after this one
+      while (bucket.hasNextValue()) {
+        bucket.nextDoubleValue();
+      }
+      final byte[] qualifier = Internal.buildQualifier(
+          in_seconds ? timestamp / 1000 : timestamp, DOUBLE_FLAGS);
+      System.arraycopy(qualifier, 0, qualifiers, q_idx, qualifier.length);
+      q_idx += qualifier.length;
+      Bytes.setLong(values, Double.doubleToRawLongBits(value), v_idx);
+      v_idx += 8;
+    }
+    if (q_idx == 0) {
+      return row;
+    }
+    return new KeyValue(row.key(), row.family(),
+        Arrays.copyOf(qualifiers, q_idx), Arrays.copyOf(values, v_idx + 1));
+  }
+
+  /**
+   * Walks the data points of a row one interval at a time.
+   */
+  private final class Bucket implements Aggregator.Doubles {
+    /** The data points of the row */
+    private final ArrayList<Cell> cells;
+
+    /** The base time of the row in seconds */
+    private final long base_time;
+
+    /** The index of the next data point */
+    private int index;
+
+    /** The start of the current interval in milliseconds */
+    private long start;
+
+    /** The end of the current interval in milliseconds, exclusive */
+    private long end;
+
+    Bucket(final ArrayList<Cell> cells, final long base_time) {
+      this.cells = cells;
+      this.base_time = base_time;
+    }
+
+    /** @return True if there is another interval with data */
+    boolean nextInterval() {
+      if (index >= cells.size()) {
+        return false;
+      }
+      final long timestamp = cells.get(index).timestamp(base_time);
+      start = timestamp - (timestamp % specification.getInterval());
+      end = start + specification.getInterval();
+      return true;
+    }
+
+    @Override
+    public boolean hasNextValue() {
+      return index < cells.size() && 
+          cells.get(index).timestamp(base_time) < end;
+    }
+
+    @Override
+    public double nextDoubleValue() {
+      if (!hasNextValue()) {
+        throw new NoSuchElementException("no more values in interval ending "
+            + end);
+      }
+      return cells.get(index++).parseValue().doubleValue();
+    }
+  }
+}
@@ -0,0 +1,305 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+import net.opentsdb.core.Aggregators.Interpolation;
+
+/**
+ * Aggregates {@link FusedSeries} by walking their result arrays directly
+ * instead of merging them one data point at a time through the
+ * {@link SeekableView} interface.
+ * <p>
+ * All the fused series share the same fixed interval so their timestamps
+ * line up. Most of the time every series has a value for the timestamp
+ * being aggregated and only the intervals missing from a series have to be
+ * interpolated.
+ * <p>
+ * The results are exactly those of the {@link AggregationIterator} over the
+ * same series, including its edge cases:
+ * <ul>
+ * <li>A series only contributes from its first to its last value.</li>
+ * <li>A series starting before the start time is ignored.</li>
+ * <li>With rates, the first rate against the time zero is only used for
+ * the timestamps before the series' second rate, there is no interpolation
+ * and a series with a single rate never contributes.</li>
+ * </ul>
+ * @since 2.4
+ */
+final class FusedAggregationIterator extends AggregationIterator {
+
+  /** The series to aggregate */
+  private final FusedSeries[] series;
+
+  /** The aggregation function to use */
+  private final Aggregator aggregator;
+
+  /** Interpolation method to use when aggregating time series */
+  private final Interpolation method;
+
+  /** Whether or not the series are rates */
+  private final boolean rate;
+
+  /** The timestamps of each series */
+  private final long[][] series_timestamps;
+
+  /** The values of each series */
+  private final double[][] series_values;
+
+  /** The number of values of each series, 0 if the series is ignored */
+  private final int[] sizes;
+
+  /** For each series, the index of the first value not yet reached */
+  private final int[] cursors;
+
+  /** The values to aggregate for the current timestamp */
+  private final double[] buffer;
+
+  /** The number of values in {@link #buffer} */
+  private int count;
+
+  /** The index of the last value read from {@link #buffer} */
+  private int pos;
+
+  /** The current timestamp */
+  private long timestamp;
+
+  /**
+   * Creates an aggregation iterator over a group of fused series.
+   * @param series The series to aggregate.
+   * @param start_time Any data point strictly before this timestamp will be
+   * ignored.
+   * @param end_time Any data point strictly after this timestamp will be
+   * ignored.
+   * @param aggregator The aggregation function to use.
+   * @param method Interpolation method to use when aggregating time series
+   * @param rate If {@code true}, the series are rates.
+   */
+  FusedAggregationIterator(final FusedSeries[] series,
+                           final long start_time,
+                           final long end_time,
+                           final Aggregator aggregator,
+                           final Interpolation method,
+                           final boolean rate) {
+    super(new SeekableView[0], start_time, end_time, aggregator, method, rate);
+    this.series = series;
+    this.aggregator = aggregator;
+    this.method = method;
+    this.rate = rate;
+    series_timestamps = new long[series.length][];
+    series_values = new double[series.length][];
+    sizes = new int[series.length];
+    cursors = new int[series.length];
+    buffer = new double[series.length];
+    load(start_time);
+  }
+
+  /**
+   * Seeks every series and starts the merge over from their first values.
+   * @param seek_timestamp The timestamp to seek the series to.
+   */
+  private void load(final long seek_timestamp) {
+    for (int i = 0; i < series.length; i++) {
+      series[i].seek(seek_timestamp);
+      final int size = series[i].size();
+      series_timestamps[i] = series[i].timestamps();
+      series_values[i] = series[i].values();
+      if (size > 0 && series_timestamps[i][0] < start_time) {
+        sizes[i] = 0;
+      } else {
+        sizes[i] = size;
+      }
+      // the first rate is never a timestamp of its own, it's only used until
+      // the second one is reached
+      cursors[i] = rate && sizes[i] > 0 ? 1 : 0;
+    }
+  }
+
+  // ------------------ //
+  // Iterator interface //
+  // ------------------ //
+
+  @Override
+  public boolean hasNext() {
+    for (int i = 0; i < series.length; i++) {
+      if (cursors[i] < sizes[i]
+          && series_timestamps[i][cursors[i]] <= end_time) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public DataPoint next() {
+    boolean found = false;
+    long min_ts = Long.MAX_VALUE;
+    for (int i = 0; i < series.length; i++) {
+      if (cursors[i] < sizes[i]) {
+        final long ts = series_timestamps[i][cursors[i]];
+        if (ts <= end_time && ts <= min_ts) {
+          min_ts = ts;
+          found = true;
+        }
+      }
+    }
+    if (!found) {
+      throw new NoSuchElementException("no more elements");
+    }
+    for (int i = 0; i < series.length; i++) {
+      if (cursors[i] < sizes[i] && series_timestamps[i][cursors[i]] == min_ts) {
+        cursors[i]++;
+      }
+    }
+    timestamp = min_ts;
+    return this;
+  }
+
+  // ---------------------- //
+  // SeekableView interface //
+  // ---------------------- //
+
+  /**
+   * Seeks every series and starts the aggregation over from there.
+   */
+  @Override
+  public void seek(final long timestamp) {
+    load(timestamp);
+  }
+
+  // ------------------- //
+  // DataPoint interface //
+  // ------------------- //
+
+  @Override
+  public long timestamp() {
+    return timestamp;
+  }
+
+  @Override
+  public boolean isInteger() {
+    return false;
+  }
+
+  @Override
+  public long longValue() {
+    throw new ClassCastException("current value is a double: " + this);
+  }
+
+  @Override
+  public double doubleValue() {
+    gather();
+    pos = -1;
+    final double value = aggregator.runDouble(this);
+    if (Double.isInfinite(value)) {
+      throw new IllegalStateException("Got Infinity: "
+         + value + " in this " + this);
+    }
+    return value;
+  }
+
+  @Override
+  public double toDouble() {
+    return doubleValue();
+  }
+
+  // --------------------------------------- //
+  // Aggregator.Longs and Doubles interfaces //
+  // --------------------------------------- //
+
+  @Override
+  public boolean hasNextValue() {
+    return pos + 1 < count;
+  }
+
+  @Override
+  public long nextLongValue() {
+    throw new ClassCastException("values are doubles: " + this);
+  }
+
+  @Override
+  public double nextDoubleValue() {
+    if (pos + 1 < count) {
+      return buffer[++pos];
+    }
+    throw new NoSuchElementException("no more doubles in " + this);
+  }
+
+  /**
+   * Fills the {@link #buffer} with the value of each series contributing to
+   * the current timestamp, in the order of the series.
+   */
+  private void gather() {
+    count = 0;
+    final long x = timestamp;
+    for (int i = 0; i < series.length; i++) {
+      final int size = sizes[i];
+      final int next = cursors[i];
+      final long[] ts = series_timestamps[i];
+      final double[] vs = series_values[i];
+      if (rate) {
+        // no lerp for rates, the previous rate is used as is
+        if (size > 1 && x <= ts[size - 1]) {
+          buffer[count++] = vs[next - 1];
+        }
+        continue;
+      }
+      if (next == 0 || x > ts[size - 1]) {
+        continue;
+      }
+      final long x0 = ts[next - 1];
+      final double y0 = vs[next - 1];
+      if (x == x0) {
+        buffer[count++] = y0;
+        continue;
+      }
+      // x is before the last timestamp so there's a next value
+      final long x1 = ts[next];
+      final double y1 = vs[next];
+      if ((x1 & Const.MILLISECOND_MASK) != 0) {
+        throw new AssertionError("x1=" + x1 + " in " + this);
+      }
+      switch (method) {
+      case LERP:
+        buffer[count++] = y0 + (x - x0) * (y1 - y0) / (x1 - x0);
+        break;
+      case ZIM:
+        buffer[count++] = 0;
+        break;
+      case MAX:
+        buffer[count++] = Double.MAX_VALUE;
+        break;
+      case MIN:
+        buffer[count++] = Double.MIN_VALUE;
+        break;
+      default:
+        throw new IllegalDataException("Invalid interpolation somehow??");
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "FusedAggregationIterator(timestamp=" + timestamp
+      + ", values=" + Arrays.toString(Arrays.copyOf(buffer, count))
+      + ", cursors=" + Arrays.toString(cursors)
+      + ", start_time=" + start_time
+      + ", end_time=" + end_time
+      + ", rate=" + rate
+      + ", aggregator=" + aggregator
+      + ", series=" + Arrays.toString(series)
+      + ')';
+  }
+}
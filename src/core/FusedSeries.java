@@ -0,0 +1,417 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Decodes, downsamples and optionally computes the rate of a {@link Span} in
+ * a single pass, replacing the chain of {@link Downsampler} and
+ * {@link RateSpan} for the common query shapes.
+ * <p>
+ * Instead of handing each data point through a {@link MutableDataPoint} per
+ * stage, the span is walked once when the view is first read and each
+ * interval is folded into a handful of primitives, turned into a rate if
+ * requested and appended to a pair of arrays.
+ * <p>
+ * The arrays are also read directly by the {@link FusedAggregationIterator}
+ * so that the aggregation across series doesn't go through this view one
+ * data point at a time either.
+ * <p>
+ * The results are exactly those of the iterator chain. That's only possible
+ * when:
+ * <ul>
+ * <li>The interval is fixed, i.e. no calendar or "all" downsampling.</li>
+ * <li>The fill policy is {@link FillPolicy#NONE}.</li>
+ * <li>The downsampling function can be folded one value at a time.</li>
+ * </ul>
+ * Use {@link #canFuse} to check.
+ * @since 2.4
+ */
+final class FusedSeries implements SeekableView, DataPoint {
+
+  /** The ways to fold an interval, one per supported downsampler */
+  private enum Fold { SUM, MIN, MAX, AVG, COUNT, FIRST, LAST }
+
+  /** The functions that can be folded and how. Keyed on identity as the
+   * aggregators are singletons. */
+  private static final Map<Aggregator, Fold> FOLDS =
+      new IdentityHashMap<Aggregator, Fold>();
+  static {
+    FOLDS.put(Aggregators.SUM, Fold.SUM);
+    FOLDS.put(Aggregators.ZIMSUM, Fold.SUM);
+    FOLDS.put(Aggregators.MIN, Fold.MIN);
+    FOLDS.put(Aggregators.MIMMIN, Fold.MIN);
+    FOLDS.put(Aggregators.MAX, Fold.MAX);
+    FOLDS.put(Aggregators.MIMMAX, Fold.MAX);
+    FOLDS.put(Aggregators.AVG, Fold.AVG);
+    FOLDS.put(Aggregators.COUNT, Fold.COUNT);
+    FOLDS.put(Aggregators.FIRST, Fold.FIRST);
+    FOLDS.put(Aggregators.LAST, Fold.LAST);
+  }
+
+  /** Marks that the view has not been seeked */
+  private static final long NO_SEEK = Long.MIN_VALUE;
+
+  /** The span to read */
+  private final Span span;
+
+  /** The downsampling interval in milliseconds */
+  private final long interval;
+
+  /** How to fold each interval */
+  private final Fold fold;
+
+  /** Whether or not to compute the rate of the downsampled values */
+  private final boolean rate;
+
+  /** Rate options, may be null if rate is false */
+  private final RateOptions rate_options;
+
+  /** The timestamp to seek to when computing, NO_SEEK to read everything */
+  private long seek_timestamp = NO_SEEK;
+
+  /** Whether or not the arrays have been computed for the seek timestamp */
+  private boolean computed;
+
+  /** The timestamps of the results */
+  private long[] timestamps;
+
+  /** The values of the results */
+  private double[] values;
+
+  /** The number of results */
+  private int size;
+
+  /** The index of the next result to return */
+  private int index;
+
+  /**
+   * Default ctor.
+   * @param span The span to read
+   * @param specification The downsampling specification, must pass
+   * {@link #canFuse}
+   * @param rate Whether or not to compute the rate of the downsampled values
+   * @param rate_options Rate options, used if rate is true
+   * @throws IllegalArgumentException if the specification can't be fused
+   */
+  FusedSeries(final Span span,
+              final DownsamplingSpecification specification,
+              final boolean rate,
+              final RateOptions rate_options) {
+    if (!canFuse(specification)) {
+      throw new IllegalArgumentException("Cannot fuse the downsampler: "
+          + specification);
+    }
+    this.span = span;
+    this.rate = rate;
+    this.rate_options = rate_options;
+    interval = specification.getInterval();
+    fold = FOLDS.get(specification.getFunction());
+  }
+
+  /**
+   * Whether or not a span can be read with this class instead of the
+   * downsampler and rate iterators.
+   * @param specification The downsampling specification, may be null
+   * @return True if the results would be identical
+   */
+  static boolean canFuse(final DownsamplingSpecification specification) {
+    if (specification == null ||
+        specification == DownsamplingSpecification.NO_DOWNSAMPLER) {
+      return false;
+    }
+    if (specification.getInterval() <= 0 || specification.useCalendar() ||
+        specification.getFillPolicy() != FillPolicy.NONE) {
+      return false;
+    }
+    final String string_interval = specification.getStringInterval();
+    if (string_interval != null &&
+        string_interval.toLowerCase().contains("all")) {
+      return false;
+    }
+    return FOLDS.containsKey(specification.getFunction());
+  }
+
+  // ------------------ //
+  // Iterator interface //
+  // ------------------ //
+
+  @Override
+  public boolean hasNext() {
+    if (!computed) {
+      compute();
+    }
+    return index < size;
+  }
+
+  @Override
+  public DataPoint next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException("no more data points in " + this);
+    }
+    index++;
+    return this;
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  // ---------------------- //
+  // SeekableView interface //
+  // ---------------------- //
+
+  /**
+   * Like the {@link Downsampler}, skips to the first interval that starts at
+   * or after the timestamp so that it's fully populated. The work is deferred
+   * until the view is read.
+   */
+  @Override
+  public void seek(final long timestamp) {
+    seek_timestamp = timestamp;
+    computed = false;
+  }
+
+  // ------------------- //
+  // DataPoint interface //
+  // ------------------- //
+
+  @Override
+  public long timestamp() {
+    return timestamps[index - 1];
+  }
+
+  @Override
+  public boolean isInteger() {
+    return false;
+  }
+
+  @Override
+  public long longValue() {
+    throw new ClassCastException("Downsampled values are doubles");
+  }
+
+  @Override
+  public double doubleValue() {
+    return values[index - 1];
+  }
+
+  @Override
+  public double toDouble() {
+    return values[index - 1];
+  }
+
+  /** @return The number of results, computing them if needed */
+  int size() {
+    if (!computed) {
+      compute();
+    }
+    return size;
+  }
+
+  /** @return The timestamps of the results, only valid up to {@link #size} */
+  long[] timestamps() {
+    size();
+    return timestamps;
+  }
+
+  /** @return The values of the results, only valid up to {@link #size} */
+  double[] values() {
+    size();
+    return values;
+  }
+
+  /**
+   * Walks the span once, folding each interval and computing the rate.
+   * @throws IllegalStateException if the rate timestamps were out of order
+   */
+  private void compute() {
+    computed = true;
+    index = 0;
+    size = 0;
+    if (timestamps == null) {
+      timestamps = new long[16];
+      values = new double[16];
+    }
+
+    final Span.Iterator it = span.spanIterator();
+    if (seek_timestamp != NO_SEEK) {
+      final long seek = seek_timestamp + interval - 1;
+      it.seek(seek - (seek % interval));
+    }
+
+    // the interval being folded
+    long start = 0;
+    long end = Long.MIN_VALUE;
+    double acc = 0;
+    long n = 0;
+    boolean first = true;
+
+    // the previous downsampled value for the rate, starting at time zero for
+    // compatibility with RateSpan
+    long prev_ts = 0;
+    double prev_value = 0;
+
+    while (true) {
+      final boolean has_next = it.hasNext();
+      final DataPoint dp = has_next ? it.next() : null;
+      final long ts = has_next ? dp.timestamp() : Long.MAX_VALUE;
+      if (ts >= end && !first) {
+        // close the interval
+        final double value = finish(acc, n);
+        if (!rate) {
+          append(start, value);
+        } else {
+          if (start <= prev_ts) {
+            throw new IllegalStateException("Next timestamp (" + start
+                + ") is supposed to be strictly greater than the previous one ("
+                + prev_ts + "), but it's not.  this=" + this);
+          }
+          final double time_delta_secs = ((double) (start - prev_ts) / 1000.0);
+          double difference = value - prev_value;
+          if (rate_options.isCounter() && difference < 0) {
+            if (!rate_options.getDropResets()) {
+              difference = rate_options.getCounterMax() - prev_value + value;
+              final double r = difference / time_delta_secs;
+              if (rate_options.getResetValue() > RateOptions.DEFAULT_RESET_VALUE
+                  && r > rate_options.getResetValue()) {
+                append(start, 0.0D);
+              } else {
+                append(start, r);
+              }
+            }
+          } else {
+            append(start, difference / time_delta_secs);
+          }
+          prev_ts = start;
+          prev_value = value;
+        }
+        first = true;
+      }
+      if (!has_next) {
+        break;
+      }
+
+      final double value = dp.toDouble();
+      if (first) {
+        start = ts - (ts % interval);
+        end = start + interval;
+        first = false;
+        switch (fold) {
+          case MIN:
+            acc = Double.isNaN(value) ? Double.POSITIVE_INFINITY : value;
+            n = 1;
+            continue;
+          case MAX:
+            acc = Double.isNaN(value) ? Double.NEGATIVE_INFINITY : value;
+            n = 1;
+            continue;
+          case FIRST:
+          case LAST:
+            acc = value;
+            n = 1;
+            continue;
+          default:
+            acc = 0;
+            n = 0;
+        }
+      }
+      switch (fold) {
+        case SUM:
+        case AVG:
+          if (!Double.isNaN(value)) {
+            acc += value;
+            ++n;
+          }
+          break;
+        case COUNT:
+          if (!Double.isNaN(value)) {
+            ++n;
+          }
+          break;
+        case MIN:
+          if (!Double.isNaN(value) && value < acc) {
+            acc = value;
+          }
+          break;
+        case MAX:
+          if (!Double.isNaN(value) && value > acc) {
+            acc = value;
+          }
+          break;
+        case LAST:
+          acc = value;
+          break;
+        default:
+          // FIRST keeps the first value
+      }
+    }
+  }
+
+  /**
+   * @return The value of the folded interval, matching what the aggregator
+   * would return.
+   */
+  private double finish(final double acc, final long n) {
+    switch (fold) {
+      case SUM:
+        return n == 0 ? Double.NaN : acc;
+      case AVG:
+        return n == 0 ? Double.NaN : acc / n;
+      case COUNT:
+        return n;
+      case MIN:
+        return acc == Double.POSITIVE_INFINITY ? Double.NaN : acc;
+      case MAX:
+        return acc == Double.NEGATIVE_INFINITY ? Double.NaN : acc;
+      default:
+        return acc;
+    }
+  }
+
+  /** Appends a result, growing the arrays as needed */
+  private void append(final long timestamp, final double value) {
+    if (size == timestamps.length) {
+      timestamps = Arrays.copyOf(timestamps, size * 2);
+      values = Arrays.copyOf(values, size * 2);
+    }
+    timestamps[size] = timestamp;
+    values[size] = value;
+    size++;
+  }
+
+  @Override
+  public String toString() {
+    return new StringBuilder("FusedSeries(interval=")
+      .append(interval)
+      .append(", fold=")
+      .append(fold)
+      .append(", rate=")
+      .append(rate)
+      .append(", rate_options=")
+      .append(rate_options)
+      .append(", seek=")
+      .append(seek_timestamp)
+      .append(", size=")
+      .append(size)
+      .append(", index=")
+      .append(index)
+      .append(")")
+      .toString();
+  }
+}
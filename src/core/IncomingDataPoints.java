@@ -28,7 +28,7 @@ import org.hbase.async.PutRequest;
 import org.hbase.async.Bytes.ByteMap;
 
 import net.opentsdb.meta.Annotation;
-import net.opentsdb.stats.Histogram;
+import net.opentsdb.stats.LatencyHistogram;
 
 /**
  * Receives new data points and stores them in HBase.
@@ -39,11 +39,23 @@ final class IncomingDataPoints implements WritableDataPoints {
   private static final short DEFAULT_BATCH_IMPORT_BUFFER_INTERVAL = 5000;
 
   /**
-   * Keep track of the latency (in ms) we perceive sending edits to HBase. We
-   * want buckets up to 16s, with 2 ms interval between each bucket up to 100 ms
-   * after we which we switch to exponential buckets.
+   * Keep track of the latency (in ms) we perceive sending edits to HBase.
    */
-  static final Histogram putlatency = new Histogram(16000, (short) 2, 100);
+  static final LatencyHistogram putlatency = new LatencyHistogram();
+
+  /** Records the time from its creation until a put or append completes. */
+  static final class PutLatencyCB implements Callback<Object, Object> {
+    private final long start_put = System.nanoTime();
+
+    public Object call(final Object arg) {
+      putlatency.add((System.nanoTime() - start_put) / 1000000);
+      return arg;
+    }
+
+    public String toString() {
+      return "time put request";
+    }
+  }
 
   /** The {@code TSDB} instance we belong to. */
   private final TSDB tsdb;
@@ -319,24 +331,7 @@ final class IncomingDataPoints implements WritableDataPoints {
         // Java is so stupid with its auto-promotion of int to float.
         final byte[] qualifier = Internal.buildQualifier(timestamp, flags);
 
-        // TODO(tsuna): The following timing is rather useless. First of all,
-        // the histogram never resets, so it tends to converge to a certain
-        // distribution and never changes. What we really want is a moving
-        // histogram so we can see how the latency distribution varies over time.
-        // The other problem is that the Histogram class isn't thread-safe and
-        // here we access it from a callback that runs in an unknown thread, so
-        // we might miss some increments. So let's comment this out until we
-        // have a proper thread-safe moving histogram.
-        // final long start_put = System.nanoTime();
-        // final Callback<Object, Object> cb = new Callback<Object, Object>() {
-        // public Object call(final Object arg) {
-        // putlatency.add((int) ((System.nanoTime() - start_put) / 1000000));
-        // return arg;
-        // }
-        // public String toString() {
-        // return "time put request";
-        // }
-        // };
+        final PutLatencyCB cb = new PutLatencyCB();
 
         // TODO(tsuna): Add an errback to handle some error cases here.
         if (tsdb.getConfig().enable_appends()) {
@@ -344,12 +339,12 @@ final class IncomingDataPoints implements WritableDataPoints {
           final AppendRequest point = new AppendRequest(tsdb.table, row, TSDB.FAMILY, 
               AppendDataPoints.APPEND_COLUMN_QUALIFIER, kv.getBytes());
           point.setDurable(!batch_import);
-          return tsdb.client.append(point);/* .addBoth(cb) */
+          return tsdb.client.append(point).addBoth(cb);
         } else {
           final PutRequest point = new PutRequest(tsdb.table, row, TSDB.FAMILY, 
               qualifier, value);
           point.setDurable(!batch_import);
-          return tsdb.client.put(point)/* .addBoth(cb) */;
+          return tsdb.client.put(point).addBoth(cb);
         }
       }
       @Override
@@ -0,0 +1,358 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.Arrays;
+
+/**
+ * A mergeable sketch that estimates percentiles with a bounded relative
+ * error using a fixed amount of memory, regardless of how many values were
+ * added.
+ * <p>
+ * Values are counted in logarithmically sized buckets where bucket {@code i}
+ * holds the values in {@code (2^((i-1)/n), 2^(i/n)]}, with {@code n} the
+ * smallest number of buckets per power of 2 such that the bounds of a bucket
+ * differ by at most {@code gamma = (1 + alpha) / (1 - alpha)}. Returning the
+ * middle of a bucket is then within {@code alpha} of any value in it, so
+ * every percentile is within a relative error of {@code alpha} of a value of
+ * the right rank.
+ * <p>
+ * As the buckets split every power of 2 the same way, the index of a value
+ * is its binary exponent times {@code n} plus the bucket of its mantissa.
+ * That one is found with a table indexed by the top bits of the mantissa,
+ * whose cells are narrower than a bucket, and a comparison with the upper
+ * bound of the bucket. No logarithm is taken when adding values.
+ * Negative values are counted by magnitude in a second set of buckets and
+ * zeros are counted on their own.
+ * <p>
+ * Each set of buckets is capped at {@code max_buckets}. If the values span a
+ * wider range, the lowest buckets are collapsed into one so the guarantee
+ * only holds for the upper percentiles. With the defaults of 1% and 2048
+ * buckets that takes a ratio of about 10^17 between the largest and smallest
+ * magnitudes.
+ * <p>
+ * Sketches with the same accuracy can be merged by adding the counts, which
+ * gives exactly the sketch that would have been built from all of the values.
+ * The class is not thread safe.
+ * @since 2.4
+ */
+final class PercentileSketch {
+
+  /** The default relative accuracy */
+  static final double DEFAULT_ACCURACY = 0.01;
+
+  /** The default maximum number of buckets per sign */
+  static final int DEFAULT_MAX_BUCKETS = 2048;
+
+  /** Values with a smaller magnitude than this are counted as zero */
+  private static final double MIN_MAGNITUDE = Double.MIN_NORMAL;
+
+  /** The explicit bits of the mantissa of a double */
+  private static final long MANTISSA_MASK = 0x000FFFFFFFFFFFFFL;
+
+  /** The bits of 1.0, ORed with a mantissa to get a value in [1, 2) */
+  private static final long ONE_BITS = 0x3FF0000000000000L;
+
+  /** The maximum number of mantissa bits used to index the table */
+  private static final int MAX_TABLE_BITS = 12;
+
+  /** The relative accuracy */
+  private final double accuracy;
+
+  /** The ratio between the bounds of a bucket */
+  private final double gamma;
+
+  /** The number of buckets per power of 2 */
+  private final int buckets_per_octave;
+
+  /** The upper bound of each bucket of the mantissa, from 2^0 to 2^1 */
+  private final double[] bounds;
+
+  /** The lowest bucket of the mantissas starting with each table index */
+  private final int[] table;
+
+  /** Shifts a mantissa to its table index */
+  private final int table_shift;
+
+  /** The maximum buckets per store */
+  private final int max_buckets;
+
+  /** Buckets for values greater than zero */
+  private final Store positives;
+
+  /** Buckets for the magnitudes of values less than zero */
+  private final Store negatives;
+
+  /** Number of values equal to zero */
+  private long zeros;
+
+  /** Total number of values */
+  private long count;
+
+  /** Ctor using the default accuracy and bucket limit */
+  PercentileSketch() {
+    this(DEFAULT_ACCURACY, DEFAULT_MAX_BUCKETS);
+  }
+
+  /**
+   * Ctor with explicit settings.
+   * @param accuracy The relative accuracy, between 0 and 1 exclusive
+   * @param max_buckets The maximum buckets per sign
+   * @throws IllegalArgumentException if a setting was out of range
+   */
+  PercentileSketch(final double accuracy, final int max_buckets) {
+    if (!(accuracy > 0 && accuracy < 1)) {
+      throw new IllegalArgumentException("Accuracy must be between 0 and 1: "
+          + accuracy);
+    }
+    if (max_buckets < 2) {
+      throw new IllegalArgumentException(
+          "Max buckets must be at least 2: " + max_buckets);
+    }
+    this.accuracy = accuracy;
+    this.max_buckets = max_buckets;
+    gamma = (1 + accuracy) / (1 - accuracy);
+    buckets_per_octave = (int) Math.ceil(Math.log(2) / Math.log(gamma));
+    bounds = new double[buckets_per_octave + 1];
+    for (int i = 0; i < bounds.length; i++) {
+      bounds[i] = Math.pow(2, (double) i / buckets_per_octave);
+    }
+    bounds[buckets_per_octave] = 2;
+    
+    // cells narrower than the smallest bucket span at most one bound
+    int bits = 1;
+    while (bits < MAX_TABLE_BITS && 
+        1.0 / (1 << bits) >= bounds[1] - bounds[0]) {
+      bits++;
+    }
+    table = new int[1 << bits];
+    table_shift = 52 - bits;
+    int bucket = 0;
+    for (int i = 0; i < table.length; i++) {
+      final double low = 1 + (double) i / table.length;
+      while (bounds[bucket] < low) {
+        bucket++;
+      }
+      table[i] = bucket;
+    }
+    positives = new Store();
+    negatives = new Store();
+  }
+
+  /**
+   * Adds a value to the sketch. NaNs are ignored.
+   * @param value The value to add
+   */
+  void add(final double value) {
+    if (Double.isNaN(value)) {
+      return;
+    }
+    if (value >= MIN_MAGNITUDE) {
+      positives.add(index(value), 1);
+    } else if (value <= -MIN_MAGNITUDE) {
+      negatives.add(index(-value), 1);
+    } else {
+      ++zeros;
+    }
+    ++count;
+  }
+
+  /**
+   * Adds the counts of another sketch to this one.
+   * @param other The sketch to merge
+   * @throws IllegalArgumentException if the sketches have different settings
+   */
+  void merge(final PercentileSketch other) {
+    if (other.gamma != gamma || other.max_buckets != max_buckets) {
+      throw new IllegalArgumentException("Cannot merge a sketch with accuracy "
+          + other.accuracy + " into one with accuracy " + accuracy);
+    }
+    positives.merge(other.positives);
+    negatives.merge(other.negatives);
+    zeros += other.zeros;
+    count += other.count;
+  }
+
+  /**
+   * Estimates a percentile using the nearest rank.
+   * @param percentile The percentile from 0 to 100
+   * @return The estimate or NaN if the sketch is empty
+   * @throws IllegalArgumentException if the percentile was out of range
+   */
+  double percentile(final double percentile) {
+    if (!(percentile >= 0 && percentile <= 100)) {
+      throw new IllegalArgumentException("Invalid percentile: " + percentile);
+    }
+    if (count < 1) {
+      return Double.NaN;
+    }
+    // the rank of the value to return, 0 based
+    final long rank = Math.max(0, (long) Math.ceil(percentile / 100 * count) - 1);
+    long seen = 0;
+
+    // negatives from the largest magnitude down
+    for (int i = negatives.counts.length - 1; i >= 0; i--) {
+      seen += negatives.counts[i];
+      if (seen > rank) {
+        return -value(negatives.offset + i);
+      }
+    }
+    seen += zeros;
+    if (seen > rank) {
+      return 0;
+    }
+    for (int i = 0; i < positives.counts.length; i++) {
+      seen += positives.counts[i];
+      if (seen > rank) {
+        return value(positives.offset + i);
+      }
+    }
+    throw new IllegalStateException("Rank " + rank + " not found in " + this);
+  }
+
+  /** @return The number of values added, excluding NaNs */
+  long count() {
+    return count;
+  }
+
+  /** @return The relative accuracy */
+  double accuracy() {
+    return accuracy;
+  }
+
+  /** @return The number of buckets allocated, an indication of the memory */
+  int buckets() {
+    return positives.counts.length + negatives.counts.length;
+  }
+
+  /** Empties the sketch so that it can be reused */
+  void clear() {
+    positives.clear();
+    negatives.clear();
+    zeros = 0;
+    count = 0;
+  }
+
+  @Override
+  public String toString() {
+    return new StringBuilder("PercentileSketch(accuracy=")
+      .append(accuracy)
+      .append(", count=")
+      .append(count)
+      .append(", buckets=")
+      .append(buckets())
+      .append(")")
+      .toString();
+  }
+
+  /**
+   * @param magnitude A positive normal value
+   * @return The index of the bucket for the value
+   */
+  private int index(final double magnitude) {
+    final long bits = Double.doubleToRawLongBits(magnitude);
+    final long mantissa = bits & MANTISSA_MASK;
+    final double normalized = Double.longBitsToDouble(mantissa | ONE_BITS);
+    int bucket = table[(int) (mantissa >>> table_shift)];
+    // only loops for accuracies too fine for the table
+    while (normalized > bounds[bucket]) {
+      bucket++;
+    }
+    return ((int) (bits >>> 52) - 1023) * buckets_per_octave + bucket;
+  }
+
+  /**
+   * @param index A bucket index
+   * @return The value in the middle of the bucket, in relative terms
+   */
+  private double value(final int index) {
+    return 2 * Math.pow(2, (double) index / buckets_per_octave) / 
+        (1 + bounds[1]);
+  }
+
+  /**
+   * A dense array of bucket counts starting at an offset. The array grows to
+   * cover new indices and once it would exceed the maximum size, the lowest
+   * buckets are collapsed into one.
+   */
+  private final class Store {
+    long[] counts = new long[0];
+    /** The bucket index of counts[0] */
+    int offset;
+    /** The sum of the counts */
+    long total;
+
+    void add(final int index, final long n) {
+      final int i = index < offset || index >= offset + counts.length || 
+          total == 0 ? extend(index) : index;
+      counts[i - offset] += n;
+      total += n;
+    }
+
+    void merge(final Store other) {
+      for (int i = 0; i < other.counts.length; i++) {
+        if (other.counts[i] != 0) {
+          add(other.offset + i, other.counts[i]);
+        }
+      }
+    }
+
+    /** Zeroes the counts, keeping the array for reuse */
+    void clear() {
+      Arrays.fill(counts, 0);
+      total = 0;
+    }
+
+    /**
+     * Resizes the array to cover the index, collapsing the lowest buckets if
+     * the range would exceed the maximum.
+     * @param index The index to cover
+     * @return The index to count the value in, raised if it was collapsed
+     */
+    private int extend(final int index) {
+      if (total == 0) {
+        if (counts.length == 0) {
+          counts = new long[Math.min(16, max_buckets)];
+        }
+        // start in the middle, values tend to cluster
+        offset = index - counts.length / 2;
+        return index;
+      }
+      
+      int low = index;
+      int high = index;
+      for (int i = 0; i < counts.length; i++) {
+        if (counts[i] != 0) {
+          low = Math.min(low, offset + i);
+          high = Math.max(high, offset + i);
+        }
+      }
+      if (high - low + 1 > max_buckets) {
+        low = high - max_buckets + 1;
+      }
+      final int needed = high - low + 1;
+      final int length = Math.min(max_buckets, Math.max(16, needed * 2));
+      // leave the spare room on the side we're growing toward
+      final int new_offset = index == high ? low : high - length + 1;
+      final long[] grown = new long[length];
+      for (int i = 0; i < counts.length; i++) {
+        if (counts[i] != 0) {
+          grown[Math.max(offset + i, low) - new_offset] += counts[i];
+        }
+      }
+      counts = grown;
+      offset = new_offset;
+      return Math.max(index, low);
+    }
+  }
+}
@@ -0,0 +1,285 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.hbase.async.Bytes.ByteMap;
+
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.meta.Annotation;
+
+/**
+ * A view of a series that keeps only the smallest and largest value of each
+ * time bucket, so that no more than {@code max_points} are plotted or
+ * serialized while spikes and dips are still visible. With two points per
+ * pixel of width, the graph looks the same as with every point.
+ * <p>
+ * The reduction streams over the iterator of the series, holding a single
+ * bucket at a time. Buckets are evenly spread over the query time range and
+ * points outside of it land in their own buckets. NaNs are ignored unless a
+ * bucket only has NaNs, in which case its first one is kept so that gaps
+ * remain visible.
+ * <p>
+ * Only iteration is supported, the index based accessors throw.
+ * @since 2.4
+ */
+public final class ReducedDataPoints implements DataPoints {
+
+  /** The series to reduce */
+  private final DataPoints source;
+
+  /** Start and end of the query in milliseconds */
+  private final long start_time;
+  private final long end_time;
+
+  /** The number of buckets, half the maximum number of points */
+  private final long buckets;
+
+  /**
+   * Default ctor.
+   * @param source The series to reduce.
+   * @param start_time The start of the query in milliseconds.
+   * @param end_time The end of the query in milliseconds.
+   * @param max_points The maximum number of points in the time range, at
+   * least 2.
+   * @throws IllegalArgumentException if the range is empty or max_points is
+   * less than 2.
+   */
+  public ReducedDataPoints(final DataPoints source, final long start_time,
+      final long end_time, final int max_points) {
+    if (source == null) {
+      throw new IllegalArgumentException("Source cannot be null");
+    }
+    if (end_time <= start_time) {
+      throw new IllegalArgumentException("End time " + end_time
+          + " must be greater than the start time " + start_time);
+    }
+    if (max_points < 2) {
+      throw new IllegalArgumentException("Max points must be at least 2: "
+          + max_points);
+    }
+    this.source = source;
+    this.start_time = start_time;
+    this.end_time = end_time;
+    buckets = max_points / 2;
+  }
+
+  @Override
+  public String metricName() {
+    return source.metricName();
+  }
+
+  @Override
+  public Deferred<String> metricNameAsync() {
+    return source.metricNameAsync();
+  }
+
+  @Override
+  public byte[] metricUID() {
+    return source.metricUID();
+  }
+
+  @Override
+  public Map<String, String> getTags() {
+    return source.getTags();
+  }
+
+  @Override
+  public Deferred<Map<String, String>> getTagsAsync() {
+    return source.getTagsAsync();
+  }
+
+  @Override
+  public ByteMap<byte[]> getTagUids() {
+    return source.getTagUids();
+  }
+
+  @Override
+  public List<String> getAggregatedTags() {
+    return source.getAggregatedTags();
+  }
+
+  @Override
+  public Deferred<List<String>> getAggregatedTagsAsync() {
+    return source.getAggregatedTagsAsync();
+  }
+
+  @Override
+  public List<byte[]> getAggregatedTagUids() {
+    return source.getAggregatedTagUids();
+  }
+
+  @Override
+  public List<String> getTSUIDs() {
+    return source.getTSUIDs();
+  }
+
+  @Override
+  public List<Annotation> getAnnotations() {
+    return source.getAnnotations();
+  }
+
+  /** @return The size of the source series, not of the reduced one */
+  @Override
+  public int size() {
+    return source.size();
+  }
+
+  /** @return The size of the source series, not of the reduced one */
+  @Override
+  public int aggregatedSize() {
+    return source.aggregatedSize();
+  }
+
+  @Override
+  public SeekableView iterator() {
+    return new Reducer(source.iterator());
+  }
+
+  @Override
+  public long timestamp(final int i) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public boolean isInteger(final int i) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public long longValue(final int i) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public double doubleValue(final int i) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public int getQueryIndex() {
+    return source.getQueryIndex();
+  }
+
+  /** @return The bucket of the timestamp, may be outside of [0, buckets) */
+  private long bucket(final long timestamp) {
+    return (long) Math.floor(
+        (double) (timestamp - start_time) * buckets / (end_time - start_time));
+  }
+
+  /** Emits the min and max of each bucket in timestamp order */
+  private final class Reducer implements SeekableView {
+    private final SeekableView iterator;
+
+    /** The next point of the source, read ahead to find bucket ends */
+    private final MutableDataPoint lookahead = new MutableDataPoint();
+    private boolean has_lookahead;
+
+    /** The extremes and first NaN of the current bucket */
+    private final MutableDataPoint min = new MutableDataPoint();
+    private final MutableDataPoint max = new MutableDataPoint();
+    private final MutableDataPoint nan = new MutableDataPoint();
+
+    /** Points of the last bucket left to emit */
+    private final MutableDataPoint[] pending = new MutableDataPoint[] {
+        new MutableDataPoint(), new MutableDataPoint() };
+    private int pending_count;
+    private int pending_index;
+
+    Reducer(final SeekableView iterator) {
+      this.iterator = iterator;
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (pending_index < pending_count) {
+        return true;
+      }
+      reduceBucket();
+      return pending_index < pending_count;
+    }
+
+    @Override
+    public DataPoint next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException("no more elements");
+      }
+      return pending[pending_index++];
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void seek(final long timestamp) {
+      iterator.seek(timestamp);
+      has_lookahead = false;
+      pending_count = pending_index = 0;
+    }
+
+    /** Reads the next bucket from the source into the pending points */
+    private void reduceBucket() {
+      pending_count = pending_index = 0;
+      if (!has_lookahead) {
+        if (!iterator.hasNext()) {
+          return;
+        }
+        lookahead.reset(iterator.next());
+        has_lookahead = true;
+      }
+      final long bucket = bucket(lookahead.timestamp());
+      boolean has_value = false;
+      boolean has_nan = false;
+      while (has_lookahead && bucket(lookahead.timestamp()) == bucket) {
+        final double value = lookahead.toDouble();
+        if (Double.isNaN(value)) {
+          if (!has_nan) {
+            nan.reset(lookahead);
+            has_nan = true;
+          }
+        } else if (!has_value) {
+          min.reset(lookahead);
+          max.reset(lookahead);
+          has_value = true;
+        } else if (value < min.toDouble()) {
+          min.reset(lookahead);
+        } else if (value > max.toDouble()) {
+          max.reset(lookahead);
+        }
+        if (iterator.hasNext()) {
+          lookahead.reset(iterator.next());
+        } else {
+          has_lookahead = false;
+        }
+      }
+
+      if (!has_value) {
+        pending[pending_count++].reset(nan);
+      } else if (min.timestamp() == max.timestamp()) {
+        pending[pending_count++].reset(min);
+      } else if (min.timestamp() < max.timestamp()) {
+        pending[pending_count++].reset(min);
+        pending[pending_count++].reset(max);
+      } else {
+        pending[pending_count++].reset(max);
+        pending[pending_count++].reset(min);
+      }
+    }
+  }
+}
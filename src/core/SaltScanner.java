@@ -21,9 +21,14 @@ import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.opentsdb.meta.Annotation;
+import net.opentsdb.query.CancellationToken;
+import net.opentsdb.query.QueryMemoryTracker;
 import net.opentsdb.query.filter.TagVFilter;
+import net.opentsdb.query.filter.TagVFilterCache;
+import net.opentsdb.rollup.RollupQuery;
 import net.opentsdb.stats.QueryStats;
 import net.opentsdb.stats.QueryStats.QueryStat;
 import net.opentsdb.uid.UniqueId;
@@ -42,9 +47,12 @@ import com.stumbleupon.async.Deferred;
 
 /**
  * A class that handles coordinating the various scanners created for each 
- * salt bucket when salting is enabled. Each scanner stores it's results in 
- * local maps and once everyone has reported in, then the maps are parsed and
- * combined into a proper set of spans to return to the {@link TsdbQuery} class.
+ * salt bucket when salting is enabled. Each scanner folds the rows of every
+ * batch it fetches into the shared span map as soon as the batch has been 
+ * compacted, then drops them. A series only lives in one salt bucket so the
+ * rows of a span always arrive in order from a single scanner. This way the
+ * data is only held once and the spans are ready to return to the 
+ * {@link TsdbQuery} class as soon as the last scanner reports in.
  * 
  * Note that if one or more of the scanners throws an exception, then that 
  * exception will be returned to the caller in the deferred. Unfortunately we
@@ -66,15 +74,12 @@ public class SaltScanner {
    * salt bucket. */
   private final List<Scanner> scanners;
   
-  /** Stores the compacted columns from each scanner as it completes. After all
-   * scanners are done, we process this into the span map above. */
-  private final Map<Integer, List<KeyValue>> kv_map = 
-          new ConcurrentHashMap<Integer, List<KeyValue>>();
+  /** Cumulative time spent by all scanners folding rows into the spans, in
+   * nanoseconds */
+  private final AtomicLong merge_time = new AtomicLong();
   
-  /** Stores annotations from each scanner as it completes */
-  private final Map<byte[], List<Annotation>> annotation_map = 
-          Collections.synchronizedMap(
-              new TreeMap<byte[], List<Annotation>>(new RowKey.SaltCmp()));
+  /** Cumulative bytes of compacted rows folded into the spans */
+  private final AtomicLong merged_bytes = new AtomicLong();
   
   /** A deferred to call with the spans on completion */
   private final Deferred<TreeMap<byte[], Span>> results = 
@@ -107,6 +112,18 @@ public class SaltScanner {
   /** A list of filters to iterate over when processing rows */
   private final List<TagVFilter> filters;
   
+  /** The rollup being read, null when reading raw data */
+  private final RollupQuery rollup_query;
+  
+  /** Folds rows as they are read, null to keep the raw rows */
+  private final EarlyDownsampler early_downsampler;
+  
+  /** Accounts for the rows held by the spans, may be null */
+  private final QueryMemoryTracker memory_tracker;
+  
+  /** Stops the scanners early when the query is cancelled, may be null */
+  private final CancellationToken cancellation;
+  
   /** A holder for storing the first exception thrown by a scanner if something
    * goes pear shaped. Make sure to synchronize on this object when checking
    * for null or assigning from a scanner's callback. */
@@ -151,6 +168,64 @@ public class SaltScanner {
                                       final boolean delete,
                                       final QueryStats query_stats,
                                       final int query_index) {
+    this(tsdb, metric, scanners, spans, filters, delete, query_stats, 
+        query_index, null);
+  }
+  
+  /**
+   * Ctor that reads raw data without folding rows.
+   * @param tsdb The TSDB to which we belong
+   * @param metric The metric we're expecting to fetch
+   * @param scanners A list of HBase scanners, one for each bucket
+   * @param spans The span map to store results in
+   * @param delete Whether or not to delete the queried data
+   * @param filters A list of filters for processing
+   * @param query_stats A stats object for tracking timing
+   * @param query_index The index of the sub query in the main query list
+   * @param rollup_query The rollup the scanners read from, null for raw data
+   * @throws IllegalArgumentException if any required data was missing or
+   * we had invalid parameters.
+   * @since 2.4
+   */
+  public SaltScanner(final TSDB tsdb, final byte[] metric, 
+                                      final List<Scanner> scanners, 
+                                      final TreeMap<byte[], Span> spans,
+                                      final List<TagVFilter> filters,
+                                      final boolean delete,
+                                      final QueryStats query_stats,
+                                      final int query_index,
+                                      final RollupQuery rollup_query) {
+    this(tsdb, metric, scanners, spans, filters, delete, query_stats, 
+        query_index, rollup_query, null);
+  }
+  
+  /**
+   * Default ctor that performs some validation. Call {@link scan} after 
+   * construction to actually start fetching data.
+   * @param tsdb The TSDB to which we belong
+   * @param metric The metric we're expecting to fetch
+   * @param scanners A list of HBase scanners, one for each bucket
+   * @param spans The span map to store results in
+   * @param delete Whether or not to delete the queried data
+   * @param filters A list of filters for processing
+   * @param query_stats A stats object for tracking timing
+   * @param query_index The index of the sub query in the main query list
+   * @param rollup_query The rollup the scanners read from, null for raw data
+   * @param downsampler The query downsampler to fold rows with as they are 
+   * read when it's safe to do so, null to keep the raw rows
+   * @throws IllegalArgumentException if any required data was missing or
+   * we had invalid parameters.
+   * @since 2.4
+   */
+  public SaltScanner(final TSDB tsdb, final byte[] metric, 
+                                      final List<Scanner> scanners, 
+                                      final TreeMap<byte[], Span> spans,
+                                      final List<TagVFilter> filters,
+                                      final boolean delete,
+                                      final QueryStats query_stats,
+                                      final int query_index,
+                                      final RollupQuery rollup_query,
+                                      final DownsamplingSpecification downsampler) {
     if (Const.SALT_WIDTH() < 1) {
       throw new IllegalArgumentException(
           "Salting is disabled. Use the regular scanner");
@@ -189,6 +264,12 @@ public class SaltScanner {
     this.delete = delete;
     this.query_stats = query_stats;
     this.query_index = query_index;
+    this.rollup_query = rollup_query;
+    early_downsampler = EarlyDownsampler.create(downsampler);
+    memory_tracker = query_stats != null ? 
+        query_stats.getMemoryTracker() : null;
+    cancellation = query_stats != null ? 
+        query_stats.getCancellationToken() : null;
   }
 
   /**
@@ -209,13 +290,12 @@ public class SaltScanner {
 
   /**
    * Called once all of the scanners have reported back in to record our
-   * latency and merge the results into the spans map. If there was an exception
-   * stored then we'll return that instead.
+   * latency and return the spans. If there was an exception stored then we'll 
+   * return that instead.
    */
   private void mergeAndReturnResults() {
     final long hbase_time = System.currentTimeMillis();
-    TsdbQuery.scanlatency.add((int)(hbase_time - start_time));
-    long rows = 0;
+    TsdbQuery.scanlatency.add(hbase_time - start_time);
 
     if (exception != null) {
       LOG.error("After all of the scanners finished, at "
@@ -223,70 +303,15 @@ public class SaltScanner {
       results.callback(exception);
       return;
     }
-    
-    // Merge sorted spans together
-    final long merge_start = DateTime.nanoTime();
-    for (final List<KeyValue> kvs : kv_map.values()) {
-      if (kvs == null || kvs.isEmpty()) {
-        LOG.warn("Found a key value list that was null or empty");
-        continue;
-      }
-      
-      for (final KeyValue kv : kvs) {
-        if (kv == null) {
-          LOG.warn("Found a key value item that was null");
-          continue;
-        }
-        if (kv.key() == null) {
-          LOG.warn("A key for a kv was null");
-          continue;
-        }
-
-        Span datapoints = spans.get(kv.key());
-        if (datapoints == null) {
-          datapoints = new Span(tsdb);
-          spans.put(kv.key(), datapoints);
-        }
-
-        if (annotation_map.containsKey(kv.key())) {
-          for (final Annotation note: annotation_map.get(kv.key())) {
-            datapoints.getAnnotations().add(note);
-          }
-          annotation_map.remove(kv.key());
-        }
-        try {  
-          datapoints.addRow(kv);
-          rows++;
-        } catch (RuntimeException e) {
-          LOG.error("Exception adding row to span", e);
-          throw e;
-        }
-      }
-    }
-     
-    kv_map.clear();
-
-    for (final byte[] key : annotation_map.keySet()) {
-      Span datapoints = spans.get(key);
-      if (datapoints == null) {
-        datapoints = new Span(tsdb);
-        spans.put(key, datapoints);
-      }
-
-      for (final Annotation note: annotation_map.get(key)) {
-        datapoints.getAnnotations().add(note);
-      }
-    }
 
     if (query_stats != null) {
       query_stats.addStat(query_index, QueryStat.SCANNER_MERGE_TIME, 
-          (DateTime.nanoTime() - merge_start));
+          merge_time.get());
     }
     if (LOG.isDebugEnabled()) {
-      LOG.debug("Scanning completed in " + (hbase_time - start_time) + " ms, " +
-            rows + " rows, and stored in " + spans.size() + " spans");
-      LOG.debug("It took " + (System.currentTimeMillis() - hbase_time) + " ms, "
-            + " to merge and sort the rows into a tree map");
+      LOG.debug("Scanning completed in " + (hbase_time - start_time) + " ms, " 
+          + merged_bytes.get() + " bytes merged into " + spans.size() 
+          + " spans in " + DateTime.msFromNano(merge_time.get()) + " ms");
     }
 
     results.callback(spans);
@@ -303,6 +328,8 @@ public class SaltScanner {
     ArrayList<ArrayList<KeyValue>>> {
     private final Scanner scanner;
     private final int index;
+    /** Compacted rows from the current batch, folded into the spans once the
+     * batch is done */
     private final List<KeyValue> kvs = new ArrayList<KeyValue>();
     private final ByteMap<List<Annotation>> annotations = 
             new ByteMap<List<Annotation>>();
@@ -310,6 +337,7 @@ public class SaltScanner {
         new ConcurrentHashMap<String, Boolean>());
     private final Set<String> keepers = Collections.newSetFromMap(
         new ConcurrentHashMap<String, Boolean>());
+    private final TagVFilterCache filter_cache = tsdb.getTagVFilterCache();
     
     private long scanner_start = -1;
     /** nanosecond timestamps */
@@ -317,11 +345,16 @@ public class SaltScanner {
     private long fetch_time = 0;       // cumulation of time waiting on HBase
     private long uid_resolve_time = 0; // cumulation of time resolving UIDs
     private long uids_resolved = 0; 
+    private long filter_cache_hits = 0;
+    private long filter_cache_misses = 0;
     private long compaction_time = 0;  // cumulation of time compacting
     private long dps_pre_filter = 0;
     private long rows_pre_filter = 0;
     private long dps_post_filter = 0;
     private long rows_post_filter = 0;
+    private long columns_from_storage = 0;
+    private long bytes_from_storage = 0;
+    private long bytes_merged = 0;     // bytes this bucket folded into spans
     
     public ScannerCB(final Scanner scanner, final int index) {
       this.scanner = scanner;
@@ -379,6 +412,12 @@ public class SaltScanner {
             LOG.debug("Closing scanner as there was an exception: " + scanner);
           }
           return null;
+        } else if (cancellation != null && cancellation.isCancelled()) {
+          // nobody is waiting for the results so stop scanning
+          close(false);
+          cancellation.markScannerStopped();
+          handleException(cancellation.getException());
+          return null;
         }
 
         // used for UID resolution if a filter is involved
@@ -402,6 +441,8 @@ public class SaltScanner {
           // the byte arrays so we'll just get a rough estimate of compacted
           // columns.
           for (final KeyValue kv : row) {
+            ++columns_from_storage;
+            bytes_from_storage += kvSize(kv);
             if (kv.qualifier().length % 2 == 0) {
               if (kv.qualifier().length == 2 || kv.qualifier().length == 4) {
                 ++dps_pre_filter;
@@ -414,6 +455,10 @@ public class SaltScanner {
                   dps_pre_filter += (kv.qualifier().length / 2);
                 }
               }
+            } else if (rollup_query != null) {
+              if (kv.qualifier()[0] == rollup_query.getAggregatorId()) {
+                ++dps_pre_filter;
+              }
             } else if (kv.qualifier()[0] == AppendDataPoints.APPEND_COLUMN_PREFIX) {
               // with appends we don't have a good rough estimate as the length
               // can vary widely with the value length variability. Therefore we
@@ -443,6 +488,23 @@ public class SaltScanner {
               continue;
             }
             if (!keepers.contains(tsuid)) {
+              // try the decisions of earlier queries before resolving
+              final ByteMap<byte[]> tag_uids = filter_cache != null ? 
+                  Tags.getTagUids(key) : null;
+              if (filter_cache != null) {
+                final Boolean cached = filter_cache.match(filters, tag_uids);
+                if (cached != null) {
+                  ++filter_cache_hits;
+                  if (cached) {
+                    keepers.add(tsuid);
+                    processRow(key, row);
+                  } else {
+                    skips.add(tsuid);
+                  }
+                  continue;
+                }
+                ++filter_cache_misses;
+              }
               final long uid_start = DateTime.nanoTime();
               
               /** CB to called after all of the UIDs have been resolved */
@@ -450,6 +512,9 @@ public class SaltScanner {
                 @Override
                 public Object call(final ArrayList<Boolean> matches) 
                     throws Exception {
+                  if (filter_cache != null) {
+                    filter_cache.put(filters, tag_uids, matches);
+                  }
                   for (final boolean matched : matches) {
                     if (!matched) {
                       skips.add(tsuid);
@@ -478,7 +543,7 @@ public class SaltScanner {
                     matches.add(filter.match(tags));
                   }
                   
-                  return Deferred.group(matches);
+                  return Deferred.groupInOrder(matches);
                 }
               }
  
@@ -499,12 +564,12 @@ public class SaltScanner {
           class GroupCB implements Callback<Object, ArrayList<Object>> {
             @Override
             public Object call(final ArrayList<Object> group) throws Exception {
-              return scan();
+              return mergeBatch() ? scan() : null;
             }
           }
           return Deferred.group(lookups).addCallback(new GroupCB());
         } else {
-          return scan();
+          return mergeBatch() ? scan() : null;
         }
       } catch (final RuntimeException e) {
         LOG.error("Unexpected exception on scanner " + this, e);
@@ -514,6 +579,57 @@ public class SaltScanner {
       }
     }
     
+    /**
+     * Folds the rows compacted from the last batch into the span map and 
+     * releases them so that they're only held once.
+     * @return True if the rows were merged, false if an exception was thrown
+     * in which case the scanner was closed and the exception handled.
+     */
+    boolean mergeBatch() {
+      if (kvs.isEmpty() && annotations.isEmpty()) {
+        return true;
+      }
+      final long merge_start = DateTime.nanoTime();
+      long bytes = 0;
+      try {
+        synchronized (spans) {
+          for (final KeyValue kv : kvs) {
+            Span datapoints = spans.get(kv.key());
+            if (datapoints == null) {
+              datapoints = new Span(tsdb);
+              spans.put(kv.key(), datapoints);
+            }
+            datapoints.addRow(kv);
+            bytes += kvSize(kv);
+          }
+          
+          synchronized (annotations) {
+            for (final Map.Entry<byte[], List<Annotation>> entry : 
+                annotations.entrySet()) {
+              Span datapoints = spans.get(entry.getKey());
+              if (datapoints == null) {
+                datapoints = new Span(tsdb);
+                spans.put(entry.getKey(), datapoints);
+              }
+              datapoints.getAnnotations().addAll(entry.getValue());
+            }
+            annotations.clear();
+          }
+        }
+      } catch (final RuntimeException e) {
+        LOG.error("Exception adding row to span on scanner " + this, e);
+        close(false);
+        handleException(e);
+        return false;
+      } finally {
+        kvs.clear();
+        merge_time.addAndGet(DateTime.nanoTime() - merge_start);
+      }
+      bytes_merged += bytes;
+      merged_bytes.addAndGet(bytes);
+      return true;
+    }
+    
     /**
      * Finds or creates the span for this row, compacts it and stores it. Also
      * fires off a delete request for the row if told to.
@@ -543,6 +659,10 @@ public class SaltScanner {
               dps_post_filter += (kv.qualifier().length / 2);
             }
           }
+        } else if (rollup_query != null) {
+          if (kv.qualifier()[0] == rollup_query.getAggregatorId()) {
+            ++dps_post_filter;
+          }
         } else if (kv.qualifier()[0] == AppendDataPoints.APPEND_COLUMN_PREFIX) {
           // with appends we don't have a good rough estimate as the length
           // can vary widely with the value length variability. Therefore we
@@ -557,6 +677,14 @@ public class SaltScanner {
         }
       }
 
+      if (rollup_query != null) {
+        for (final KeyValue converted : rollup_query.convertRow(row)) {
+          allocate(converted);
+          kvs.add(converted);
+        }
+        return;
+      }
+
       final KeyValue compacted;
       // let IllegalDataExceptions bubble up so the handler above can close
       // the scanner
@@ -582,7 +710,11 @@ public class SaltScanner {
       }
       compaction_time += (DateTime.nanoTime() - compaction_start);
       if (compacted != null) { // Can be null if we ignored all KVs.
-        kvs.add(compacted);
+        // fold the row right away so the raw columns can be released
+        final KeyValue stored = early_downsampler == null ? compacted : 
+          early_downsampler.downsample(compacted);
+        allocate(stored);
+        kvs.add(stored);
       }
     }
   
@@ -594,6 +726,9 @@ public class SaltScanner {
      */
     void close(final boolean ok) {
       scanner.close();
+      if (ok && !mergeBatch()) {
+        return;
+      }
       
       if (query_stats != null) {
         query_stats.addScannerStat(query_index, index, QueryStat.SCANNER_TIME, 
@@ -607,6 +742,14 @@ public class SaltScanner {
             QueryStat.COLUMNS_FROM_STORAGE, scanner.getColumnsFetched());
         query_stats.addScannerStat(query_index, index, 
             QueryStat.BYTES_FROM_STORAGE, scanner.getBytesFetched()); */
+        query_stats.addScannerStat(query_index, index, 
+            QueryStat.ROWS_FROM_STORAGE, rows_pre_filter);
+        query_stats.addScannerStat(query_index, index, 
+            QueryStat.COLUMNS_FROM_STORAGE, columns_from_storage);
+        query_stats.addScannerStat(query_index, index, 
+            QueryStat.BYTES_FROM_STORAGE, bytes_from_storage);
+        query_stats.addScannerStat(query_index, index, 
+            QueryStat.SCANNER_MERGED_BYTES, bytes_merged);
         query_stats.addScannerStat(query_index, index, 
             QueryStat.HBASE_TIME, fetch_time);
         query_stats.addScannerStat(query_index, index, 
@@ -625,12 +768,18 @@ public class SaltScanner {
             QueryStat.SCANNER_UID_TO_STRING_TIME, uid_resolve_time);
         query_stats.addScannerStat(query_index, index, 
             QueryStat.UID_PAIRS_RESOLVED, uids_resolved);
+        if (filter_cache != null) {
+          query_stats.addScannerStat(query_index, index, 
+              QueryStat.FILTER_CACHE_HITS, filter_cache_hits);
+          query_stats.addScannerStat(query_index, index, 
+              QueryStat.FILTER_CACHE_MISSES, filter_cache_misses);
+        }
         query_stats.addScannerStat(query_index, index, 
             QueryStat.COMPACTION_TIME, compaction_time);
       }
       
       if (ok && exception == null) {
-        validateAndTriggerCallback(kvs, annotations);
+        validateAndTriggerCallback();
       } else {
         completed_tasks.incrementAndGet();
       }
@@ -638,27 +787,31 @@ public class SaltScanner {
   }
   
   /**
-   * Called each time a scanner completes with valid or empty data.
-   * @param kvs The compacted columns fetched by the scanner
-   * @param annotations The annotations fetched by the scanners
+   * @param kv The key value to size
+   * @return The number of bytes in the key, qualifier and value
    */
-  private void validateAndTriggerCallback(final List<KeyValue> kvs, 
-          final Map<byte[], List<Annotation>> annotations) {
-
-    final int tasks = completed_tasks.incrementAndGet();
-    if (kvs.size() > 0) {
-      kv_map.put(tasks, kvs);
-    }
-    
-    for (final byte[] key : annotations.keySet()) {
-      final List<Annotation> notes = annotations.get(key);
-      if (notes.size() > 0) {
-        // Optimistic write, expecting unique row keys
-        annotation_map.put(key, notes);
-      }
+  static long kvSize(final KeyValue kv) {
+    return kv.key().length + kv.qualifier().length + kv.value().length;
+  }
+  
+  /**
+   * Charges a row that will be held by a span to the query's memory budget.
+   * @param kv The row to store
+   * @throws QueryException if the query's memory limit was exceeded
+   */
+  private void allocate(final KeyValue kv) {
+    if (memory_tracker != null) {
+      memory_tracker.allocate(kvSize(kv));
     }
-    
-    if (tasks >= Const.SALT_BUCKETS()) {
+  }
+  
+  /**
+   * Called each time a scanner completes with valid or empty data. Once all
+   * of the scanners are done, the results are returned.
+   */
+  private void validateAndTriggerCallback() {
+    final int tasks = completed_tasks.incrementAndGet();
+    if (tasks >= scanners.size()) {
       try {
         mergeAndReturnResults();
       } catch (final Exception ex) {
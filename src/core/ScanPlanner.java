@@ -0,0 +1,330 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.hbase.async.Bytes.ByteMap;
+import org.hbase.async.GetRequest;
+
+import net.opentsdb.query.filter.TagVFilter;
+
+/**
+ * Picks the cheapest way to fetch the rows of a sub query from storage. The
+ * planner estimates the number of candidate row keys from the tag value
+ * literals resolved by the filters and the number of row base times covered
+ * by the query, then picks one of:
+ * <ul>
+ * <li>{@link Plan#MULTI_GET} when every tag of every candidate series is
+ * known and the number of row keys is within {@code max_gets}. The series
+ * are either given by the series registry, i.e. the {@link net.opentsdb.search.TagIndex}, or
+ * derived from the cross product of the literals. The registry is only
+ * given when it is known to hold every series of the query.</li>
+ * <li>{@link Plan#MULTI_RANGE} when the lowest sorting tag key has literal
+ * values and a short scan per row base time, salt bucket and value fits
+ * within {@code max_ranges}.</li>
+ * <li>{@link Plan#SCAN} otherwise, i.e. the regular full scan over the metric
+ * with a row key regex.</li>
+ * </ul>
+ * Without the registry, exact keys and ranges are only possible with explicit
+ * tags as otherwise a row may carry tags that sort before or between the ones
+ * in the query. The registry knows the full TSUIDs so it can build exact keys
+ * for any query and skips the combinations that were never written.
+ * @since 2.4
+ */
+final class ScanPlanner {
+
+  /** The ways rows can be fetched from storage */
+  enum Plan {
+    /** One scan per salt bucket over the metric with a row key regex */
+    SCAN,
+    /** One short scan per base time, salt bucket and leading tag value */
+    MULTI_RANGE,
+    /** One get per candidate row key */
+    MULTI_GET
+  }
+
+  /** The metric UID */
+  private final byte[] metric;
+
+  /** Every tag key in the query mapped to its literal values, null if the
+   * values are not known up front. Sorted as they would be in a row key. */
+  private final ByteMap<byte[][]> tags;
+
+  /** The known series matching the query, null if the registry wasn't used */
+  private final List<byte[]> series;
+
+  /** The first row base time to fetch, in seconds */
+  private final long start;
+
+  /** The row base time to stop at (exclusive), in seconds */
+  private final long end;
+
+  /** The plan picked for the query */
+  private final Plan plan;
+
+  /** The estimated number of candidate row keys, -1 if unknown */
+  private final long estimate;
+
+  /**
+   * Default ctor that computes the plan.
+   * @param metric The metric UID
+   * @param filters The resolved filters for the query, may be null
+   * @param row_key_literals The tag value literals pulled from the filters
+   * @param series The TSUIDs of the known series matching the filters, null
+   * if the registry is disabled, incomplete or some tags are not pinned
+   * @param explicit_tags Whether or not rows can only carry the tags in the
+   * query
+   * @param post_scan_filters Whether or not some filters must be evaluated
+   * against the resolved tags after fetching
+   * @param start The scan start time in seconds, aligned on a row boundary
+   * @param end The scan end time in seconds, aligned on a row boundary
+   * @param max_gets The maximum number of row keys to fetch with gets
+   * @param max_ranges The maximum number of scans for a multi-range plan
+   */
+  ScanPlanner(final byte[] metric,
+              final List<TagVFilter> filters,
+              final ByteMap<byte[][]> row_key_literals,
+              final List<byte[]> series,
+              final boolean explicit_tags,
+              final boolean post_scan_filters,
+              final long start,
+              final long end,
+              final int max_gets,
+              final int max_ranges) {
+    this.metric = metric;
+    this.series = series;
+    this.start = start;
+    this.end = end;
+    tags = new ByteMap<byte[][]>();
+    if (filters != null) {
+      for (final TagVFilter filter : filters) {
+        tags.put(filter.getTagkBytes(), row_key_literals == null ? null :
+          row_key_literals.get(filter.getTagkBytes()));
+      }
+    }
+
+    final long base_times = Math.max(0, (end - start) / Const.MAX_TIMESPAN);
+    long candidates = 1;
+    if (series != null) {
+      candidates = series.size();
+    } else {
+      for (final byte[][] values : tags.values()) {
+        if (values == null) {
+          candidates = -1;
+          break;
+        }
+        candidates *= values.length;
+        if (candidates > Integer.MAX_VALUE) {
+          // too wide a cross product to bother counting
+          candidates = -1;
+          break;
+        }
+      }
+    }
+    estimate = candidates < 0 ? -1 : candidates * base_times;
+
+    if (base_times < 1) {
+      plan = Plan.SCAN;
+      return;
+    }
+    
+    if (series != null && estimate <= max_gets && !post_scan_filters) {
+      plan = Plan.MULTI_GET;
+      return;
+    }
+
+    if (!explicit_tags) {
+      plan = Plan.SCAN;
+      return;
+    }
+
+    if (estimate >= 0 && estimate <= max_gets && !post_scan_filters) {
+      plan = Plan.MULTI_GET;
+      return;
+    }
+
+    final byte[][] leading = tags.isEmpty() ? null : tags.firstEntry().getValue();
+    if (leading != null && base_times * leading.length * buckets()
+        <= max_ranges) {
+      plan = Plan.MULTI_RANGE;
+    } else {
+      plan = Plan.SCAN;
+    }
+  }
+
+  /** @return The plan picked for the query */
+  Plan getPlan() {
+    return plan;
+  }
+
+  /** @return The estimated number of candidate row keys, -1 if unknown */
+  long getEstimate() {
+    return estimate;
+  }
+
+  /**
+   * Builds a get for every candidate row key, ordered by base time so that
+   * rows of a series are fetched in time order.
+   * @param table The table to fetch from
+   * @param family The column family to fetch
+   * @return A list of get requests
+   * @throws IllegalStateException if the plan is not {@link Plan#MULTI_GET}
+   */
+  List<GetRequest> getRequests(final byte[] table, final byte[] family) {
+    if (plan != Plan.MULTI_GET) {
+      throw new IllegalStateException("Gets are not valid for plan " + plan);
+    }
+    final List<byte[]> tag_bytes = new ArrayList<byte[]>(tags.size());
+    final List<byte[][]> values = new ArrayList<byte[][]>(tags.size());
+    for (final Map.Entry<byte[], byte[][]> entry : tags.entrySet()) {
+      tag_bytes.add(entry.getKey());
+      values.add(entry.getValue());
+    }
+
+    final List<GetRequest> gets = new ArrayList<GetRequest>();
+    final int[] idx = new int[values.size()];
+    for (long ts = start; ts < end; ts += Const.MAX_TIMESPAN) {
+      if (series != null) {
+        for (final byte[] tsuid : series) {
+          final int tags_width = tsuid.length - TSDB.metrics_width();
+          final byte[] key = newKey(ts, 
+              tags_width / (TSDB.tagk_width() + TSDB.tagv_width()));
+          System.arraycopy(tsuid, TSDB.metrics_width(), key, prefixWidth(), 
+              tags_width);
+          RowKey.prefixKeyWithSalt(key);
+          gets.add(new GetRequest(table, key, family));
+        }
+        continue;
+      }
+      
+      // walk the cross product of the tag values like an odometer
+      while (true) {
+        final byte[] key = newKey(ts, tag_bytes.size());
+        int offset = prefixWidth();
+        for (int i = 0; i < idx.length; i++) {
+          System.arraycopy(tag_bytes.get(i), 0, key, offset,
+              TSDB.tagk_width());
+          offset += TSDB.tagk_width();
+          System.arraycopy(values.get(i)[idx[i]], 0, key, offset,
+              TSDB.tagv_width());
+          offset += TSDB.tagv_width();
+        }
+        RowKey.prefixKeyWithSalt(key);
+        gets.add(new GetRequest(table, key, family));
+
+        int i = idx.length - 1;
+        while (i >= 0 && ++idx[i] >= values.get(i).length) {
+          idx[i--] = 0;
+        }
+        if (i < 0) {
+          break;
+        }
+      }
+    }
+    return gets;
+  }
+
+  /**
+   * Builds the start and stop keys for every range, ordered by base time so
+   * that rows of a series are fetched in time order when the ranges are
+   * scanned sequentially.
+   * @return A list of start and stop key pairs.
+   * @throws IllegalStateException if the plan is not {@link Plan#MULTI_RANGE}
+   */
+  List<byte[][]> getRanges() {
+    if (plan != Plan.MULTI_RANGE) {
+      throw new IllegalStateException("Ranges are not valid for plan " + plan);
+    }
+    final byte[] tagk = tags.firstKey();
+    final byte[][] values = tags.firstEntry().getValue();
+    final List<byte[][]> ranges = new ArrayList<byte[][]>();
+    for (long ts = start; ts < end; ts += Const.MAX_TIMESPAN) {
+      for (int bucket = 0; bucket < buckets(); bucket++) {
+        for (final byte[] value : values) {
+          final byte[] start_key = newKey(ts, 1);
+          if (Const.SALT_WIDTH() > 0) {
+            System.arraycopy(RowKey.getSaltBytes(bucket), 0, start_key, 0,
+                Const.SALT_WIDTH());
+          }
+          System.arraycopy(tagk, 0, start_key, prefixWidth(),
+              TSDB.tagk_width());
+          System.arraycopy(value, 0, start_key,
+              prefixWidth() + TSDB.tagk_width(), TSDB.tagv_width());
+          ranges.add(new byte[][] { start_key, nextKey(start_key) });
+        }
+      }
+    }
+    return ranges;
+  }
+
+  @Override
+  public String toString() {
+    return new StringBuilder("ScanPlanner(plan=")
+      .append(plan)
+      .append(", estimate=")
+      .append(estimate)
+      .append(", start=")
+      .append(start)
+      .append(", end=")
+      .append(end)
+      .append(", tags=")
+      .append(tags.size())
+      .append(", series=")
+      .append(series == null ? -1 : series.size())
+      .append(")")
+      .toString();
+  }
+
+  /**
+   * Returns the smallest key greater than every key starting with the given
+   * prefix.
+   * @param prefix The prefix to increment
+   * @return The stop key for the prefix
+   */
+  static byte[] nextKey(final byte[] prefix) {
+    int i = prefix.length - 1;
+    while (i >= 0 && prefix[i] == (byte) 0xFF) {
+      i--;
+    }
+    if (i < 0) {
+      // scan until the end of the table
+      return new byte[0];
+    }
+    final byte[] next = new byte[i + 1];
+    System.arraycopy(prefix, 0, next, 0, i + 1);
+    next[i]++;
+    return next;
+  }
+
+  /** @return A key with the metric and base time set and room for tags */
+  private byte[] newKey(final long base_time, final int num_tags) {
+    final byte[] key = new byte[prefixWidth() +
+        (num_tags * (TSDB.tagk_width() + TSDB.tagv_width()))];
+    System.arraycopy(metric, 0, key, Const.SALT_WIDTH(), metric.length);
+    Internal.setBaseTime(key, (int) base_time);
+    return key;
+  }
+
+  /** @return The width of the salt, metric and timestamp */
+  private static int prefixWidth() {
+    return Const.SALT_WIDTH() + TSDB.metrics_width() + Const.TIMESTAMP_BYTES;
+  }
+
+  /** @return The number of salt buckets to scan */
+  private static int buckets() {
+    return Const.SALT_WIDTH() > 0 ? Const.SALT_BUCKETS() : 1;
+  }
+}
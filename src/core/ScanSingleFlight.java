@@ -0,0 +1,266 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.query.CancellationToken;
+import net.opentsdb.stats.QueryStats;
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.stats.QueryStats.QueryStat;
+
+/**
+ * Collapses identical scans that are in flight at the same time into a single
+ * scan. The first query to ask for a scan becomes the leader and runs it, any
+ * query asking for the same scan before it completes attaches to the leader
+ * and receives the very same {@link Span}s.
+ * <p>
+ * Scans are identified by a key built by the query from everything that
+ * determines the rows read: the metric or TSUIDs, the row key filter, the
+ * post scan filters, the scan time range, the rollup table and the early
+ * downsampler. The spans are shared so the callers must treat them as read
+ * only, which {@link TsdbQuery} already does once the scan completes.
+ * <p>
+ * If the leader fails because its own query was cancelled, the attached
+ * queries run their scans on their own instead of failing with it. Any other
+ * error is handed to every attached query.
+ * @since 2.4
+ */
+final class ScanSingleFlight {
+  private static final Logger LOG =
+      LoggerFactory.getLogger(ScanSingleFlight.class);
+
+  /** Runs a scan, implemented by the query */
+  interface Scan {
+    /** @return A deferred resolving to the spans read */
+    Deferred<TreeMap<byte[], Span>> scan();
+  }
+
+  /** The scans in flight keyed on the normalized scan */
+  private final ConcurrentHashMap<String, Flight> flights =
+      new ConcurrentHashMap<String, Flight>();
+
+  /** Number of scans actually run through this class */
+  private final AtomicLong leaders = new AtomicLong();
+
+  /** Number of queries that attached to another query's scan */
+  private final AtomicLong shared = new AtomicLong();
+
+  /** Number of attached queries that had to scan after a cancellation */
+  private final AtomicLong retried = new AtomicLong();
+
+  /**
+   * Runs the scan or attaches to an identical one already in flight.
+   * @param key The normalized scan key
+   * @param scan The scan to run if no identical scan is in flight
+   * @param token The cancellation token of the query, may be null
+   * @param query_stats The stats of the query, may be null
+   * @param query_index The index of the sub query in the stats
+   * @return A deferred resolving to the spans, possibly shared with other
+   * queries
+   */
+  Deferred<TreeMap<byte[], Span>> run(final String key,
+                                      final Scan scan,
+                                      final CancellationToken token,
+                                      final QueryStats query_stats,
+                                      final int query_index) {
+    while (true) {
+      final Flight flight = new Flight(key, token, query_stats, query_index);
+      final Flight existing = flights.putIfAbsent(key, flight);
+      if (existing == null) {
+        return lead(flight, scan);
+      }
+      final Deferred<TreeMap<byte[], Span>> attached = existing.attach(scan);
+      if (attached != null) {
+        shared.incrementAndGet();
+        if (query_stats != null) {
+          query_stats.addStat(query_index, QueryStat.SHARED_SCAN, 1);
+        }
+        return attached;
+      }
+      // the flight completed between the lookup and the attach, it removes
+      // itself from the map before that so try again.
+    }
+  }
+
+  /** Runs the scan as the leader of the flight */
+  private Deferred<TreeMap<byte[], Span>> lead(final Flight flight,
+                                               final Scan scan) {
+    leaders.incrementAndGet();
+    final Deferred<TreeMap<byte[], Span>> deferred;
+    try {
+      deferred = scan.scan();
+    } catch (RuntimeException e) {
+      flight.fail(e);
+      throw e;
+    }
+    return deferred.addCallbacks(flight, new FlightErrorCB(flight));
+  }
+
+  /**
+   * Collects the stats for the single flight scans.
+   * @param collector The collector to use
+   */
+  void collectStats(final StatsCollector collector) {
+    collector.record("query.single_flight.in_flight", flights.size());
+    collector.record("query.single_flight.scans", leaders.get());
+    collector.record("query.single_flight.shared", shared.get());
+    collector.record("query.single_flight.retried", retried.get());
+  }
+
+  /** @return The number of scans in flight */
+  int inFlight() {
+    return flights.size();
+  }
+
+  /** An attached query waiting on the leader */
+  private static final class Follower {
+    final Scan scan;
+    final Deferred<TreeMap<byte[], Span>> deferred =
+        new Deferred<TreeMap<byte[], Span>>();
+
+    Follower(final Scan scan) {
+      this.scan = scan;
+    }
+  }
+
+  /** Hands the error of the leader to the attached queries */
+  private static final class FlightErrorCB
+      implements Callback<Object, Exception> {
+    private final Flight flight;
+
+    FlightErrorCB(final Flight flight) {
+      this.flight = flight;
+    }
+
+    @Override
+    public Object call(final Exception e) {
+      flight.fail(e);
+      return e;
+    }
+  }
+
+  /** A scan in flight, completes the attached queries with the leader's
+   * results. */
+  private final class Flight implements
+      Callback<TreeMap<byte[], Span>, TreeMap<byte[], Span>> {
+    private final String key;
+    private final CancellationToken token;
+    private final QueryStats query_stats;
+    private final int query_index;
+
+    /** The attached queries. Guarded by this */
+    private List<Follower> followers = new ArrayList<Follower>();
+
+    Flight(final String key, final CancellationToken token,
+        final QueryStats query_stats, final int query_index) {
+      this.key = key;
+      this.token = token;
+      this.query_stats = query_stats;
+      this.query_index = query_index;
+    }
+
+    /**
+     * Attaches a query to the flight.
+     * @param scan The query's own scan in case the leader is cancelled
+     * @return A deferred to wait on or null if the flight already completed
+     */
+    synchronized Deferred<TreeMap<byte[], Span>> attach(final Scan scan) {
+      if (followers == null) {
+        return null;
+      }
+      final Follower follower = new Follower(scan);
+      followers.add(follower);
+      return follower.deferred;
+    }
+
+    /** Completes the attached queries with the spans of the leader */
+    @Override
+    public TreeMap<byte[], Span> call(final TreeMap<byte[], Span> spans) {
+      final List<Follower> attached = complete();
+      if (attached.isEmpty()) {
+        return spans;
+      }
+      if (spans != null) {
+        // spans sort their rows on the first read, do it now so readers on
+        // other threads never race on it.
+        for (final Span span : spans.values()) {
+          span.checkRowOrder();
+        }
+      }
+      for (final Follower follower : attached) {
+        follower.deferred.callback(spans);
+      }
+      return spans;
+    }
+
+    /**
+     * Fails the attached queries or, if the leader was cancelled, runs their
+     * own scans.
+     * @param e The exception of the leader
+     */
+    void fail(final Exception e) {
+      final List<Follower> attached = complete();
+      if (attached.isEmpty()) {
+        return;
+      }
+      if (token == null || !token.isCancelled()) {
+        for (final Follower follower : attached) {
+          follower.deferred.callback(e);
+        }
+        return;
+      }
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Leader of the scan was cancelled, running "
+            + attached.size() + " attached scans on their own");
+      }
+      for (final Follower follower : attached) {
+        retried.incrementAndGet();
+        try {
+          follower.scan.scan().chain(follower.deferred);
+        } catch (RuntimeException ex) {
+          follower.deferred.callback(ex);
+        }
+      }
+    }
+
+    /**
+     * Removes the flight so that new queries start their own scan and
+     * records the number of attached queries.
+     * @return The attached queries
+     */
+    private List<Follower> complete() {
+      flights.remove(key, this);
+      final List<Follower> attached;
+      synchronized (this) {
+        attached = followers;
+        followers = null;
+      }
+      if (query_stats != null) {
+        query_stats.addStat(query_index, QueryStat.SCAN_SHARE_COUNT,
+            attached.size());
+      }
+      return attached;
+    }
+  }
+}
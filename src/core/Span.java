@@ -59,6 +59,24 @@ final class Span implements DataPoints {
     this.tsdb = tsdb;
   }
 
+  /**
+   * Builds a span with the rows and annotations of two spans of the same
+   * series, leaving both untouched as they may be shared between queries.
+   * @param head The span with the earlier rows
+   * @param tail The span with the later rows
+   * @return A new span
+   * @since 2.4
+   */
+  static Span concat(final Span head, final Span tail) {
+    final Span span = new Span(head.tsdb);
+    span.rows.ensureCapacity(head.rows.size() + tail.rows.size());
+    span.rows.addAll(head.rows);
+    span.rows.addAll(tail.rows);
+    span.annotations.addAll(head.annotations);
+    span.annotations.addAll(tail.annotations);
+    return span;
+  }
+
   /** @throws IllegalStateException if the span doesn't have any rows */
   private void checkNotEmpty() {
     if (rows.size() == 0) {
@@ -376,10 +394,11 @@ final class Span implements DataPoints {
 
   /**
    * Checks the sorted flag and sorts the rows if necessary. Should be called
-   * by any iteration method.
+   * by any iteration method. Package private so that spans shared between
+   * threads can be sorted before they are handed out.
    * Since 2.0
    */
-  private void checkRowOrder() {
+  void checkRowOrder() {
     if (!sorted) {
       Collections.sort(rows, new RowSeq.RowSeqComparator());
       sorted = true;
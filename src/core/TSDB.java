@@ -20,6 +20,7 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicLong;
 
 import com.stumbleupon.async.Callback;
@@ -47,6 +48,7 @@ import net.opentsdb.tsd.RTPublisher;
 import net.opentsdb.tsd.StorageExceptionHandler;
 import net.opentsdb.uid.NoSuchUniqueId;
 import net.opentsdb.uid.NoSuchUniqueName;
+import net.opentsdb.uid.UidDictionary;
 import net.opentsdb.uid.UniqueId;
 import net.opentsdb.uid.UniqueIdFilterPlugin;
 import net.opentsdb.uid.UniqueId.UniqueIdType;
@@ -58,12 +60,19 @@ import net.opentsdb.meta.Annotation;
 import net.opentsdb.meta.MetaDataCache;
 import net.opentsdb.meta.TSMeta;
 import net.opentsdb.meta.UIDMeta;
+import net.opentsdb.query.QueryScheduler;
 import net.opentsdb.query.expression.ExpressionFactory;
 import net.opentsdb.query.filter.TagVFilter;
+import net.opentsdb.query.filter.TagVFilterCache;
+import net.opentsdb.rollup.RollupConfig;
+import net.opentsdb.rollup.RollupInterval;
+import net.opentsdb.rollup.RollupQueue;
 import net.opentsdb.search.SearchPlugin;
 import net.opentsdb.search.SearchQuery;
+import net.opentsdb.search.TagIndex;
 import net.opentsdb.tools.StartupPlugin;
 import net.opentsdb.stats.Histogram;
+import net.opentsdb.stats.LatencyHistogram;
 import net.opentsdb.stats.QueryStats;
 import net.opentsdb.stats.StatsCollector;
 
@@ -120,6 +129,27 @@ public final class TSDB {
    */
   private final CompactionQueue compactionq;
 
+  /** Rollup intervals to write and query, null if rollups are disabled */
+  private final RollupConfig rollup_config;
+
+  /** Accumulates rollups at write time, null if rollups are disabled */
+  private final RollupQueue rollup_queue;
+
+  /** Admission control for queries, null if the scheduler is disabled */
+  private final QueryScheduler query_scheduler;
+  
+  /** Runs the expressions of queries in parallel, may be null */
+  private final ExecutorService query_compute_pool;
+  
+  /** Shares identical scans in flight between queries, may be null */
+  private final ScanSingleFlight scan_single_flight;
+  
+  /** Tag value filter decisions shared between queries, may be null */
+  private final TagVFilterCache tagv_filter_cache;
+  
+  /** Inverted index of the series for lookups, may be null */
+  private final TagIndex tag_index;
+
   /** Search indexer to use if configure */
   private SearchPlugin search = null;
 
@@ -219,6 +249,68 @@ public final class TSDB {
     
     timer = Threads.newTimer("TSDB Timer");
     
+    if (config.getBoolean("tsd.rollups.enable")) {
+      rollup_config = new RollupConfig(config);
+      rollup_queue = new RollupQueue(this, rollup_config);
+      LOG.info("Enabled rollups with " + rollup_config);
+    } else {
+      rollup_config = null;
+      rollup_queue = null;
+    }
+    
+    if (config.getBoolean("tsd.query.scheduler.enable")) {
+      query_scheduler = new QueryScheduler(config);
+      LOG.info("Enabled the query scheduler with " + query_scheduler);
+    } else {
+      query_scheduler = null;
+    }
+    
+    if (config.getInt("tsd.query.expression.compute_threads") > 0) {
+      query_compute_pool = Threads.newFixedPool(
+          config.getInt("tsd.query.expression.compute_threads"), 
+          "Query Compute");
+    } else {
+      query_compute_pool = null;
+    }
+    
+    if (config.getBoolean("tsd.query.single_flight.enable")) {
+      scan_single_flight = new ScanSingleFlight();
+    } else {
+      scan_single_flight = null;
+    }
+    
+    if (config.getLong("tsd.query.filter.cache.max_entries") > 0) {
+      tagv_filter_cache = new TagVFilterCache(
+          config.getLong("tsd.query.filter.cache.max_entries"));
+    } else {
+      tagv_filter_cache = null;
+    }
+    
+    if (config.getBoolean("tsd.core.uid.suggest_index.enable")) {
+      // suggest calls scan the UID table until the load completes
+      final long interval = 
+          config.getLong("tsd.core.uid.suggest_index.refresh_interval");
+      startDictionary(metrics, METRICS_QUAL, METRICS_WIDTH, interval);
+      startDictionary(tag_names, TAG_NAME_QUAL, TAG_NAME_WIDTH, interval);
+      startDictionary(tag_values, TAG_VALUE_QUAL, TAG_VALUE_WIDTH, interval);
+    }
+    if (config.getBoolean("tsd.query.filter.dictionary.enable") && 
+        tag_values.getDictionary() == null) {
+      // regex and wildcard filters are only expanded once the load completes
+      startDictionary(tag_values, TAG_VALUE_QUAL, TAG_VALUE_WIDTH, 
+          config.getLong("tsd.query.filter.dictionary.refresh_interval"));
+    }
+    
+    if (config.getBoolean("tsd.search.tag_index.enable")) {
+      tag_index = new TagIndex();
+      // lookups scan the meta table until the load completes
+      tag_index.load(this.client, meta_table);
+      tag_index.scheduleRefresh(timer, this.client, meta_table, 
+          config.getLong("tsd.search.tag_index.refresh_interval"));
+    } else {
+      tag_index = null;
+    }
+    
     QueryStats.setEnableDuplicates(
         config.getBoolean("tsd.query.allow_simultaneous_duplicates"));
     
@@ -237,8 +329,9 @@ public final class TSDB {
     // load up the functions that require the TSDB object
     ExpressionFactory.addTSDBFunctions(this);
     
-    // set any extra tags from the config for stats
+    // set any extra tags and the histogram settings from the config for stats
     StatsCollector.setGlobalTags(config);
+    StatsCollector.setHistogramConfig(config);
     
     LOG.debug(config.dumpConfiguration());
   }
@@ -590,6 +683,11 @@ public final class TSDB {
       checks.add(client.ensureTableExists(
           config.getString("tsd.storage.hbase.meta_table")));
     }
+    if (rollup_config != null) {
+      for (final RollupInterval interval : rollup_config.getIntervals()) {
+        checks.add(client.ensureTableExists(interval.getTableName()));
+      }
+    }
     return Deferred.group(checks);
   }
   
@@ -714,6 +812,26 @@ public final class TSDB {
         stats.idleConnectionsClosed());
 
     compactionq.collectStats(collector);
+    if (rollup_queue != null) {
+      rollup_queue.collectStats(collector);
+    }
+    if (query_scheduler != null) {
+      query_scheduler.collectStats(collector);
+    }
+    if (scan_single_flight != null) {
+      scan_single_flight.collectStats(collector);
+    }
+    if (tagv_filter_cache != null) {
+      tagv_filter_cache.collectStats(collector);
+    }
+    if (tag_index != null) {
+      tag_index.collectStats(collector);
+    }
+    for (final UniqueId uid : new UniqueId[] { metrics, tag_names, tag_values }) {
+      if (uid.getDictionary() != null) {
+        uid.getDictionary().collectStats(collector);
+      }
+    }
     // Collect Stats from Plugins
     if (startup != null) {
       try {
@@ -765,13 +883,41 @@ public final class TSDB {
     }
   }
 
-  /** Returns a latency histogram for Put RPCs used to store data points. */
+  /**
+   * Returns a latency histogram for Put RPCs used to store data points.
+   * @deprecated As of 2.4 this is a snapshot that isn't updated, use
+   * {@link #getPutLatency} instead.
+   */
+  @Deprecated
   public Histogram getPutLatencyHistogram() {
-    return IncomingDataPoints.putlatency;
+    return IncomingDataPoints.putlatency.toHistogram(16000, (short) 2, 100);
   }
 
-  /** Returns a latency histogram for Scan RPCs used to fetch data points.  */
+  /**
+   * Returns a latency histogram for Scan RPCs used to fetch data points.
+   * @deprecated As of 2.4 this is a snapshot that isn't updated, use
+   * {@link #getScanLatency} instead.
+   */
+  @Deprecated
   public Histogram getScanLatencyHistogram() {
+    return TsdbQuery.scanlatency.toHistogram(16000, (short) 2, 100);
+  }
+
+  /**
+   * @return The thread-safe latency histogram for Put RPCs used to store
+   * data points.
+   * @since 2.4
+   */
+  public LatencyHistogram getPutLatency() {
+    return IncomingDataPoints.putlatency;
+  }
+
+  /**
+   * @return The thread-safe latency histogram for Scan RPCs used to fetch
+   * data points.
+   * @since 2.4
+   */
+  public LatencyHistogram getScanLatency() {
     return TsdbQuery.scanlatency;
   }
 
@@ -791,6 +937,22 @@ public final class TSDB {
         "kind=" + uid.kind());
   }
 
+  /**
+   * Attaches an in-memory dictionary to the UID instance, starts loading it
+   * and schedules the periodic reloads.
+   * @param uid The UID instance to attach the dictionary to
+   * @param qualifier The UID kind
+   * @param width The width of the UIDs
+   * @param interval The reload interval in seconds
+   */
+  private void startDictionary(final UniqueId uid, final String qualifier, 
+      final short width, final long interval) {
+    final UidDictionary dictionary = new UidDictionary(qualifier, width);
+    uid.setDictionary(dictionary);
+    dictionary.load(client, uidtable);
+    dictionary.scheduleRefresh(timer, client, uidtable, interval);
+  }
+
   /** @return the width, in bytes, of metric UIDs */
   public static short metrics_width() {
     return METRICS_WIDTH;
@@ -985,6 +1147,8 @@ public final class TSDB {
         Bytes.setInt(row, (int) base_time, metrics.width() + Const.SALT_WIDTH());
         RowKey.prefixKeyWithSalt(row);
 
+        final IncomingDataPoints.PutLatencyCB latency_cb = 
+            new IncomingDataPoints.PutLatencyCB();
         Deferred<Object> result = null;
         if (config.enable_appends()) {
           final AppendDataPoints kv = new AppendDataPoints(qualifier, value);
@@ -1001,9 +1165,12 @@ public final class TSDB {
         // Will there be others? Well, something could call addPoint programatically right?
         datapoints_added.incrementAndGet();
 
-        // TODO(tsuna): Add a callback to time the latency of HBase and store the
-        // timing in a moving Histogram (once we have a class for this).
-        
+        if (rollup_queue != null) {
+          rollup_queue.addPoint(row, timestamp, value, flags);
+        }
+
+        result.addBoth(latency_cb);
+
         if (!config.enable_realtime_ts() && !config.enable_tsuid_incrementing() && 
             !config.enable_tsuid_tracking() && rt_publisher == null) {
           return result;
@@ -1012,6 +1179,11 @@ public final class TSDB {
         final byte[] tsuid = UniqueId.getTSUIDFromKey(row, METRICS_WIDTH, 
             Const.TIMESTAMP_BYTES);
         
+        // only series that go to the meta table, or a refresh drops them
+        if (tag_index != null && config.enable_tsuid_tracking()) {
+          tag_index.add(tsuid);
+        }
+        
         // if the meta cache plugin is instantiated then tracking goes through it
         if (meta_cache != null) {
           meta_cache.increment(tsuid);
@@ -1101,6 +1273,9 @@ public final class TSDB {
         if (result instanceof Exception) {
           LOG.error("A previous shutdown failed", (Exception)result);
         }
+        if (query_compute_pool != null) {
+          query_compute_pool.shutdown();
+        }
         final Set<Timeout> timeouts = timer.stop();
         // TODO - at some point we should clean these up.
         if (timeouts.size() > 0) {
@@ -1169,6 +1344,10 @@ public final class TSDB {
       LOG.info("Flushing compaction queue");
       deferreds.add(compactionq.flush().addCallback(new CompactCB()));
     }
+    if (rollup_queue != null) {
+      LOG.info("Flushing rollup queue");
+      deferreds.add(rollup_queue.flush().addCallback(new CompactCB()));
+    }
     if (startup != null) {
       LOG.info("Shutting down startup plugin: " +
               startup.getClass().getCanonicalName());
@@ -1430,6 +1609,9 @@ public final class TSDB {
    * @since 2.0
    */
   public void deleteTSMeta(final String tsuid) {
+    if (tag_index != null) {
+      tag_index.remove(UniqueId.stringToUid(tsuid));
+    }
     if (search != null) {
       search.deleteTSMeta(tsuid).addErrback(new PluginError());
     }
@@ -1552,6 +1734,63 @@ public final class TSDB {
     }
   }
   
+  /** @return the rollup config or null if rollups are disabled
+   * @since 2.4 */
+  public RollupConfig getRollupConfig() {
+    return rollup_config;
+  }
+  
+  /** @return the query scheduler or null if it is disabled
+   * @since 2.4 */
+  public QueryScheduler getQueryScheduler() {
+    return query_scheduler;
+  }
+  
+  /** @return the pool used to evaluate query expressions in parallel or null
+   * if they should run on the thread that fetched their inputs
+   * @since 2.4 */
+  public ExecutorService getQueryComputePool() {
+    return query_compute_pool;
+  }
+  
+  /** @return the single flight scans or null if sharing is disabled
+   * @since 2.4 */
+  ScanSingleFlight getScanSingleFlight() {
+    return scan_single_flight;
+  }
+  
+  /** @return the cache of tag value filter decisions or null if disabled
+   * @since 2.4 */
+  public TagVFilterCache getTagVFilterCache() {
+    return tagv_filter_cache;
+  }
+  
+  /** @return the inverted index of the series or null if disabled
+   * @since 2.4 */
+  public TagIndex getTagIndex() {
+    return tag_index;
+  }
+  
+  /**
+   * Returns the in-memory dictionary of names for a UID type.
+   * @param type The type of UID
+   * @return The dictionary or null if it is disabled for the type
+   * @throws IllegalArgumentException if the type is not valid
+   * @since 2.4
+   */
+  public UidDictionary getUidDictionary(final UniqueIdType type) {
+    switch (type) {
+      case METRIC:
+        return metrics.getDictionary();
+      case TAGK:
+        return tag_names.getDictionary();
+      case TAGV:
+        return tag_values.getDictionary();
+      default:
+        throw new IllegalArgumentException("Unrecognized UID type");
+    }
+  }
+  
   /** @return the timer used for various house keeping functions */
   public Timer getTimer() {
     return timer;
@@ -99,6 +99,9 @@ public final class TSQuery {
   /** A flag denoting whether or not to align intervals based on the calendar */
   private boolean use_calendar;
   
+  /** The maximum number of points to serialize per series, 0 for all */
+  private int max_points;
+  
   /** The query status for tracking over all performance of this query */
   private QueryStats query_stats;
   
@@ -116,7 +119,7 @@ public final class TSQuery {
     // We also don't care about stats or summary
     return Objects.hashCode(start, end, timezone, use_calendar, options, padding, 
         no_annotations, with_global_annotations, show_tsuids, queries, 
-        ms_resolution);
+        ms_resolution, max_points);
   }
   
   @Override
@@ -145,7 +148,8 @@ public final class TSQuery {
         && Objects.equal(with_global_annotations, query.with_global_annotations)
         && Objects.equal(show_tsuids, query.show_tsuids)
         && Objects.equal(queries, query.queries)
-        && Objects.equal(ms_resolution, query.ms_resolution);
+        && Objects.equal(ms_resolution, query.ms_resolution)
+        && Objects.equal(max_points, query.max_points);
   }
   
   /**
@@ -176,6 +180,11 @@ public final class TSQuery {
           + start_time +"]");
     }
     
+    if (max_points < 0 || max_points == 1) {
+      throw new IllegalArgumentException(
+          "Max points must be 0 or at least 2: " + max_points);
+    }
+    
     if (queries == null || queries.isEmpty()) {
       throw new IllegalArgumentException("Missing queries");
     }
@@ -389,6 +398,13 @@ public final class TSQuery {
     return use_calendar;
   }
   
+  /** @return the maximum number of points to serialize per series, 0 for
+   * all of them
+   * @since 2.4 */
+  public int getMaxPoints() {
+    return max_points;
+  }
+  
   /** @return the query stats object. Ignored during JSON serialization */
   @JsonIgnore
   public QueryStats getQueryStats() {
@@ -480,6 +496,13 @@ public final class TSQuery {
     this.use_calendar = use_calendar;
   }
   
+  /** @param max_points the maximum number of points to serialize per series,
+   * keeping the min and max of evenly spread time buckets. 0 for all points.
+   * @since 2.4 */
+  public void setMaxPoints(int max_points) {
+    this.max_points = max_points;
+  }
+  
   /** @param query_stats the query stats object to associate with this query */
   public void setQueryStats(final QueryStats query_stats) {
     this.query_stats = query_stats;
@@ -28,6 +28,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.hbase.async.Bytes;
 import org.hbase.async.DeleteRequest;
+import org.hbase.async.GetRequest;
 import org.hbase.async.HBaseException;
 import org.hbase.async.KeyValue;
 import org.hbase.async.Scanner;
@@ -38,14 +39,26 @@ import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
 import com.stumbleupon.async.DeferredGroupException;
 
+import net.opentsdb.query.CancellationToken;
+import net.opentsdb.query.QueryMemoryTracker;
 import net.opentsdb.query.QueryUtil;
 import net.opentsdb.query.filter.TagVFilter;
-import net.opentsdb.stats.Histogram;
+import net.opentsdb.query.filter.TagVFilterCache;
+import net.opentsdb.rollup.RollupConfig;
+import net.opentsdb.rollup.RollupInterval;
+import net.opentsdb.rollup.RollupQuery;
+import net.opentsdb.rollup.RollupUtils;
+import net.opentsdb.search.TagIndex;
+import net.opentsdb.stats.LatencyHistogram;
 import net.opentsdb.stats.QueryStats;
 import net.opentsdb.stats.QueryStats.QueryStat;
 import net.opentsdb.uid.NoSuchUniqueId;
 import net.opentsdb.uid.NoSuchUniqueName;
+import net.opentsdb.uid.UidDictionary;
 import net.opentsdb.uid.UniqueId;
+import net.opentsdb.uid.UniqueId.UniqueIdType;
+import net.opentsdb.utils.ByteArrayPair;
+import net.opentsdb.utils.Config;
 import net.opentsdb.utils.DateTime;
 
 /**
@@ -60,10 +73,8 @@ final class TsdbQuery implements Query {
 
   /**
    * Keep track of the latency we perceive when doing Scans on HBase.
-   * We want buckets up to 16s, with 2 ms interval between each bucket up to
-   * 100 ms after we which we switch to exponential buckets.
    */
-  static final Histogram scanlatency = new Histogram(16000, (short) 2, 100);
+  static final LatencyHistogram scanlatency = new LatencyHistogram();
 
   /**
    * Charset to use with our server-side row-filter.
@@ -98,6 +109,12 @@ final class TsdbQuery implements Query {
   /** Whether or not to enable the fuzzy row filter for Hbase */
   private boolean enable_fuzzy_filter;
   
+  /** Whether or not to let the scan planner pick gets or narrow ranges */
+  private final boolean enable_scan_planner;
+  
+  /** Whether or not to downsample rows as they are scanned when safe */
+  private final boolean enable_early_downsample;
+  
   /**
    * Tags by which we must group the results.
    * Each element is a tag ID.
@@ -136,12 +153,19 @@ final class TsdbQuery implements Query {
   
   /** Whether or not to match series with ONLY the given tags */
   private boolean explicit_tags;
+
+  /** The rollup to read from instead of raw data, null to read raw data */
+  private RollupQuery rollup_query;
   
   /** Constructor. */
   public TsdbQuery(final TSDB tsdb) {
     this.tsdb = tsdb;
     enable_fuzzy_filter = tsdb.getConfig()
         .getBoolean("tsd.query.enable_fuzzy_filter");
+    enable_scan_planner = tsdb.getConfig()
+        .getBoolean("tsd.query.planner.enable");
+    enable_early_downsample = tsdb.getConfig()
+        .getBoolean("tsd.query.downsample.early");
   }
 
   /**
@@ -426,6 +450,7 @@ final class TsdbQuery implements Query {
     }
     
     row_key_literals = new ByteMap<byte[][]>();
+    final boolean use_expansions = isTagVDictionaryComplete();
     
     Collections.sort(filters);
     final Iterator<TagVFilter> current_iterator = filters.iterator();
@@ -450,7 +475,9 @@ final class TsdbQuery implements Query {
         if (current.isGroupBy()) {
           gbs++;
         }
-        if (!current.getTagVUids().isEmpty()) {
+        // expanded filters stay post scan filters when values may be missing
+        if (!current.getTagVUids().isEmpty() && 
+            (!current.isExpanded() || use_expansions)) {
           for (final byte[] uid : current.getTagVUids()) {
             literals.put(uid, null);
           }
@@ -481,9 +508,22 @@ final class TsdbQuery implements Query {
           literals.keySet().toArray(values);
           row_key_literals.put(current.getTagkBytes(), values);
           row_key_literals_count += values.length;
-          
-          for (final TagVFilter filter : literal_filters) {
-            filter.setPostScan(false);
+
+          // the row key matches the union of the values so expanded filters
+          // sharing the tag key must still be ANDed after the scan
+          boolean keep_post_scan = false;
+          if (literal_filters.size() > 1) {
+            for (final TagVFilter filter : literal_filters) {
+              if (filter.isExpanded()) {
+                keep_post_scan = true;
+                break;
+              }
+            }
+          }
+          if (!keep_post_scan) {
+            for (final TagVFilter filter : literal_filters) {
+              filter.setPostScan(false);
+            }
           }
         }
       } else {
@@ -512,13 +552,147 @@ final class TsdbQuery implements Query {
   
   @Override
   public Deferred<DataPoints[]> runAsync() throws HBaseException {
-    return findSpans().addCallback(new GroupByAndAggregateCB());
+    final RollupConfig rollup_config = tsdb.getRollupConfig();
+    if (rollup_config != null && !delete) {
+      long end = end_time == UNSET ? -1 : end_time;
+      if (end > 0 && (end & Const.SECOND_MASK) != 0) {
+        end /= 1000;
+      }
+      long start = getStartTime();
+      if ((start & Const.SECOND_MASK) != 0) {
+        start /= 1000;
+      }
+      rollup_query = rollup_config.getRollupQuery(downsampler, start, end);
+    }
+    if (rollup_query == null) {
+      return findSpans().addCallback(new GroupByAndAggregateCB());
+    }
+    
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Reading from " + rollup_query + " for query " + this);
+    }
+    final RollupQuery rollup = rollup_query;
+    final long query_start = start_time;
+    
+    /** Restores the query if reading the raw tail failed. */
+    class RestoreCB implements Callback<Object, Exception> {
+      @Override
+      public Object call(final Exception e) throws Exception {
+        start_time = query_start;
+        rollup_query = rollup;
+        return e;
+      }
+      @Override
+      public String toString() {
+        return "Rollup restore callback";
+      }
+    }
+    
+    /** Appends the raw data past the rollups to the rolled up spans. */
+    class RawTailCB implements 
+      Callback<TreeMap<byte[], Span>, TreeMap<byte[], Span>> {
+      private final TreeMap<byte[], Span> head;
+      RawTailCB(final TreeMap<byte[], Span> head) {
+        this.head = head;
+      }
+      @Override
+      public TreeMap<byte[], Span> call(final TreeMap<byte[], Span> tail) 
+          throws Exception {
+        start_time = query_start;
+        rollup_query = rollup;
+        // spans may be shared with other queries so they're copied
+        final TreeMap<byte[], Span> spans = 
+            new TreeMap<byte[], Span>(head.comparator());
+        spans.putAll(head);
+        if (tail != null) {
+          for (final Map.Entry<byte[], Span> entry : tail.entrySet()) {
+            final Span span = spans.get(entry.getKey());
+            spans.put(entry.getKey(), span == null ? entry.getValue() : 
+              Span.concat(span, entry.getValue()));
+          }
+        }
+        return spans;
+      }
+      @Override
+      public String toString() {
+        return "Rollup raw tail callback";
+      }
+    }
+    
+    /** Falls back to the raw data if the rollups don't cover the start of
+     * the query, e.g. when rollups were only enabled recently, and reads the
+     * raw data past the rollups if they end before the query. */
+    class RollupFallbackCB implements 
+      Callback<Deferred<TreeMap<byte[], Span>>, TreeMap<byte[], Span>> {
+      @Override
+      public Deferred<TreeMap<byte[], Span>> call(
+          final TreeMap<byte[], Span> spans) throws Exception {
+        if (!coversQuery(spans)) {
+          LOG.debug("Rollups don't cover the query, falling back to raw data");
+          rollup_query = null;
+          return findSpans();
+        }
+        if (rollup.getRawStartTime() < 0) {
+          return Deferred.fromResult(spans);
+        }
+        rollup_query = null;
+        start_time = rollup.getRawStartTime();
+        final Deferred<TreeMap<byte[], Span>> tail;
+        try {
+          tail = findSpans();
+        } catch (RuntimeException e) {
+          start_time = query_start;
+          rollup_query = rollup;
+          throw e;
+        }
+        return tail.addErrback(new RestoreCB())
+            .addCallback(new RawTailCB(spans));
+      }
+      @Override
+      public String toString() {
+        return "Rollup fallback callback";
+      }
+    }
+    
+    return findSpans().addCallbackDeferring(new RollupFallbackCB())
+        .addCallback(new GroupByAndAggregateCB());
+  }
+
+  /**
+   * Checks that rolled up spans start in the first downsampling interval of
+   * the query so that rollups enabled within the time range are not served
+   * as partial results. The end isn't checked as series that stopped
+   * reporting look the same, recent data is read raw instead, see
+   * {@link RollupQuery#getRawStartTime}. Gaps in the middle of the range
+   * can't be detected this way.
+   * @param spans The spans read from the rollup table
+   * @return True if the spans cover the start of the query.
+   */
+  private boolean coversQuery(final TreeMap<byte[], Span> spans) {
+    if (spans == null || spans.isEmpty()) {
+      return false;
+    }
+    final long interval = downsampler.getInterval();
+    long start = getStartTime();
+    if ((start & Const.SECOND_MASK) == 0) {
+      start *= 1000;
+    }
+    long first = Long.MAX_VALUE;
+    for (final Span span : spans.values()) {
+      if (span.size() > 0) {
+        first = Math.min(first, span.timestamp(0));
+      }
+    }
+    return first < start - (start % interval) + interval;
   }
 
   /**
    * Finds all the {@link Span}s that match this query.
    * This is what actually scans the HBase table and loads the data into
    * {@link Span}s.
+   * If {@code tsd.query.single_flight.enable} is set, the scan may be shared
+   * with identical queries in flight through the {@link ScanSingleFlight} so
+   * the spans must be treated as read only.
    * @return A map from HBase row key to the {@link Span} for that row key.
    * Since a {@link Span} actually contains multiple HBase rows, the row key
    * stored in the map has its timestamp zero'ed out.
@@ -527,6 +701,36 @@ final class TsdbQuery implements Query {
    * @throws IllegalArgumentException if bad data was retrieved from HBase.
    */
   private Deferred<TreeMap<byte[], Span>> findSpans() throws HBaseException {
+    final ScanSingleFlight single_flight = tsdb.getScanSingleFlight();
+    if (single_flight == null || delete) {
+      return scanSpans();
+    }
+    
+    /** Runs the scan if no identical scan is in flight */
+    class ScanCB implements ScanSingleFlight.Scan {
+      @Override
+      public Deferred<TreeMap<byte[], Span>> scan() {
+        return scanSpans();
+      }
+    }
+    
+    // the leader resets it when it starts the scan, the attached queries
+    // measure from the time they attached.
+    scan_start_time = DateTime.nanoTime();
+    return single_flight.run(getScanKey(), new ScanCB(), 
+        query_stats != null ? query_stats.getCancellationToken() : null, 
+        query_stats, query_index);
+  }
+  
+  /**
+   * Scans storage for the {@link Span}s of this query, see 
+   * {@link #findSpans}.
+   * @return A map from HBase row key to the {@link Span} for that row key.
+   * @throws HBaseException if there was a problem communicating with HBase to
+   * perform the search.
+   * @since 2.4
+   */
+  private Deferred<TreeMap<byte[], Span>> scanSpans() throws HBaseException {
     final short metric_width = tsdb.metrics.width();
     final TreeMap<byte[], Span> spans = // The key is a row key from HBase.
       new TreeMap<byte[], Span>(new SpanCmp(
@@ -547,21 +751,52 @@ final class TsdbQuery implements Query {
       scanner_filters = null;
     }
     
-    if (Const.SALT_WIDTH() > 0) {
+    final ScanPlanner planner = planScan(scanner_filters);
+    final EarlyDownsampler early_downsampler = 
+        EarlyDownsampler.create(getEarlyDownsampler());
+    final QueryMemoryTracker memory_tracker = 
+        query_stats != null ? query_stats.getMemoryTracker() : null;
+    final CancellationToken cancellation = 
+        query_stats != null ? query_stats.getCancellationToken() : null;
+    final ScanPlanner.Plan plan = 
+        planner == null ? ScanPlanner.Plan.SCAN : planner.getPlan();
+    
+    if (Const.SALT_WIDTH() > 0 && plan == ScanPlanner.Plan.SCAN) {
       final List<Scanner> scanners = new ArrayList<Scanner>(Const.SALT_BUCKETS());
       for (int i = 0; i < Const.SALT_BUCKETS(); i++) {
         scanners.add(getScanner(i));
       }
       scan_start_time = DateTime.nanoTime();
       return new SaltScanner(tsdb, metric, scanners, spans, scanner_filters,
-          delete, query_stats, query_index).scan();
+          delete, query_stats, query_index, rollup_query, 
+          getEarlyDownsampler()).scan();
+    }
+    
+    // the ranges are scanned one after the other so that each span receives
+    // its rows in time order.
+    final List<Scanner> scanners;
+    final List<GetRequest> gets;
+    switch (plan) {
+    case MULTI_GET:
+      scanners = null;
+      gets = planner.getRequests(tsdb.dataTable(), TSDB.FAMILY());
+      break;
+    case MULTI_RANGE:
+      scanners = getRangeScanners(planner);
+      gets = null;
+      break;
+    default:
+      scanners = Collections.singletonList(getScanner());
+      gets = null;
     }
     
     scan_start_time = DateTime.nanoTime();
-    final Scanner scanner = getScanner();
     if (query_stats != null) {
-      query_stats.addScannerId(query_index, 0, scanner.toString());
+      query_stats.addScannerId(query_index, 0, scanners != null ? 
+          scanners.get(0).toString() : planner.toString());
     }
+    final int get_batch_size = 
+        tsdb.getConfig().getInt("tsd.query.planner.get_batch_size");
     final Deferred<TreeMap<byte[], Span>> results =
       new Deferred<TreeMap<byte[], Span>>();
     
@@ -577,16 +812,22 @@ final class TsdbQuery implements Query {
       
       int nrows = 0;
       boolean seenAnnotation = false;
+      private Scanner scanner = scanners != null ? scanners.get(0) : null;
+      private int scanner_idx = 0;       // the range being scanned
+      private int get_idx = 0;           // the next get to send
       long scanner_start = DateTime.nanoTime();
       long timeout = tsdb.getConfig().getLong("tsd.query.timeout");
       private final Set<String> skips = new HashSet<String>();
       private final Set<String> keepers = new HashSet<String>();
+      private final TagVFilterCache filter_cache = tsdb.getTagVFilterCache();
       private final int index = 0;       // only used for salted scanners
       /** nanosecond timestamps */
       private long fetch_start = 0;      // reset each time we send an RPC to HBase
       private long fetch_time = 0;       // cumulation of time waiting on HBase
       private long uid_resolve_time = 0; // cumulation of time resolving UIDs
       private long uids_resolved = 0; 
+      private long filter_cache_hits = 0;
+      private long filter_cache_misses = 0;
       private long compaction_time = 0;  // cumulation of time compacting
       private long dps_pre_filter = 0;
       private long rows_pre_filter = 0;
@@ -613,8 +854,46 @@ final class TsdbQuery implements Query {
       */
        public Object scan() {
          fetch_start = DateTime.nanoTime();
+         if (gets != null) {
+           return nextGets().addCallback(this).addErrback(new ErrorCB());
+         }
          return scanner.nextRows().addCallback(this).addErrback(new ErrorCB());
        }
+       
+       /**
+        * Sends the next batch of gets, waiting for them to complete before
+        * sending more so we don't flood the region servers.
+        * @return The non-empty rows fetched or null if all gets were sent
+        */
+       private Deferred<ArrayList<ArrayList<KeyValue>>> nextGets() {
+         if (get_idx >= gets.size()) {
+           return Deferred.fromResult(null);
+         }
+         final int batch_end = Math.min(gets.size(), get_idx + get_batch_size);
+         final List<Deferred<ArrayList<KeyValue>>> batch = 
+             new ArrayList<Deferred<ArrayList<KeyValue>>>(batch_end - get_idx);
+         for (; get_idx < batch_end; get_idx++) {
+           batch.add(tsdb.getClient().get(gets.get(get_idx)));
+         }
+         
+         /** Drops the rows that didn't exist */
+         class BatchCB implements Callback<ArrayList<ArrayList<KeyValue>>, 
+             ArrayList<ArrayList<KeyValue>>> {
+           @Override
+           public ArrayList<ArrayList<KeyValue>> call(
+               final ArrayList<ArrayList<KeyValue>> rows) throws Exception {
+             final ArrayList<ArrayList<KeyValue>> found = 
+                 new ArrayList<ArrayList<KeyValue>>(rows.size());
+             for (final ArrayList<KeyValue> row : rows) {
+               if (row != null && !row.isEmpty()) {
+                 found.add(row);
+               }
+             }
+             return found;
+           }
+         }
+         return Deferred.groupInOrder(batch).addCallback(new BatchCB());
+       }
   
       /**
       * Loops through each row of the scanner results and parses out data
@@ -626,8 +905,20 @@ final class TsdbQuery implements Query {
          throws Exception {
          fetch_time += DateTime.nanoTime() - fetch_start;
          try {
+           if (cancellation != null && cancellation.isCancelled()) {
+             // nobody is waiting for the results so drop what we have
+             cancellation.markScannerStopped();
+             spans.clear();
+             throw cancellation.getException();
+           }
+           if (rows == null && scanners != null && 
+               scanner_idx < scanners.size() - 1) {
+             scanner.close();
+             scanner = scanners.get(++scanner_idx);
+             return scan();
+           }
            if (rows == null) {
-             scanlatency.add((int)DateTime.msFromNano(fetch_time));
+             scanlatency.add((long) DateTime.msFromNano(fetch_time));
              LOG.info(TsdbQuery.this + " matched " + nrows + " rows in " +
                  spans.size() + " spans in " + DateTime.msFromNano(fetch_time) + "ms");
              close(null);
@@ -648,8 +939,10 @@ final class TsdbQuery implements Query {
                
            for (final ArrayList<KeyValue> row : rows) {
              final byte[] key = row.get(0).key();
-             if (Bytes.memcmp(metric, key, 0, metric_width) != 0) {
-               scanner.close();
+             if (RowKey.rowKeyContainsMetric(metric, key) != 0) {
+               if (scanner != null) {
+                 scanner.close();
+               }
                throw new IllegalDataException(
                    "HBase returned a row that doesn't match"
                    + " our scanner (" + scanner + ")! " + row + " does not start"
@@ -672,6 +965,10 @@ final class TsdbQuery implements Query {
                      dps_pre_filter += (kv.qualifier().length / 2);
                    }
                  }
+               } else if (rollup_query != null) {
+                 if (kv.qualifier()[0] == rollup_query.getAggregatorId()) {
+                   ++dps_pre_filter;
+                 }
                } else if (kv.qualifier()[0] == AppendDataPoints.APPEND_COLUMN_PREFIX) {
                  // with appends we don't have a good rough estimate as the length
                  // can vary widely with the value length variability. Therefore we
@@ -701,6 +998,24 @@ final class TsdbQuery implements Query {
                  continue;
                }
                if (!keepers.contains(tsuid)) {
+                 // try the decisions of earlier queries before resolving
+                 final ByteMap<byte[]> tag_uids = filter_cache != null ? 
+                     Tags.getTagUids(key) : null;
+                 if (filter_cache != null) {
+                   final Boolean cached = 
+                       filter_cache.match(scanner_filters, tag_uids);
+                   if (cached != null) {
+                     ++filter_cache_hits;
+                     if (cached) {
+                       keepers.add(tsuid);
+                       processRow(key, row);
+                     } else {
+                       skips.add(tsuid);
+                     }
+                     continue;
+                   }
+                   ++filter_cache_misses;
+                 }
                  final long uid_start = DateTime.nanoTime();
                  
                  /** CB to called after all of the UIDs have been resolved */
@@ -708,6 +1023,9 @@ final class TsdbQuery implements Query {
                    @Override
                    public Object call(final ArrayList<Boolean> matches) 
                        throws Exception {
+                     if (filter_cache != null) {
+                       filter_cache.put(scanner_filters, tag_uids, matches);
+                     }
                      for (final boolean matched : matches) {
                        if (!matched) {
                          skips.add(tsuid);
@@ -736,7 +1054,7 @@ final class TsdbQuery implements Query {
                        matches.add(filter.match(tags));
                      }
                      
-                     return Deferred.group(matches);
+                     return Deferred.groupInOrder(matches);
                    }
                  }
     
@@ -798,6 +1116,10 @@ final class TsdbQuery implements Query {
                  dps_post_filter += (kv.qualifier().length / 2);
                }
              }
+           } else if (rollup_query != null) {
+             if (kv.qualifier()[0] == rollup_query.getAggregatorId()) {
+               ++dps_post_filter;
+             }
            } else if (kv.qualifier()[0] == AppendDataPoints.APPEND_COLUMN_PREFIX) {
              // with appends we don't have a good rough estimate as the length
              // can vary widely with the value length variability. Therefore we
@@ -817,19 +1139,43 @@ final class TsdbQuery implements Query {
            datapoints = new Span(tsdb);
            spans.put(key, datapoints);
          }
+         if (rollup_query != null) {
+           for (final KeyValue converted : rollup_query.convertRow(row)) {
+             datapoints.addRow(converted);
+             allocate(converted);
+             ++nrows;
+           }
+           return;
+         }
          final long compaction_start = DateTime.nanoTime();
          final KeyValue compacted = 
            tsdb.compact(row, datapoints.getAnnotations());
          compaction_time += (DateTime.nanoTime() - compaction_start);
          seenAnnotation |= !datapoints.getAnnotations().isEmpty();
          if (compacted != null) { // Can be null if we ignored all KVs.
-           datapoints.addRow(compacted);
+           final KeyValue stored = early_downsampler == null ? compacted : 
+             early_downsampler.downsample(compacted);
+           datapoints.addRow(stored);
+           allocate(stored);
            ++nrows;
          }
        }
+       
+       /**
+        * Charges a row held by a span to the query's memory budget.
+        * @param kv The row stored
+        * @throws QueryException if the query's memory limit was exceeded
+        */
+       private void allocate(final KeyValue kv) {
+         if (memory_tracker != null) {
+           memory_tracker.allocate(SaltScanner.kvSize(kv));
+         }
+       }
      
        void close(final Exception e) {
-         scanner.close();
+         if (scanner != null) {
+           scanner.close();
+         }
          
          if (query_stats != null) {
            query_stats.addScannerStat(query_index, index, 
@@ -861,6 +1207,12 @@ final class TsdbQuery implements Query {
                QueryStat.SCANNER_UID_TO_STRING_TIME, uid_resolve_time);
            query_stats.addScannerStat(query_index, index, 
                QueryStat.UID_PAIRS_RESOLVED, uids_resolved);
+           if (filter_cache != null) {
+             query_stats.addScannerStat(query_index, index, 
+                 QueryStat.FILTER_CACHE_HITS, filter_cache_hits);
+             query_stats.addScannerStat(query_index, index, 
+                 QueryStat.FILTER_CACHE_MISSES, filter_cache_misses);
+           }
            query_stats.addScannerStat(query_index, index, 
                QueryStat.COMPACTION_TIME, compaction_time);
          }
@@ -900,6 +1252,12 @@ final class TsdbQuery implements Query {
                 (System.nanoTime() - TsdbQuery.this.scan_start_time));
       }
       
+      final CancellationToken cancellation = query_stats != null ? 
+          query_stats.getCancellationToken() : null;
+      if (cancellation != null && cancellation.isCancelled()) {
+        throw cancellation.getException();
+      }
+      
       if (spans == null || spans.size() <= 0) {
         if (query_stats != null) {
           query_stats.addStat(query_index, QueryStat.GROUP_BY_TIME, 0);
@@ -920,7 +1278,7 @@ final class TsdbQuery implements Query {
               rate, 
               rate_options,
               aggregator,
-              downsampler,
+              getSpanDownsampler(),
               getStartTime(), 
               getEndTime(),
               query_index);
@@ -939,7 +1297,7 @@ final class TsdbQuery implements Query {
                                               spans.values(),
                                               rate, rate_options,
                                               aggregator,
-                                              downsampler,
+                                              getSpanDownsampler(),
                                               getStartTime(), 
                                               getEndTime(),
                                               query_index);
@@ -989,7 +1347,7 @@ final class TsdbQuery implements Query {
           thegroup = new SpanGroup(tsdb, getScanStartTimeSeconds(),
                                    getScanEndTimeSeconds(),
                                    null, rate, rate_options, aggregator,
-                                   downsampler,
+                                   getSpanDownsampler(),
                                    getStartTime(), 
                                    getEndTime(),
                                    query_index);
@@ -1048,10 +1406,21 @@ final class TsdbQuery implements Query {
     // rely on having a few extra data points before & after the exact start
     // & end dates in order to do proper rate calculation or downsampling near
     // the "edges" of the graph.
-    final Scanner scanner = QueryUtil.getMetricScanner(tsdb, salt_bucket, metric, 
-        (int) getScanStartTimeSeconds(), end_time == UNSET
-        ? -1  // Will scan until the end (0xFFF...).
-        : (int) getScanEndTimeSeconds(), tsdb.table, TSDB.FAMILY());
+    final Scanner scanner;
+    if (rollup_query != null) {
+      final RollupInterval interval = rollup_query.getRollupInterval();
+      scanner = QueryUtil.getMetricScanner(tsdb, salt_bucket, metric, 
+          (int) interval.getRowBaseTime(getScanStartTimeSeconds()), 
+          end_time == UNSET
+          ? -1  // Will scan until the end (0xFFF...).
+          : (int) getRollupScanEndTimeSeconds(), interval.getTable(), 
+          TSDB.FAMILY());
+    } else {
+      scanner = QueryUtil.getMetricScanner(tsdb, salt_bucket, metric, 
+          (int) getScanStartTimeSeconds(), end_time == UNSET
+          ? -1  // Will scan until the end (0xFFF...).
+          : (int) getScanEndTimeSeconds(), tsdb.table, TSDB.FAMILY());
+    }
     if (tsuids != null && !tsuids.isEmpty()) {
       createAndSetTSUIDFilter(scanner);
     } else if (filters.size() > 0) {
@@ -1060,6 +1429,167 @@ final class TsdbQuery implements Query {
     return scanner;
   }
 
+  /**
+   * Runs the scan planner for raw data queries with a known end time.
+   * @param scanner_filters The filters that must be evaluated after fetching
+   * @return A planner with the chosen plan or null if planning is disabled or
+   * not possible for this query, in which case a regular scan must be used.
+   */
+  private ScanPlanner planScan(final List<TagVFilter> scanner_filters) {
+    if (!enable_scan_planner || end_time == UNSET || rollup_query != null || 
+        (tsuids != null && !tsuids.isEmpty())) {
+      return null;
+    }
+    final ScanPlanner planner = new ScanPlanner(metric, filters, 
+        row_key_literals, getKnownSeries(), explicit_tags, 
+        scanner_filters != null && !scanner_filters.isEmpty(),
+        getScanStartTimeSeconds(), getScanEndTimeSeconds(), 
+        tsdb.getConfig().getInt("tsd.query.planner.max_gets"),
+        tsdb.getConfig().getInt("tsd.query.planner.max_ranges"));
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Picked " + planner + " for query " + this);
+    }
+    if (query_stats != null) {
+      query_stats.addScanPlan(query_index, planner.getPlan().toString(), 
+          planner.getEstimate());
+    }
+    return planner;
+  }
+  
+  /**
+   * Whether or not the tag value dictionary holds every value that could be
+   * written by the end of the query, so that the values filters expanded
+   * from it can be matched in the row key. As for the series registry, this
+   * TSD must be declared the only writer or the last load of the UID table
+   * must have started after the end of the query. Otherwise values assigned
+   * by other TSDs since would be missing and their series dropped.
+   * @return True if expanded values can replace the filters in the scanner
+   */
+  private boolean isTagVDictionaryComplete() {
+    final UidDictionary dictionary = tsdb.getUidDictionary(UniqueIdType.TAGV);
+    if (dictionary == null || !dictionary.isLoaded()) {
+      return false;
+    }
+    if (tsdb.getConfig().getBoolean(
+        "tsd.query.filter.dictionary.single_writer")) {
+      return true;
+    }
+    final long end = end_time == UNSET ? DateTime.currentTimeMillis() : 
+      end_time;
+    final long end_ms = (end & Const.SECOND_MASK) == 0 ? end * 1000 : end;
+    return dictionary.getLoadStartTime() > end_ms;
+  }
+
+  /**
+   * Asks the series registry for the series of the metric matching the query
+   * when every tag key is pinned to literal values. The registry is only
+   * trusted when it is known to hold every series of the query: either this
+   * TSD is declared the only writer and tracks every series it writes, or
+   * the last scan of the meta table started after the end of the query.
+   * @return The sorted TSUIDs of the matching series or null if the registry
+   * can't answer for the query
+   */
+  private List<byte[]> getKnownSeries() {
+    final TagIndex index = tsdb.getTagIndex();
+    final Config config = tsdb.getConfig();
+    if (index == null || !index.isLoaded() || 
+        !config.getBoolean("tsd.query.planner.use_tag_index")) {
+      return null;
+    }
+    final boolean single_writer = config.enable_tsuid_tracking() && 
+        config.getBoolean("tsd.search.tag_index.single_writer");
+    final long end_ms = (end_time & Const.SECOND_MASK) == 0 ? 
+        end_time * 1000 : end_time;
+    if (!single_writer && index.getLoadStartTime() <= end_ms) {
+      // other TSDs may have written series since the last scan
+      return null;
+    }
+    final List<ByteArrayPair> pairs = new ArrayList<ByteArrayPair>();
+    if (row_key_literals != null) {
+      for (final Map.Entry<byte[], byte[][]> entry : 
+          row_key_literals.entrySet()) {
+        if (entry.getValue() == null) {
+          return null;
+        }
+        for (final byte[] value : entry.getValue()) {
+          pairs.add(new ByteArrayPair(entry.getKey(), value));
+        }
+      }
+    }
+    
+    final List<byte[]> series = index.lookup(metric, pairs, 0);
+    if (explicit_tags) {
+      // drop the series carrying more tags than the query
+      final int width = TSDB.metrics_width() + (row_key_literals == null ? 
+          0 : row_key_literals.size()) * 
+          (TSDB.tagk_width() + TSDB.tagv_width());
+      final Iterator<byte[]> iterator = series.iterator();
+      while (iterator.hasNext()) {
+        if (iterator.next().length != width) {
+          iterator.remove();
+        }
+      }
+    }
+    return series;
+  }
+  
+  /**
+   * Returns a scanner per range picked by the planner. Each scanner still 
+   * carries the row key regex to filter on the remaining tags.
+   * @param planner The planner with a {@link ScanPlanner.Plan#MULTI_RANGE} 
+   * plan
+   * @return A list of scanners to run in order
+   */
+  private List<Scanner> getRangeScanners(final ScanPlanner planner) {
+    final List<byte[][]> ranges = planner.getRanges();
+    final List<Scanner> scanners = new ArrayList<Scanner>(ranges.size());
+    for (final byte[][] range : ranges) {
+      final Scanner scanner = tsdb.getClient().newScanner(tsdb.dataTable());
+      scanner.setMaxNumRows(tsdb.getConfig().scanner_maxNumRows());
+      scanner.setStartKey(range[0]);
+      scanner.setStopKey(range[1]);
+      scanner.setFamily(TSDB.FAMILY());
+      QueryUtil.setDataTableScanFilter(scanner, group_bys, row_key_literals, 
+          explicit_tags, false, (int) getScanEndTimeSeconds());
+      scanners.add(scanner);
+    }
+    return scanners;
+  }
+
+  /**
+   * Returns the downsampler to apply to rows as they are scanned. Rollup rows
+   * are already downsampled and deletes need the raw rows.
+   * @return The downsampler to fold rows with, null to keep the raw rows
+   */
+  private DownsamplingSpecification getEarlyDownsampler() {
+    if (!enable_early_downsample || rollup_query != null || delete) {
+      return null;
+    }
+    return downsampler;
+  }
+  
+  /**
+   * Returns the downsampler to hand to the span groups. When reading counts
+   * from a rollup table, the per-interval counts have to be summed.
+   * @return The downsampler to use for the spans
+   */
+  private DownsamplingSpecification getSpanDownsampler() {
+    if (rollup_query != null && 
+        rollup_query.getAggregatorId() == RollupUtils.AGG_COUNT) {
+      return new DownsamplingSpecification(downsampler, Aggregators.SUM);
+    }
+    return downsampler;
+  }
+
+  /** Returns the UNIX timestamp at which we must stop scanning a rollup 
+   * table, aligned on the row span of the rollup interval. */
+  private long getRollupScanEndTimeSeconds() {
+    final long end = getScanEndTimeSeconds();
+    final long row_span = rollup_query.getRollupInterval().getRowSpan();
+    final long offset = end % row_span;
+    return offset == 0 ? end : end + (row_span - offset);
+  }
+
   /** Returns the UNIX timestamp from which we must start scanning.  */
   private long getScanStartTimeSeconds() {
     // Begin with the raw query start time.
@@ -1144,6 +1674,53 @@ final class TsdbQuery implements Query {
     }
   }
 
+  /**
+   * Builds the key identifying the scan of this query for the 
+   * {@link ScanSingleFlight}. Two queries with the same key read exactly the
+   * same rows into the same spans.
+   * @return The normalized scan key
+   * @since 2.4
+   */
+  @VisibleForTesting
+  String getScanKey() {
+    final StringBuilder buf = new StringBuilder();
+    if (tsuids != null && !tsuids.isEmpty()) {
+      // copy as the TSUIDs are sorted in place
+      buf.append("tsuids=")
+         .append(QueryUtil.getRowKeyTSUIDRegex(new ArrayList<String>(tsuids)));
+    } else {
+      buf.append("metric=")
+         .append(UniqueId.uidToString(metric))
+         .append(", rowKeyRegex=")
+         .append(QueryUtil.getRowKeyUIDRegex(group_bys == null ? null : 
+           new ArrayList<byte[]>(group_bys), row_key_literals, explicit_tags, 
+           null, null))
+         .append(", postScanFilters=[");
+      if (filters != null) {
+        for (final TagVFilter filter : filters) {
+          if (filter.postScan()) {
+            buf.append("{").append(filter).append("}");
+          }
+        }
+      }
+      buf.append("]");
+    }
+    buf.append(", start=")
+       .append(getScanStartTimeSeconds())
+       .append(", end=")
+       .append(end_time == UNSET ? "unset" : 
+         Long.toString(getScanEndTimeSeconds()))
+       .append(", rollup=")
+       .append(rollup_query)
+       .append(", earlyDownsampler=")
+       .append(getEarlyDownsampler())
+       .append(", planner=")
+       .append(enable_scan_planner)
+       .append(", fuzzy=")
+       .append(enable_fuzzy_filter);
+    return buf.toString();
+  }
+
   /**
    * Sets the server-side regexp filter on the scanner.
    * In order to find the rows with the relevant tags, we use a
@@ -1155,7 +1732,8 @@ final class TsdbQuery implements Query {
         explicit_tags, enable_fuzzy_filter, 
         (end_time == UNSET
         ? -1  // Will scan until the end (0xFFF...).
-        : (int) getScanEndTimeSeconds()));
+        : (int) (rollup_query != null ? getRollupScanEndTimeSeconds() 
+            : getScanEndTimeSeconds())));
   }
   
   /**
@@ -14,6 +14,7 @@ package net.opentsdb.graph;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -35,6 +36,8 @@ import net.opentsdb.utils.FileSystem;
  * <p>
  * This class takes a bunch of {@link DataPoints} instances and generates a
  * Gnuplot script as well as the corresponding data files to feed to Gnuplot.
+ * Plots that only use common settings can also be drawn in process with
+ * {@link #renderPng}.
  */
 public final class Plot {
 
@@ -154,6 +157,14 @@ public final class Plot {
     this.height = height;
   }
 
+  /**
+   * @return The width of the graph in pixels.
+   * @since 2.4
+   */
+  public short getWidth() {
+    return width;
+  }
+
   /** @param globals A list of global annotation objects, may be null */
   public void setGlobals(final List<Annotation> globals) {
     this.globals = globals;
@@ -184,6 +195,34 @@ public final class Plot {
     return datapoints;
   }
 
+  /**
+   * Returns whether or not {@link #renderPng} can draw this plot, i.e. the
+   * plot doesn't use Gnuplot settings or options it doesn't understand.
+   * @return True if the plot can be drawn without Gnuplot.
+   * @since 2.4
+   */
+  public boolean isRenderable() {
+    return PngRenderer.supports(params, options);
+  }
+
+  /**
+   * Draws the plot as a PNG in memory, without Gnuplot or temporary files.
+   * @param out The stream to write the PNG to.
+   * @return The number of data points plotted, as for {@link #dumpToFiles}.
+   * @throws IOException if the PNG can't be written.
+   * @throws IllegalArgumentException if the plot isn't
+   * {@link #isRenderable renderable}.
+   * @since 2.4
+   */
+  public int renderPng(final OutputStream out) throws IOException {
+    if (!isRenderable()) {
+      throw new IllegalArgumentException("This plot requires Gnuplot");
+    }
+    return new PngRenderer(start_time & UNSIGNED, end_time & UNSIGNED,
+        utc_offset, width, height, params, datapoints, options, globals)
+        .render(out);
+  }
+
   /**
    * Generates the Gnuplot script and data files.
    * @param basepath The base path to use.  A number of new files will be
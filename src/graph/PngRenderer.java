@@ -0,0 +1,914 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.graph;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.Stroke;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.DecimalFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.regex.Pattern;
+
+import javax.imageio.ImageIO;
+
+import net.opentsdb.core.DataPoint;
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.meta.Annotation;
+
+/**
+ * Draws a {@link Plot} to a PNG in memory with Java2D, without writing files
+ * or running Gnuplot.
+ * <p>
+ * It understands the subset of Gnuplot settings the graph endpoint produces:
+ * ranges, labels, log scales, time/number formats, the key, the title,
+ * colors, the line style and the second y axis. Plots using anything else,
+ * e.g. smoothing or arbitrary per-series Gnuplot options, are rejected by
+ * {@link #supports} and have to go through Gnuplot.
+ * <p>
+ * On servers without a display the JVM must run with
+ * {@code java.awt.headless=true}, which the graph handler sets when this
+ * renderer is selected.
+ * @since 2.4
+ */
+final class PngRenderer {
+
+  /** The colors of Gnuplot's PNG terminal, in the same order. */
+  private static final Color[] PALETTE = new Color[] {
+    new Color(0xFF0000), new Color(0x00C000), new Color(0x0080FF),
+    new Color(0xC000FF), new Color(0x00EEEE), new Color(0xC04000),
+    new Color(0xC8C800), new Color(0x4169E1), new Color(0xFFC020),
+    new Color(0x008040), new Color(0xC080FF), new Color(0x306080),
+    new Color(0x8B0000), new Color(0x408000), new Color(0xFF80FF),
+    new Color(0x7FFFD4),
+  };
+
+  /** Gnuplot settings we know how to draw. */
+  private static final Set<String> PARAMS = new HashSet<String>(Arrays.asList(
+      "yrange", "y2range", "ylabel", "y2label", "format x", "format y",
+      "format y2", "logscale y", "logscale y2", "key", "title", "bgcolor",
+      "fgcolor", "style"));
+
+  /** Words we understand in the key setting. */
+  private static final Set<String> KEY_WORDS = new HashSet<String>(
+      Arrays.asList("left", "right", "center", "top", "bottom", "box",
+          "nobox", "inside"));
+
+  /** Gnuplot line styles we know how to draw. */
+  private static final Set<String> STYLES = new HashSet<String>(
+      Arrays.asList("lines", "points", "linespoints", "linespoint", "dots",
+          "impulses"));
+
+  /** A single printf style number conversion. */
+  private static final Pattern NUMBER_FORMAT =
+      Pattern.compile("^[^%]*%[-+ 0#]*\\d*(\\.\\d+)?[eEfgG][^%]*$");
+
+  /** Gnuplot's "small" font. */
+  private static final Font FONT = new Font(Font.SANS_SERIF, Font.PLAIN, 10);
+
+  private static final Stroke GRID = new BasicStroke(1, BasicStroke.CAP_BUTT,
+      BasicStroke.JOIN_MITER, 1, new float[] { 1, 3 }, 0);
+
+  /** Start and end of the graph in seconds */
+  private final long start_time;
+  private final long end_time;
+  private final int utc_offset;
+  private final int width;
+  private final int height;
+  private final Map<String, String> params;
+  private final List<DataPoints> datapoints;
+  private final List<String> options;
+  private final List<Annotation> globals;
+
+  /** One series read in memory */
+  private static final class Series {
+    long[] timestamps = new long[64];
+    double[] values = new double[64];
+    int size;
+    boolean y2;
+    String title;
+
+    void add(final long timestamp, final double value) {
+      if (size == timestamps.length) {
+        timestamps = Arrays.copyOf(timestamps, size * 2);
+        values = Arrays.copyOf(values, size * 2);
+      }
+      timestamps[size] = timestamp;
+      values[size++] = value;
+    }
+  }
+
+  /** The range and tics of a y axis */
+  private static final class Axis {
+    double min;
+    double max;
+    boolean log;
+    String format;
+    final List<Double> tics = new ArrayList<Double>();
+
+    /** @return The pixel offset of the value from the bottom of the plot */
+    double scale(final double value, final int pixels) {
+      if (log) {
+        if (value <= 0) {
+          return Double.NaN;
+        }
+        return (Math.log10(value) - Math.log10(min)) /
+            (Math.log10(max) - Math.log10(min)) * pixels;
+      }
+      return (value - min) / (max - min) * pixels;
+    }
+
+    String label(final double value) {
+      if (format != null) {
+        return String.format(Locale.US, format, value);
+      }
+      return formatNumber(value);
+    }
+  }
+
+  PngRenderer(final long start_time, final long end_time,
+              final int utc_offset, final int width, final int height,
+              final Map<String, String> params,
+              final List<DataPoints> datapoints, final List<String> options,
+              final List<Annotation> globals) {
+    this.start_time = start_time;
+    this.end_time = end_time;
+    this.utc_offset = utc_offset;
+    this.width = width;
+    this.height = height;
+    this.params = params;
+    this.datapoints = datapoints;
+    this.options = options;
+    this.globals = globals;
+  }
+
+  /**
+   * Checks whether or not the settings and options of a plot can be drawn.
+   * @param params The global Gnuplot settings, may be null.
+   * @param options The per-series Gnuplot options.
+   * @return True if {@link #render} will draw the plot, false if the plot
+   * needs Gnuplot.
+   */
+  static boolean supports(final Map<String, String> params,
+                          final List<String> options) {
+    if (params != null) {
+      for (final Map.Entry<String, String> entry : params.entrySet()) {
+        final String key = entry.getKey();
+        final String value = entry.getValue();
+        if (!PARAMS.contains(key)) {
+          return false;
+        }
+        if (value == null) {
+          if (!key.equals("key")) {
+            return false;
+          }
+        } else if (key.endsWith("range")) {
+          if (parseRange(value) == null) {
+            return false;
+          }
+        } else if (key.endsWith("color")) {
+          if (!"transparent".equals(value) && parseColor(value) == null) {
+            return false;
+          }
+        } else if (key.equals("style")) {
+          if (!STYLES.contains(value)) {
+            return false;
+          }
+        } else if (key.equals("key")) {
+          for (final String word : value.trim().split("\\s+")) {
+            if (!word.isEmpty() && !KEY_WORDS.contains(word)) {
+              return false;
+            }
+          }
+        } else if (key.equals("format x")) {
+          if (timeFormat(unquote(value)) == null) {
+            return false;
+          }
+        } else if (key.startsWith("format")) {
+          if (!NUMBER_FORMAT.matcher(unquote(value)).matches()) {
+            return false;
+          }
+        } else if (key.startsWith("logscale")) {
+          if (!value.trim().isEmpty()) {
+            return false;
+          }
+        }
+      }
+    }
+    for (final String opts : options) {
+      if (!opts.trim().isEmpty() && axisOption(opts) == null) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Draws the plot.
+   * @param out The stream to write the PNG to.
+   * @return The number of data points within the time range of the graph.
+   * @throws IOException if the PNG can't be written.
+   * @throws IllegalStateException if a series contains an infinite value.
+   */
+  int render(final OutputStream out) throws IOException {
+    final List<Series> series = new ArrayList<Series>(datapoints.size());
+    int npoints = 0;
+    for (int i = 0; i < datapoints.size(); i++) {
+      final DataPoints dps = datapoints.get(i);
+      final Series s = new Series();
+      s.title = dps.metricName() + dps.getTags();
+      s.y2 = "x1y2".equals(axisOption(options.get(i)));
+      for (final DataPoint dp : dps) {
+        final double value = dp.isInteger() ?
+            dp.longValue() : dp.doubleValue();
+        if (Double.isInfinite(value)) {
+          throw new IllegalStateException("Infinity found in"
+              + " datapoints #" + i + ": " + value + " d=" + dp);
+        } else if (Double.isNaN(value)) {
+          continue;
+        }
+        final long ts = dp.timestamp() / 1000;
+        s.add(ts, value);
+        if (ts >= start_time && ts <= end_time) {
+          npoints++;
+        }
+      }
+      series.add(s);
+    }
+
+    final String bgcolor = param("bgcolor");
+    final boolean transparent = bgcolor != null &&
+        bgcolor.startsWith("transparent");
+    final Color background = bgcolor == null || transparent ?
+        Color.WHITE : parseColor(bgcolor);
+    final Color foreground = param("fgcolor") == null ?
+        Color.BLACK : parseColor(param("fgcolor"));
+
+    final BufferedImage image = new BufferedImage(width, height,
+        transparent ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+    final Graphics2D g = image.createGraphics();
+    try {
+      // Crisp lines like Gnuplot's PNG terminal, smooth text.
+      g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+          RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+      if (!transparent) {
+        g.setColor(background);
+        g.fillRect(0, 0, width, height);
+      }
+      g.setFont(FONT);
+      final FontMetrics fm = g.getFontMetrics();
+
+      boolean has_y2 = false;
+      for (final Series s : series) {
+        has_y2 |= s.y2;
+      }
+      final Axis y1 = axis(series, false, "yrange", "logscale y", "format y");
+      final Axis y2 = has_y2 ?
+          axis(series, true, "y2range", "logscale y2", "format y2") : null;
+
+      // Leave room for the tic labels, axis labels and title.
+      final String title = unquote(param("title"));
+      final String ylabel = unquote(param("ylabel"));
+      final String y2label = unquote(param("y2label"));
+      final int left = 10 + ticsWidth(fm, y1) +
+          (ylabel != null ? fm.getHeight() + 4 : 0);
+      final int right = y2 == null ? 20 : 10 + ticsWidth(fm, y2) +
+          (y2label != null ? fm.getHeight() + 4 : 0);
+      final int top = 10 + (title != null ? fm.getHeight() + 6 : 0);
+      final int bottom = fm.getHeight() + 14;
+      final int plot_width = width - left - right;
+      final int plot_height = height - top - bottom;
+      if (plot_width < 10 || plot_height < 10) {
+        throw new IllegalArgumentException("Graph of " + width + "x" + height
+            + " is too small for its labels");
+      }
+
+      g.setColor(foreground);
+      if (title != null) {
+        g.drawString(title,
+            (width - fm.stringWidth(title)) / 2, 6 + fm.getAscent());
+      }
+      if (ylabel != null) {
+        drawVertical(g, ylabel, 4 + fm.getAscent(), top + plot_height / 2);
+      }
+      if (y2label != null) {
+        drawVertical(g, y2label, width - 4 - fm.getDescent(),
+            top + plot_height / 2);
+      }
+
+      // Y tics and grid.
+      for (final double tic : y1.tics) {
+        final int y = top + plot_height -
+            (int) Math.round(y1.scale(tic, plot_height));
+        drawGrid(g, foreground, left, y, left + plot_width, y);
+        final String label = y1.label(tic);
+        g.drawString(label, left - 4 - fm.stringWidth(label),
+            y + fm.getAscent() / 2);
+      }
+      if (y2 != null) {
+        for (final double tic : y2.tics) {
+          final int y = top + plot_height -
+              (int) Math.round(y2.scale(tic, plot_height));
+          g.drawLine(left + plot_width - 4, y, left + plot_width, y);
+          g.drawString(y2.label(tic), left + plot_width + 4,
+              y + fm.getAscent() / 2);
+        }
+      }
+
+      // X tics and grid.
+      final SimpleDateFormat format = new SimpleDateFormat(
+          param("format x") != null ?
+          timeFormat(unquote(param("format x"))) : defaultTimeFormat(),
+          Locale.US);
+      format.setTimeZone(TimeZone.getTimeZone("UTC"));
+      final long step = timeStep(plot_width / 100);
+      long tic = ((start_time + utc_offset) / step) * step - utc_offset;
+      if (tic < start_time) {
+        tic += step;
+      }
+      for (; tic <= end_time; tic += step) {
+        final int x = left + (int) Math.round(
+            (double) (tic - start_time) / (end_time - start_time) * plot_width);
+        drawGrid(g, foreground, x, top, x, top + plot_height);
+        final String label = format.format(
+            new Date((tic + utc_offset) * 1000));
+        g.drawString(label, x - fm.stringWidth(label) / 2,
+            top + plot_height + 6 + fm.getAscent());
+      }
+
+      g.setColor(foreground);
+      g.drawRect(left, top, plot_width, plot_height);
+
+      // Annotations, then the series, clipped to the plot area.
+      g.setClip(left, top, plot_width + 1, plot_height + 1);
+      drawAnnotations(g, fm, left, top, plot_width, plot_height);
+      final String style = param("style") != null ?
+          param("style") : "linespoints";
+      for (int i = 0; i < series.size(); i++) {
+        final Series s = series.get(i);
+        g.setColor(PALETTE[i % PALETTE.length]);
+        drawSeries(g, s, s.y2 ? y2 : y1, style, left, top, plot_width,
+            plot_height);
+      }
+      g.setClip(null);
+
+      if (series.isEmpty()) {
+        g.setColor(foreground);
+        final String label = "No data";
+        g.drawString(label, left + (plot_width - fm.stringWidth(label)) / 2,
+            top + plot_height / 10 + fm.getAscent());
+      } else if (params == null || !params.containsKey("key") ||
+          params.get("key") != null) {
+        drawKey(g, fm, series, style, foreground, background, transparent,
+            left, top, plot_width, plot_height);
+      }
+    } finally {
+      g.dispose();
+    }
+    if (!ImageIO.write(image, "png", out)) {
+      throw new IOException("No PNG writer available");
+    }
+    return npoints;
+  }
+
+  /** Computes the range and tics of an axis from the series it shows. */
+  private Axis axis(final List<Series> series, final boolean y2,
+                    final String range_param, final String log_param,
+                    final String format_param) {
+    final Axis axis = new Axis();
+    axis.log = params != null && params.containsKey(log_param);
+    if (param(format_param) != null) {
+      axis.format = unquote(param(format_param));
+    }
+    double min = Double.POSITIVE_INFINITY;
+    double max = Double.NEGATIVE_INFINITY;
+    for (final Series s : series) {
+      if (s.y2 != y2) {
+        continue;
+      }
+      for (int i = 0; i < s.size; i++) {
+        final double value = s.values[i];
+        if (s.timestamps[i] < start_time || s.timestamps[i] > end_time ||
+            (axis.log && value <= 0)) {
+          continue;
+        }
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+      }
+    }
+    if (min > max) {
+      // Like Gnuplot with the [0:10] range we force on empty graphs.
+      min = axis.log ? 1 : 0;
+      max = 10;
+    } else if (min == max) {
+      if (axis.log) {
+        min /= 10;
+        max *= 10;
+      } else {
+        min -= 1;
+        max += 1;
+      }
+    }
+
+    final Double[] range = param(range_param) != null ?
+        parseRange(param(range_param)) : new Double[2];
+    final boolean auto_min = range[0] == null;
+    final boolean auto_max = range[1] == null;
+    if (!auto_min) {
+      min = range[0];
+    }
+    if (!auto_max) {
+      max = range[1];
+    }
+    if (min > max) {
+      final double tmp = min;
+      min = max;
+      max = tmp;
+    }
+    if (axis.log) {
+      if (min <= 0) {
+        min = max > 1 ? 1 : max / 10;
+      }
+      // Extend the autoscaled ends to powers of ten, like Gnuplot does.
+      if (auto_min) {
+        min = Math.pow(10, Math.floor(Math.log10(min)));
+      }
+      if (auto_max) {
+        max = Math.pow(10, Math.ceil(Math.log10(max)));
+      }
+      if (min == max) {
+        max = min * 10;
+      }
+      for (double tic = Math.pow(10, Math.ceil(Math.log10(min)));
+           tic <= max * 1.000001; tic *= 10) {
+        axis.tics.add(tic);
+      }
+    } else {
+      if (min == max) {
+        max = min + 1;
+      }
+      final double step = niceStep((max - min) / 8);
+      if (auto_min) {
+        min = Math.floor(min / step) * step;
+      }
+      if (auto_max) {
+        max = Math.ceil(max / step) * step;
+      }
+      for (double tic = Math.ceil(min / step) * step;
+           tic <= max + step / 1000; tic += step) {
+        // Avoid -0 and rounding noise around zero.
+        axis.tics.add(Math.abs(tic) < step / 1000 ? 0 : tic);
+      }
+    }
+    axis.min = min;
+    axis.max = max;
+    return axis;
+  }
+
+  private void drawSeries(final Graphics2D g, final Series s, final Axis axis,
+                          final String style, final int left, final int top,
+                          final int plot_width, final int plot_height) {
+    final boolean lines = style.startsWith("lines") ||
+        style.equals("linespoint");
+    final boolean points = style.equals("points") ||
+        style.startsWith("linespoint");
+    final Path2D.Double path = new Path2D.Double();
+    boolean pen_down = false;
+    for (int i = 0; i < s.size; i++) {
+      final double offset = axis.scale(s.values[i], plot_height);
+      if (Double.isNaN(offset)) {
+        pen_down = false;
+        continue;
+      }
+      final double x = left + (double) (s.timestamps[i] - start_time) /
+          (end_time - start_time) * plot_width;
+      final double y = top + plot_height - offset;
+      if (lines) {
+        if (pen_down) {
+          path.lineTo(x, y);
+        } else {
+          path.moveTo(x, y);
+          pen_down = true;
+        }
+      }
+      if (points) {
+        // Gnuplot's first point type is a plus sign.
+        final int px = (int) Math.round(x);
+        final int py = (int) Math.round(y);
+        g.drawLine(px - 3, py, px + 3, py);
+        g.drawLine(px, py - 3, px, py + 3);
+      } else if (style.equals("dots")) {
+        g.fillRect((int) Math.round(x), (int) Math.round(y), 1, 1);
+      } else if (style.equals("impulses")) {
+        final double zero = top + plot_height - Math.max(0,
+            Math.min(plot_height, axis.log ? 0 : axis.scale(0, plot_height)));
+        g.drawLine((int) Math.round(x), (int) Math.round(zero),
+            (int) Math.round(x), (int) Math.round(y));
+      }
+    }
+    if (lines) {
+      g.draw(path);
+    }
+  }
+
+  /** Draws a vertical line and a label for each annotation. */
+  private void drawAnnotations(final Graphics2D g, final FontMetrics fm,
+                               final int left, final int top,
+                               final int plot_width, final int plot_height) {
+    final List<Annotation> notes = new ArrayList<Annotation>();
+    for (final DataPoints dps : datapoints) {
+      final List<Annotation> series_notes = dps.getAnnotations();
+      if (series_notes != null) {
+        notes.addAll(series_notes);
+      }
+    }
+    if (globals != null) {
+      notes.addAll(globals);
+    }
+    Collections.sort(notes);
+    for (final Annotation note : notes) {
+      long ts = note.getStartTime();
+      if (ts > 9999999999L) {
+        ts /= 1000;
+      }
+      if (ts < start_time || ts > end_time) {
+        continue;
+      }
+      final int x = left + (int) Math.round(
+          (double) (ts - start_time) / (end_time - start_time) * plot_width);
+      g.setColor(PALETTE[2]);
+      g.drawLine(x, top, x, top + plot_height);
+      final String label = note.getDescription() == null ?
+          "" : note.getDescription();
+      final int label_width = fm.stringWidth(label);
+      final int y = top + plot_height - fm.getHeight();
+      g.setColor(Color.WHITE);
+      g.fillRect(x - label_width / 2 - 1, y, label_width + 2, fm.getHeight());
+      g.setColor(Color.BLACK);
+      g.drawString(label, x - label_width / 2, y + fm.getAscent());
+    }
+  }
+
+  /** Draws the key with a sample of each series. */
+  private void drawKey(final Graphics2D g, final FontMetrics fm,
+                       final List<Series> series, final String style,
+                       final Color foreground, final Color background,
+                       final boolean transparent, final int left,
+                       final int top, final int plot_width,
+                       final int plot_height) {
+    final Set<String> words = new HashSet<String>();
+    final String key = param("key");
+    if (key == null) {
+      // The default Gnuplot script uses "set key right box".
+      words.add("right");
+      words.add("box");
+    } else {
+      words.addAll(Arrays.asList(key.trim().split("\\s+")));
+    }
+    int text_width = 0;
+    for (final Series s : series) {
+      text_width = Math.max(text_width, fm.stringWidth(s.title));
+    }
+    final int sample = 30;
+    final int line_height = fm.getHeight();
+    final int key_width = text_width + sample + 18;
+    final int key_height = series.size() * line_height + 8;
+
+    final int x;
+    if (words.contains("left")) {
+      x = left + 6;
+    } else if (words.contains("center") && !words.contains("right")) {
+      x = left + (plot_width - key_width) / 2;
+    } else {
+      x = left + plot_width - key_width - 6;
+    }
+    final int y;
+    if (words.contains("bottom")) {
+      y = top + plot_height - key_height - 6;
+    } else if (words.contains("center") && !words.contains("top") &&
+        (words.contains("left") || words.contains("right"))) {
+      y = top + (plot_height - key_height) / 2;
+    } else {
+      y = top + 6;
+    }
+
+    if (!transparent) {
+      g.setColor(background);
+      g.fillRect(x, y, key_width, key_height);
+    }
+    if (words.contains("box") && !words.contains("nobox")) {
+      g.setColor(foreground);
+      g.drawRect(x, y, key_width, key_height);
+    }
+    for (int i = 0; i < series.size(); i++) {
+      final int baseline = y + 4 + i * line_height + fm.getAscent();
+      final int middle = baseline - fm.getAscent() / 2;
+      g.setColor(foreground);
+      g.drawString(series.get(i).title, x + 6, baseline);
+      g.setColor(PALETTE[i % PALETTE.length]);
+      final int sx = x + 12 + text_width;
+      if (!style.equals("points") && !style.equals("dots")) {
+        g.drawLine(sx, middle, sx + sample, middle);
+      }
+      if (style.equals("points") || style.startsWith("linespoint")) {
+        g.drawLine(sx + sample / 2 - 3, middle, sx + sample / 2 + 3, middle);
+        g.drawLine(sx + sample / 2, middle - 3, sx + sample / 2, middle + 3);
+      }
+    }
+  }
+
+  private static void drawGrid(final Graphics2D g, final Color foreground,
+                               final int x1, final int y1,
+                               final int x2, final int y2) {
+    final Stroke stroke = g.getStroke();
+    g.setColor(Color.GRAY);
+    g.setStroke(GRID);
+    g.drawLine(x1, y1, x2, y2);
+    g.setStroke(stroke);
+    g.setColor(foreground);
+  }
+
+  private static void drawVertical(final Graphics2D g, final String text,
+                                   final int x, final int y) {
+    final AffineTransform transform = g.getTransform();
+    g.translate(x, y);
+    g.rotate(-Math.PI / 2);
+    g.drawString(text, -g.getFontMetrics().stringWidth(text) / 2, 0);
+    g.setTransform(transform);
+  }
+
+  private static int ticsWidth(final FontMetrics fm, final Axis axis) {
+    int max = 0;
+    for (final double tic : axis.tics) {
+      max = Math.max(max, fm.stringWidth(axis.label(tic)));
+    }
+    return max + 4;
+  }
+
+  /** @return The value of a setting or null if not set */
+  private String param(final String key) {
+    return params == null ? null : params.get(key);
+  }
+
+  /** Same time formats as {@code Plot.xFormat()} for Gnuplot. */
+  private String defaultTimeFormat() {
+    final long timespan = end_time - start_time;
+    if (timespan < 2100) {  // 35m
+      return "HH:mm:ss";
+    } else if (timespan < 86400) {  // 1d
+      return "HH:mm";
+    } else if (timespan < 604800) {  // 1w
+      return "EEE HH:mm";
+    } else if (timespan < 1209600) {  // 2w
+      return "EEE dd HH:mm";
+    } else if (timespan < 7776000) {  // 90d
+      return "MMM dd";
+    } else {
+      return "yyyy/MM/dd";
+    }
+  }
+
+  /** @return The smallest round time step giving at most max tics */
+  private long timeStep(final int max) {
+    final long[] steps = { 1, 2, 5, 10, 15, 30, 60, 120, 300, 600, 900, 1800,
+        3600, 7200, 10800, 21600, 43200, 86400, 172800, 604800, 1209600,
+        2592000, 7776000, 15552000, 31536000 };
+    final long timespan = end_time - start_time;
+    for (final long step : steps) {
+      if (timespan / step <= Math.max(1, max)) {
+        return step;
+      }
+    }
+    return steps[steps.length - 1] *
+        (timespan / steps[steps.length - 1] / Math.max(1, max) + 1);
+  }
+
+  /** @return A step of 1, 2 or 5 times a power of ten close to the given one */
+  private static double niceStep(final double rough) {
+    final double magnitude = Math.pow(10, Math.floor(Math.log10(rough)));
+    final double fraction = rough / magnitude;
+    if (fraction <= 1) {
+      return magnitude;
+    } else if (fraction <= 2) {
+      return 2 * magnitude;
+    } else if (fraction <= 5) {
+      return 5 * magnitude;
+    }
+    return 10 * magnitude;
+  }
+
+  /** Formats a tic label without trailing zeros. */
+  static String formatNumber(final double value) {
+    final double abs = Math.abs(value);
+    if (value == 0) {
+      return "0";
+    } else if (abs >= 1e7 || abs < 1e-4) {
+      return new DecimalFormat("0.###E0").format(value);
+    }
+    return new DecimalFormat("0.######").format(value);
+  }
+
+  /**
+   * Parses a Gnuplot range such as {@code [0:]} or {@code [1:100]}.
+   * @return The min and max, null when autoscaled, or null if invalid.
+   */
+  static Double[] parseRange(final String range) {
+    final String trimmed = range.trim();
+    if (!trimmed.startsWith("[") || !trimmed.endsWith("]")) {
+      return null;
+    }
+    final int colon = trimmed.indexOf(':');
+    if (colon < 0) {
+      return null;
+    }
+    try {
+      final Double[] result = new Double[2];
+      final String min = trimmed.substring(1, colon).trim();
+      final String max = trimmed.substring(colon + 1, trimmed.length() - 1)
+          .trim();
+      if (!min.isEmpty() && !min.equals("*")) {
+        result[0] = Double.parseDouble(min);
+      }
+      if (!max.isEmpty() && !max.equals("*")) {
+        result[1] = Double.parseDouble(max);
+      }
+      return result;
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Parses a color like {@code xRRGGBB}, with an optional leading
+   * {@code transparent} for backgrounds.
+   * @return The color or null if invalid.
+   */
+  static Color parseColor(final String color) {
+    String value = color.trim();
+    if (value.startsWith("transparent")) {
+      value = value.substring("transparent".length()).trim();
+      if (value.isEmpty()) {
+        return Color.WHITE;
+      }
+    }
+    if (value.length() != 7 || value.charAt(0) != 'x') {
+      return null;
+    }
+    try {
+      return new Color(Integer.parseInt(value.substring(1), 16));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Converts a Gnuplot time format to a {@link SimpleDateFormat} pattern.
+   * @return The pattern or null if the format uses an unknown conversion.
+   */
+  static String timeFormat(final String format) {
+    if (format == null) {
+      return null;
+    }
+    final StringBuilder pattern = new StringBuilder();
+    boolean quoted = false;
+    for (int i = 0; i < format.length(); i++) {
+      final char c = format.charAt(i);
+      if (c != '%') {
+        if (Character.isLetter(c) || c == '\'') {
+          if (!quoted) {
+            pattern.append('\'');
+            quoted = true;
+          }
+          pattern.append(c == '\'' ? "''" : String.valueOf(c));
+        } else {
+          if (quoted) {
+            pattern.append('\'');
+            quoted = false;
+          }
+          pattern.append(c);
+        }
+        continue;
+      }
+      if (++i == format.length()) {
+        return null;
+      }
+      final String conversion;
+      switch (format.charAt(i)) {
+        case 'H': conversion = "HH"; break;
+        case 'M': conversion = "mm"; break;
+        case 'S': conversion = "ss"; break;
+        case 'd': conversion = "dd"; break;
+        case 'm': conversion = "MM"; break;
+        case 'y': conversion = "yy"; break;
+        case 'Y': conversion = "yyyy"; break;
+        case 'a': conversion = "EEE"; break;
+        case 'A': conversion = "EEEE"; break;
+        case 'b': conversion = "MMM"; break;
+        case 'B': conversion = "MMMM"; break;
+        case 'j': conversion = "DDD"; break;
+        case 'p': conversion = "a"; break;
+        case 'I': conversion = "hh"; break;
+        default: return null;
+      }
+      if (quoted) {
+        pattern.append('\'');
+        quoted = false;
+      }
+      pattern.append(conversion);
+    }
+    if (quoted) {
+      pattern.append('\'');
+    }
+    return pattern.toString();
+  }
+
+  /**
+   * Strips the quotes and escapes added to strings for Gnuplot.
+   * @return The string or null if null.
+   */
+  static String unquote(final String value) {
+    if (value == null) {
+      return null;
+    }
+    if (value.length() < 2 || value.charAt(0) != '"' ||
+        value.charAt(value.length() - 1) != '"') {
+      return value;
+    }
+    final StringBuilder buf = new StringBuilder(value.length());
+    for (int i = 1; i < value.length() - 1; i++) {
+      char c = value.charAt(i);
+      if (c == '\\' && i + 1 < value.length() - 1) {
+        c = value.charAt(++i);
+        switch (c) {
+          case 'n': c = '\n'; break;
+          case 't': c = '\t'; break;
+          case 'r': c = '\r'; break;
+          case 'b': c = '\b'; break;
+          case 'f': c = '\f'; break;
+          case 'u':
+            if (i + 4 < value.length() - 1) {
+              try {
+                c = (char) Integer.parseInt(value.substring(i + 1, i + 5), 16);
+                i += 4;
+              } catch (NumberFormatException e) {
+                // keep the u
+              }
+            }
+            break;
+          default: break;
+        }
+      }
+      buf.append(c);
+    }
+    return buf.toString();
+  }
+
+  /**
+   * Parses the per-series options we support, i.e. the y axis to use.
+   * @return "x1y1" or "x1y2", or null if the options contain anything else.
+   */
+  private static String axisOption(final String opts) {
+    final String[] words = opts.trim().split("\\s+");
+    if (words.length == 1 && words[0].isEmpty()) {
+      return "x1y1";
+    }
+    if (words.length == 1 &&
+        (words[0].equals("x1y1") || words[0].equals("x1y2"))) {
+      return words[0];
+    }
+    if (words.length == 2 &&
+        (words[0].equals("axis") || words[0].equals("axes")) &&
+        (words[1].equals("x1y1") || words[1].equals("x1y2"))) {
+      return words[1];
+    }
+    return null;
+  }
+}
@@ -0,0 +1,417 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.meta;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+
+import net.opentsdb.core.IncomingDataPoint;
+import net.opentsdb.core.Internal;
+import net.opentsdb.core.RowKey;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.uid.UniqueId;
+import net.opentsdb.utils.DateTime;
+
+import org.hbase.async.GetRequest;
+import org.hbase.async.GetResultOrException;
+import org.hbase.async.KeyValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+/**
+ * Fetches the last data point of many time series at once. Where
+ * {@link TSUIDQuery#getLastPoint} issues one get per hour row and series,
+ * this groups the series looking at the same hour into multi-gets of up to
+ * "tsd.query.last.batch_size" rows and keeps at most
+ * "tsd.query.last.max_concurrent_gets" multi-gets in flight. A series drops
+ * out of the batches as soon as a value is found, otherwise it moves back
+ * an hour until "back_scan" hours were read.
+ * <p>
+ * If the back scan is 0 and meta tracking is enabled, series without a last
+ * write time are first looked up in the meta table, again in batches, and
+ * only the hour of the last write is read.
+ * <p>
+ * Results are returned in the order the series were added, without the
+ * series that had no value. The first failed get fails the whole query.
+ * @since 2.4
+ */
+public class BatchLastPointQuery {
+  private static final Logger LOG =
+      LoggerFactory.getLogger(BatchLastPointQuery.class);
+
+  /** The TSDB to use */
+  private final TSDB tsdb;
+
+  /** Whether or not to resolve the UIDs of the data points to names */
+  private final boolean resolve_names;
+
+  /** The number of hours back in time to scan */
+  private final int back_scan;
+
+  /** Maximum number of rows per multi-get */
+  private final int batch_size;
+
+  /** Maximum number of multi-gets in flight */
+  private final int max_concurrent;
+
+  /** The series in the order they were added */
+  private final List<Series> series = new ArrayList<Series>();
+
+  /** Series waiting for their meta counter. Guarded by this */
+  private final ArrayDeque<Series> meta_pending = new ArrayDeque<Series>();
+
+  /** Series waiting for a data get keyed on the hour, newest first.
+   * Guarded by this */
+  private final TreeMap<Long, ArrayDeque<Series>> pending =
+      new TreeMap<Long, ArrayDeque<Series>>(Collections.reverseOrder());
+
+  /** The number of multi-gets in flight. Guarded by this */
+  private int in_flight;
+
+  /** The number of gets issued so far. Guarded by this */
+  private long gets;
+
+  /** Set once the query completed or failed. Guarded by this */
+  private boolean done;
+
+  /** The deferred handed to the caller */
+  private final Deferred<ArrayList<IncomingDataPoint>> result =
+      new Deferred<ArrayList<IncomingDataPoint>>();
+
+  /**
+   * Default ctor.
+   * @param tsdb The TSDB to use
+   * @param resolve_names Whether or not to resolve the UIDs to names
+   * @param back_scan The number of hours back in time to scan
+   * @throws IllegalArgumentException if the back scan was negative or the
+   * batch size or concurrency were not configured
+   */
+  public BatchLastPointQuery(final TSDB tsdb, final boolean resolve_names,
+      final int back_scan) {
+    if (tsdb == null) {
+      throw new IllegalArgumentException("TSDB cannot be null");
+    }
+    if (back_scan < 0) {
+      throw new IllegalArgumentException(
+          "Backscan must be zero or a positive number");
+    }
+    this.tsdb = tsdb;
+    this.resolve_names = resolve_names;
+    this.back_scan = back_scan;
+    batch_size = tsdb.getConfig().getInt("tsd.query.last.batch_size");
+    max_concurrent = tsdb.getConfig().getInt(
+        "tsd.query.last.max_concurrent_gets");
+    if (batch_size < 1) {
+      throw new IllegalArgumentException("Batch size must be greater than 0");
+    }
+    if (max_concurrent < 1) {
+      throw new IllegalArgumentException(
+          "Max concurrent gets must be greater than 0");
+    }
+  }
+
+  /**
+   * Adds a series to fetch. Must be called before {@link #fetch}.
+   * @param tsuid The TSUID of the series
+   * @param last_timestamp The last write time in seconds or milliseconds if
+   * known, 0 if not.
+   * @throws IllegalArgumentException if the TSUID was null or empty
+   */
+  public void addTSUID(final byte[] tsuid, final long last_timestamp) {
+    if (tsuid == null || tsuid.length < 1) {
+      throw new IllegalArgumentException("TSUID cannot be null or empty");
+    }
+    series.add(new Series(tsuid, last_timestamp));
+  }
+
+  /**
+   * Starts fetching the last points. Call only once.
+   * @return A deferred resolving to the data points found, may be empty.
+   */
+  public Deferred<ArrayList<IncomingDataPoint>> fetch() {
+    final boolean meta_enabled = tsdb.getConfig().enable_tsuid_tracking() ||
+        tsdb.getConfig().enable_tsuid_incrementing();
+    final long now = Internal.baseTime(DateTime.currentTimeMillis());
+    synchronized (this) {
+      for (final Series s : series) {
+        if (s.hour > 0) {
+          enqueue(s);
+        } else if (back_scan < 1 && meta_enabled) {
+          meta_pending.add(s);
+        } else {
+          s.hour = now;
+          enqueue(s);
+        }
+      }
+    }
+    dispatch();
+    return result;
+  }
+
+  /** @return The number of gets issued so far */
+  public synchronized long getGets() {
+    return gets;
+  }
+
+  /** Queues the series for a get of its current hour. Must hold the lock. */
+  private void enqueue(final Series s) {
+    ArrayDeque<Series> queue = pending.get(s.hour);
+    if (queue == null) {
+      queue = new ArrayDeque<Series>();
+      pending.put(s.hour, queue);
+    }
+    queue.add(s);
+  }
+
+  /**
+   * Issues multi-gets until the concurrency limit is reached or nothing is
+   * left, and completes the query once everything was read.
+   */
+  private void dispatch() {
+    while (true) {
+      final List<Series> batch = new ArrayList<Series>(batch_size);
+      boolean meta = false;
+      synchronized (this) {
+        if (done) {
+          return;
+        }
+        if (in_flight == 0 && meta_pending.isEmpty() && pending.isEmpty()) {
+          done = true;
+        } else {
+          if (in_flight >= max_concurrent ||
+              (meta_pending.isEmpty() && pending.isEmpty())) {
+            return;
+          }
+          meta = !meta_pending.isEmpty();
+          final ArrayDeque<Series> queue = meta ? meta_pending :
+            pending.firstEntry().getValue();
+          while (batch.size() < batch_size && !queue.isEmpty()) {
+            batch.add(queue.poll());
+          }
+          if (!meta && queue.isEmpty()) {
+            pending.pollFirstEntry();
+          }
+          ++in_flight;
+          gets += batch.size();
+        }
+      }
+      if (batch.isEmpty()) {
+        complete();
+        return;
+      }
+      get(batch, meta);
+    }
+  }
+
+  /**
+   * Sends a multi-get for the batch.
+   * @param batch The series to read
+   * @param meta Whether to read the meta counters or the data rows
+   */
+  private void get(final List<Series> batch, final boolean meta) {
+    final List<GetRequest> requests = new ArrayList<GetRequest>(batch.size());
+    for (final Series s : batch) {
+      final GetRequest get;
+      if (meta) {
+        get = new GetRequest(tsdb.metaTable(), s.tsuid);
+        get.family(TSMeta.FAMILY());
+        get.qualifier(TSMeta.COUNTER_QUALIFIER());
+      } else {
+        get = new GetRequest(tsdb.dataTable(),
+            RowKey.rowKeyFromTSUID(tsdb, s.tsuid, s.hour));
+        get.family(TSDB.FAMILY());
+      }
+      requests.add(get);
+    }
+
+    /** Moves the series along and sends the next batches */
+    final class BatchCB implements Callback<Object, List<GetResultOrException>> {
+      @Override
+      public Object call(final List<GetResultOrException> results)
+          throws Exception {
+        synchronized (BatchLastPointQuery.this) {
+          --in_flight;
+          for (int i = 0; i < batch.size(); i++) {
+            final GetResultOrException get_result = results.get(i);
+            if (get_result.getException() != null) {
+              throw get_result.getException();
+            }
+            if (meta) {
+              counterFound(batch.get(i), get_result.getCells());
+            } else {
+              rowFound(batch.get(i), get_result.getCells());
+            }
+          }
+        }
+        dispatch();
+        return null;
+      }
+      @Override
+      public String toString() {
+        return "Batch last point CB";
+      }
+    }
+
+    /** Fails the query on the first error */
+    final class ErrorCB implements Callback<Object, Exception> {
+      @Override
+      public Object call(final Exception e) throws Exception {
+        fail(e);
+        return null;
+      }
+      @Override
+      public String toString() {
+        return "Batch last point error CB";
+      }
+    }
+
+    try {
+      tsdb.getClient().get(requests)
+        .addCallback(new BatchCB())
+        .addErrback(new ErrorCB());
+    } catch (Exception e) {
+      fail(e);
+    }
+  }
+
+  /** Queues the series for the hour of the last write, must hold the lock */
+  private void counterFound(final Series s, final ArrayList<KeyValue> row) {
+    if (row == null || row.isEmpty()) {
+      return;
+    }
+    s.hour = Internal.baseTime(row.get(0).timestamp());
+    enqueue(s);
+  }
+
+  /** Stores the data point or moves back an hour, must hold the lock */
+  private void rowFound(final Series s, final ArrayList<KeyValue> row)
+      throws Exception {
+    final IncomingDataPoint dp =
+        new Internal.GetLastDataPointCB(tsdb).call(row);
+    if (dp != null) {
+      dp.setTSUID(UniqueId.uidToString(s.tsuid));
+      s.dp = dp;
+      return;
+    }
+    if (s.iteration >= back_scan) {
+      return;
+    }
+    ++s.iteration;
+    s.hour -= 3600;
+    enqueue(s);
+  }
+
+  /** Fails the query once */
+  private void fail(final Exception e) {
+    synchronized (this) {
+      if (done) {
+        return;
+      }
+      done = true;
+    }
+    LOG.error("Failed to fetch the last points of " + series.size()
+        + " series", e);
+    result.callback(e);
+  }
+
+  /** Resolves the names if needed and hands the data points to the caller */
+  private void complete() {
+    final ArrayList<IncomingDataPoint> dps =
+        new ArrayList<IncomingDataPoint>();
+    for (final Series s : series) {
+      if (s.dp != null) {
+        dps.add(s.dp);
+      }
+    }
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Found " + dps.size() + " last points for " + series.size()
+          + " series with " + getGets() + " gets");
+    }
+    if (!resolve_names || dps.isEmpty()) {
+      result.callback(dps);
+      return;
+    }
+
+    final List<Deferred<IncomingDataPoint>> resolved =
+        new ArrayList<Deferred<IncomingDataPoint>>(dps.size());
+    try {
+      for (final Series s : series) {
+        if (s.dp != null) {
+          resolved.add(new TSUIDQuery(tsdb, s.tsuid).resolveNames(s.dp));
+        }
+      }
+    } catch (RuntimeException e) {
+      // lookups may throw instead of returning a failed deferred
+      result.callback(e);
+      return;
+    }
+
+    /** Hands the resolved points to the caller */
+    final class ResolvedCB implements
+        Callback<Object, ArrayList<IncomingDataPoint>> {
+      @Override
+      public Object call(final ArrayList<IncomingDataPoint> resolved_dps) {
+        result.callback(resolved_dps);
+        return null;
+      }
+      @Override
+      public String toString() {
+        return "Batch last point resolution CB";
+      }
+    }
+
+    /** Fails the query if a name could not be resolved */
+    final class ResolveErrorCB implements Callback<Object, Exception> {
+      @Override
+      public Object call(final Exception e) {
+        result.callback(e);
+        return null;
+      }
+      @Override
+      public String toString() {
+        return "Batch last point resolution error CB";
+      }
+    }
+
+    Deferred.groupInOrder(resolved)
+      .addCallbacks(new ResolvedCB(), new ResolveErrorCB());
+  }
+
+  /** The state of a series being fetched */
+  private static final class Series {
+    final byte[] tsuid;
+    /** The hour to read next in seconds */
+    long hour;
+    /** The number of hours already read back */
+    int iteration;
+    /** The last data point once found */
+    IncomingDataPoint dp;
+
+    Series(final byte[] tsuid, final long last_timestamp) {
+      this.tsuid = tsuid;
+      hour = last_timestamp > 0 ? Internal.baseTime(last_timestamp) : 0;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "BatchLastPointQuery(series=" + series.size() + ", back_scan="
+        + back_scan + ", batch_size=" + batch_size + ")";
+  }
+}
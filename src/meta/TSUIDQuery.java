@@ -562,7 +562,7 @@ public class TSUIDQuery {
    * @return A deferred with the data point or an exception if something went
    * wrong.
    */
-  private Deferred<IncomingDataPoint> resolveNames(final IncomingDataPoint dp) {
+  Deferred<IncomingDataPoint> resolveNames(final IncomingDataPoint dp) {
     // If the caller gave us a metric and tags, save some time by NOT hitting
     // our UID tables or storage.
     if (metric != null) {
@@ -0,0 +1,296 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.query;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stumbleupon.async.Callback;
+
+import net.opentsdb.core.QueryException;
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Signals that the result of a query is no longer wanted, either because the
+ * client closed its connection or because the query ran past its deadline.
+ * The token is shared by everything working on the query. Scanners check it
+ * between batches of rows and stop early, the serializers check it before
+ * writing and the listeners added via {@link #addListener(Callback)} run as
+ * soon as the query is cancelled, e.g. to free the query's memory.
+ * <p>
+ * Once the query has answered the client, call {@link #complete()} so that
+ * the deadline is dropped and a later close of a keep-alive connection is not
+ * mistaken for a cancellation.
+ * @since 2.4
+ */
+public final class CancellationToken {
+  private static final Logger LOG =
+      LoggerFactory.getLogger(CancellationToken.class);
+
+  /** The non-standard status used by proxies when a client went away */
+  public static final HttpResponseStatus CLIENT_CLOSED_REQUEST =
+      new HttpResponseStatus(499, "Client Closed Request");
+
+  /** Why a query was cancelled */
+  public enum Reason {
+    /** The client closed the connection */
+    DISCONNECTED,
+    /** The query ran past tsd.query.timeout */
+    TIMED_OUT
+  }
+
+  private static final int RUNNING = 0;
+  private static final int CANCELLED = 1;
+  private static final int COMPLETE = 2;
+
+  private static final AtomicLong disconnected = new AtomicLong();
+  private static final AtomicLong timed_out = new AtomicLong();
+  private static final AtomicLong stopped_scanners = new AtomicLong();
+  private static final AtomicLong skipped_serializations = new AtomicLong();
+
+  /** Whether the query is running, cancelled or complete */
+  private final AtomicInteger state = new AtomicInteger(RUNNING);
+
+  /** Callbacks to run on cancellation. Guarded by this */
+  private final List<Callback<Object, QueryException>> listeners =
+      new ArrayList<Callback<Object, QueryException>>();
+
+  /** Why we were cancelled, set before the state changes */
+  private volatile Reason reason;
+
+  /** The deadline, if one was scheduled. Guarded by this */
+  private Timeout deadline;
+
+  /** The close future of the channel, if we listen to it. Guarded by this */
+  private ChannelFuture close_future;
+
+  /** Cancels the query once the channel is closed. Guarded by this */
+  private ChannelFutureListener close_listener;
+
+  /**
+   * Cancels the query when the channel is closed. The listener is removed
+   * from the channel once the query completes or is cancelled so that
+   * keep-alive connections don't accumulate one per query.
+   * @param channel The channel the query arrived on
+   */
+  public void cancelOnClose(final Channel channel) {
+    final ChannelFuture close_future = channel.getCloseFuture();
+    if (close_future == null) {
+      return;
+    }
+    final ChannelFutureListener listener = new ChannelFutureListener() {
+      @Override
+      public void operationComplete(final ChannelFuture future) {
+        cancel(Reason.DISCONNECTED);
+      }
+    };
+    synchronized (this) {
+      if (state.get() != RUNNING) {
+        return;
+      }
+      this.close_future = close_future;
+      close_listener = listener;
+    }
+    close_future.addListener(listener);
+    if (state.get() != RUNNING) {
+      // raced with complete() or cancel()
+      close_future.removeListener(listener);
+    }
+  }
+
+  /**
+   * Cancels the query if it is still running after the timeout.
+   * @param timer The timer to schedule the deadline on
+   * @param timeout The timeout in milliseconds. Ignored if 0 or less.
+   */
+  public void scheduleDeadline(final Timer timer, final long timeout) {
+    if (timeout <= 0) {
+      return;
+    }
+    final Timeout task = timer.newTimeout(new TimerTask() {
+      @Override
+      public void run(final Timeout timeout) {
+        cancel(Reason.TIMED_OUT);
+      }
+    }, timeout, TimeUnit.MILLISECONDS);
+    synchronized (this) {
+      deadline = task;
+    }
+  }
+
+  /**
+   * Cancels the query if it is still running and calls the listeners.
+   * @param reason Why the query was cancelled
+   * @return True if the query was cancelled by this call, false if it was
+   * already cancelled or complete
+   */
+  public boolean cancel(final Reason reason) {
+    if (reason == null) {
+      throw new IllegalArgumentException("Reason cannot be null");
+    }
+    synchronized (this) {
+      if (state.get() != RUNNING) {
+        return false;
+      }
+      this.reason = reason;
+      state.set(CANCELLED);
+      detach();
+    }
+    if (reason == Reason.DISCONNECTED) {
+      disconnected.incrementAndGet();
+    } else {
+      timed_out.incrementAndGet();
+    }
+
+    final List<Callback<Object, QueryException>> to_call;
+    synchronized (this) {
+      to_call = new ArrayList<Callback<Object, QueryException>>(listeners);
+      listeners.clear();
+    }
+    final QueryException e = getException();
+    for (final Callback<Object, QueryException> listener : to_call) {
+      try {
+        listener.call(e);
+      } catch (Exception ex) {
+        LOG.error("Cancellation listener " + listener + " threw an exception",
+            ex);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Marks the query as complete, dropping the deadline and any listeners.
+   * Has no effect if the query was already cancelled.
+   */
+  public void complete() {
+    synchronized (this) {
+      if (!state.compareAndSet(RUNNING, COMPLETE)) {
+        return;
+      }
+      detach();
+      listeners.clear();
+    }
+  }
+
+  /** Cancels the deadline and stops listening to the channel. Call with the
+   * lock held. */
+  private void detach() {
+    if (deadline != null) {
+      deadline.cancel();
+      deadline = null;
+    }
+    if (close_future != null) {
+      close_future.removeListener(close_listener);
+      close_future = null;
+      close_listener = null;
+    }
+  }
+
+  /**
+   * Adds a callback to run when the query is cancelled. If the query was
+   * already cancelled the callback runs immediately. The callback is given
+   * the exception from {@link #getException()}.
+   * @param listener The callback to run
+   */
+  public void addListener(final Callback<Object, QueryException> listener) {
+    synchronized (this) {
+      if (state.get() == RUNNING) {
+        listeners.add(listener);
+        return;
+      }
+      if (state.get() == COMPLETE) {
+        return;
+      }
+    }
+    try {
+      listener.call(getException());
+    } catch (Exception ex) {
+      LOG.error("Cancellation listener " + listener + " threw an exception",
+          ex);
+    }
+  }
+
+  /** @return True if the query was cancelled */
+  public boolean isCancelled() {
+    return state.get() == CANCELLED;
+  }
+
+  /** @return Why the query was cancelled or null if it wasn't */
+  public Reason getReason() {
+    return reason;
+  }
+
+  /**
+   * @return An exception describing the cancellation, null if the query was
+   * not cancelled.
+   */
+  public QueryException getException() {
+    if (reason == null) {
+      return null;
+    }
+    if (reason == Reason.TIMED_OUT) {
+      return new QueryException(HttpResponseStatus.REQUEST_TIMEOUT,
+          "Query timeout exceeded!");
+    }
+    return new QueryException(CLIENT_CLOSED_REQUEST,
+        "The client closed the connection before the query completed");
+  }
+
+  /** Counts a scanner that was closed early due to the cancellation */
+  public void markScannerStopped() {
+    stopped_scanners.incrementAndGet();
+  }
+
+  /** Counts a serialization skipped due to the cancellation */
+  public void markSerializationSkipped() {
+    skipped_serializations.incrementAndGet();
+  }
+
+  /**
+   * Records the cancellation stats.
+   * @param collector The collector to write to
+   */
+  public static void collectStats(final StatsCollector collector) {
+    collector.record("query.cancelled", disconnected.get(),
+        "reason=disconnected");
+    collector.record("query.cancelled", timed_out.get(), "reason=timed_out");
+    collector.record("query.cancelled.scanners", stopped_scanners.get());
+    collector.record("query.cancelled.serializations",
+        skipped_serializations.get());
+  }
+
+  @Override
+  public String toString() {
+    return new StringBuilder("CancellationToken(state=")
+      .append(state.get() == RUNNING ? "running" :
+        state.get() == CANCELLED ? "cancelled" : "complete")
+      .append(", reason=")
+      .append(reason)
+      .append(")")
+      .toString();
+  }
+}
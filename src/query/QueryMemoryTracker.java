@@ -0,0 +1,203 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.query;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+
+import net.opentsdb.core.QueryException;
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.Config;
+
+/**
+ * Accounts for the bytes a query holds on the heap, e.g. the rows stored in
+ * spans and the serialization buffer, so that a single query cannot exhaust
+ * the TSD's memory. Every query has its own tracker and all of the trackers
+ * share a global counter for the TSD.
+ * <p>
+ * Each allocation is checked against the per query limit from
+ * {@code tsd.query.limits.memory.bytes} and the global limit from
+ * {@code tsd.query.limits.memory.global_bytes}. A limit of 0 disables the
+ * check but the usage is still tracked. When a limit would be exceeded a
+ * {@link QueryException} with a 413 status is thrown and the bytes are not
+ * charged.
+ * <p>
+ * The estimates are of the array payloads only, not of the object overhead,
+ * so the limits should leave some headroom.
+ * @since 2.4
+ */
+public final class QueryMemoryTracker {
+
+  /** Bytes currently charged to all running queries */
+  private static final AtomicLong global_used = new AtomicLong();
+
+  /** Number of queries rejected for exceeding a limit */
+  private static final AtomicLong limit_exceeded = new AtomicLong();
+
+  /** The maximum bytes for this query, 0 for no limit */
+  private final long query_limit;
+
+  /** The maximum bytes for all queries, 0 for no limit */
+  private final long global_limit;
+
+  /** Bytes currently charged to this query */
+  private final AtomicLong used;
+
+  /** The highest value of {@link #used} */
+  private final AtomicLong peak;
+
+  /** Set once the query is done so late allocations are not leaked */
+  private volatile boolean closed;
+
+  /**
+   * Ctor that loads the limits from the config.
+   * @param config The config to load the limits from
+   */
+  public QueryMemoryTracker(final Config config) {
+    this(config.getLong("tsd.query.limits.memory.bytes"),
+        config.getLong("tsd.query.limits.memory.global_bytes"));
+  }
+
+  /**
+   * Ctor with explicit limits.
+   * @param query_limit The maximum bytes for this query, 0 for no limit
+   * @param global_limit The maximum bytes for all queries, 0 for no limit
+   * @throws IllegalArgumentException if a limit is negative
+   */
+  public QueryMemoryTracker(final long query_limit, final long global_limit) {
+    if (query_limit < 0) {
+      throw new IllegalArgumentException("Query limit cannot be negative: "
+          + query_limit);
+    }
+    if (global_limit < 0) {
+      throw new IllegalArgumentException("Global limit cannot be negative: "
+          + global_limit);
+    }
+    this.query_limit = query_limit;
+    this.global_limit = global_limit;
+    used = new AtomicLong();
+    peak = new AtomicLong();
+  }
+
+  /**
+   * Charges the bytes to the query. Ignored once {@link #releaseAll()} was
+   * called, e.g. when a cancelled query's scanners return one last batch.
+   * @param bytes The number of bytes allocated
+   * @throws QueryException if the query or global limit would be exceeded
+   */
+  public void allocate(final long bytes) {
+    if (bytes <= 0 || closed) {
+      return;
+    }
+    final long query_total = used.addAndGet(bytes);
+    final long global_total = global_used.addAndGet(bytes);
+    if (closed) {
+      // raced with releaseAll(), hand back whatever it missed
+      global_used.addAndGet(-used.getAndSet(0));
+      return;
+    }
+    if (query_limit > 0 && query_total > query_limit) {
+      rollback(bytes);
+      throw new QueryException(HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE,
+          "Sorry, the query exceeded the maximum of " + query_limit
+          + " bytes of memory. Please try a shorter time range, fewer series "
+          + "or a downsampler.");
+    }
+    if (global_limit > 0 && global_total > global_limit) {
+      rollback(bytes);
+      throw new QueryException(HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE,
+          "Sorry, the TSD is short on memory for queries. Please try again "
+          + "later or with a smaller query.");
+    }
+
+    long current = peak.get();
+    while (query_total > current) {
+      if (peak.compareAndSet(current, query_total)) {
+        break;
+      }
+      current = peak.get();
+    }
+  }
+
+  /**
+   * Returns bytes to the pool, e.g. when a buffer was released before the
+   * query completed.
+   * @param bytes The number of bytes released
+   */
+  public void release(final long bytes) {
+    if (bytes <= 0 || closed) {
+      return;
+    }
+    used.addAndGet(-bytes);
+    global_used.addAndGet(-bytes);
+  }
+
+  /**
+   * Returns every byte still charged to this query to the global pool and
+   * stops charging further allocations. Call once the query is complete or
+   * cancelled. Safe to call more than once.
+   */
+  public void releaseAll() {
+    closed = true;
+    final long bytes = used.getAndSet(0);
+    if (bytes != 0) {
+      global_used.addAndGet(-bytes);
+    }
+  }
+
+  /** @return The bytes currently charged to this query */
+  public long getUsed() {
+    return used.get();
+  }
+
+  /** @return The highest number of bytes charged to this query */
+  public long getPeak() {
+    return peak.get();
+  }
+
+  /** @return The bytes currently charged to all queries */
+  public static long getGlobalUsed() {
+    return global_used.get();
+  }
+
+  /**
+   * Records the global memory stats.
+   * @param collector The collector to write to
+   */
+  public static void collectStats(final StatsCollector collector) {
+    collector.record("query.memory.used", global_used.get());
+    collector.record("query.memory.limit_exceeded", limit_exceeded.get());
+  }
+
+  @Override
+  public String toString() {
+    return new StringBuilder("QueryMemoryTracker(used=")
+      .append(used.get())
+      .append(", peak=")
+      .append(peak.get())
+      .append(", queryLimit=")
+      .append(query_limit)
+      .append(", globalLimit=")
+      .append(global_limit)
+      .append(")")
+      .toString();
+  }
+
+  /** Backs out a rejected allocation */
+  private void rollback(final long bytes) {
+    used.addAndGet(-bytes);
+    global_used.addAndGet(-bytes);
+    limit_exceeded.incrementAndGet();
+  }
+}
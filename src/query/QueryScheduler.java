@@ -0,0 +1,361 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.query;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.core.QueryException;
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.Config;
+import net.opentsdb.utils.DateTime;
+
+/**
+ * Admission control for queries so that one busy client cannot starve the
+ * others. At most {@code tsd.query.scheduler.max_concurrent} queries may run
+ * their scanners at once, the rest wait in a queue.
+ * <p>
+ * Waiting queries are split into two priority classes, interactive and batch.
+ * When both classes have work, {@code tsd.query.scheduler.interactive_weight}
+ * interactive queries are admitted for every batch query so that batch work
+ * is slowed down but never starved. Within a class each source, e.g. a client
+ * address, has its own FIFO queue and the sources are served round robin. A
+ * source may be given a weight via {@code tsd.query.scheduler.source_weights}
+ * as a comma separated list of {@code source:weight} pairs, in which case it
+ * is admitted up to that many queries per turn. Sources default to 1.
+ * <p>
+ * Callers must call {@link #release()} exactly once for every successful
+ * {@link #acquire(String, Priority)}, whether the query succeeded or not.
+ * @since 2.4
+ */
+public final class QueryScheduler {
+
+  /** The priority class of a query */
+  public enum Priority {
+    INTERACTIVE,
+    BATCH;
+
+    /**
+     * Parses the priority from a string, ignoring case.
+     * @param priority The priority name
+     * @return The priority
+     * @throws IllegalArgumentException if the priority was null, empty or
+     * unknown
+     */
+    public static Priority fromString(final String priority) {
+      if (priority == null || priority.isEmpty()) {
+        throw new IllegalArgumentException("Priority cannot be null or empty");
+      }
+      for (final Priority p : values()) {
+        if (p.name().equalsIgnoreCase(priority.trim())) {
+          return p;
+        }
+      }
+      throw new IllegalArgumentException("Unknown priority: " + priority);
+    }
+  }
+
+  /** How many queries may run at once */
+  private final int max_concurrent;
+
+  /** How many queries may wait before new queries are rejected */
+  private final int max_queued;
+
+  /** Interactive queries admitted per batch query when both are waiting */
+  private final int interactive_weight;
+
+  /** Per source weights, sources not in the map have a weight of 1 */
+  private final Map<String, Integer> source_weights;
+
+  /** The queues for each priority class, indexed on the ordinal */
+  private final ClassQueue[] queues;
+
+  /** Number of queries holding a slot. Guarded by this */
+  private int running;
+
+  /** Number of queries waiting for a slot. Guarded by this */
+  private int queued;
+
+  /** Interactive queries admitted since the last batch query. Guarded by this */
+  private int interactive_run;
+
+  private final AtomicLong admitted = new AtomicLong();
+  private final AtomicLong delayed = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong wait_time = new AtomicLong();
+
+  /**
+   * Ctor that loads the settings from the config.
+   * @param config The config to load from
+   * @throws IllegalArgumentException if a setting was invalid
+   */
+  public QueryScheduler(final Config config) {
+    this(config.getInt("tsd.query.scheduler.max_concurrent"),
+        config.getInt("tsd.query.scheduler.max_queued"),
+        config.getInt("tsd.query.scheduler.interactive_weight"),
+        parseWeights(config.getString("tsd.query.scheduler.source_weights")));
+  }
+
+  /**
+   * Ctor with explicit settings.
+   * @param max_concurrent How many queries may run at once
+   * @param max_queued How many queries may wait, 0 for no limit
+   * @param interactive_weight Interactive queries admitted per batch query
+   * @param source_weights Per source weights, may be null
+   * @throws IllegalArgumentException if a setting was invalid
+   */
+  public QueryScheduler(final int max_concurrent, final int max_queued,
+      final int interactive_weight, final Map<String, Integer> source_weights) {
+    if (max_concurrent < 1) {
+      throw new IllegalArgumentException(
+          "tsd.query.scheduler.max_concurrent must be greater than zero");
+    }
+    if (max_queued < 0) {
+      throw new IllegalArgumentException(
+          "tsd.query.scheduler.max_queued cannot be negative");
+    }
+    if (interactive_weight < 1) {
+      throw new IllegalArgumentException(
+          "tsd.query.scheduler.interactive_weight must be greater than zero");
+    }
+    this.max_concurrent = max_concurrent;
+    this.max_queued = max_queued;
+    this.interactive_weight = interactive_weight;
+    this.source_weights = source_weights == null ?
+        Collections.<String, Integer>emptyMap() : source_weights;
+    queues = new ClassQueue[Priority.values().length];
+    for (int i = 0; i < queues.length; i++) {
+      queues[i] = new ClassQueue();
+    }
+  }
+
+  /**
+   * Requests a slot to run a query. If a slot is free the deferred is
+   * returned already called back, otherwise it is called once the query
+   * reaches the front of its queue.
+   * @param source The source of the query, e.g. the client address
+   * @param priority The priority class of the query
+   * @return A deferred called back with the time spent waiting for the slot
+   * in nanoseconds
+   * @throws QueryException with a 503 status if the queue is full
+   */
+  public Deferred<Long> acquire(final String source, final Priority priority) {
+    final Waiter waiter;
+    synchronized (this) {
+      if (running < max_concurrent && queued == 0) {
+        ++running;
+        admitted.incrementAndGet();
+        return Deferred.fromResult(0L);
+      }
+      if (max_queued > 0 && queued >= max_queued) {
+        rejected.incrementAndGet();
+        throw new QueryException(HttpResponseStatus.SERVICE_UNAVAILABLE,
+            "Sorry, too many queries are waiting to run. Please try again "
+            + "later.");
+      }
+      waiter = new Waiter();
+      queues[priority.ordinal()].add(source == null ? "" : source, waiter);
+      ++queued;
+    }
+    delayed.incrementAndGet();
+    return waiter.deferred;
+  }
+
+  /**
+   * Releases a slot acquired via {@link #acquire(String, Priority)} and
+   * hands it to the next waiting query, if any.
+   */
+  public void release() {
+    final Waiter next;
+    synchronized (this) {
+      if (running < 1) {
+        throw new IllegalStateException("Released more slots than acquired");
+      }
+      next = next();
+      if (next == null) {
+        --running;
+        return;
+      }
+      --queued;
+    }
+    final long waited = DateTime.nanoTime() - next.enqueued;
+    admitted.incrementAndGet();
+    wait_time.addAndGet(waited);
+    next.deferred.callback(waited);
+  }
+
+  /** @return The number of queries holding a slot */
+  public synchronized int getRunning() {
+    return running;
+  }
+
+  /** @return The number of queries waiting for a slot */
+  public synchronized int getQueued() {
+    return queued;
+  }
+
+  /**
+   * Records the scheduler stats.
+   * @param collector The collector to write to
+   */
+  public void collectStats(final StatsCollector collector) {
+    final int[] waiting = new int[queues.length];
+    final int current;
+    synchronized (this) {
+      current = running;
+      for (int i = 0; i < queues.length; i++) {
+        waiting[i] = queues[i].size;
+      }
+    }
+    collector.record("query.scheduler.running", current);
+    for (final Priority priority : Priority.values()) {
+      collector.record("query.scheduler.queued", waiting[priority.ordinal()],
+          "priority=" + priority.name().toLowerCase());
+    }
+    collector.record("query.scheduler.admitted", admitted.get());
+    collector.record("query.scheduler.delayed", delayed.get());
+    collector.record("query.scheduler.rejected", rejected.get());
+    collector.record("query.scheduler.wait_time",
+        DateTime.msFromNano(wait_time.get()));
+  }
+
+  @Override
+  public String toString() {
+    return new StringBuilder("QueryScheduler(maxConcurrent=")
+      .append(max_concurrent)
+      .append(", maxQueued=")
+      .append(max_queued)
+      .append(", interactiveWeight=")
+      .append(interactive_weight)
+      .append(", sourceWeights=")
+      .append(source_weights)
+      .append(")")
+      .toString();
+  }
+
+  /**
+   * Parses the source weights from a comma separated list of
+   * {@code source:weight} pairs. The last colon separates the weight so that
+   * IPv6 addresses may be used as sources.
+   * @param weights The string to parse, may be null or empty
+   * @return A map of sources to weights
+   * @throws IllegalArgumentException if a pair was malformed
+   */
+  static Map<String, Integer> parseWeights(final String weights) {
+    final Map<String, Integer> map = new HashMap<String, Integer>();
+    if (weights == null || weights.trim().isEmpty()) {
+      return map;
+    }
+    for (final String pair : weights.split(",")) {
+      final int idx = pair.lastIndexOf(':');
+      if (idx < 1 || idx == pair.length() - 1) {
+        throw new IllegalArgumentException("Invalid source weight: " + pair);
+      }
+      final int weight;
+      try {
+        weight = Integer.parseInt(pair.substring(idx + 1).trim());
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Invalid source weight: " + pair, e);
+      }
+      if (weight < 1) {
+        throw new IllegalArgumentException(
+            "Source weight must be greater than zero: " + pair);
+      }
+      map.put(pair.substring(0, idx).trim(), weight);
+    }
+    return map;
+  }
+
+  /**
+   * Picks the next waiter to admit. Must be called while holding the lock.
+   * @return The next waiter or null if none are waiting
+   */
+  private Waiter next() {
+    final ClassQueue interactive = queues[Priority.INTERACTIVE.ordinal()];
+    final ClassQueue batch = queues[Priority.BATCH.ordinal()];
+    if (interactive.size > 0 &&
+        (batch.size == 0 || interactive_run < interactive_weight)) {
+      ++interactive_run;
+      return interactive.poll();
+    }
+    interactive_run = 0;
+    return batch.size > 0 ? batch.poll() : null;
+  }
+
+  /** A query waiting for a slot */
+  private static final class Waiter {
+    final Deferred<Long> deferred = new Deferred<Long>();
+    final long enqueued = DateTime.nanoTime();
+  }
+
+  /** The waiting queries of one source */
+  private static final class SourceQueue {
+    final String source;
+    final int weight;
+    final ArrayDeque<Waiter> waiters = new ArrayDeque<Waiter>();
+    /** Queries admitted in the current turn */
+    int served;
+
+    SourceQueue(final String source, final int weight) {
+      this.source = source;
+      this.weight = weight;
+    }
+  }
+
+  /**
+   * The waiting queries of one priority class with a queue per source served
+   * in weighted round robin order. Guarded by the scheduler's lock.
+   */
+  private final class ClassQueue {
+    /** Sources with waiting queries, the head is the one being served */
+    final ArrayDeque<SourceQueue> active = new ArrayDeque<SourceQueue>();
+    final Map<String, SourceQueue> sources = new HashMap<String, SourceQueue>();
+    int size;
+
+    void add(final String source, final Waiter waiter) {
+      SourceQueue queue = sources.get(source);
+      if (queue == null) {
+        final Integer weight = source_weights.get(source);
+        queue = new SourceQueue(source, weight == null ? 1 : weight);
+        sources.put(source, queue);
+        active.add(queue);
+      }
+      queue.waiters.add(waiter);
+      ++size;
+    }
+
+    Waiter poll() {
+      final SourceQueue queue = active.peek();
+      if (queue == null) {
+        return null;
+      }
+      final Waiter waiter = queue.waiters.poll();
+      --size;
+      if (queue.waiters.isEmpty()) {
+        active.poll();
+        sources.remove(queue.source);
+      } else if (++queue.served >= queue.weight) {
+        queue.served = 0;
+        active.add(active.poll());
+      }
+      return waiter;
+    }
+  }
+}
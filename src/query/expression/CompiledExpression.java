@@ -0,0 +1,686 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.query.expression;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.jexl2.MapContext;
+
+/**
+ * An arithmetic expression compiled into a small stack program over doubles
+ * so it can be evaluated for every series at every timestamp without boxing
+ * values into a JEXL context or walking the JEXL syntax tree.
+ * <p>
+ * Supports the operators most expressions use: {@code + - * / %}, unary
+ * minus, the comparisons, {@code && || !}, the ternary operator, parentheses
+ * and the JEXL word forms of these ({@code eq, lt, and, div, mod} etc).
+ * Results are the same as JEXL's, including its handling of NaNs in
+ * comparisons and its lenient division by zero which yields 0. Parts of the
+ * expression without variables are evaluated once by JEXL itself so literal
+ * typing, e.g. integer division, is preserved.
+ * <p>
+ * Anything else, like functions, strings, assignments or bitwise operators,
+ * is left to JEXL: {@link #compile} returns null and the caller should keep
+ * using the interpreted script.
+ * <p>
+ * Instances are not thread safe as the stack is shared between calls.
+ * @since 2.4
+ */
+final class CompiledExpression {
+
+  // op codes
+  private static final int VAR = 0;
+  private static final int CONST = 1;
+  private static final int ADD = 2;
+  private static final int SUB = 3;
+  private static final int MUL = 4;
+  private static final int DIV = 5;
+  private static final int MOD = 6;
+  private static final int NEG = 7;
+  private static final int LT = 8;
+  private static final int GT = 9;
+  private static final int LE = 10;
+  private static final int GE = 11;
+  private static final int EQ = 12;
+  private static final int NE = 13;
+  private static final int AND = 14;
+  private static final int OR = 15;
+  private static final int NOT = 16;
+  private static final int JUMP_IF_FALSE = 17;
+  private static final int JUMP = 18;
+
+  /** The kind of value a node leaves on the stack, mirroring JEXL's types */
+  private enum Kind {
+    /** A java.lang.Double */
+    DOUBLE,
+    /** Some other number, e.g. an Integer literal picked by a ternary */
+    NUMBER,
+    /** A Boolean, stored as 1 or 0 */
+    BOOLEAN
+  }
+
+  /** The expression as given */
+  private final String expression;
+
+  /** Op codes followed by their operand where they take one */
+  private final int[] program;
+
+  /** Constants referenced by the program */
+  private final double[] constants;
+
+  /** Evaluation stack */
+  private final double[] stack;
+
+  /**
+   * Private ctor, use {@link #compile}.
+   */
+  private CompiledExpression(final String expression, final int[] program,
+      final double[] constants, final int stack_size) {
+    this.expression = expression;
+    this.program = program;
+    this.constants = constants;
+    stack = new double[stack_size];
+  }
+
+  /**
+   * Compiles the expression.
+   * @param expression The JEXL expression
+   * @param variables The variables used in the expression. Values are passed
+   * to {@link #evaluate} in the same order.
+   * @return The compiled expression or null if the expression uses syntax
+   * that is only supported by JEXL.
+   */
+  static CompiledExpression compile(final String expression,
+      final List<String> variables) {
+    try {
+      final Compiler compiler = new Compiler(expression, variables);
+      final Node root = compiler.parse();
+      if (root.kind == Kind.NUMBER) {
+        // JEXL would return a non-double here and the caller would throw.
+        // Leave it to JEXL to keep the behavior.
+        return null;
+      }
+      compiler.emit(root);
+      return new CompiledExpression(expression,
+          Arrays.copyOf(compiler.program, compiler.program_size),
+          Arrays.copyOf(compiler.constants, compiler.constants_size),
+          compiler.max_depth);
+    } catch (UnsupportedOperationException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Evaluates the expression.
+   * @param values The values of the variables in the order given to
+   * {@link #compile}
+   * @return The result, where a boolean result is 1 or 0
+   */
+  double evaluate(final double[] values) {
+    final int[] program = this.program;
+    final double[] stack = this.stack;
+    int sp = -1;
+    int pc = 0;
+    while (pc < program.length) {
+      switch (program[pc++]) {
+        case VAR:
+          stack[++sp] = values[program[pc++]];
+          break;
+        case CONST:
+          stack[++sp] = constants[program[pc++]];
+          break;
+        case ADD:
+          stack[sp - 1] = stack[sp - 1] + stack[sp];
+          sp--;
+          break;
+        case SUB:
+          stack[sp - 1] = stack[sp - 1] - stack[sp];
+          sp--;
+          break;
+        case MUL:
+          stack[sp - 1] = stack[sp - 1] * stack[sp];
+          sp--;
+          break;
+        case DIV:
+          // JEXL throws on a zero divisor and returns 0 when lenient
+          stack[sp - 1] = stack[sp] == 0 ? 0 : stack[sp - 1] / stack[sp];
+          sp--;
+          break;
+        case MOD:
+          stack[sp - 1] = stack[sp] == 0 ? 0 : stack[sp - 1] % stack[sp];
+          sp--;
+          break;
+        case NEG:
+          stack[sp] = -stack[sp];
+          break;
+        case LT:
+          stack[sp - 1] = compare(stack[sp - 1], stack[sp]) < 0 ? 1 : 0;
+          sp--;
+          break;
+        case GT:
+          stack[sp - 1] = compare(stack[sp - 1], stack[sp]) > 0 ? 1 : 0;
+          sp--;
+          break;
+        case LE:
+          stack[sp - 1] = compare(stack[sp - 1], stack[sp]) <= 0 ? 1 : 0;
+          sp--;
+          break;
+        case GE:
+          stack[sp - 1] = compare(stack[sp - 1], stack[sp]) >= 0 ? 1 : 0;
+          sp--;
+          break;
+        case EQ:
+          stack[sp - 1] = compare(stack[sp - 1], stack[sp]) == 0 ? 1 : 0;
+          sp--;
+          break;
+        case NE:
+          stack[sp - 1] = compare(stack[sp - 1], stack[sp]) != 0 ? 1 : 0;
+          sp--;
+          break;
+        case AND:
+          stack[sp - 1] = isTrue(stack[sp - 1]) && isTrue(stack[sp]) ? 1 : 0;
+          sp--;
+          break;
+        case OR:
+          stack[sp - 1] = isTrue(stack[sp - 1]) || isTrue(stack[sp]) ? 1 : 0;
+          sp--;
+          break;
+        case NOT:
+          stack[sp] = isTrue(stack[sp]) ? 0 : 1;
+          break;
+        case JUMP_IF_FALSE:
+          if (isTrue(stack[sp--])) {
+            pc++;
+          } else {
+            pc = program[pc];
+          }
+          break;
+        case JUMP:
+          pc = program[pc];
+          break;
+        default:
+          throw new IllegalStateException("Unknown op code " + program[pc - 1]
+              + " in " + this);
+      }
+    }
+    return stack[0];
+  }
+
+  @Override
+  public String toString() {
+    return new StringBuilder("CompiledExpression(expression=\"")
+      .append(expression)
+      .append("\", program=")
+      .append(Arrays.toString(program))
+      .append(", constants=")
+      .append(Arrays.toString(constants))
+      .append(")")
+      .toString();
+  }
+
+  /** JEXL's comparison of floating point values, where NaN is the lowest */
+  private static int compare(final double left, final double right) {
+    if (Double.isNaN(left)) {
+      return Double.isNaN(right) ? 0 : -1;
+    }
+    if (Double.isNaN(right)) {
+      return 1;
+    }
+    if (left < right) {
+      return -1;
+    }
+    return left > right ? 1 : 0;
+  }
+
+  /** JEXL's coercion of a number to a boolean */
+  private static boolean isTrue(final double value) {
+    return !Double.isNaN(value) && value != 0;
+  }
+
+  /** A node of the parsed expression */
+  private static final class Node {
+    final int op;
+    final Kind kind;
+    final Node left;
+    final Node right;
+    /** The condition of a ternary */
+    final Node condition;
+    /** The variable or constant index */
+    final int index;
+
+    Node(final int op, final Kind kind, final Node condition, final Node left,
+        final Node right, final int index) {
+      this.op = op;
+      this.kind = kind;
+      this.condition = condition;
+      this.left = left;
+      this.right = right;
+      this.index = index;
+    }
+  }
+
+  /**
+   * A recursive descent parser following the precedence of the JEXL grammar
+   * that emits the program. Throws UnsupportedOperationException for anything
+   * it doesn't handle.
+   */
+  private static final class Compiler {
+    private final String expression;
+    private final List<String> variables;
+    /** Position of the next character to read */
+    private int pos;
+
+    private int[] program = new int[16];
+    private int program_size;
+    private double[] constants = new double[4];
+    private int constants_size;
+    private int depth;
+    private int max_depth;
+
+    Compiler(final String expression, final List<String> variables) {
+      this.expression = expression;
+      this.variables = variables;
+    }
+
+    Node parse() {
+      final Node root = ternary();
+      skipWhitespace();
+      if (pos < expression.length()) {
+        throw new UnsupportedOperationException("Unexpected character at "
+            + pos);
+      }
+      if (root.op == CONST) {
+        throw new UnsupportedOperationException("No variables");
+      }
+      return root;
+    }
+
+    private Node ternary() {
+      final int start = skipWhitespace();
+      final Node condition = or();
+      if (!accept("?")) {
+        return condition;
+      }
+      if (peek(":")) {
+        // elvis operator
+        throw new UnsupportedOperationException("?:");
+      }
+      final Node left = ternary();
+      expect(":");
+      final Node right = ternary();
+      final Kind kind;
+      if (left.kind == Kind.BOOLEAN || right.kind == Kind.BOOLEAN) {
+        if (left.kind != right.kind) {
+          throw new UnsupportedOperationException("Mixed ternary types");
+        }
+        kind = Kind.BOOLEAN;
+      } else if (left.kind == Kind.DOUBLE && right.kind == Kind.DOUBLE) {
+        kind = Kind.DOUBLE;
+      } else {
+        kind = Kind.NUMBER;
+      }
+      return fold(new Node(JUMP_IF_FALSE, kind, condition, left, right, -1),
+          start);
+    }
+
+    private Node or() {
+      final int start = skipWhitespace();
+      Node node = and();
+      while (accept("||") || acceptWord("or")) {
+        node = fold(new Node(OR, Kind.BOOLEAN, null, node, and(), -1), start);
+      }
+      return node;
+    }
+
+    private Node and() {
+      final int start = skipWhitespace();
+      Node node = equality();
+      while (accept("&&") || acceptWord("and")) {
+        node = fold(new Node(AND, Kind.BOOLEAN, null, node, equality(), -1),
+            start);
+      }
+      return node;
+    }
+
+    private Node equality() {
+      final int start = skipWhitespace();
+      Node node = relational();
+      while (true) {
+        final int op;
+        if (accept("==") || acceptWord("eq")) {
+          op = EQ;
+        } else if (accept("!=") || acceptWord("ne")) {
+          op = NE;
+        } else {
+          return node;
+        }
+        node = fold(comparison(op, node, relational()), start);
+      }
+    }
+
+    private Node relational() {
+      final int start = skipWhitespace();
+      Node node = additive();
+      while (true) {
+        final int op;
+        if (accept("<=") || acceptWord("le")) {
+          op = LE;
+        } else if (accept(">=") || acceptWord("ge")) {
+          op = GE;
+        } else if (accept("<") || acceptWord("lt")) {
+          op = LT;
+        } else if (accept(">") || acceptWord("gt")) {
+          op = GT;
+        } else {
+          return node;
+        }
+        node = fold(comparison(op, node, additive()), start);
+      }
+    }
+
+    private Node additive() {
+      final int start = skipWhitespace();
+      Node node = multiplicative();
+      while (true) {
+        final int op;
+        if (accept("+")) {
+          op = ADD;
+        } else if (accept("-")) {
+          op = SUB;
+        } else {
+          return node;
+        }
+        node = fold(arithmetic(op, node, multiplicative()), start);
+      }
+    }
+
+    private Node multiplicative() {
+      final int start = skipWhitespace();
+      Node node = unary();
+      while (true) {
+        final int op;
+        if (accept("*")) {
+          op = MUL;
+        } else if (accept("/") || acceptWord("div")) {
+          op = DIV;
+        } else if (accept("%") || acceptWord("mod")) {
+          op = MOD;
+        } else {
+          return node;
+        }
+        node = fold(arithmetic(op, node, unary()), start);
+      }
+    }
+
+    private Node unary() {
+      final int start = skipWhitespace();
+      if (accept("-")) {
+        final Node operand = unary();
+        if (operand.kind == Kind.BOOLEAN) {
+          throw new UnsupportedOperationException("Negated boolean");
+        }
+        return fold(new Node(NEG, operand.kind, null, operand, null, -1),
+            start);
+      }
+      if (peek("!=")) {
+        throw new UnsupportedOperationException("Unexpected !=");
+      }
+      if (accept("!") || acceptWord("not")) {
+        return fold(new Node(NOT, Kind.BOOLEAN, null, unary(), null, -1),
+            start);
+      }
+      return primary();
+    }
+
+    private Node primary() {
+      final int start = skipWhitespace();
+      if (pos >= expression.length()) {
+        throw new UnsupportedOperationException("Unexpected end");
+      }
+      final char c = expression.charAt(pos);
+      if (c == '(') {
+        pos++;
+        final Node node = ternary();
+        expect(")");
+        return node;
+      }
+      if (Character.isDigit(c)) {
+        while (pos < expression.length() &&
+            (Character.isDigit(expression.charAt(pos)) ||
+                expression.charAt(pos) == '.')) {
+          pos++;
+        }
+        // type suffixes like 1L or 1.5d
+        if (pos < expression.length() &&
+            "lLfFdDhHbB".indexOf(expression.charAt(pos)) >= 0) {
+          pos++;
+        }
+        if (pos < expression.length() &&
+            Character.isJavaIdentifierPart(expression.charAt(pos))) {
+          throw new UnsupportedOperationException("Unsupported literal");
+        }
+        return constant(start, pos);
+      }
+      if (Character.isJavaIdentifierStart(c)) {
+        while (pos < expression.length() &&
+            Character.isJavaIdentifierPart(expression.charAt(pos))) {
+          pos++;
+        }
+        final String name = expression.substring(start, pos);
+        final int index = variables.indexOf(name);
+        if (index < 0) {
+          // reserved words, functions, etc
+          throw new UnsupportedOperationException("Unknown identifier "
+              + name);
+        }
+        final int next = skipWhitespace();
+        if (next < expression.length() &&
+            ".([=".indexOf(expression.charAt(next)) >= 0 &&
+            !expression.startsWith("==", next)) {
+          throw new UnsupportedOperationException("Unsupported access");
+        }
+        return new Node(VAR, Kind.DOUBLE, null, null, null, index);
+      }
+      throw new UnsupportedOperationException("Unexpected character " + c);
+    }
+
+    /** Arithmetic on doubles, needs at least one side to be a double */
+    private Node arithmetic(final int op, final Node left, final Node right) {
+      if (left.kind == Kind.BOOLEAN || right.kind == Kind.BOOLEAN) {
+        throw new UnsupportedOperationException("Arithmetic on booleans");
+      }
+      if (left.kind != Kind.DOUBLE && right.kind != Kind.DOUBLE) {
+        // both integers or a mix of other types, let JEXL figure it out
+        if (left.op != CONST || right.op != CONST) {
+          throw new UnsupportedOperationException("Non double arithmetic");
+        }
+      }
+      return new Node(op, Kind.DOUBLE, null, left, right, -1);
+    }
+
+    /** Comparison of doubles, needs at least one side to be a double */
+    private Node comparison(final int op, final Node left, final Node right) {
+      if (left.kind == Kind.BOOLEAN || right.kind == Kind.BOOLEAN) {
+        throw new UnsupportedOperationException("Comparison of booleans");
+      }
+      if (left.kind != Kind.DOUBLE && right.kind != Kind.DOUBLE &&
+          (left.op != CONST || right.op != CONST)) {
+        throw new UnsupportedOperationException("Non double comparison");
+      }
+      return new Node(op, Kind.BOOLEAN, null, left, right, -1);
+    }
+
+    /**
+     * Replaces a node without variables by its value as computed by JEXL so
+     * that literal types and integer arithmetic behave the same.
+     */
+    private Node fold(final Node node, final int start) {
+      if (!isConstant(node)) {
+        return node;
+      }
+      return constant(start, pos);
+    }
+
+    private boolean isConstant(final Node node) {
+      if (node == null) {
+        return true;
+      }
+      if (node.op == VAR) {
+        return false;
+      }
+      if (node.op == CONST) {
+        return true;
+      }
+      return isConstant(node.condition) && isConstant(node.left) &&
+          isConstant(node.right);
+    }
+
+    /** Evaluates the source between the offsets with JEXL */
+    private Node constant(final int start, final int end) {
+      final Object value;
+      try {
+        value = ExpressionIterator.JEXL_ENGINE.createScript(
+            expression.substring(start, end)).execute(new MapContext());
+      } catch (RuntimeException e) {
+        throw new UnsupportedOperationException("Failed to evaluate constant");
+      }
+      final double constant;
+      final Kind kind;
+      if (value instanceof Double) {
+        constant = (Double) value;
+        kind = Kind.DOUBLE;
+      } else if (value instanceof Number) {
+        // same as JexlArithmetic.toDouble()
+        constant = Double.parseDouble(String.valueOf(value));
+        kind = Kind.NUMBER;
+      } else if (value instanceof Boolean) {
+        constant = ((Boolean) value) ? 1 : 0;
+        kind = Kind.BOOLEAN;
+      } else {
+        throw new UnsupportedOperationException("Unsupported constant "
+            + value);
+      }
+      if (constants_size == constants.length) {
+        constants = Arrays.copyOf(constants, constants_size * 2);
+      }
+      constants[constants_size] = constant;
+      return new Node(CONST, kind, null, null, null, constants_size++);
+    }
+
+    /** Appends the program for the node */
+    void emit(final Node node) {
+      switch (node.op) {
+        case VAR:
+        case CONST:
+          push(node.op);
+          push(node.index);
+          depth++;
+          max_depth = Math.max(max_depth, depth);
+          break;
+        case NEG:
+        case NOT:
+          emit(node.left);
+          push(node.op);
+          break;
+        case JUMP_IF_FALSE:
+          emit(node.condition);
+          push(JUMP_IF_FALSE);
+          final int else_target = program_size;
+          push(-1);
+          depth--;
+          emit(node.left);
+          push(JUMP);
+          final int end_target = program_size;
+          push(-1);
+          depth--;
+          program[else_target] = program_size;
+          emit(node.right);
+          program[end_target] = program_size;
+          break;
+        default:
+          emit(node.left);
+          emit(node.right);
+          push(node.op);
+          depth--;
+      }
+    }
+
+    private void push(final int value) {
+      if (program_size == program.length) {
+        program = Arrays.copyOf(program, program_size * 2);
+      }
+      program[program_size++] = value;
+    }
+
+    /** @return The position of the next non-whitespace character */
+    private int skipWhitespace() {
+      while (pos < expression.length() &&
+          Character.isWhitespace(expression.charAt(pos))) {
+        pos++;
+      }
+      return pos;
+    }
+
+    private boolean peek(final String token) {
+      skipWhitespace();
+      return expression.startsWith(token, pos);
+    }
+
+    /** Consumes the operator if it's next and not part of a longer one */
+    private boolean accept(final String token) {
+      skipWhitespace();
+      if (!expression.startsWith(token, pos)) {
+        return false;
+      }
+      final int end = pos + token.length();
+      if (end < expression.length()) {
+        final String two = expression.substring(pos, end + 1);
+        // make sure we don't split operators we don't support, e.g. =~ or &=
+        if (token.length() == 1 && (two.equals("<=") || two.equals(">=") ||
+            two.equals("!=") || two.equals("!~") || two.equals("&&") ||
+            two.equals("||"))) {
+          return false;
+        }
+        if (".=~".indexOf(expression.charAt(end)) >= 0 &&
+            !(token.equals("!") || token.equals("-"))) {
+          throw new UnsupportedOperationException("Unsupported operator "
+              + two);
+        }
+      }
+      pos = end;
+      return true;
+    }
+
+    /** Consumes a word operator like "eq" if it's next */
+    private boolean acceptWord(final String word) {
+      skipWhitespace();
+      if (!expression.startsWith(word, pos)) {
+        return false;
+      }
+      final int end = pos + word.length();
+      if (end < expression.length() &&
+          Character.isJavaIdentifierPart(expression.charAt(end))) {
+        return false;
+      }
+      pos = end;
+      return true;
+    }
+
+    private void expect(final String token) {
+      if (!accept(token)) {
+        throw new UnsupportedOperationException("Expected " + token);
+      }
+    }
+  }
+}
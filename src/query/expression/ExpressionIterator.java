@@ -12,6 +12,7 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.query.expression;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -88,6 +89,22 @@ public class ExpressionIterator implements ITimeSyncedIterator {
   /** A list of unique variable names pulled from the expression */
   private final Set<String> names;
   
+  /** The expression compiled to a stack program, null if we have to use 
+   * JEXL */
+  private CompiledExpression compiled;
+  
+  /** The variable names in the order the compiled expression expects them */
+  private String[] variables;
+  
+  /** The iteration results for each of the {@link #variables} */
+  private ExpressionDataPoint[][] variable_results;
+  
+  /** The source iterators for each of the {@link #variables} */
+  private ITimeSyncedIterator[] variable_iterators;
+  
+  /** Values of the {@link #variables} passed to the compiled expression */
+  private double[] variable_values;
+  
   /** The intersection iterator we'll use for processing */
   // TODO - write an interface to allow other set operators, e.g. union, disjoint
   private VariableIterator iterator;
@@ -270,6 +287,21 @@ public class ExpressionIterator implements ITimeSyncedIterator {
     }
     iteration_results = iterator.getResults();
     
+    final List<String> ordered = new ArrayList<String>(names);
+    compiled = CompiledExpression.compile(expression.getText(), ordered);
+    variables = ordered.toArray(new String[ordered.size()]);
+    variable_results = new ExpressionDataPoint[variables.length][];
+    variable_iterators = new ITimeSyncedIterator[variables.length];
+    for (int i = 0; i < variables.length; i++) {
+      variable_results[i] = iteration_results.get(variables[i]);
+      variable_iterators[i] = results.get(variables[i]);
+    }
+    variable_values = new double[variables.length];
+    if (LOG.isDebugEnabled()) {
+      LOG.debug(compiled == null ? "Unable to compile the expression, "
+          + "falling back to JEXL" : "Compiled expression to " + compiled);
+    }
+    
     dps = new ExpressionDataPoint[iterator.getSeriesSize()];
     for (int i = 0; i < iterator.getSeriesSize(); i++) {
       final Iterator<Entry<String, ExpressionDataPoint[]>> it = 
@@ -319,37 +351,58 @@ public class ExpressionIterator implements ITimeSyncedIterator {
     // final long timestamp = iterator.nextTimestamp();
     iterator.next();
     
-    // set aside a couple of addresses for the variables
-    double val;
-    double result;
     for (int i = 0; i < iterator.getSeriesSize(); i++) {
-      // this here is why life sucks. there MUST be a better way to bind variables
-      for (final String variable : names) {
-        if (iteration_results.get(variable)[i] == null) {
-          context.set(variable, results.get(variable).getFillPolicy().getValue());
-        } else {
-          val = iteration_results.get(variable)[i].toDouble();
-          if (Double.isNaN(val)) {
-            context.set(variable, results.get(variable).getFillPolicy().getValue());
-          } else {
-            context.set(variable, val);
-          }
+      if (compiled != null) {
+        for (int v = 0; v < variables.length; v++) {
+          variable_values[v] = variableValue(v, i);
         }
+        dps[i].reset(timestamp, compiled.evaluate(variable_values));
+        continue;
       }
-      final Object output = expression.execute(context);
-      if (output instanceof Double) {
-        result = (Double) output;
-      } else if (output instanceof Boolean) {
-        result = (((Boolean) output) ? 1 : 0);
-      } else {
-        throw new IllegalStateException("Expression returned a result of type: " 
-            + output.getClass().getName() + " for " + this);
+      // this here is why life sucks. there MUST be a better way to bind variables
+      for (int v = 0; v < variables.length; v++) {
+        context.set(variables[v], variableValue(v, i));
       }
-      dps[i].reset(timestamp, result);
+      dps[i].reset(timestamp, execute());
     }
     return dps;
   }
   
+  /**
+   * Fetches the value of a variable for a series, substituting the fill value
+   * if the value is missing or NaN.
+   * @param variable The index of the variable in {@link #variables}
+   * @param series The index of the series
+   * @return The value to pass to the expression
+   */
+  private double variableValue(final int variable, final int series) {
+    final ExpressionDataPoint dp = variable_results[variable][series];
+    if (dp != null) {
+      final double val = dp.toDouble();
+      if (!Double.isNaN(val)) {
+        return val;
+      }
+    }
+    return variable_iterators[variable].getFillPolicy().getValue();
+  }
+  
+  /**
+   * Runs the JEXL script against the context.
+   * @return The result of the expression
+   * @throws IllegalStateException if the expression didn't return a double
+   * or boolean
+   */
+  private double execute() {
+    final Object output = expression.execute(context);
+    if (output instanceof Double) {
+      return (Double) output;
+    } else if (output instanceof Boolean) {
+      return (((Boolean) output) ? 1 : 0);
+    }
+    throw new IllegalStateException("Expression returned a result of type: " 
+        + output.getClass().getName() + " for " + this);
+  }
+  
   /** @return a list of expression results. You can keep this list and check the 
    * results on each call to {@link #next()} */
   @Override
@@ -445,36 +498,22 @@ public class ExpressionIterator implements ITimeSyncedIterator {
   public void next(final int i) {
     iterator.next(i);
     
-    // set aside a couple of addresses for the variables
-    double val;
-    double result;
-    // this here is why life sucks. there MUST be a better way to bind variables
     long ts = Long.MAX_VALUE;
-    for (final String variable : names) {
-      if (iteration_results.get(variable)[i] == null) {
-        context.set(variable, results.get(variable).getFillPolicy().getValue());
-      } else {
-        if (iteration_results.get(variable)[i].timestamp() < ts) {
-          ts = iteration_results.get(variable)[i].timestamp();
-        }
-        val = iteration_results.get(variable)[i].toDouble();
-        if (Double.isNaN(val)) {
-          context.set(variable, results.get(variable).getFillPolicy().getValue());
-        } else {
-          context.set(variable, val);
-        }
+    for (int v = 0; v < variables.length; v++) {
+      final ExpressionDataPoint dp = variable_results[v][i];
+      if (dp != null && dp.timestamp() < ts) {
+        ts = dp.timestamp();
       }
+      variable_values[v] = variableValue(v, i);
     }
-    final Object output = expression.execute(context);
-    if (output instanceof Double) {
-      result = (Double) output;
-    } else if (output instanceof Boolean) {
-      result = (((Boolean) output) ? 1 : 0);
-    } else {
-      throw new IllegalStateException("Expression returned a result of type: " 
-          + output.getClass().getName() + " for " + this);
+    if (compiled != null) {
+      dps[i].reset(ts, compiled.evaluate(variable_values));
+      return;
+    }
+    for (int v = 0; v < variables.length; v++) {
+      context.set(variables[v], variable_values[v]);
     }
-    dps[i].reset(ts, result);
+    dps[i].reset(ts, execute());
   }
   
 }
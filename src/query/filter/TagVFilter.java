@@ -31,6 +31,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import net.opentsdb.core.TSDB;
+import net.opentsdb.uid.UidDictionary;
 import net.opentsdb.uid.UniqueId.UniqueIdType;
 import net.opentsdb.utils.Config;
 import net.opentsdb.utils.Pair;
@@ -128,6 +129,9 @@ public abstract class TagVFilter implements Comparable<TagVFilter> {
   /** A flag to indicate whether or not we need to execute a post-scan lookup */
   protected boolean post_scan = true;
   
+  /** Whether or not the tag value UIDs were expanded from the dictionary */
+  protected boolean expanded;
+  
   /**
    * Default Ctor needed for the service loader. Implementations must override
    * and set the filterName().
@@ -411,6 +415,47 @@ public abstract class TagVFilter implements Comparable<TagVFilter> {
         .addCallback(new ResolvedCB());
   }
   
+  /**
+   * Expands the filter into the UIDs of the tag values it matches using the
+   * tag value dictionary so that the scanner can match them in the row key
+   * instead of resolving and matching every row. Does nothing if the 
+   * dictionary is disabled or not loaded yet, or if more values than 
+   * "tsd.query.filter.expansion_limit" match, in which case the filter is
+   * executed after the scan as usual. 
+   * <p>
+   * Note that the dictionary is only refreshed periodically so values written
+   * through other TSDs since the last refresh may be missing. The filter
+   * therefore stays a post scan filter and it's up to the query to only
+   * match the expanded UIDs in the row key when the dictionary is known to
+   * hold every value it could match.
+   * @param tsdb The TSDB to use
+   * @param prefix A prefix shared by all of the values that can match, may 
+   * be empty
+   * @param matcher The matcher to test the values with
+   * @since 2.4
+   */
+  protected void expandTagValues(final TSDB tsdb, final String prefix, 
+      final UidDictionary.Matcher matcher) {
+    // reset in case the filter is resolved again
+    tagv_uids = null;
+    expanded = false;
+    post_scan = true;
+    
+    final UidDictionary dictionary = 
+        tsdb.getUidDictionary(UniqueIdType.TAGV);
+    if (dictionary == null || !dictionary.isLoaded()) {
+      return;
+    }
+    final List<byte[]> uids = dictionary.find(prefix, matcher, 
+        tsdb.getConfig().getInt("tsd.query.filter.expansion_limit"));
+    if (uids == null || uids.isEmpty()) {
+      return;
+    }
+    Collections.sort(uids, Bytes.MEMCMP);
+    tagv_uids = uids;
+    expanded = true;
+  }
+  
   /**
    * Resolves both the tagk to it's UID and a list of literal tag values to
    * their UIDs. A filter may match a literal set (e.g. the pipe filter) in which
@@ -504,6 +549,14 @@ public abstract class TagVFilter implements Comparable<TagVFilter> {
     return tagv_uids == null ? Collections.<byte[]>emptyList() : tagv_uids;
   }
   
+  /** @return Whether or not the tag value UIDs were expanded from the 
+   * dictionary rather than resolved from literals.
+   * @since 2.4 */
+  @JsonIgnore
+  public boolean isExpanded() {
+    return expanded;
+  }
+  
   /** @return A copy of this filter BEFORE tag resolution, as a new object. */
   @JsonIgnore
   public TagVFilter getCopy() {
@@ -541,6 +594,17 @@ public abstract class TagVFilter implements Comparable<TagVFilter> {
     return post_scan;
   }
   
+  /**
+   * Whether or not {@link #match} only depends on the value of the tag key, or
+   * its absence, so that the decision may be cached per tag value UID and 
+   * shared across queries. Filters that look at other tags must return false.
+   * @return True if the match results may be cached
+   * @since 2.4
+   */
+  public boolean cacheable() {
+    return false;
+  }
+  
   /** @param post_scan Whether or not this filter should be executed against 
    * scan results */
   public void setPostScan(final boolean post_scan) {
@@ -0,0 +1,160 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.query.filter;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.hbase.async.Bytes.ByteMap;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * A bounded cache of {@link TagVFilter} decisions shared by all queries so
+ * that scanners can skip resolving the tag value UIDs of a row to strings
+ * when every filter has already seen the values.
+ * <p>
+ * Decisions are keyed on the filter's type, tag key and raw filter string
+ * along with the UID of the tag value found in the row, or the absence of
+ * the tag. Only filters that return true for {@link TagVFilter#cacheable()}
+ * are cached. Since a decision is tied to the UID, renaming a tag value only
+ * affects cached decisions once they are evicted.
+ * @since 2.4
+ */
+public final class TagVFilterCache {
+  /** Used in keys for rows without the filter's tag key */
+  private static final byte[] ABSENT = new byte[0];
+
+  /** The decisions */
+  private final Cache<Key, Boolean> cache;
+
+  /**
+   * Default ctor.
+   * @param max_entries The maximum number of decisions to keep
+   * @throws IllegalArgumentException if max_entries is less than 1
+   */
+  public TagVFilterCache(final long max_entries) {
+    if (max_entries < 1) {
+      throw new IllegalArgumentException("Max entries must be greater than 0");
+    }
+    cache = CacheBuilder.newBuilder()
+        .maximumSize(max_entries)
+        .recordStats()
+        .build();
+  }
+
+  /**
+   * Looks up the decisions of all the filters for a row.
+   * @param filters The filters to evaluate
+   * @param tag_uids The tag key to value UIDs of the row
+   * @return {@link Boolean#TRUE} if every filter matched,
+   * {@link Boolean#FALSE} if a filter did not match or null if a decision is
+   * unknown and the tags have to be resolved.
+   */
+  public Boolean match(final List<TagVFilter> filters,
+                       final ByteMap<byte[]> tag_uids) {
+    for (final TagVFilter filter : filters) {
+      if (!filter.cacheable() || filter.getTagkBytes() == null) {
+        return null;
+      }
+      final Boolean matched = cache.getIfPresent(new Key(filter, tag_uids));
+      if (matched == null) {
+        return null;
+      }
+      if (!matched) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Stores the decisions of the filters for a row.
+   * @param filters The filters that were evaluated
+   * @param tag_uids The tag key to value UIDs of the row
+   * @param matches The decision of each filter, in the same order
+   */
+  public void put(final List<TagVFilter> filters,
+                  final ByteMap<byte[]> tag_uids,
+                  final List<Boolean> matches) {
+    for (int i = 0; i < filters.size() && i < matches.size(); i++) {
+      final TagVFilter filter = filters.get(i);
+      if (filter.cacheable() && filter.getTagkBytes() != null &&
+          matches.get(i) != null) {
+        cache.put(new Key(filter, tag_uids), matches.get(i));
+      }
+    }
+  }
+
+  /** @return The number of cached decisions */
+  public long size() {
+    return cache.size();
+  }
+
+  /**
+   * Collects the cache stats.
+   * @param collector The collector to use
+   */
+  public void collectStats(final StatsCollector collector) {
+    final CacheStats stats = cache.stats();
+    collector.record("query.filter_cache.size", cache.size());
+    collector.record("query.filter_cache.hits", stats.hitCount());
+    collector.record("query.filter_cache.misses", stats.missCount());
+    collector.record("query.filter_cache.evictions", stats.evictionCount());
+  }
+
+  /** The identity of a filter and a tag value UID */
+  private static final class Key {
+    private final String type;
+    private final String tagk;
+    private final String filter;
+    private final byte[] tagv;
+    private final int hash;
+
+    Key(final TagVFilter filter, final ByteMap<byte[]> tag_uids) {
+      type = filter.getType();
+      tagk = filter.getTagk();
+      this.filter = filter.getFilter();
+      final byte[] uid = tag_uids.get(filter.getTagkBytes());
+      tagv = uid == null ? ABSENT : uid;
+      hash = Arrays.hashCode(new Object[] { type, tagk, this.filter }) * 31 +
+          Arrays.hashCode(tagv);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      final Key other = (Key) obj;
+      return hash == other.hash &&
+          Arrays.equals(tagv, other.tagv) &&
+          type.equals(other.type) &&
+          tagk.equals(other.tagk) &&
+          (filter == null ? other.filter == null :
+            filter.equals(other.filter));
+    }
+  }
+}
@@ -88,6 +88,11 @@ public class TagVLiteralOrFilter extends TagVFilter {
         literals.contains(case_insensitive ? tagv.toLowerCase() : tagv));
   }
 
+  @Override
+  public boolean cacheable() {
+    return true;
+  }
+
   @Override
   public String debugInfo() {
     return "{literals=" + literals + ", case=" + case_insensitive + "}";
@@ -82,6 +82,11 @@ public class TagVNotLiteralOrFilter extends TagVFilter {
         !(literals.contains(case_insensitive ? tagv.toLowerCase() : tagv)));
   }
   
+  @Override
+  public boolean cacheable() {
+    return true;
+  }
+
   @Override
   public String debugInfo() {
     return "{literals=" + literals + ", case=" + case_insensitive + "}";
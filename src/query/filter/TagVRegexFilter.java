@@ -15,6 +15,9 @@ package net.opentsdb.query.filter;
 import java.util.Map;
 import java.util.regex.Pattern;
 
+import net.opentsdb.core.TSDB;
+import net.opentsdb.uid.UidDictionary;
+
 import com.google.common.base.Objects;
 import com.stumbleupon.async.Deferred;
 
@@ -54,6 +57,30 @@ public class TagVRegexFilter extends TagVFilter {
     return Deferred.fromResult(pattern.matcher(tagv).find());
   }
 
+  /**
+   * Resolves the tag key and, if the tag value dictionary is enabled, expands
+   * the pattern into the UIDs of the matching values.
+   * @param tsdb The TSDB to use for the lookup
+   * @return A deferred resolving to the tag key UID
+   * @since 2.4
+   */
+  @Override
+  public Deferred<byte[]> resolveTagkName(final TSDB tsdb) {
+    expandTagValues(tsdb, literalPrefix(pattern.pattern()), 
+        new UidDictionary.Matcher() {
+      @Override
+      public boolean matches(final String name) {
+        return pattern.matcher(name).find();
+      }
+    });
+    return super.resolveTagkName(tsdb);
+  }
+
+  @Override
+  public boolean cacheable() {
+    return true;
+  }
+
   @Override
   public String debugInfo() {
     return "{pattern=" + pattern.toString() + "}";
@@ -91,6 +118,35 @@ public class TagVRegexFilter extends TagVFilter {
     return FILTER_NAME;
   }
   
+  /**
+   * Extracts the literal characters a pattern anchored with a caret requires
+   * at the start of every match so that the dictionary only has to walk the 
+   * values sharing them. 
+   * @param regex The pattern to parse
+   * @return The literal prefix, an empty string if there isn't one
+   * @since 2.4
+   */
+  static String literalPrefix(final String regex) {
+    if (!regex.startsWith("^") || regex.indexOf('|') >= 0) {
+      return "";
+    }
+    final StringBuilder buf = new StringBuilder();
+    for (int i = 1; i < regex.length(); i++) {
+      final char c = regex.charAt(i);
+      if (Character.isLetterOrDigit(c) || c == '-' || c == '_' || c == '/' || 
+          c == ':' || c == '=' || c == ',') {
+        buf.append(c);
+        continue;
+      }
+      // a quantifier makes the previous character optional
+      if ((c == '?' || c == '*' || c == '{') && buf.length() > 0) {
+        buf.setLength(buf.length() - 1);
+      }
+      break;
+    }
+    return buf.toString();
+  }
+  
   /** @return a string describing the filter */
   public static String description() {
     return "Provides full, POSIX compliant regular expression using the "
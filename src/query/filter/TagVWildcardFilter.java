@@ -15,7 +15,9 @@ package net.opentsdb.query.filter;
 import java.util.Arrays;
 import java.util.Map;
 
+import net.opentsdb.core.TSDB;
 import net.opentsdb.core.Tags;
+import net.opentsdb.uid.UidDictionary;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.google.common.base.Objects;
@@ -112,30 +114,72 @@ public class TagVWildcardFilter extends TagVFilter {
 
   @Override
   public Deferred<Boolean> match(final Map<String, String> tags) {
-    String tagv = tags.get(tagk);
+    final String tagv = tags.get(tagk);
     if (tagv == null) {
       return Deferred.fromResult(false);
-    } else if (components.length == 1 && components[0].equals("*")) {
-      // match all
-      return Deferred.fromResult(true);
-    } else if (case_insensitive) {
-      tagv = tags.get(tagk).toLowerCase();
     }
+    return Deferred.fromResult(matches(tagv));
+  }
+  
+  /**
+   * Resolves the tag key and, if the tag value dictionary is enabled, expands
+   * the wildcard into the UIDs of the matching values. Match-all filters are
+   * never expanded.
+   * @param tsdb The TSDB to use for the lookup
+   * @return A deferred resolving to the tag key UID
+   * @since 2.4
+   */
+  @Override
+  public Deferred<byte[]> resolveTagkName(final TSDB tsdb) {
+    if (!matchesAll()) {
+      // case insensitive values may start with any case of the prefix
+      final String prefix = has_prefix && !has_postfix && !case_insensitive ? 
+          components[0] : "";
+      expandTagValues(tsdb, prefix, new UidDictionary.Matcher() {
+        @Override
+        public boolean matches(final String name) {
+          return TagVWildcardFilter.this.matches(name);
+        }
+      });
+    }
+    return super.resolveTagkName(tsdb);
+  }
+  
+  /** @return Whether or not the filter is a lone asterisk */
+  private boolean matchesAll() {
+    return components.length == 1 && components[0].equals("*");
+  }
+  
+  /**
+   * Matches a tag value against the components.
+   * @param value The tag value to match
+   * @return True if the value matched
+   */
+  private boolean matches(final String value) {
+    if (matchesAll()) {
+      return true;
+    }
+    final String tagv = case_insensitive ? value.toLowerCase() : value;
     if (has_postfix && !has_prefix && 
         !tagv.endsWith(components[components.length-1])) {
-      return Deferred.fromResult(false);
+      return false;
     }
     if (has_prefix && !has_postfix && !tagv.startsWith(components[0])) {
-      return Deferred.fromResult(false);
+      return false;
     }
     int idx = 0;
     for (int i = 0; i < components.length; i++) {
       if (tagv.indexOf(components[i], idx) < 0) {
-        return Deferred.fromResult(false);
+        return false;
       }
       idx += components[i].length();
     }
-    return Deferred.fromResult(true);
+    return true;
+  }
+
+  @Override
+  public boolean cacheable() {
+    return true;
   }
 
   @Override
@@ -0,0 +1,180 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.rollup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import net.opentsdb.core.Aggregator;
+import net.opentsdb.core.Aggregators;
+import net.opentsdb.core.Const;
+import net.opentsdb.core.DownsamplingSpecification;
+import net.opentsdb.utils.Config;
+
+/**
+ * The set of rollup intervals configured for this TSD. Intervals are parsed
+ * from {@code tsd.rollups.intervals}, a comma separated list of
+ * {@code <interval>:<table>:<row span>} entries, e.g.
+ * {@code 1m:tsdb-rollup-1m:1d,1h:tsdb-rollup-1h:1d}.
+ * <p>
+ * Each interval stores the sum, count, min and max of the raw values written
+ * during that interval. At query time {@link #getRollupQuery} picks the
+ * coarsest interval that can answer a downsampling specification exactly.
+ * @since 2.4
+ */
+public final class RollupConfig {
+
+  /** The intervals sorted from finest to coarsest */
+  private final List<RollupInterval> intervals;
+
+  /** How long after an interval ends before it's written, in seconds */
+  private final int flush_delay;
+
+  /**
+   * Parses the rollup intervals from the given config.
+   * @param config The config to load from
+   * @throws IllegalArgumentException if the intervals could not be parsed or
+   * rollups were enabled without any intervals.
+   */
+  public RollupConfig(final Config config) {
+    this(config.getString("tsd.rollups.intervals"),
+        config.getInt("tsd.rollups.flush_delay") +
+        config.getInt("tsd.rollups.flush_interval"));
+  }
+
+  /**
+   * Parses the rollup intervals from a config string.
+   * @param intervals A comma separated list of interval definitions
+   * @param flush_delay How many seconds may pass after an interval ends
+   * before its rollup is guaranteed to be in storage
+   * @throws IllegalArgumentException if the string was null, empty or
+   * could not be parsed.
+   */
+  public RollupConfig(final String intervals, final int flush_delay) {
+    if (flush_delay < 0) {
+      throw new IllegalArgumentException("Flush delay cannot be negative");
+    }
+    this.flush_delay = flush_delay;
+    if (intervals == null || intervals.trim().isEmpty()) {
+      throw new IllegalArgumentException(
+          "Rollups are enabled but no intervals were configured");
+    }
+    final List<RollupInterval> parsed = new ArrayList<RollupInterval>();
+    for (final String entry : intervals.split(",")) {
+      final String[] parts = entry.trim().split(":");
+      if (parts.length != 3) {
+        throw new IllegalArgumentException("Invalid rollup interval [" + entry
+            + "]. Must be in the format <interval>:<table>:<row span>");
+      }
+      final RollupInterval interval = new RollupInterval(parts[0].trim(),
+          parts[1].trim(), parts[2].trim());
+      for (final RollupInterval existing : parsed) {
+        if (existing.getInterval() == interval.getInterval()) {
+          throw new IllegalArgumentException("Duplicate rollup interval ["
+              + interval.getStringInterval() + "]");
+        }
+      }
+      parsed.add(interval);
+    }
+    Collections.sort(parsed, new Comparator<RollupInterval>() {
+      @Override
+      public int compare(final RollupInterval a, final RollupInterval b) {
+        return a.getInterval() - b.getInterval();
+      }
+    });
+    this.intervals = Collections.unmodifiableList(parsed);
+  }
+
+  /**
+   * Picks the coarsest rollup interval that can satisfy the downsampling
+   * specification. A rollup can be used when the downsample interval is an
+   * even multiple of the rollup interval and the downsampling function can
+   * be computed from the stored aggregates. Averages are only served when the
+   * intervals match exactly since sum/count can't be re-combined downstream.
+   * <p>
+   * Intervals that may not have been flushed yet are never read. If the query
+   * reaches past the flushed range, the returned query has a raw start time
+   * (see {@link RollupQuery#getRawStartTime}) aligned on the hour and on the
+   * downsample interval from which the raw data must be read instead. Counts
+   * are not split as the raw and rolled up counts would be summed differently.
+   * @param downsampler The downsampler of the query, may be null
+   * @param start_time The start of the query as a Unix epoch timestamp in
+   * seconds.
+   * @param end_time The end of the query as a Unix epoch timestamp in
+   * seconds or -1 if the query is open ended.
+   * @return A rollup query to execute or null if the raw data must be used.
+   */
+  public RollupQuery getRollupQuery(final DownsamplingSpecification downsampler,
+      final long start_time, final long end_time) {
+    if (downsampler == null || downsampler.getFunction() == null ||
+        downsampler.getInterval() == DownsamplingSpecification.NO_INTERVAL ||
+        downsampler.useCalendar()) {
+      return null;
+    }
+    final Aggregator function = downsampler.getFunction();
+    final byte agg_id = RollupUtils.getAggregatorId(function);
+    if (agg_id == 0 && function != Aggregators.AVG) {
+      return null;
+    }
+    // the raw range must start on a downsample interval and on a row
+    final long ds_interval = downsampler.getInterval() / 1000;
+    final long split_unit = ds_interval % Const.MAX_TIMESPAN == 0 ?
+        ds_interval : Const.MAX_TIMESPAN % ds_interval == 0 ?
+            Const.MAX_TIMESPAN : 0;
+    final long now = System.currentTimeMillis() / 1000;
+    for (int i = intervals.size() - 1; i >= 0; i--) {
+      final RollupInterval interval = intervals.get(i);
+      if (downsampler.getInterval() % interval.getIntervalMs() != 0) {
+        continue;
+      }
+      if (function == Aggregators.AVG &&
+          downsampler.getInterval() != interval.getIntervalMs()) {
+        continue;
+      }
+      final byte id = function == Aggregators.AVG ? RollupUtils.AGG_AVG :
+        agg_id;
+      // every interval ending at or before this time has been written
+      final long flushed = ((now - flush_delay) / interval.getInterval())
+          * interval.getInterval();
+      if (end_time >= 0 && end_time < flushed) {
+        return new RollupQuery(interval, id);
+      }
+      if (split_unit == 0 || id == RollupUtils.AGG_COUNT) {
+        continue;
+      }
+      final long raw_start = (flushed / split_unit) * split_unit;
+      if (raw_start <= start_time) {
+        continue;
+      }
+      return new RollupQuery(interval, id, raw_start);
+    }
+    return null;
+  }
+
+  /** @return How long after an interval ends before it's in storage */
+  public int getFlushDelay() {
+    return flush_delay;
+  }
+
+  /** @return An unmodifiable list of intervals from finest to coarsest */
+  public List<RollupInterval> getIntervals() {
+    return intervals;
+  }
+
+  @Override
+  public String toString() {
+    return "RollupConfig(intervals=" + intervals + ")";
+  }
+}
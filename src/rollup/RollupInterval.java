@@ -0,0 +1,185 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.rollup;
+
+import java.nio.charset.Charset;
+
+import com.google.common.base.Objects;
+
+import net.opentsdb.core.Const;
+import net.opentsdb.utils.DateTime;
+
+/**
+ * Describes a single rollup resolution, e.g. "1m" or "1h", along with the
+ * table the rolled up values are written to and the amount of time each row
+ * in that table covers.
+ * <p>
+ * Row keys in a rollup table share the layout of the raw data table, i.e.
+ * salt, metric, base time and tags, so that the same filters and salting work
+ * for both. The base time is aligned on the row span of the interval instead
+ * of {@link Const#MAX_TIMESPAN}.
+ * @since 2.4
+ */
+public final class RollupInterval {
+  /** Charset used to convert the table name to bytes */
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  /** The maximum number of intervals we can encode in a rollup qualifier */
+  public static final int MAX_INTERVALS_PER_ROW =
+      (1 << (16 - Const.FLAG_BITS)) - 1;
+
+  /** The user supplied interval string, e.g. "1m" */
+  private final String string_interval;
+
+  /** The interval in seconds */
+  private final int interval;
+
+  /** The name of the table to store rollups in */
+  private final String table_name;
+
+  /** The table name as a byte array for HBase calls */
+  private final byte[] table;
+
+  /** How many seconds each row covers */
+  private final int row_span;
+
+  /**
+   * Default ctor
+   * @param interval The interval of each rolled up value, e.g. "1m"
+   * @param table The table to write the rolled up values to
+   * @param row_span How much time each row should cover, e.g. "1d"
+   * @throws IllegalArgumentException if any of the params were null, empty or
+   * could not be parsed or if the interval doesn't divide the row span evenly.
+   */
+  public RollupInterval(final String interval, final String table,
+      final String row_span) {
+    if (interval == null || interval.isEmpty()) {
+      throw new IllegalArgumentException("Interval cannot be null or empty");
+    }
+    if (table == null || table.isEmpty()) {
+      throw new IllegalArgumentException("Table cannot be null or empty");
+    }
+    if (row_span == null || row_span.isEmpty()) {
+      throw new IllegalArgumentException("Row span cannot be null or empty");
+    }
+
+    final long interval_ms = DateTime.parseDuration(interval);
+    if (interval_ms % 1000 != 0) {
+      throw new IllegalArgumentException("Rollup interval [" + interval
+          + "] must be a whole number of seconds");
+    }
+    final long span_ms = DateTime.parseDuration(row_span);
+    if (span_ms % interval_ms != 0) {
+      throw new IllegalArgumentException("Row span [" + row_span
+          + "] must be an even multiple of the interval [" + interval + "]");
+    }
+    if (span_ms / interval_ms > MAX_INTERVALS_PER_ROW) {
+      throw new IllegalArgumentException("Row span [" + row_span
+          + "] would hold more than " + MAX_INTERVALS_PER_ROW
+          + " intervals of [" + interval + "]");
+    }
+    if (span_ms / 1000 > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Row span [" + row_span
+          + "] is too large");
+    }
+
+    string_interval = interval;
+    this.interval = (int) (interval_ms / 1000);
+    table_name = table;
+    this.table = table.getBytes(CHARSET);
+    this.row_span = (int) (span_ms / 1000);
+  }
+
+  /**
+   * Aligns the given Unix epoch timestamp in seconds on the start of the row
+   * it would be stored in.
+   * @param timestamp A timestamp in seconds
+   * @return The base time of the row
+   */
+  public long getRowBaseTime(final long timestamp) {
+    return timestamp - (timestamp % row_span);
+  }
+
+  /**
+   * Aligns the given Unix epoch timestamp in seconds on the start of the
+   * interval it falls in.
+   * @param timestamp A timestamp in seconds
+   * @return The start of the interval
+   */
+  public long getIntervalStart(final long timestamp) {
+    return timestamp - (timestamp % interval);
+  }
+
+  /**
+   * Computes the index of the interval within its row.
+   * @param timestamp A timestamp in seconds
+   * @return The offset of the interval in the row
+   */
+  public int getOffset(final long timestamp) {
+    return (int) ((timestamp % row_span) / interval);
+  }
+
+  /** @return the original interval string */
+  public String getStringInterval() {
+    return string_interval;
+  }
+
+  /** @return the interval in seconds */
+  public int getInterval() {
+    return interval;
+  }
+
+  /** @return the interval in milliseconds */
+  public long getIntervalMs() {
+    return interval * 1000L;
+  }
+
+  /** @return the name of the table */
+  public String getTableName() {
+    return table_name;
+  }
+
+  /** @return the table name as a byte array */
+  public byte[] getTable() {
+    return table;
+  }
+
+  /** @return the number of seconds each row covers */
+  public int getRowSpan() {
+    return row_span;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hashCode(interval, table_name, row_span);
+  }
+
+  @Override
+  public boolean equals(final Object obj) {
+    if (obj == this) {
+      return true;
+    }
+    if (!(obj instanceof RollupInterval)) {
+      return false;
+    }
+    final RollupInterval other = (RollupInterval) obj;
+    return interval == other.interval && row_span == other.row_span &&
+        table_name.equals(other.table_name);
+  }
+
+  @Override
+  public String toString() {
+    return "RollupInterval(interval=" + string_interval + ", table="
+        + table_name + ", rowSpan=" + row_span + "s)";
+  }
+}
@@ -0,0 +1,230 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.rollup;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+
+import net.opentsdb.core.Const;
+import net.opentsdb.core.TSDB;
+
+/**
+ * The rollup interval and aggregate selected to serve a query. Converts rows
+ * read from the rollup table into compacted data table rows, one per
+ * {@link Const#MAX_TIMESPAN}, so that the regular span, downsampling and
+ * aggregation code can consume them unchanged.
+ * @since 2.4
+ */
+public final class RollupQuery {
+
+  /** The interval to read from */
+  private final RollupInterval interval;
+
+  /** The aggregate to read, may be {@link RollupUtils#AGG_AVG} */
+  private final byte agg_id;
+
+  /** Unix epoch time in seconds from which raw data is read, -1 for none */
+  private final long raw_start;
+
+  /**
+   * Default ctor
+   * @param interval The rollup interval to read from
+   * @param agg_id The aggregate to read
+   */
+  public RollupQuery(final RollupInterval interval, final byte agg_id) {
+    this(interval, agg_id, -1);
+  }
+
+  /**
+   * Ctor for a query that reads the raw data past a given time.
+   * @param interval The rollup interval to read from
+   * @param agg_id The aggregate to read
+   * @param raw_start A Unix epoch timestamp in seconds from which the raw data
+   * is read instead of the rollups, -1 to read only rollups.
+   */
+  public RollupQuery(final RollupInterval interval, final byte agg_id,
+      final long raw_start) {
+    if (interval == null) {
+      throw new IllegalArgumentException("Interval cannot be null");
+    }
+    if (agg_id < RollupUtils.AGG_SUM || agg_id > RollupUtils.AGG_AVG) {
+      throw new IllegalArgumentException("Invalid aggregate ID: " + agg_id);
+    }
+    this.interval = interval;
+    this.agg_id = agg_id;
+    this.raw_start = raw_start;
+  }
+
+  /**
+   * Converts the cells of a rollup row into compacted data table rows. Cells
+   * for other aggregates and cells at or after the raw start time are
+   * ignored. TSDs write integer and floating point aggregates to different
+   * cells so both are combined when present.
+   * @param row The cells of a single rollup row
+   * @return A list of compacted rows in ascending time order, possibly empty.
+   */
+  public ArrayList<KeyValue> convertRow(final List<KeyValue> row) {
+    if (row == null || row.isEmpty()) {
+      return new ArrayList<KeyValue>(0);
+    }
+    final byte[] key = row.get(0).key();
+    final byte[] family = row.get(0).family();
+    final int ts_offset = Const.SALT_WIDTH() + TSDB.metrics_width();
+    final long base_time = Bytes.getUnsignedInt(key, ts_offset);
+
+    // offset -> value, a Long for integers and a Double for floats
+    final TreeMap<Integer, Number> values = new TreeMap<Integer, Number>();
+    final TreeMap<Integer, Number> counts = agg_id == RollupUtils.AGG_AVG ?
+        new TreeMap<Integer, Number>() : null;
+    for (final KeyValue kv : row) {
+      final byte[] qualifier = kv.qualifier();
+      if (qualifier.length != RollupUtils.QUALIFIER_WIDTH) {
+        continue;
+      }
+      final int offset = RollupUtils.getOffsetFromQualifier(qualifier);
+      if (raw_start >= 0 &&
+          base_time + (long) offset * interval.getInterval() >= raw_start) {
+        continue;
+      }
+      if (agg_id == RollupUtils.AGG_AVG) {
+        if (qualifier[0] == RollupUtils.AGG_SUM) {
+          combine(values, RollupUtils.AGG_SUM, offset,
+              RollupUtils.getDoubleValue(qualifier, kv.value()));
+        } else if (qualifier[0] == RollupUtils.AGG_COUNT) {
+          combine(counts, RollupUtils.AGG_COUNT, offset,
+              RollupUtils.getDoubleValue(qualifier, kv.value()));
+        }
+      } else if (qualifier[0] == agg_id) {
+        if (RollupUtils.isFloat(qualifier)) {
+          combine(values, agg_id, offset,
+              RollupUtils.getDoubleValue(qualifier, kv.value()));
+        } else {
+          combine(values, agg_id, offset, Bytes.getLong(kv.value()));
+        }
+      }
+    }
+
+    final ArrayList<KeyValue> rows = new ArrayList<KeyValue>();
+    long hour = -1;
+    final ByteArrayOutputStream qualifiers = new ByteArrayOutputStream();
+    final ByteArrayOutputStream vals = new ByteArrayOutputStream();
+    for (final Map.Entry<Integer, Number> entry : values.entrySet()) {
+      Number value = entry.getValue();
+      if (counts != null) {
+        final Number count = counts.get(entry.getKey());
+        if (count == null || count.doubleValue() == 0) {
+          continue;
+        }
+        value = value.doubleValue() / count.doubleValue();
+      }
+      final long timestamp = base_time +
+          ((long) entry.getKey() * interval.getInterval());
+      final long row_hour = timestamp - (timestamp % Const.MAX_TIMESPAN);
+      if (row_hour != hour) {
+        if (hour >= 0) {
+          rows.add(buildRow(key, family, ts_offset, hour, qualifiers, vals));
+        }
+        hour = row_hour;
+      }
+      final boolean is_float = value instanceof Double;
+      final short delta = (short) (((timestamp - row_hour) << Const.FLAG_BITS)
+          | (is_float ? RollupUtils.DOUBLE_FLAGS : RollupUtils.LONG_FLAGS));
+      final byte[] qual = new byte[2];
+      Bytes.setShort(qual, delta);
+      qualifiers.write(qual, 0, 2);
+      final byte[] v = Bytes.fromLong(is_float ?
+          Double.doubleToRawLongBits(value.doubleValue()) : value.longValue());
+      vals.write(v, 0, v.length);
+    }
+    if (hour >= 0 && qualifiers.size() > 0) {
+      rows.add(buildRow(key, family, ts_offset, hour, qualifiers, vals));
+    }
+    return rows;
+  }
+
+  /**
+   * Stores a value for an offset, merging it with the value already there.
+   * @param values The values keyed on offset
+   * @param agg The aggregate the values belong to
+   * @param offset The offset of the value
+   * @param value The value to store
+   */
+  private static void combine(final TreeMap<Integer, Number> values,
+      final byte agg, final int offset, final Number value) {
+    final Number existing = values.get(offset);
+    if (existing == null) {
+      values.put(offset, value);
+    } else if (existing instanceof Long && value instanceof Long) {
+      final long a = existing.longValue();
+      final long b = value.longValue();
+      values.put(offset, agg == RollupUtils.AGG_MIN ? Math.min(a, b) :
+        agg == RollupUtils.AGG_MAX ? Math.max(a, b) : a + b);
+    } else {
+      final double a = existing.doubleValue();
+      final double b = value.doubleValue();
+      values.put(offset, agg == RollupUtils.AGG_MIN ? Math.min(a, b) :
+        agg == RollupUtils.AGG_MAX ? Math.max(a, b) : a + b);
+    }
+  }
+
+  /**
+   * Builds a compacted row and resets the buffers.
+   * @param key The original rollup row key
+   * @param family The column family
+   * @param ts_offset The offset of the timestamp in the key
+   * @param hour The base time of the new row
+   * @param qualifiers The qualifiers of the row
+   * @param values The values of the row
+   * @return A compacted KeyValue
+   */
+  private static KeyValue buildRow(final byte[] key, final byte[] family,
+      final int ts_offset, final long hour,
+      final ByteArrayOutputStream qualifiers,
+      final ByteArrayOutputStream values) {
+    final byte[] new_key = key.clone();
+    Bytes.setInt(new_key, (int) hour, ts_offset);
+    final KeyValue kv = new KeyValue(new_key, family,
+        qualifiers.toByteArray(), values.toByteArray());
+    qualifiers.reset();
+    values.reset();
+    return kv;
+  }
+
+  /** @return the rollup interval to read from */
+  public RollupInterval getRollupInterval() {
+    return interval;
+  }
+
+  /** @return the aggregate to read */
+  public byte getAggregatorId() {
+    return agg_id;
+  }
+
+  /** @return The Unix epoch time in seconds from which raw data must be read
+   * instead, -1 if the rollups cover the whole query */
+  public long getRawStartTime() {
+    return raw_start;
+  }
+
+  @Override
+  public String toString() {
+    return "RollupQuery(interval=" + interval + ", agg=" + agg_id
+        + ", raw_start=" + raw_start + ")";
+  }
+}
@@ -0,0 +1,503 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.rollup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hbase.async.AtomicIncrementRequest;
+import org.hbase.async.Bytes;
+import org.hbase.async.GetRequest;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.KeyValue;
+import org.hbase.async.PutRequest;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.core.Const;
+import net.opentsdb.core.Internal;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Accumulates the sum, count, min and max of incoming data points for every
+ * configured rollup interval and periodically writes finished intervals to
+ * the rollup tables.
+ * <p>
+ * Buckets are keyed on the end time of the interval so that a flush can walk
+ * the map in order and stop at the first bucket that is still open. A bucket
+ * is flushed once its end time is older than {@code tsd.rollups.flush_delay}
+ * seconds. Data points arriving for an interval that was already flushed are
+ * counted as late and dropped. Historical backfills should be rolled up
+ * offline.
+ * <p>
+ * Several TSDs may write the same interval of a series, e.g. behind a load
+ * balancer or after a restart flushed a partial bucket, so buckets are merged
+ * into the stored aggregates instead of overwriting them: counts and integer
+ * sums are atomic increments while floating point sums, minimums and maximums
+ * are read and written back with a compare-and-set, retried if another TSD
+ * updated the cell in between. Integer and floating point aggregates are
+ * stored in different cells and combined by {@link RollupQuery}.
+ * @since 2.4
+ */
+public final class RollupQueue {
+  private static final Logger LOG = LoggerFactory.getLogger(RollupQueue.class);
+
+  /** Column family for rollup cells */
+  private static final byte[] FAMILY = TSDB.FAMILY();
+
+  /** How many times to retry a compare-and-set before giving up on a cell */
+  private static final int MAX_CAS_ATTEMPTS = 16;
+
+  /** The TSDB we belong to */
+  private final TSDB tsdb;
+
+  /** The intervals to compute */
+  private final List<RollupInterval> intervals;
+
+  /** Open buckets keyed on [end time][interval index][rollup row key] */
+  private final ConcurrentSkipListMap<byte[], Bucket> buckets =
+      new ConcurrentSkipListMap<byte[], Bucket>(Bytes.MEMCMP);
+
+  /** How often to flush, in seconds */
+  private final int flush_interval;
+
+  /** How long to wait after an interval ends before flushing it, in seconds */
+  private final int flush_delay;
+
+  /** Buckets with an end time at or before this value have been written */
+  private final AtomicLong flushed_through = new AtomicLong();
+
+  /** Number of buckets in the map, as size() is O(n) */
+  private final AtomicInteger size = new AtomicInteger();
+
+  private final AtomicLong datapoints = new AtomicLong();
+  private final AtomicLong late_datapoints = new AtomicLong();
+  private final AtomicLong written = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+  private final AtomicLong cas_retries = new AtomicLong();
+
+  /**
+   * Default ctor. Schedules the periodic flush on the TSDB timer.
+   * @param tsdb The TSDB we belong to
+   * @param config The rollup config to compute
+   */
+  public RollupQueue(final TSDB tsdb, final RollupConfig config) {
+    this.tsdb = tsdb;
+    intervals = config.getIntervals();
+    if (intervals.size() > Byte.MAX_VALUE) {
+      throw new IllegalArgumentException("Too many rollup intervals");
+    }
+    flush_interval = tsdb.getConfig().getInt("tsd.rollups.flush_interval");
+    flush_delay = tsdb.getConfig().getInt("tsd.rollups.flush_delay");
+    if (flush_interval < 1) {
+      throw new IllegalArgumentException(
+          "tsd.rollups.flush_interval must be greater than zero");
+    }
+    if (flush_delay < 0) {
+      throw new IllegalArgumentException(
+          "tsd.rollups.flush_delay cannot be negative");
+    }
+    tsdb.getTimer().newTimeout(new FlushTask(), flush_interval,
+        TimeUnit.SECONDS);
+  }
+
+  /**
+   * Adds a data point to the open bucket of every interval.
+   * @param row The salted data table row key the value was written to
+   * @param timestamp The timestamp of the value in seconds or milliseconds
+   * @param value The encoded value
+   * @param flags The value flags
+   */
+  public void addPoint(final byte[] row, final long timestamp,
+      final byte[] value, final short flags) {
+    final long ts = (timestamp & Const.SECOND_MASK) != 0 ?
+        timestamp / 1000 : timestamp;
+    final boolean is_float = (flags & Const.FLAG_FLOAT) != 0;
+    final long lvalue = is_float ? 0 :
+      Internal.extractIntegerValue(value, 0, (byte) flags);
+    final double dvalue = is_float ?
+      Internal.extractFloatingPointValue(value, 0, (byte) flags) : lvalue;
+    datapoints.incrementAndGet();
+
+    final int ts_offset = Const.SALT_WIDTH() + TSDB.metrics_width();
+    for (int i = 0; i < intervals.size(); i++) {
+      final RollupInterval interval = intervals.get(i);
+      final long start = interval.getIntervalStart(ts);
+      final long end = start + interval.getInterval();
+      if (end <= flushed_through.get()) {
+        late_datapoints.incrementAndGet();
+        continue;
+      }
+
+      final byte[] key = new byte[5 + row.length];
+      Bytes.setInt(key, (int) end, 0);
+      key[4] = (byte) i;
+      System.arraycopy(row, 0, key, 5, row.length);
+      Bytes.setInt(key, (int) interval.getRowBaseTime(ts), 5 + ts_offset);
+
+      Bucket bucket = buckets.get(key);
+      if (bucket == null) {
+        bucket = new Bucket(interval.getOffset(ts));
+        final Bucket existing = buckets.putIfAbsent(key, bucket);
+        if (existing != null) {
+          bucket = existing;
+        } else {
+          size.incrementAndGet();
+          // a flush may have raced with us after the watermark check
+          if (end <= flushed_through.get() && buckets.remove(key, bucket)) {
+            size.decrementAndGet();
+            late_datapoints.incrementAndGet();
+            continue;
+          }
+        }
+      }
+      if (!bucket.add(is_float, lvalue, dvalue)) {
+        late_datapoints.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Writes every bucket that ended before the given time to storage.
+   * @param cut_off A Unix epoch timestamp in seconds
+   * @return A deferred resolving once all of the writes completed
+   */
+  public Deferred<ArrayList<Object>> flush(final long cut_off) {
+    long current = flushed_through.get();
+    while (cut_off > current) {
+      if (flushed_through.compareAndSet(current, cut_off)) {
+        break;
+      }
+      current = flushed_through.get();
+    }
+
+    final ArrayList<Deferred<Object>> deferreds =
+        new ArrayList<Deferred<Object>>();
+    for (final byte[] key : buckets.keySet()) {
+      if (Bytes.getUnsignedInt(key, 0) > cut_off) {
+        break;
+      }
+      final Bucket bucket = buckets.remove(key);
+      if (bucket == null) {
+        continue;
+      }
+      size.decrementAndGet();
+      final RollupInterval interval = intervals.get(key[4]);
+      final byte[] row = new byte[key.length - 5];
+      System.arraycopy(key, 5, row, 0, row.length);
+      if (!bucket.close()) {
+        continue;
+      }
+      deferreds.add(write(interval.getTable(), row, bucket));
+    }
+    return Deferred.group(deferreds);
+  }
+
+  /**
+   * Writes all open buckets regardless of their age. Used at shutdown.
+   * @return A deferred resolving once all of the writes completed
+   */
+  public Deferred<ArrayList<Object>> flush() {
+    if (size.get() > 0) {
+      LOG.info("Flushing " + size.get() + " outstanding rollup buckets");
+    }
+    return flush(Integer.MAX_VALUE);
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this instance.
+   * @param collector The collector to use.
+   */
+  public void collectStats(final StatsCollector collector) {
+    collector.record("rollup.queue.size", size.get());
+    collector.record("rollup.datapoints", datapoints, "type=all");
+    collector.record("rollup.datapoints", late_datapoints, "type=late");
+    collector.record("rollup.writes", written);
+    collector.record("rollup.errors", errors, "rpc=write");
+    collector.record("rollup.cas_retries", cas_retries);
+  }
+
+  /** @return the number of open buckets */
+  public int size() {
+    return size.get();
+  }
+
+  /**
+   * Merges a closed bucket into the rollup row.
+   * @param table The rollup table
+   * @param row The rollup row key
+   * @param bucket The closed, non-empty bucket
+   * @return A deferred resolving once every cell was written, never an error
+   */
+  private Deferred<Object> write(final byte[] table, final byte[] row,
+      final Bucket bucket) {
+    final short flags = bucket.is_float ? RollupUtils.DOUBLE_FLAGS :
+      RollupUtils.LONG_FLAGS;
+    final ArrayList<Deferred<Object>> writes = new ArrayList<Deferred<Object>>(4);
+    writes.add(increment(table, row, RollupUtils.buildQualifier(
+        RollupUtils.AGG_COUNT, bucket.offset, RollupUtils.LONG_FLAGS),
+        bucket.count));
+    if (bucket.is_float) {
+      writes.add(new CellMerge(table, row, RollupUtils.AGG_SUM,
+          bucket.offset, flags, bucket.dsum).execute());
+      writes.add(new CellMerge(table, row, RollupUtils.AGG_MIN,
+          bucket.offset, flags, bucket.dmin).execute());
+      writes.add(new CellMerge(table, row, RollupUtils.AGG_MAX,
+          bucket.offset, flags, bucket.dmax).execute());
+    } else {
+      writes.add(increment(table, row, RollupUtils.buildQualifier(
+          RollupUtils.AGG_SUM, bucket.offset, flags), bucket.lsum));
+      writes.add(new CellMerge(table, row, RollupUtils.AGG_MIN,
+          bucket.offset, flags, bucket.lmin).execute());
+      writes.add(new CellMerge(table, row, RollupUtils.AGG_MAX,
+          bucket.offset, flags, bucket.lmax).execute());
+    }
+    return Deferred.group(writes).addCallbacks(new WriteCB(),
+        new ErrorCB(table, row));
+  }
+
+  /**
+   * Adds an amount to a long cell.
+   * @return A deferred resolving to the new value of the cell
+   */
+  @SuppressWarnings("unchecked")
+  private Deferred<Object> increment(final byte[] table, final byte[] row,
+      final byte[] qualifier, final long amount) {
+    return (Deferred<Object>) (Deferred<?>) tsdb.getClient().atomicIncrement(
+        new AtomicIncrementRequest(table, row, FAMILY, qualifier, amount));
+  }
+
+  /**
+   * Reads a cell, merges the new aggregate into it and writes it back with a
+   * compare-and-set, starting over when the cell changed in between.
+   */
+  private final class CellMerge implements
+    Callback<Deferred<Object>, ArrayList<KeyValue>> {
+    private final byte[] table;
+    private final byte[] row;
+    private final byte agg;
+    private final byte[] qualifier;
+    private final boolean is_float;
+    private final long lvalue;
+    private final double dvalue;
+    private int attempts;
+
+    CellMerge(final byte[] table, final byte[] row, final byte agg,
+        final int offset, final short flags, final long lvalue) {
+      this(table, row, agg, offset, flags, lvalue, 0);
+    }
+
+    CellMerge(final byte[] table, final byte[] row, final byte agg,
+        final int offset, final short flags, final double dvalue) {
+      this(table, row, agg, offset, flags, 0, dvalue);
+    }
+
+    private CellMerge(final byte[] table, final byte[] row, final byte agg,
+        final int offset, final short flags, final long lvalue,
+        final double dvalue) {
+      this.table = table;
+      this.row = row;
+      this.agg = agg;
+      qualifier = RollupUtils.buildQualifier(agg, offset, flags);
+      is_float = flags == RollupUtils.DOUBLE_FLAGS;
+      this.lvalue = lvalue;
+      this.dvalue = dvalue;
+    }
+
+    /** @return A deferred resolving once the cell was written */
+    Deferred<Object> execute() {
+      return tsdb.getClient().get(
+          new GetRequest(table, row, FAMILY, qualifier))
+          .addCallbackDeferring(this);
+    }
+
+    @Override
+    public Deferred<Object> call(final ArrayList<KeyValue> cells)
+        throws Exception {
+      byte[] stored = null;
+      if (cells != null) {
+        for (final KeyValue kv : cells) {
+          if (Bytes.equals(qualifier, kv.qualifier())) {
+            stored = kv.value();
+          }
+        }
+      }
+      final byte[] value;
+      if (is_float) {
+        double merged = dvalue;
+        if (stored != null) {
+          final double existing = Double.longBitsToDouble(
+              Bytes.getLong(stored));
+          merged = agg == RollupUtils.AGG_MIN ? Math.min(existing, merged) :
+            agg == RollupUtils.AGG_MAX ? Math.max(existing, merged) :
+              existing + merged;
+        }
+        value = Bytes.fromLong(Double.doubleToRawLongBits(merged));
+      } else {
+        long merged = lvalue;
+        if (stored != null) {
+          final long existing = Bytes.getLong(stored);
+          merged = agg == RollupUtils.AGG_MIN ? Math.min(existing, merged) :
+            Math.max(existing, merged);
+        }
+        value = Bytes.fromLong(merged);
+      }
+      final PutRequest put = new PutRequest(table, row, FAMILY, qualifier,
+          value);
+      return tsdb.getClient().compareAndSet(put,
+          stored == null ? HBaseClient.EMPTY_ARRAY : stored)
+          .addCallbackDeferring(new CasCB());
+    }
+
+    /** Starts over if another writer got there first */
+    final class CasCB implements Callback<Deferred<Object>, Boolean> {
+      @Override
+      public Deferred<Object> call(final Boolean swapped) throws Exception {
+        if (swapped) {
+          return Deferred.fromResult(null);
+        }
+        if (++attempts >= MAX_CAS_ATTEMPTS) {
+          return Deferred.fromError(new IllegalStateException(
+              "Gave up merging rollup cell " + Bytes.pretty(qualifier)
+              + " after " + attempts + " attempts"));
+        }
+        cas_retries.incrementAndGet();
+        return execute();
+      }
+      @Override
+      public String toString() {
+        return "rollup compare-and-set callback";
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "rollup cell merge callback";
+    }
+  }
+
+  /** Counts successfully written buckets */
+  private final class WriteCB implements Callback<Object, ArrayList<Object>> {
+    @Override
+    public Object call(final ArrayList<Object> result) throws Exception {
+      written.incrementAndGet();
+      return result;
+    }
+    @Override
+    public String toString() {
+      return "rollup write callback";
+    }
+  }
+
+  /** Logs and swallows failed writes so that one bad bucket doesn't fail all */
+  private final class ErrorCB implements Callback<Object, Exception> {
+    private final byte[] table;
+    private final byte[] row;
+    ErrorCB(final byte[] table, final byte[] row) {
+      this.table = table;
+      this.row = row;
+    }
+    @Override
+    public Object call(final Exception e) throws Exception {
+      errors.incrementAndGet();
+      LOG.error("Failed to write rollup to table " + Bytes.pretty(table)
+          + " row " + Bytes.pretty(row), e);
+      return null;
+    }
+    @Override
+    public String toString() {
+      return "rollup write errback";
+    }
+  }
+
+  /** Periodically flushes old buckets and re-schedules itself */
+  private final class FlushTask implements TimerTask {
+    @Override
+    public void run(final Timeout timeout) throws Exception {
+      try {
+        flush(System.currentTimeMillis() / 1000 - flush_delay);
+      } catch (Exception e) {
+        LOG.error("Unexpected exception flushing rollups", e);
+      } finally {
+        if (!timeout.isCancelled()) {
+          tsdb.getTimer().newTimeout(this, flush_interval, TimeUnit.SECONDS);
+        }
+      }
+    }
+  }
+
+  /**
+   * The running aggregates of a single interval for a single series. Values
+   * stay integers until the first floating point value arrives.
+   */
+  static final class Bucket {
+    private final int offset;
+    private boolean is_float;
+    private boolean flushed;
+    private long count;
+    private long lsum;
+    private long lmin = Long.MAX_VALUE;
+    private long lmax = Long.MIN_VALUE;
+    private double dsum;
+    private double dmin = Double.POSITIVE_INFINITY;
+    private double dmax = Double.NEGATIVE_INFINITY;
+
+    /** @param offset The interval offset within the rollup row */
+    Bucket(final int offset) {
+      this.offset = offset;
+    }
+
+    /**
+     * Adds a value to the bucket.
+     * @return False if the bucket was already flushed.
+     */
+    synchronized boolean add(final boolean float_value, final long lvalue,
+        final double dvalue) {
+      if (flushed) {
+        return false;
+      }
+      count++;
+      dsum += dvalue;
+      dmin = Math.min(dmin, dvalue);
+      dmax = Math.max(dmax, dvalue);
+      if (float_value) {
+        is_float = true;
+      } else {
+        lsum += lvalue;
+        lmin = Math.min(lmin, lvalue);
+        lmax = Math.max(lmax, lvalue);
+      }
+      return true;
+    }
+
+    /**
+     * Marks the bucket as flushed so that its values can be read without
+     * locking.
+     * @return False if the bucket was empty
+     */
+    synchronized boolean close() {
+      flushed = true;
+      return count > 0;
+    }
+  }
+}
@@ -0,0 +1,134 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.rollup;
+
+import org.hbase.async.Bytes;
+
+import net.opentsdb.core.Aggregator;
+import net.opentsdb.core.Aggregators;
+import net.opentsdb.core.Const;
+
+/**
+ * Static helpers for encoding and decoding rollup cells.
+ * <p>
+ * A rollup cell qualifier is 3 bytes wide: the first byte is the ID of the
+ * aggregate stored in the cell ({@link #AGG_SUM}, {@link #AGG_COUNT},
+ * {@link #AGG_MIN} or {@link #AGG_MAX}) and the next two bytes hold the
+ * offset of the interval within the row shifted left by
+ * {@link Const#FLAG_BITS} along with the regular value flags. Values are
+ * always encoded on 8 bytes, either as a signed long or a double.
+ * <p>
+ * The aggregate ID is the first byte so that all cells of one aggregate are
+ * stored contiguously and sorted on time within a row.
+ * @since 2.4
+ */
+public final class RollupUtils {
+
+  /** Width of a rollup qualifier in bytes */
+  public static final int QUALIFIER_WIDTH = 3;
+
+  /** Aggregate ID for the sum of values in an interval */
+  public static final byte AGG_SUM = 1;
+
+  /** Aggregate ID for the number of values in an interval */
+  public static final byte AGG_COUNT = 2;
+
+  /** Aggregate ID for the smallest value in an interval */
+  public static final byte AGG_MIN = 3;
+
+  /** Aggregate ID for the largest value in an interval */
+  public static final byte AGG_MAX = 4;
+
+  /** Query only ID that computes sum / count per interval. Never stored. */
+  public static final byte AGG_AVG = 5;
+
+  /** Flags for an 8 byte integer value */
+  public static final short LONG_FLAGS = 0x7;
+
+  /** Flags for an 8 byte floating point value */
+  public static final short DOUBLE_FLAGS = Const.FLAG_FLOAT | 0x7;
+
+  private RollupUtils() {
+    // Can't create instances of this utility class.
+  }
+
+  /**
+   * Maps a downsampling function to the stored aggregate that can answer it.
+   * @param function The function to map
+   * @return The aggregate ID or 0 if the function cannot be served from a
+   * rollup.
+   */
+  public static byte getAggregatorId(final Aggregator function) {
+    if (function == Aggregators.SUM || function == Aggregators.ZIMSUM) {
+      return AGG_SUM;
+    } else if (function == Aggregators.COUNT) {
+      return AGG_COUNT;
+    } else if (function == Aggregators.MIN || function == Aggregators.MIMMIN) {
+      return AGG_MIN;
+    } else if (function == Aggregators.MAX || function == Aggregators.MIMMAX) {
+      return AGG_MAX;
+    }
+    return 0;
+  }
+
+  /**
+   * Builds a rollup qualifier.
+   * @param agg_id The ID of the aggregate stored in the cell
+   * @param offset The interval offset within the row
+   * @param flags The value flags
+   * @return A 3 byte qualifier
+   * @throws IllegalArgumentException if the offset won't fit in the qualifier
+   */
+  public static byte[] buildQualifier(final byte agg_id, final int offset,
+      final short flags) {
+    if (offset < 0 || offset > RollupInterval.MAX_INTERVALS_PER_ROW) {
+      throw new IllegalArgumentException("Offset out of range: " + offset);
+    }
+    final byte[] qualifier = new byte[QUALIFIER_WIDTH];
+    qualifier[0] = agg_id;
+    Bytes.setShort(qualifier,
+        (short) ((offset << Const.FLAG_BITS) | flags), 1);
+    return qualifier;
+  }
+
+  /**
+   * @param qualifier A rollup qualifier
+   * @return The interval offset encoded in the qualifier
+   */
+  public static int getOffsetFromQualifier(final byte[] qualifier) {
+    return Bytes.getUnsignedShort(qualifier, 1) >>> Const.FLAG_BITS;
+  }
+
+  /**
+   * @param qualifier A rollup qualifier
+   * @return Whether or not the value is a double
+   */
+  public static boolean isFloat(final byte[] qualifier) {
+    return (qualifier[2] & Const.FLAG_FLOAT) != 0;
+  }
+
+  /**
+   * Parses the value of a rollup cell as a double, regardless of the way it
+   * was encoded.
+   * @param qualifier The qualifier of the cell
+   * @param value The 8 byte value of the cell
+   * @return The value as a double
+   */
+  public static double getDoubleValue(final byte[] qualifier,
+      final byte[] value) {
+    if (isFloat(qualifier)) {
+      return Double.longBitsToDouble(Bytes.getLong(value));
+    }
+    return Bytes.getLong(value);
+  }
+}
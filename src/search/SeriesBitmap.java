@@ -0,0 +1,453 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.search;
+
+import java.util.Arrays;
+
+/**
+ * A compressed bitmap of non-negative series ordinals. Values are split on
+ * their upper 16 bits into containers. A container holding at most
+ * {@link #ARRAY_LIMIT} values is a sorted array of the lower 16 bits, a denser
+ * container is a plain 65536 bit bitmap. Sparse tag pairs thus cost two bytes
+ * per series while dense metrics cost at most one bit per ordinal.
+ * <p>
+ * The class is not thread safe. {@link #and} and {@link #or} always return
+ * new bitmaps and never modify their arguments.
+ * @since 2.4
+ */
+final class SeriesBitmap {
+  /** Containers with up to this many values are stored as sorted arrays */
+  static final int ARRAY_LIMIT = 4096;
+
+  /** The number of words in a bitmap container */
+  private static final int WORDS = 1 << 10;
+
+  /** The upper 16 bits of each container, sorted */
+  private char[] keys;
+
+  /** The containers, either char[] arrays or long[] bitmaps */
+  private Object[] containers;
+
+  /** The number of values in each container */
+  private int[] cardinalities;
+
+  /** The number of containers in use */
+  private int size;
+
+  /** Creates an empty bitmap */
+  SeriesBitmap() {
+    this(4);
+  }
+
+  /** @param capacity The initial number of containers */
+  private SeriesBitmap(final int capacity) {
+    keys = new char[capacity];
+    containers = new Object[capacity];
+    cardinalities = new int[capacity];
+  }
+
+  /**
+   * Adds the value to the bitmap
+   * @param value A non-negative value
+   * @return True if the value was not present before
+   * @throws IllegalArgumentException if the value is negative
+   */
+  boolean add(final int value) {
+    if (value < 0) {
+      throw new IllegalArgumentException("Value cannot be negative: " + value);
+    }
+    final char key = (char) (value >>> 16);
+    final char low = (char) value;
+    int index = Arrays.binarySearch(keys, 0, size, key);
+    if (index < 0) {
+      index = -index - 1;
+      insertContainer(index, key, new char[4], 0);
+    }
+
+    final int cardinality = cardinalities[index];
+    if (containers[index] instanceof long[]) {
+      final long[] bits = (long[]) containers[index];
+      final long mask = 1L << low;
+      if ((bits[low >>> 6] & mask) != 0) {
+        return false;
+      }
+      bits[low >>> 6] |= mask;
+      cardinalities[index]++;
+      return true;
+    }
+
+    char[] array = (char[]) containers[index];
+    final int position = Arrays.binarySearch(array, 0, cardinality, low);
+    if (position >= 0) {
+      return false;
+    }
+    if (cardinality >= ARRAY_LIMIT) {
+      final long[] bits = toBits(array, cardinality);
+      bits[low >>> 6] |= 1L << low;
+      containers[index] = bits;
+      cardinalities[index]++;
+      return true;
+    }
+    if (cardinality == array.length) {
+      array = Arrays.copyOf(array, Math.min(ARRAY_LIMIT, cardinality * 2));
+      containers[index] = array;
+    }
+    final int insert = -position - 1;
+    System.arraycopy(array, insert, array, insert + 1, cardinality - insert);
+    array[insert] = low;
+    cardinalities[index]++;
+    return true;
+  }
+
+  /**
+   * Removes the value from the bitmap
+   * @param value The value to remove
+   * @return True if the value was present
+   */
+  boolean remove(final int value) {
+    if (value < 0) {
+      return false;
+    }
+    final char low = (char) value;
+    final int index = Arrays.binarySearch(keys, 0, size, (char) (value >>> 16));
+    if (index < 0) {
+      return false;
+    }
+
+    final int cardinality = cardinalities[index];
+    if (containers[index] instanceof long[]) {
+      final long[] bits = (long[]) containers[index];
+      final long mask = 1L << low;
+      if ((bits[low >>> 6] & mask) == 0) {
+        return false;
+      }
+      bits[low >>> 6] &= ~mask;
+      cardinalities[index]--;
+      if (cardinalities[index] <= ARRAY_LIMIT) {
+        containers[index] = toArray(bits, cardinalities[index]);
+      }
+    } else {
+      final char[] array = (char[]) containers[index];
+      final int position = Arrays.binarySearch(array, 0, cardinality, low);
+      if (position < 0) {
+        return false;
+      }
+      System.arraycopy(array, position + 1, array, position,
+          cardinality - position - 1);
+      cardinalities[index]--;
+    }
+
+    if (cardinalities[index] == 0) {
+      System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+      System.arraycopy(containers, index + 1, containers, index,
+          size - index - 1);
+      System.arraycopy(cardinalities, index + 1, cardinalities, index,
+          size - index - 1);
+      containers[--size] = null;
+    }
+    return true;
+  }
+
+  /**
+   * @param value The value to look for
+   * @return True if the value is in the bitmap
+   */
+  boolean contains(final int value) {
+    if (value < 0) {
+      return false;
+    }
+    final char low = (char) value;
+    final int index = Arrays.binarySearch(keys, 0, size, (char) (value >>> 16));
+    if (index < 0) {
+      return false;
+    }
+    if (containers[index] instanceof long[]) {
+      return (((long[]) containers[index])[low >>> 6] & (1L << low)) != 0;
+    }
+    return Arrays.binarySearch((char[]) containers[index], 0,
+        cardinalities[index], low) >= 0;
+  }
+
+  /** @return The number of values in the bitmap */
+  int cardinality() {
+    int cardinality = 0;
+    for (int i = 0; i < size; i++) {
+      cardinality += cardinalities[i];
+    }
+    return cardinality;
+  }
+
+  /** @return The approximate heap size of the bitmap in bytes */
+  long bytes() {
+    // object headers and the three parallel arrays
+    long bytes = 16 + 48 + keys.length * (2 + 4 + 4);
+    for (int i = 0; i < size; i++) {
+      if (containers[i] instanceof long[]) {
+        bytes += 16 + WORDS * 8;
+      } else {
+        bytes += 16 + ((char[]) containers[i]).length * 2;
+      }
+    }
+    return bytes;
+  }
+
+  /** @return The values in ascending order */
+  int[] toArray() {
+    final int[] values = new int[cardinality()];
+    int v = 0;
+    for (int i = 0; i < size; i++) {
+      final int high = keys[i] << 16;
+      if (containers[i] instanceof long[]) {
+        final long[] bits = (long[]) containers[i];
+        for (int w = 0; w < WORDS; w++) {
+          long word = bits[w];
+          while (word != 0) {
+            values[v++] = high | (w << 6) | Long.numberOfTrailingZeros(word);
+            word &= word - 1;
+          }
+        }
+      } else {
+        final char[] array = (char[]) containers[i];
+        for (int j = 0; j < cardinalities[i]; j++) {
+          values[v++] = high | array[j];
+        }
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Intersects two bitmaps
+   * @param a A bitmap
+   * @param b Another bitmap
+   * @return A new bitmap with the values present in both
+   */
+  static SeriesBitmap and(final SeriesBitmap a, final SeriesBitmap b) {
+    final SeriesBitmap result = new SeriesBitmap(Math.min(a.size, b.size) + 1);
+    int i = 0;
+    int j = 0;
+    while (i < a.size && j < b.size) {
+      if (a.keys[i] < b.keys[j]) {
+        i++;
+      } else if (a.keys[i] > b.keys[j]) {
+        j++;
+      } else {
+        result.intersect(a.keys[i], a.containers[i], a.cardinalities[i],
+            b.containers[j], b.cardinalities[j]);
+        i++;
+        j++;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Unions two bitmaps
+   * @param a A bitmap
+   * @param b Another bitmap
+   * @return A new bitmap with the values present in either
+   */
+  static SeriesBitmap or(final SeriesBitmap a, final SeriesBitmap b) {
+    final SeriesBitmap result = new SeriesBitmap(a.size + b.size + 1);
+    int i = 0;
+    int j = 0;
+    while (i < a.size || j < b.size) {
+      if (j >= b.size || (i < a.size && a.keys[i] < b.keys[j])) {
+        result.append(a.keys[i], copy(a.containers[i], a.cardinalities[i]),
+            a.cardinalities[i]);
+        i++;
+      } else if (i >= a.size || a.keys[i] > b.keys[j]) {
+        result.append(b.keys[j], copy(b.containers[j], b.cardinalities[j]),
+            b.cardinalities[j]);
+        j++;
+      } else {
+        result.union(a.keys[i], a.containers[i], a.cardinalities[i],
+            b.containers[j], b.cardinalities[j]);
+        i++;
+        j++;
+      }
+    }
+    return result;
+  }
+
+  /** Appends the intersection of two containers if it isn't empty */
+  private void intersect(final char key, final Object a, final int card_a,
+      final Object b, final int card_b) {
+    if (a instanceof long[] && b instanceof long[]) {
+      final long[] bits = new long[WORDS];
+      final long[] bits_a = (long[]) a;
+      final long[] bits_b = (long[]) b;
+      int cardinality = 0;
+      for (int w = 0; w < WORDS; w++) {
+        bits[w] = bits_a[w] & bits_b[w];
+        cardinality += Long.bitCount(bits[w]);
+      }
+      if (cardinality > ARRAY_LIMIT) {
+        append(key, bits, cardinality);
+      } else if (cardinality > 0) {
+        append(key, toArray(bits, cardinality), cardinality);
+      }
+      return;
+    }
+
+    // at least one side is an array so the result fits in an array
+    final char[] array;
+    final int cardinality;
+    final Object other;
+    if (a instanceof char[]) {
+      array = (char[]) a;
+      cardinality = card_a;
+      other = b;
+    } else {
+      array = (char[]) b;
+      cardinality = card_b;
+      other = a;
+    }
+    final char[] values = new char[cardinality];
+    int count = 0;
+    if (other instanceof long[]) {
+      final long[] bits = (long[]) other;
+      for (int i = 0; i < cardinality; i++) {
+        if ((bits[array[i] >>> 6] & (1L << array[i])) != 0) {
+          values[count++] = array[i];
+        }
+      }
+    } else {
+      final char[] other_array = (char[]) other;
+      final int other_cardinality = other == a ? card_a : card_b;
+      int i = 0;
+      int j = 0;
+      while (i < cardinality && j < other_cardinality) {
+        if (array[i] < other_array[j]) {
+          i++;
+        } else if (array[i] > other_array[j]) {
+          j++;
+        } else {
+          values[count++] = array[i];
+          i++;
+          j++;
+        }
+      }
+    }
+    if (count > 0) {
+      append(key, count == values.length ? values :
+        Arrays.copyOf(values, count), count);
+    }
+  }
+
+  /** Appends the union of two containers */
+  private void union(final char key, final Object a, final int card_a,
+      final Object b, final int card_b) {
+    if (a instanceof char[] && b instanceof char[] &&
+        card_a + card_b <= ARRAY_LIMIT) {
+      final char[] array_a = (char[]) a;
+      final char[] array_b = (char[]) b;
+      final char[] values = new char[card_a + card_b];
+      int count = 0;
+      int i = 0;
+      int j = 0;
+      while (i < card_a || j < card_b) {
+        if (j >= card_b || (i < card_a && array_a[i] < array_b[j])) {
+          values[count++] = array_a[i++];
+        } else if (i >= card_a || array_a[i] > array_b[j]) {
+          values[count++] = array_b[j++];
+        } else {
+          values[count++] = array_a[i++];
+          j++;
+        }
+      }
+      append(key, count == values.length ? values :
+        Arrays.copyOf(values, count), count);
+      return;
+    }
+
+    final long[] bits = a instanceof long[] ? ((long[]) a).clone() :
+      toBits((char[]) a, card_a);
+    if (b instanceof long[]) {
+      final long[] bits_b = (long[]) b;
+      for (int w = 0; w < WORDS; w++) {
+        bits[w] |= bits_b[w];
+      }
+    } else {
+      final char[] array = (char[]) b;
+      for (int i = 0; i < card_b; i++) {
+        bits[array[i] >>> 6] |= 1L << array[i];
+      }
+    }
+    int cardinality = 0;
+    for (int w = 0; w < WORDS; w++) {
+      cardinality += Long.bitCount(bits[w]);
+    }
+    if (cardinality > ARRAY_LIMIT) {
+      append(key, bits, cardinality);
+    } else {
+      append(key, toArray(bits, cardinality), cardinality);
+    }
+  }
+
+  /** Appends a container, the key must sort after the existing ones */
+  private void append(final char key, final Object container,
+      final int cardinality) {
+    insertContainer(size, key, container, cardinality);
+  }
+
+  /** Inserts a container at the given index, growing the arrays as needed */
+  private void insertContainer(final int index, final char key,
+      final Object container, final int cardinality) {
+    if (size == keys.length) {
+      final int capacity = Math.max(4, size * 2);
+      keys = Arrays.copyOf(keys, capacity);
+      containers = Arrays.copyOf(containers, capacity);
+      cardinalities = Arrays.copyOf(cardinalities, capacity);
+    }
+    System.arraycopy(keys, index, keys, index + 1, size - index);
+    System.arraycopy(containers, index, containers, index + 1, size - index);
+    System.arraycopy(cardinalities, index, cardinalities, index + 1,
+        size - index);
+    keys[index] = key;
+    containers[index] = container;
+    cardinalities[index] = cardinality;
+    size++;
+  }
+
+  /** @return A copy of the container trimmed to its cardinality */
+  private static Object copy(final Object container, final int cardinality) {
+    if (container instanceof long[]) {
+      return ((long[]) container).clone();
+    }
+    return Arrays.copyOf((char[]) container, cardinality);
+  }
+
+  /** @return A bitmap container with the values of the array container */
+  private static long[] toBits(final char[] array, final int cardinality) {
+    final long[] bits = new long[WORDS];
+    for (int i = 0; i < cardinality; i++) {
+      bits[array[i] >>> 6] |= 1L << array[i];
+    }
+    return bits;
+  }
+
+  /** @return An array container with the values of the bitmap container */
+  private static char[] toArray(final long[] bits, final int cardinality) {
+    final char[] array = new char[Math.max(cardinality, 1)];
+    int count = 0;
+    for (int w = 0; w < WORDS; w++) {
+      long word = bits[w];
+      while (word != 0) {
+        array[count++] = (char) ((w << 6) | Long.numberOfTrailingZeros(word));
+        word &= word - 1;
+      }
+    }
+    return array;
+  }
+}
@@ -0,0 +1,461 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.search;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import net.opentsdb.core.TSDB;
+import net.opentsdb.meta.TSMeta;
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.ByteArrayPair;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.KeyValue;
+import org.hbase.async.Scanner;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+/**
+ * A TSD resident inverted index of the time series known to the meta table.
+ * Every series gets an ordinal and the metric UID, every tagk UID, every tagv
+ * UID and every tagk/tagv pair map to a {@link SeriesBitmap} of the ordinals
+ * of the series containing them. Lookups are then answered by unioning and
+ * intersecting bitmaps instead of scanning the meta table with a row key
+ * regex.
+ * <p>
+ * The index is built from the meta table at startup and kept current by the
+ * TSD as it writes new series to the meta table or deletes TSMeta objects.
+ * Series written or deleted by other TSDs only show up once the meta table is
+ * scanned again, see {@link #scheduleRefresh}. Until the first load completes
+ * {@link TimeSeriesLookup} keeps scanning.
+ * @since 2.4
+ */
+public final class TagIndex {
+  private static final Logger LOG = LoggerFactory.getLogger(TagIndex.class);
+
+  /** Keys are stored as strings to make them hashable */
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  /** Key prefixes for the bitmaps */
+  private static final char METRIC = 'm';
+  private static final char TAGK = 'k';
+  private static final char TAGV = 'v';
+  private static final char PAIR = 'p';
+
+  /** TSUIDs to their ordinals, read without locking on the write path */
+  private final ConcurrentHashMap<String, Integer> ordinals =
+      new ConcurrentHashMap<String, Integer>();
+
+  /** Ordinals to TSUIDs, null for removed series */
+  private final ArrayList<byte[]> series = new ArrayList<byte[]>();
+
+  /** The bitmaps keyed on prefix plus UID(s) */
+  private final HashMap<String, SeriesBitmap> bitmaps =
+      new HashMap<String, SeriesBitmap>();
+
+  /** All live series, used for lookups without any criteria */
+  private final SeriesBitmap all = new SeriesBitmap();
+
+  /** Whether or not the index was loaded from the meta table */
+  private volatile boolean loaded;
+
+  /** When the last complete scan of the meta table started, in ms */
+  private volatile long load_start_time;
+
+  /** Number of lookups answered from the index */
+  private volatile long lookups;
+
+  /**
+   * Adds the series to the index if it isn't already present. Called for
+   * every data point written so the common case doesn't lock.
+   * @param tsuid The TSUID of the series
+   * @return True if the series was new
+   */
+  public boolean add(final byte[] tsuid) {
+    final String key = new String(tsuid, CHARSET);
+    if (ordinals.containsKey(key)) {
+      return false;
+    }
+    if (!validTSUID(tsuid)) {
+      LOG.debug("Skipping invalid TSUID " + Bytes.pretty(tsuid));
+      return false;
+    }
+    synchronized (this) {
+      if (ordinals.containsKey(key)) {
+        return false;
+      }
+      final int ordinal = series.size();
+      series.add(tsuid);
+      for (final String bitmap_key : bitmapKeys(tsuid)) {
+        SeriesBitmap bitmap = bitmaps.get(bitmap_key);
+        if (bitmap == null) {
+          bitmap = new SeriesBitmap();
+          bitmaps.put(bitmap_key, bitmap);
+        }
+        bitmap.add(ordinal);
+      }
+      all.add(ordinal);
+      ordinals.put(key, ordinal);
+    }
+    return true;
+  }
+
+  /**
+   * Removes the series from the index, e.g. when its TSMeta was deleted.
+   * @param tsuid The TSUID of the series
+   * @return True if the series was present
+   */
+  public boolean remove(final byte[] tsuid) {
+    final String key = new String(tsuid, CHARSET);
+    synchronized (this) {
+      final Integer ordinal = ordinals.remove(key);
+      if (ordinal == null) {
+        return false;
+      }
+      series.set(ordinal, null);
+      for (final String bitmap_key : bitmapKeys(tsuid)) {
+        final SeriesBitmap bitmap = bitmaps.get(bitmap_key);
+        if (bitmap != null) {
+          bitmap.remove(ordinal);
+          if (bitmap.cardinality() < 1) {
+            bitmaps.remove(bitmap_key);
+          }
+        }
+      }
+      all.remove(ordinal);
+    }
+    return true;
+  }
+
+  /**
+   * Finds the series matching the resolved lookup criteria with the same
+   * semantics as the {@link TimeSeriesLookup} scan: different tagks are
+   * AND'd, values of the same tagk are OR'd, a tagk without a value matches
+   * any value and tagvs without a tagk are OR'd together.
+   * @param metric The metric UID, may be null to match any metric
+   * @param pairs The resolved tag pairs, may be null. Keys or values may be
+   * null.
+   * @param limit The maximum number of series to return, 0 for all
+   * @return The TSUIDs sorted as in the meta table
+   */
+  public List<byte[]> lookup(final byte[] metric,
+      final List<ByteArrayPair> pairs, final int limit) {
+    SeriesBitmap tagvs = null;
+    final Map<String, SeriesBitmap> tagks = new HashMap<String, SeriesBitmap>();
+    final Set<String> wildcards = new HashSet<String>();
+    final List<byte[]> tsuids;
+
+    synchronized (this) {
+      lookups++;
+      SeriesBitmap result = metric == null ? null : get(METRIC, metric, null);
+      if (pairs != null) {
+        for (final ByteArrayPair pair : pairs) {
+          if (pair.getKey() == null && pair.getValue() == null) {
+            continue;
+          } else if (pair.getKey() == null) {
+            final SeriesBitmap bitmap = get(TAGV, pair.getValue(), null);
+            tagvs = tagvs == null ? bitmap : SeriesBitmap.or(tagvs, bitmap);
+            continue;
+          }
+          final String tagk = new String(pair.getKey(), CHARSET);
+          if (wildcards.contains(tagk)) {
+            continue;
+          }
+          if (pair.getValue() == null) {
+            // a tagk without a value overrides the pairs
+            wildcards.add(tagk);
+            tagks.put(tagk, get(TAGK, pair.getKey(), null));
+          } else {
+            final SeriesBitmap bitmap = get(PAIR, pair.getKey(), pair.getValue());
+            final SeriesBitmap existing = tagks.get(tagk);
+            tagks.put(tagk, existing == null ? bitmap :
+              SeriesBitmap.or(existing, bitmap));
+          }
+        }
+      }
+
+      if (tagvs != null) {
+        result = result == null ? tagvs : SeriesBitmap.and(result, tagvs);
+      }
+      for (final SeriesBitmap bitmap : tagks.values()) {
+        result = result == null ? bitmap : SeriesBitmap.and(result, bitmap);
+      }
+      if (result == null) {
+        result = all;
+      }
+
+      final int[] matched = result.toArray();
+      tsuids = new ArrayList<byte[]>(matched.length);
+      for (final int ordinal : matched) {
+        tsuids.add(series.get(ordinal));
+      }
+    }
+
+    Collections.sort(tsuids, Bytes.MEMCMP);
+    if (limit > 0 && tsuids.size() > limit) {
+      return new ArrayList<byte[]>(tsuids.subList(0, limit));
+    }
+    return tsuids;
+  }
+
+  /** @return The number of series in the index */
+  public int size() {
+    return ordinals.size();
+  }
+
+  /** @return The approximate heap size of the index in bytes */
+  public synchronized long bytes() {
+    long bytes = 0;
+    for (final Map.Entry<String, SeriesBitmap> entry : bitmaps.entrySet()) {
+      bytes += 48 + entry.getKey().length() * 2 + entry.getValue().bytes();
+    }
+    bytes += all.bytes();
+    // the TSUID bytes plus the hash entry and string key per series
+    for (final byte[] tsuid : series) {
+      bytes += 8;
+      if (tsuid != null) {
+        bytes += 16 + tsuid.length + 48 + 40 + tsuid.length * 2;
+      }
+    }
+    return bytes;
+  }
+
+  /** @return Whether or not the index was loaded from the meta table */
+  public boolean isLoaded() {
+    return loaded;
+  }
+
+  /**
+   * Every series in the meta table before this time is in the index, unless
+   * it was deleted since. Series of other TSDs that were tracked later may
+   * be missing until the next refresh.
+   * @return The time the last complete scan of the meta table started, in
+   * milliseconds, 0 if none completed yet
+   */
+  public long getLoadStartTime() {
+    return load_start_time;
+  }
+
+  /**
+   * Scans the meta table and adds every TSUID found. Series that were in the
+   * index before the scan started but are no longer in the table are
+   * removed. Series written while the scan runs are added by the TSD as
+   * usual.
+   * @param client The client to scan with
+   * @param table The meta table
+   * @return A deferred resolving to the number of rows read
+   */
+  public Deferred<Integer> load(final HBaseClient client, final byte[] table) {
+    final Scanner scanner = client.newScanner(table);
+    scanner.setFamily(TSMeta.FAMILY());
+    final Deferred<Integer> result = new Deferred<Integer>();
+    final long start = System.currentTimeMillis();
+    // the ordinals that existed before the scan and weren't seen are stale
+    final SeriesBitmap seen = new SeriesBitmap();
+    final int known;
+    synchronized (this) {
+      known = series.size();
+    }
+
+    /** Fails the load */
+    final class ErrorCB implements Callback<Object, Exception> {
+      @Override
+      public Object call(final Exception e) throws Exception {
+        LOG.error("Failed to load the tag index", e);
+        scanner.close();
+        result.callback(e);
+        return null;
+      }
+    }
+
+    /** Adds the row keys and flags the index as loaded at the end */
+    final class ScanCB implements
+        Callback<Object, ArrayList<ArrayList<KeyValue>>> {
+      private int rows_read;
+
+      @Override
+      public Object call(final ArrayList<ArrayList<KeyValue>> rows)
+          throws Exception {
+        if (rows == null) {
+          final int stale = removeUnseen(known, seen);
+          load_start_time = start;
+          loaded = true;
+          LOG.info("Loaded " + size() + " series into the tag index from "
+              + rows_read + " rows in " + (System.currentTimeMillis() - start)
+              + "ms, removed " + stale + " stale series");
+          result.callback(rows_read);
+          return null;
+        }
+        for (final ArrayList<KeyValue> row : rows) {
+          if (!row.isEmpty()) {
+            final byte[] tsuid = row.get(0).key();
+            add(tsuid);
+            final Integer ordinal = ordinals.get(new String(tsuid, CHARSET));
+            if (ordinal != null) {
+              seen.add(ordinal);
+            }
+            rows_read++;
+          }
+        }
+        return scanner.nextRows().addCallbacks(this, new ErrorCB());
+      }
+    }
+
+    scanner.nextRows().addCallbacks(new ScanCB(), new ErrorCB());
+    return result;
+  }
+
+  /**
+   * Rescans the meta table every interval until the timer stops so that the
+   * series of other TSDs show up.
+   * @param timer The timer to schedule the loads on
+   * @param client The client to scan with
+   * @param table The meta table
+   * @param interval The interval between loads in seconds
+   */
+  public void scheduleRefresh(final Timer timer, final HBaseClient client,
+      final byte[] table, final long interval) {
+    if (interval < 1) {
+      throw new IllegalArgumentException("Interval must be greater than 0");
+    }
+
+    /** Reloads and re-schedules itself once the load completes */
+    final class RefreshTask implements TimerTask {
+      @Override
+      public void run(final Timeout timeout) throws Exception {
+        final TimerTask task = this;
+        final class RescheduleCB<T> implements Callback<Object, T> {
+          @Override
+          public Object call(final T ignored) throws Exception {
+            try {
+              timer.newTimeout(task, interval, TimeUnit.SECONDS);
+            } catch (IllegalStateException e) {
+              LOG.debug("Timer stopped, no longer refreshing the tag index");
+            }
+            return null;
+          }
+        }
+        try {
+          load(client, table).addCallbacks(new RescheduleCB<Integer>(), 
+              new RescheduleCB<Exception>());
+        } catch (Exception e) {
+          LOG.error("Unexpected exception refreshing the tag index", e);
+          timer.newTimeout(this, interval, TimeUnit.SECONDS);
+        }
+      }
+    }
+    timer.newTimeout(new RefreshTask(), interval, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Collects the index stats.
+   * @param collector The collector to use
+   */
+  public void collectStats(final StatsCollector collector) {
+    final int bitmap_count;
+    synchronized (this) {
+      bitmap_count = bitmaps.size();
+    }
+    collector.record("search.tag_index.series", size());
+    collector.record("search.tag_index.bitmaps", bitmap_count);
+    collector.record("search.tag_index.bytes", bytes());
+    collector.record("search.tag_index.lookups", lookups);
+  }
+
+  /**
+   * Removes the series with an ordinal below the limit that a scan didn't
+   * see, i.e. that were deleted from the meta table by another TSD.
+   * @return The number of series removed
+   */
+  private int removeUnseen(final int limit, final SeriesBitmap seen) {
+    final List<byte[]> stale = new ArrayList<byte[]>();
+    synchronized (this) {
+      for (int ordinal = 0; ordinal < limit; ordinal++) {
+        if (series.get(ordinal) != null && !seen.contains(ordinal)) {
+          stale.add(series.get(ordinal));
+        }
+      }
+    }
+    for (final byte[] tsuid : stale) {
+      remove(tsuid);
+    }
+    return stale.size();
+  }
+
+  /** @return The bitmap for the UIDs or an empty one if none exists */
+  private SeriesBitmap get(final char type, final byte[] uid,
+      final byte[] value) {
+    final SeriesBitmap bitmap = bitmaps.get(key(type, uid, value));
+    return bitmap == null ? new SeriesBitmap() : bitmap;
+  }
+
+  /** @return The keys of all of the bitmaps the series belongs to */
+  private static List<String> bitmapKeys(final byte[] tsuid) {
+    final short metric_width = TSDB.metrics_width();
+    final short tagk_width = TSDB.tagk_width();
+    final short tagv_width = TSDB.tagv_width();
+    final List<String> keys = new ArrayList<String>(
+        1 + ((tsuid.length - metric_width) / (tagk_width + tagv_width)) * 3);
+    keys.add(key(METRIC, slice(tsuid, 0, metric_width), null));
+    for (int i = metric_width; i < tsuid.length; i += tagk_width + tagv_width) {
+      final byte[] tagk = slice(tsuid, i, tagk_width);
+      final byte[] tagv = slice(tsuid, i + tagk_width, tagv_width);
+      keys.add(key(TAGK, tagk, null));
+      keys.add(key(TAGV, tagv, null));
+      keys.add(key(PAIR, tagk, tagv));
+    }
+    return keys;
+  }
+
+  /** @return The bitmap key for the type and UIDs */
+  private static String key(final char type, final byte[] uid,
+      final byte[] value) {
+    final StringBuilder buf = new StringBuilder(1 + uid.length +
+        (value == null ? 0 : value.length));
+    buf.append(type).append(new String(uid, CHARSET));
+    if (value != null) {
+      buf.append(new String(value, CHARSET));
+    }
+    return buf.toString();
+  }
+
+  /** @return A copy of the range */
+  private static byte[] slice(final byte[] array, final int offset,
+      final int length) {
+    final byte[] slice = new byte[length];
+    System.arraycopy(array, offset, slice, 0, length);
+    return slice;
+  }
+
+  /** @return Whether or not the TSUID has a metric and whole tag pairs */
+  private static boolean validTSUID(final byte[] tsuid) {
+    final int tags = tsuid.length - TSDB.metrics_width();
+    return tags > 0 && tags % (TSDB.tagk_width() + TSDB.tagv_width()) == 0;
+  }
+}
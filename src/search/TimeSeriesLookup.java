@@ -78,6 +78,9 @@ import com.stumbleupon.async.DeferredGroupException;
  * tag values only when necessary. (if a query only has tag values, then this is
  * moot and we can pass them in a rowkey filter since they're OR'd).
  * 
+ * If the TSD maintains a {@link TagIndex} and it has loaded, meta table 
+ * lookups are answered from the index bitmaps instead of scanning.
+ * 
  * @since 2.1
  */
 public class TimeSeriesLookup {
@@ -286,6 +289,16 @@ public class TimeSeriesLookup {
     class UIDCB implements Callback<Deferred<List<byte[]>>, Object> {
       @Override
       public Deferred<List<byte[]>> call(Object arg0) throws Exception {
+        // the index mirrors the meta table so data table lookups still scan
+        final TagIndex index = query.useMeta() && !to_stdout ? 
+            tsdb.getTagIndex() : null;
+        if (index != null && index.isLoaded()) {
+          tsuids.addAll(index.lookup(metric_uid, pairs, query.getLimit()));
+          LOG.debug("Lookup query matched " + tsuids.size() + 
+              " time series from the tag index in " + 
+              (System.currentTimeMillis() - start) + " ms");
+          return Deferred.fromResult(tsuids);
+        }
         if (!query.useMeta() && Const.SALT_WIDTH() > 0 && metric_uid != null) {
           final ArrayList<Deferred<List<byte[]>>> deferreds = 
               new ArrayList<Deferred<List<byte[]>>>(Const.SALT_BUCKETS());
@@ -164,6 +164,19 @@ public final class Histogram {
     buckets[bucketIndexFor(value)]++;
   }
 
+  /**
+   * Adds a value multiple times, e.g. to copy another histogram.
+   * @param value The value to add.
+   * @param count The number of times to add it.
+   * @throws IllegalArgumentException if the value given is negative.
+   */
+  void add(final int value, final int count) {
+    if (value < 0) {
+      throw new IllegalArgumentException("negative value: " + value);
+    }
+    buckets[bucketIndexFor(value)] += count;
+  }
+
   /**
    * Returns the value of the <i>p</i>th  percentile in this histogram.
    * <p>
@@ -0,0 +1,276 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.stats;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe histogram for latencies that can be shared by any number of
+ * threads, unlike {@link Histogram}.
+ * <p>
+ * Buckets are log-linear: every power of 2 is split into 128 buckets so the
+ * relative error of any percentile is below 1%, from 0 up to the maximum
+ * given to the constructor, values above it are counted as the maximum.
+ * <p>
+ * Counts are striped over a few arrays picked by thread ID so concurrent
+ * writers rarely contend on the same cache line, and {@link #add} never
+ * blocks. Readers merge the stripes.
+ * <p>
+ * Values are kept for a window of time (see {@link #setWindow}), percentiles
+ * cover the previous window plus the current, partial, one so they follow
+ * recent latencies instead of converging to lifetime values. Windows are
+ * switched when the histogram is read, so a histogram read less often than
+ * once per window reports the values added since the read before the last
+ * one. Values added concurrently with the switch to a new window may be
+ * lost.
+ * @since 2.4
+ */
+public final class LatencyHistogram {
+
+  /** Bits of precision kept for each value. */
+  private static final int SIGNIFICANT_BITS = 8;
+
+  /** Values below this get a bucket of their own. */
+  private static final int SUB_BUCKETS = 1 << SIGNIFICANT_BITS;
+
+  /** Buckets for each power of 2 above {@link #SUB_BUCKETS}. */
+  private static final int HALF_SUB_BUCKETS = SUB_BUCKETS >> 1;
+
+  /** The default maximum value, one hour in milliseconds. */
+  public static final long DEFAULT_MAX = 3600000;
+
+  /** Number of stripes, a power of 2. */
+  private static final int STRIPES = stripes();
+
+  /** Length of a window in milliseconds, 0 to never reset. */
+  private static volatile long window = 60000;
+
+  /** Inclusive value above which values are counted as the maximum. */
+  private final long max;
+
+  /** Number of buckets in each stripe. */
+  private final int length;
+
+  /** Where values are added. */
+  private volatile Window current;
+
+  /** The previous window, read along with the current one. */
+  private volatile Window previous;
+
+  /** Default ctor for values up to {@link #DEFAULT_MAX}. */
+  public LatencyHistogram() {
+    this(DEFAULT_MAX);
+  }
+
+  /**
+   * Constructor.
+   * @param max The maximum value of the histogram. Any value greater than
+   * this is counted as this value.
+   * @throws IllegalArgumentException if the maximum is less than 1.
+   */
+  public LatencyHistogram(final long max) {
+    if (max < 1) {
+      throw new IllegalArgumentException("max < 1! max=" + max);
+    }
+    this.max = max;
+    length = bucketIndexFor(max) + 1;
+    current = new Window(length, System.currentTimeMillis());
+    previous = new Window(length, current.start);
+  }
+
+  /**
+   * Sets how long values are kept, for all histograms.
+   * @param window_ms The length of a window in milliseconds, 0 to keep
+   * values forever.
+   * @throws IllegalArgumentException if the window is negative.
+   */
+  public static void setWindow(final long window_ms) {
+    if (window_ms < 0) {
+      throw new IllegalArgumentException("Negative window: " + window_ms);
+    }
+    window = window_ms;
+  }
+
+  /**
+   * Adds a value to the histogram. Never blocks.
+   * @param value The value to add.
+   * @throws IllegalArgumentException if the value given is negative.
+   */
+  public void add(final long value) {
+    if (value < 0) {
+      throw new IllegalArgumentException("negative value: " + value);
+    }
+    final int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+    current.counts.incrementAndGet(stripe * length
+        + bucketIndexFor(Math.min(value, max)));
+  }
+
+  /** @return The number of values in the current and previous windows */
+  public long count() {
+    long count = 0;
+    for (final long bucket : merge()) {
+      count += bucket;
+    }
+    return count;
+  }
+
+  /**
+   * Returns the value of the <i>p</i>th percentile in this histogram.
+   * @param p A percentile in the range {@code ]0; 100]}, e.g. 99.9.
+   * @return The highest value of the bucket the percentile falls in, 0 if
+   * the histogram is empty.
+   * @throws IllegalArgumentException if {@code p} is not valid.
+   */
+  public long percentile(final double p) {
+    return percentiles(new double[] { p })[0];
+  }
+
+  /**
+   * Returns the value of multiple percentiles, cheaper than asking for each
+   * of them as the stripes are merged once.
+   * @param ps Percentiles in the range {@code ]0; 100]}.
+   * @return The values in the same order as the percentiles.
+   * @throws IllegalArgumentException if a percentile is not valid.
+   */
+  public long[] percentiles(final double[] ps) {
+    for (final double p : ps) {
+      if (!(p > 0 && p <= 100)) {
+        throw new IllegalArgumentException("invalid percentile: " + p);
+      }
+    }
+    final long[] buckets = merge();
+    long count = 0;
+    for (final long bucket : buckets) {
+      count += bucket;
+    }
+    final long[] values = new long[ps.length];
+    if (count == 0) {
+      return values;
+    }
+    for (int i = 0; i < ps.length; i++) {
+      final long rank = Math.max(1, (long) Math.ceil(ps[i] / 100 * count));
+      long seen = 0;
+      for (int j = 0; j < buckets.length; j++) {
+        seen += buckets[j];
+        if (seen >= rank) {
+          values[i] = Math.min(bucketHighValue(j), max);
+          break;
+        }
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Copies the current and previous windows into a {@link Histogram} for
+   * the callers of the older API. Each value is counted as the highest value
+   * of its bucket.
+   * @param max The maximum value of the histogram.
+   * @param interval The width of the linear buckets.
+   * @param cutoff The value past which buckets are exponential.
+   * @return A snapshot that isn't updated as values are added.
+   */
+  public Histogram toHistogram(final int max, final short interval,
+      final int cutoff) {
+    final Histogram histogram = new Histogram(max, interval, cutoff);
+    final long[] buckets = merge();
+    for (int i = 0; i < buckets.length; i++) {
+      if (buckets[i] > 0) {
+        histogram.add((int) Math.min(bucketHighValue(i), Integer.MAX_VALUE),
+            (int) Math.min(buckets[i], Integer.MAX_VALUE));
+      }
+    }
+    return histogram;
+  }
+
+  /** Drops all of the values. */
+  public synchronized void reset() {
+    final long now = System.currentTimeMillis();
+    previous = new Window(length, now);
+    current = new Window(length, now);
+  }
+
+  public String toString() {
+    return "LatencyHistogram(max=" + max + ", buckets=" + length
+      + ", stripes=" + STRIPES + ", window=" + window + ')';
+  }
+
+  /**
+   * Switches to a new window if the current one is over and sums the
+   * stripes of the current and previous windows.
+   */
+  private long[] merge() {
+    final Window current;
+    final Window previous;
+    synchronized (this) {
+      final long now = System.currentTimeMillis();
+      final long window = LatencyHistogram.window;
+      if (window > 0 && now - this.current.start >= window) {
+        // Keep the values even if several windows went by without a read,
+        // otherwise infrequent readers would only ever see empty windows.
+        this.previous = this.current;
+        this.current = new Window(length, now);
+      }
+      current = this.current;
+      previous = this.previous;
+    }
+    final long[] buckets = new long[length];
+    for (int i = 0; i < STRIPES * length; i++) {
+      buckets[i % length] += current.counts.get(i) + previous.counts.get(i);
+    }
+    return buckets;
+  }
+
+  /** Finds the index of the bucket in which the given value should be. */
+  static int bucketIndexFor(final long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    // Keep the top SIGNIFICANT_BITS bits, the first of which is always set.
+    final int shift = 64 - Long.numberOfLeadingZeros(value) - SIGNIFICANT_BITS;
+    return SUB_BUCKETS + (shift - 1) * HALF_SUB_BUCKETS
+      + (int) (value >>> shift) - HALF_SUB_BUCKETS;
+  }
+
+  /** Returns the highest value (inclusive) of the given bucket. */
+  static long bucketHighValue(final int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    final int shift = (index - SUB_BUCKETS) / HALF_SUB_BUCKETS + 1;
+    final long sub = (index - SUB_BUCKETS) % HALF_SUB_BUCKETS
+      + HALF_SUB_BUCKETS;
+    return ((sub + 1) << shift) - 1;
+  }
+
+  /** @return A power of 2 close to the number of CPUs, up to 4 */
+  private static int stripes() {
+    final int cpus = Runtime.getRuntime().availableProcessors();
+    int stripes = 1;
+    while (stripes < cpus && stripes < 4) {
+      stripes <<= 1;
+    }
+    return stripes;
+  }
+
+  /** The counts of a window of time, stripe after stripe. */
+  private static final class Window {
+    final AtomicLongArray counts;
+    final long start;
+
+    Window(final int length, final long start) {
+      counts = new AtomicLongArray(STRIPES * length);
+      this.start = start;
+    }
+  }
+}
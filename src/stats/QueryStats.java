@@ -27,6 +27,8 @@ import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.stumbleupon.async.Callback;
 import com.google.common.base.Objects;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
@@ -34,6 +36,8 @@ import com.google.common.cache.CacheBuilder;
 import net.opentsdb.core.Const;
 import net.opentsdb.core.QueryException;
 import net.opentsdb.core.TSQuery;
+import net.opentsdb.query.CancellationToken;
+import net.opentsdb.query.QueryMemoryTracker;
 import net.opentsdb.utils.DateTime;
 import net.opentsdb.utils.JSON;
 import net.opentsdb.utils.Pair;
@@ -120,24 +124,40 @@ public class QueryStats {
   /** Holds a lis tof the scanner IDs for each scanner */
   private final Map<Integer, Map<Integer, String>> scanner_ids;
   
+  /** Holds the storage access plan picked for each sub query */
+  private final Map<Integer, String> scan_plans;
+  
+  /** Holds the time taken by each node of an expression query in nanos */
+  private final Map<String, Long> node_times;
+  
   /** Holds a copy of the headers from the request */
   private final Map<String, String> headers;
   
   /** Whether or not the data was successfully sent to the client */
   private boolean sent_to_client;
   
+  /** Accounts for the memory held by the query, may be null */
+  private QueryMemoryTracker memory_tracker;
+  
+  /** Signals that the results are no longer wanted, may be null */
+  private CancellationToken cancellation_token;
+  
   /**
    * A list of statistics surrounding individual queries
    */
   public enum QueryStat {
     // Query Setup stats
     STRING_TO_UID_TIME ("stringToUidTime", true),
+    SCAN_PLAN_ROW_ESTIMATE ("scanPlanRowEstimate", false),
+    QUEUE_WAIT_TIME ("queueWaitTime", true),
     
     // Storage stats
     COLUMNS_FROM_STORAGE ("columnsFromStorage", false),
     ROWS_FROM_STORAGE ("rowsFromStorage", false),
     BYTES_FROM_STORAGE ("bytesFromStorage", false),
     SUCCESSFUL_SCAN ("successfulScan", false),
+    SHARED_SCAN ("sharedScan", false),
+    SCAN_SHARE_COUNT ("scanShareCount", false),
     
     // Single Scanner stats
     DPS_PRE_FILTER ("dpsPreFilter", false),
@@ -148,10 +168,13 @@ public class QueryStats {
     COMPACTION_TIME ("compactionTime", true),
     HBASE_TIME ("hbaseTime", true),
     UID_PAIRS_RESOLVED ("uidPairsResolved", false),
+    FILTER_CACHE_HITS ("filterCacheHits", false),
+    FILTER_CACHE_MISSES ("filterCacheMisses", false),
     SCANNER_TIME ("scannerTime", true),
     
     // Overall Salt Scanner stats
     SCANNER_MERGE_TIME ("saltScannerMergeTime", true),
+    SCANNER_MERGED_BYTES ("saltScannerMergedBytes", false),
     
     // Post Scan stats
     QUERY_SCAN_TIME ("queryScanTime", true),
@@ -167,6 +190,7 @@ public class QueryStats {
     // Final stats
     PROCESSING_PRE_WRITE_TIME ("processingPreWriteTime", true),
     TOTAL_TIME ("totalTime", true),
+    PEAK_MEMORY_BYTES ("peakMemoryBytes", false),
     
     // MAX and Agg Times
     MAX_HBASE_TIME ("maxHBaseTime", true),
@@ -255,6 +279,8 @@ public class QueryStats {
         Map<Integer, Map<QueryStat, Long>>>(1);
     scanner_servers = new ConcurrentHashMap<Integer, Map<Integer, Set<String>>>(1);
     scanner_ids = new ConcurrentHashMap<Integer, Map<Integer, String>>(1);
+    scan_plans = new ConcurrentHashMap<Integer, String>(1);
+    node_times = new ConcurrentHashMap<String, Long>(1);
     if (LOG.isDebugEnabled()) {
       LOG.debug("New query for remote " + remote_address + " with hash " + 
           hashCode() + " on thread " + Thread.currentThread().getId());
@@ -345,6 +371,13 @@ public class QueryStats {
     
     query_completed_ts = DateTime.currentTimeMillis();
     overall_stats.put(QueryStat.PROCESSING_PRE_WRITE_TIME, DateTime.nanoTime() - query_start_ns);
+    if (memory_tracker != null) {
+      overall_stats.put(QueryStat.PEAK_MEMORY_BYTES, memory_tracker.getPeak());
+      memory_tracker.releaseAll();
+    }
+    if (cancellation_token != null) {
+      cancellation_token.complete();
+    }
     synchronized (running_queries) {
       if (!running_queries.containsKey(this.hashCode())) {
         if (!ENABLE_DUPLICATES) {
@@ -434,6 +467,8 @@ public class QueryStats {
    */
   public static void collectStats(final StatsCollector collector) {
     collector.record("query.count", running_queries.size(), "type=running");
+    QueryMemoryTracker.collectStats(collector);
+    CancellationToken.collectStats(collector);
   }
   
   /**
@@ -688,10 +723,110 @@ public class QueryStats {
     scanners.put(id, string_id);
   }
   
+  /**
+   * Records the plan used to fetch the data for a sub query along with the
+   * estimated number of candidate rows.
+   * @param query_index The index of the sub query
+   * @param plan The name of the plan
+   * @param row_estimate The estimated number of candidate rows, negative if 
+   * unknown in which case it isn't recorded
+   * @since 2.4
+   */
+  public void addScanPlan(final int query_index, final String plan, 
+      final long row_estimate) {
+    scan_plans.put(query_index, plan);
+    if (row_estimate >= 0) {
+      addStat(query_index, QueryStat.SCAN_PLAN_ROW_ESTIMATE, row_estimate);
+    }
+  }
+  
+  /**
+   * @param query_index The index of the sub query
+   * @return The plan used to fetch data for the sub query, null if not set
+   * @since 2.4
+   */
+  public String getScanPlan(final int query_index) {
+    return scan_plans.get(query_index);
+  }
+  
+  /**
+   * Records the time taken by a node of an expression query, i.e. the scan of
+   * a metric or the evaluation of an expression.
+   * @param node The ID of the metric or expression
+   * @param nanos The time taken in nanoseconds
+   * @since 2.4
+   */
+  public void addNodeTime(final String node, final long nanos) {
+    node_times.put(node, nanos);
+  }
+  
+  /**
+   * @return A map of expression query node IDs to the time they took in 
+   * milliseconds. Empty if the query didn't have any nodes.
+   * @since 2.4
+   */
+  @JsonIgnore
+  public Map<String, Double> getNodeTimes() {
+    final Map<String, Double> map = new TreeMap<String, Double>();
+    for (final Entry<String, Long> entry : node_times.entrySet()) {
+      map.put(entry.getKey(), DateTime.msFromNano(entry.getValue()));
+    }
+    return map;
+  }
+  
   /** @return the start time of the query in nano seconds */
   public long queryStart() {
     return query_start_ns;
   }
+  
+  /**
+   * @param memory_tracker The memory accountant for the query. Its bytes are
+   * released when the query is marked as serialized.
+   * @since 2.4
+   */
+  public void setMemoryTracker(final QueryMemoryTracker memory_tracker) {
+    this.memory_tracker = memory_tracker;
+  }
+  
+  /**
+   * @return The memory accountant for the query, may be null
+   * @since 2.4
+   */
+  @JsonIgnore
+  public QueryMemoryTracker getMemoryTracker() {
+    return memory_tracker;
+  }
+  
+  /**
+   * @param cancellation_token The token to watch for cancellation. When the
+   * token is cancelled the query's memory is released right away instead of
+   * waiting for the error to reach the serializer.
+   * @since 2.4
+   */
+  public void setCancellationToken(final CancellationToken cancellation_token) {
+    this.cancellation_token = cancellation_token;
+    
+    /** Frees the memory held by the query */
+    class ReleaseCB implements Callback<Object, QueryException> {
+      @Override
+      public Object call(final QueryException e) {
+        if (memory_tracker != null) {
+          memory_tracker.releaseAll();
+        }
+        return null;
+      }
+    }
+    cancellation_token.addListener(new ReleaseCB());
+  }
+  
+  /**
+   * @return The token to watch for cancellation, may be null
+   * @since 2.4
+   */
+  @JsonIgnore
+  public CancellationToken getCancellationToken() {
+    return cancellation_token;
+  }
 
   /** @param user The user who executed the query */
   public void setUser(final String user) {
@@ -778,6 +913,10 @@ public class QueryStats {
       }
     }
     
+    if (!node_times.isEmpty()) {
+      map.put("nodeTimes", getNodeTimes());
+    }
+    
     if (with_sub_queries) {
       final Iterator<Entry<Integer, Map<QueryStat, Long>>> it = 
           query_stats.entrySet().iterator();
@@ -809,6 +948,9 @@ public class QueryStats {
     
     final Map<String, Object> query_map = new TreeMap<String, Object>();
     query_map.put("queryIndex", index);
+    if (scan_plans.containsKey(index)) {
+      query_map.put("scanPlan", scan_plans.get(index));
+    }
     
     final Iterator<Entry<QueryStat, Long>> stats_it = 
         qs.entrySet().iterator();
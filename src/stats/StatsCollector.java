@@ -39,6 +39,9 @@ public abstract class StatsCollector {
 
   /** Tags to add to every stat emitted by the collector */
   private static Map<String, String> global_tags;
+
+  /** Percentiles recorded for {@link LatencyHistogram}s */
+  private static volatile double[] percentiles = { 50, 75, 90, 95, 99, 99.9 };
   
   /** Prefix to add to every metric name, for example `tsd'. */
   protected final String prefix;
@@ -124,6 +127,29 @@ public abstract class StatsCollector {
     record(name + "_95pct", histo.percentile(95), xtratag);
   }
 
+  /**
+   * Records the configured percentiles of a {@link LatencyHistogram}, e.g.
+   * {@code name_99pct} and {@code name_99.9pct}.
+   * @param name The name of the metric.
+   * @param histo The histogram to collect data points from.
+   * @param xtratag An extra tag ({@code name=value}) to add to those
+   * data points (ignored if {@code null}).
+   * @throws IllegalArgumentException if {@code xtratag != null} and it
+   * doesn't follow the {@code name=value} format.
+   * @since 2.4
+   */
+  public final void record(final String name,
+                           final LatencyHistogram histo,
+                           final String xtratag) {
+    final double[] percentiles = StatsCollector.percentiles;
+    final long[] values = histo.percentiles(percentiles);
+    for (int i = 0; i < percentiles.length; i++) {
+      final double p = percentiles[i];
+      record(name + '_' + (p == Math.rint(p) ? Long.toString((long) p)
+          : Double.toString(p)) + "pct", values[i], xtratag);
+    }
+  }
+
   /**
    * Records a data point.
    * @param name The name of the metric.
@@ -268,4 +294,40 @@ public abstract class StatsCollector {
       global_tags.put("port", config.getString("tsd.network.port"));
     }
   }
+
+  /**
+   * Parses the configuration for the percentiles to record for latency
+   * histograms and how long the histograms keep values.
+   * @param config The config object to parse
+   * @throws IllegalArgumentException if the config is null or a percentile
+   * or the window is invalid.
+   * @since 2.4
+   */
+  public static final void setHistogramConfig(final Config config) {
+    if (config == null) {
+      throw new IllegalArgumentException("Configuration cannot be null.");
+    }
+    if (config.hasProperty("tsd.stats.percentiles")) {
+      final String[] splits = config.getString("tsd.stats.percentiles")
+          .split(",");
+      final double[] parsed = new double[splits.length];
+      for (int i = 0; i < splits.length; i++) {
+        try {
+          parsed[i] = Double.parseDouble(splits[i].trim());
+        } catch (NumberFormatException e) {
+          throw new IllegalArgumentException("Invalid percentile: " 
+              + splits[i], e);
+        }
+        if (!(parsed[i] > 0 && parsed[i] <= 100)) {
+          throw new IllegalArgumentException(
+              "Percentile must be in ]0; 100]: " + splits[i]);
+        }
+      }
+      percentiles = parsed;
+    }
+    if (config.hasProperty("tsd.stats.histogram.window")) {
+      LatencyHistogram.setWindow(
+          config.getLong("tsd.stats.histogram.window") * 1000);
+    }
+  }
 }
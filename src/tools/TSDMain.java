@@ -68,6 +68,9 @@ final class TSDMain {
   
   private static TSDB tsdb = null;
   
+  /** The pipeline factory of the server, released on shutdown */
+  private static PipelineFactory pipeline_factory = null;
+  
   public static void main(String[] args) throws IOException {
     Logger log = LoggerFactory.getLogger(TSDMain.class);
     log.info("Starting.");
@@ -201,7 +204,8 @@ final class TSDMain {
       // here to fail fast.
       final RpcManager manager = RpcManager.instance(tsdb);
 
-      server.setPipelineFactory(new PipelineFactory(tsdb, manager, connections_limit));
+      pipeline_factory = new PipelineFactory(tsdb, manager, connections_limit);
+      server.setPipelineFactory(pipeline_factory);
       if (config.hasProperty("tsd.network.backlog")) {
         server.setOption("backlog", config.getInt("tsd.network.backlog")); 
       }
@@ -228,6 +232,9 @@ final class TSDMain {
       log.info("Ready to serve on " + addr);
     } catch (Throwable e) {
       factory.releaseExternalResources();
+      if (pipeline_factory != null) {
+        pipeline_factory.releaseExternalResources();
+      }
       try {
         if (tsdb != null)
           tsdb.shutdown().joinUninterruptibly();
@@ -293,6 +300,9 @@ final class TSDMain {
           if (tsdb != null) {
             tsdb.shutdown().join();
           }
+          if (pipeline_factory != null) {
+            pipeline_factory.releaseExternalResources();
+          }
         } catch (Exception e) {
           LoggerFactory.getLogger(TSDBShutdown.class)
             .error("Uncaught exception during shutdown", e);
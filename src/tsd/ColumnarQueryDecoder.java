@@ -0,0 +1,262 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads query results written by the columnar serializer, the format is
+ * described in {@link HttpColumnarSerializer}. Only depends on the JDK so it
+ * can be copied into client code.
+ * @since 2.4
+ */
+public final class ColumnarQueryDecoder {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /** Kept in sync with the serializer */
+  private static final byte[] MAGIC = { 'T', 'S', 'D', 'C' };
+  private static final byte VERSION = 1;
+  private static final byte KIND_INTEGERS = 0;
+  private static final byte KIND_FLOATS = 1;
+  private static final byte KIND_MIXED = 2;
+
+  /** Static helpers only */
+  private ColumnarQueryDecoder() { }
+
+  /**
+   * Decodes a complete response.
+   * @param response The body of the response.
+   * @return The series in the order they were written.
+   * @throws IllegalArgumentException if the response is not in the columnar
+   * format, of an unknown version or truncated.
+   */
+  public static List<Series> decode(final byte[] response) {
+    final ByteBuffer buf = ByteBuffer.wrap(response);
+    try {
+      for (final byte b : MAGIC) {
+        if (buf.get() != b) {
+          throw new IllegalArgumentException("Not a columnar response");
+        }
+      }
+      final byte version = buf.get();
+      if (version != VERSION) {
+        throw new IllegalArgumentException("Unsupported version: " + version);
+      }
+      final int count = readCount(buf);
+      final List<Series> series = new ArrayList<Series>(count);
+      for (int i = 0; i < count; i++) {
+        series.add(readSeries(buf));
+      }
+      return series;
+    } catch (BufferUnderflowException e) {
+      throw new IllegalArgumentException("Truncated response", e);
+    }
+  }
+
+  /** Reads the header and points of a series */
+  private static Series readSeries(final ByteBuffer buf) {
+    final int query_index = readCount(buf);
+    final String metric = readString(buf);
+    int count = readCount(buf);
+    final Map<String, String> tags = new HashMap<String, String>(count);
+    for (int i = 0; i < count; i++) {
+      tags.put(readString(buf), readString(buf));
+    }
+    final List<String> aggregated_tags = readStrings(buf);
+    final List<String> tsuids = readStrings(buf);
+
+    count = readCount(buf);
+    final long[] timestamps = new long[count];
+    long previous = 0;
+    for (int i = 0; i < count; i++) {
+      previous += readSignedVarint(buf);
+      timestamps[i] = previous;
+    }
+
+    final boolean[] integers = new boolean[count];
+    final byte kind = buf.get();
+    switch (kind) {
+      case KIND_INTEGERS:
+        Arrays.fill(integers, true);
+        break;
+      case KIND_FLOATS:
+        break;
+      case KIND_MIXED:
+        for (int i = 0; i < count; i += 8) {
+          final int bits = buf.get();
+          for (int j = 0; j < 8 && i + j < count; j++) {
+            integers[i + j] = (bits & (1 << j)) != 0;
+          }
+        }
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown value kind: " + kind);
+    }
+    final long[] values = new long[count];
+    long previous_integer = 0;
+    long previous_float = 0;
+    for (int i = 0; i < count; i++) {
+      if (integers[i]) {
+        previous_integer += readSignedVarint(buf);
+        values[i] = previous_integer;
+      } else {
+        previous_float ^= readVarint(buf);
+        values[i] = previous_float;
+      }
+    }
+    return new Series(query_index, metric, tags, aggregated_tags, tsuids,
+        timestamps, values, integers);
+  }
+
+  private static List<String> readStrings(final ByteBuffer buf) {
+    final int count = readCount(buf);
+    final List<String> strings = new ArrayList<String>(count);
+    for (int i = 0; i < count; i++) {
+      strings.add(readString(buf));
+    }
+    return strings;
+  }
+
+  private static String readString(final ByteBuffer buf) {
+    final byte[] bytes = new byte[readCount(buf)];
+    buf.get(bytes);
+    return new String(bytes, UTF8);
+  }
+
+  /** @return A varint that must fit in a non-negative int */
+  private static int readCount(final ByteBuffer buf) {
+    final long count = readVarint(buf);
+    if (count < 0 || count > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Invalid count: " + count);
+    }
+    return (int) count;
+  }
+
+  private static long readSignedVarint(final ByteBuffer buf) {
+    final long value = readVarint(buf);
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private static long readVarint(final ByteBuffer buf) {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      final byte b = buf.get();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IllegalArgumentException("Varint is too long");
+  }
+
+  /**
+   * A decoded series. Values are accessed by index like {@link
+   * net.opentsdb.core.DataPoints}.
+   */
+  public static final class Series {
+    private final int query_index;
+    private final String metric;
+    private final Map<String, String> tags;
+    private final List<String> aggregated_tags;
+    private final List<String> tsuids;
+    private final long[] timestamps;
+    /** Integer values or the raw bits of floats */
+    private final long[] values;
+    private final boolean[] integers;
+
+    Series(final int query_index, final String metric,
+        final Map<String, String> tags, final List<String> aggregated_tags,
+        final List<String> tsuids, final long[] timestamps,
+        final long[] values, final boolean[] integers) {
+      this.query_index = query_index;
+      this.metric = metric;
+      this.tags = Collections.unmodifiableMap(tags);
+      this.aggregated_tags = Collections.unmodifiableList(aggregated_tags);
+      this.tsuids = Collections.unmodifiableList(tsuids);
+      this.timestamps = timestamps;
+      this.values = values;
+      this.integers = integers;
+    }
+
+    /** @return The index of the sub query that produced the series */
+    public int getQueryIndex() {
+      return query_index;
+    }
+
+    /** @return The metric name */
+    public String getMetric() {
+      return metric;
+    }
+
+    /** @return The tags common to all of the time series */
+    public Map<String, String> getTags() {
+      return tags;
+    }
+
+    /** @return The tag keys that were aggregated away */
+    public List<String> getAggregatedTags() {
+      return aggregated_tags;
+    }
+
+    /** @return The TSUIDs, empty unless the query asked for them */
+    public List<String> getTSUIDs() {
+      return tsuids;
+    }
+
+    /** @return The number of data points */
+    public int size() {
+      return timestamps.length;
+    }
+
+    /** @return The timestamp of the i-th point in milliseconds */
+    public long timestamp(final int i) {
+      return timestamps[i];
+    }
+
+    /** @return Whether or not the i-th point is an integer */
+    public boolean isInteger(final int i) {
+      return integers[i];
+    }
+
+    /**
+     * @return The value of the i-th point
+     * @throws ClassCastException if the point is a float
+     */
+    public long longValue(final int i) {
+      if (!integers[i]) {
+        throw new ClassCastException("Point " + i + " is not an integer");
+      }
+      return values[i];
+    }
+
+    /**
+     * @return The value of the i-th point
+     * @throws ClassCastException if the point is an integer
+     */
+    public double doubleValue(final int i) {
+      if (integers[i]) {
+        throw new ClassCastException("Point " + i + " is not a float");
+      }
+      return Double.longBitsToDouble(values[i]);
+    }
+  }
+}
@@ -0,0 +1,110 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.execution.ChannelUpstreamEventRunnable;
+import org.jboss.netty.handler.execution.ExecutionHandler;
+import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
+
+import net.opentsdb.stats.LatencyHistogram;
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.Threads;
+
+/**
+ * Hands the upstream events of a channel to a pool of threads so that RPC
+ * handlers that block, e.g. on a UID lookup, don't stall the Netty I/O
+ * thread and every other connection it serves. Events of a given channel
+ * are handled one at a time and in order, like on the I/O thread.
+ * Downstream events, i.e. writes, are not affected.
+ * <p>
+ * The time events wait in the queue and the time the handlers take to run
+ * are tracked for the stats.
+ * @since 2.4
+ */
+final class ExecutionStage extends ExecutionHandler {
+
+  /** Milliseconds events spent waiting for a thread */
+  private static final LatencyHistogram queue_latency = new LatencyHistogram();
+
+  /** Milliseconds the handlers spent on events */
+  private static final LatencyHistogram run_latency = new LatencyHistogram();
+
+  private static final AtomicLong events = new AtomicLong();
+  private static final AtomicInteger pending = new AtomicInteger();
+
+  /**
+   * Default ctor.
+   * @param threads The number of threads in the pool.
+   * @param max_channel_bytes The maximum size of the events queued for a
+   * single channel before reads are suspended, 0 for no limit.
+   * @param max_total_bytes The maximum size of all of the events queued
+   * before reads are suspended, 0 for no limit.
+   * @throws IllegalArgumentException if the thread count is less than 1 or
+   * a limit is negative.
+   */
+  ExecutionStage(final int threads, final long max_channel_bytes,
+      final long max_total_bytes) {
+    super(new OrderedMemoryAwareThreadPoolExecutor(threads, max_channel_bytes,
+        max_total_bytes, 60, TimeUnit.SECONDS,
+        Threads.newThreadFactory("RPC")));
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this instance.
+   * @param collector The collector to use.
+   */
+  public static void collectStats(final StatsCollector collector) {
+    collector.record("rpc.executor.events", events);
+    collector.record("rpc.executor.pending", pending.get());
+    collector.record("rpc.executor.latency", queue_latency, "type=queue");
+    collector.record("rpc.executor.latency", run_latency, "type=run");
+  }
+
+  @Override
+  public void handleUpstream(final ChannelHandlerContext ctx,
+      final ChannelEvent e) throws Exception {
+    pending.incrementAndGet();
+    getExecutor().execute(new TimedRunnable(ctx, e, getExecutor()));
+  }
+
+  /** Passes an event to the next handler and records the latencies */
+  private static final class TimedRunnable
+      extends ChannelUpstreamEventRunnable {
+    private final long queued = System.nanoTime();
+
+    TimedRunnable(final ChannelHandlerContext ctx, final ChannelEvent e,
+        final Executor executor) {
+      super(ctx, e, executor);
+    }
+
+    @Override
+    protected void doRun() {
+      final long start = System.nanoTime();
+      pending.decrementAndGet();
+      queue_latency.add((int) ((start - queued) / 1000000));
+      try {
+        super.doRun();
+      } finally {
+        events.incrementAndGet();
+        run_latency.add((int) ((System.nanoTime() - start) / 1000000));
+      }
+    }
+  }
+}
@@ -0,0 +1,472 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Manages the files {@link GraphHandler} writes under {@code tsd.http.cachedir}.
+ * <ul>
+ * <li>The files of a graph (the Gnuplot script, data, image, JSON and ASCII
+ * outputs) are tracked together under their base name and evicted in least
+ * recently used order once the directory exceeds its size budget, or once
+ * they are older than the age budget.</li>
+ * <li>Small images served from disk are kept in an LRU memory tier so the hot
+ * dashboards don't touch the disk.</li>
+ * <li>Identical requests arriving while a graph is being generated wait for
+ * that generation instead of running the queries and Gnuplot again.</li>
+ * </ul>
+ * The files present at startup are indexed so the budget covers them too.
+ * @since 2.4
+ */
+final class GraphCache {
+  private static final Logger LOG = LoggerFactory.getLogger(GraphCache.class);
+
+  /** Base names are the hex hash of the query string */
+  private static final Pattern BASE_NAME = Pattern.compile("^[0-9a-f]{1,8}$");
+
+  /** The suffixes of the files {@link GraphHandler} may write for a graph,
+   * besides the numbered data files */
+  private static final String[] SUFFIXES =
+    { ".gnuplot", ".out", ".err", ".png", ".json", ".txt" };
+
+  /** The files of one graph on disk */
+  private static final class DiskEntry {
+    /** The files of the graph */
+    private final List<File> files;
+    /** Total size of the files in bytes */
+    private final long bytes;
+    /** When the graph was written, in milliseconds */
+    private final long written;
+
+    DiskEntry(final List<File> files, final long bytes, final long written) {
+      this.files = files;
+      this.bytes = bytes;
+      this.written = written;
+    }
+  }
+
+  /** An image held in memory */
+  private static final class MemoryEntry {
+    /** The contents of the file */
+    private final byte[] contents;
+    /** The modification time of the file when it was read */
+    private final long mtime;
+
+    MemoryEntry(final byte[] contents, final long mtime) {
+      this.contents = contents;
+      this.mtime = mtime;
+    }
+  }
+
+  /** The cache directory */
+  private final File directory;
+
+  /** Disk budget in bytes, 0 for unlimited */
+  private final long max_bytes;
+
+  /** Age budget in milliseconds, 0 for unlimited */
+  private final long max_age;
+
+  /** Memory tier budget in bytes, 0 to disable the tier */
+  private final long max_memory_bytes;
+
+  /** Largest image to keep in memory in bytes */
+  private final int max_image_bytes;
+
+  /** Graphs on disk keyed on base name, in access order */
+  private final LinkedHashMap<String, DiskEntry> disk =
+      new LinkedHashMap<String, DiskEntry>(16, 0.75f, true);
+
+  /** Images in memory keyed on path, in access order */
+  private final LinkedHashMap<String, MemoryEntry> memory =
+      new LinkedHashMap<String, MemoryEntry>(16, 0.75f, true);
+
+  /** Requests waiting on a graph being generated, keyed on base path */
+  private final ConcurrentHashMap<String, List<Deferred<Object>>> in_flight =
+      new ConcurrentHashMap<String, List<Deferred<Object>>>();
+
+  /** Bytes used on disk and in memory, guarded by this */
+  private long disk_bytes;
+  private long memory_bytes;
+
+  private final AtomicLong memory_hits = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * Default ctor that indexes the graphs already in the directory.
+   * @param directory The cache directory
+   * @param max_bytes The disk budget in bytes, 0 for unlimited
+   * @param max_age The age budget in seconds, 0 for unlimited
+   * @param max_memory_bytes The memory tier budget in bytes, 0 to disable
+   * @param max_image_bytes The largest image to keep in memory
+   */
+  GraphCache(final String directory, final long max_bytes, final long max_age,
+      final long max_memory_bytes, final int max_image_bytes) {
+    if (max_bytes < 0 || max_age < 0 || max_memory_bytes < 0) {
+      throw new IllegalArgumentException("Cache budgets cannot be negative");
+    }
+    this.directory = new File(directory);
+    this.max_bytes = max_bytes;
+    this.max_age = max_age * 1000;
+    this.max_memory_bytes = max_memory_bytes;
+    this.max_image_bytes = max_image_bytes;
+    index();
+  }
+
+  /**
+   * Registers the caller as the one generating the graph unless another
+   * request already is.
+   * @param basepath The base path of the graph
+   * @return Null if the caller must generate the graph and then call
+   * {@link #complete}, otherwise a deferred called back with null or the
+   * exception once the graph is generated.
+   */
+  Deferred<Object> join(final String basepath) {
+    while (true) {
+      final List<Deferred<Object>> waiting = in_flight.get(basepath);
+      if (waiting == null) {
+        if (in_flight.putIfAbsent(basepath,
+            new ArrayList<Deferred<Object>>()) == null) {
+          return null;
+        }
+        continue;
+      }
+      synchronized (waiting) {
+        // the list is removed under its lock when the graph completes
+        if (in_flight.get(basepath) != waiting) {
+          continue;
+        }
+        final Deferred<Object> deferred = new Deferred<Object>();
+        waiting.add(deferred);
+        coalesced.incrementAndGet();
+        return deferred;
+      }
+    }
+  }
+
+  /**
+   * Releases the requests waiting on the graph. Must be called once by the
+   * request that {@link #join} let through, whatever the outcome.
+   * @param basepath The base path of the graph
+   * @param error The exception if the generation failed, null otherwise
+   */
+  void complete(final String basepath, final Exception error) {
+    final List<Deferred<Object>> waiting = in_flight.get(basepath);
+    if (waiting == null) {
+      return;
+    }
+    final List<Deferred<Object>> released;
+    synchronized (waiting) {
+      in_flight.remove(basepath);
+      released = new ArrayList<Deferred<Object>>(waiting);
+    }
+    for (final Deferred<Object> deferred : released) {
+      try {
+        deferred.callback(error);
+      } catch (Exception e) {
+        LOG.warn("Failed to release a request waiting on " + basepath, e);
+      }
+    }
+  }
+
+  /**
+   * Records the files written for a graph and evicts graphs until the
+   * directory fits the budgets again.
+   * @param basepath The base path of the graph
+   */
+  void written(final String basepath) {
+    final String name = new File(basepath).getName();
+    final List<File> files = files(basepath);
+    long bytes = 0;
+    for (final File file : files) {
+      bytes += file.length();
+    }
+    final List<File> evicted;
+    synchronized (this) {
+      final DiskEntry previous = disk.put(name,
+          new DiskEntry(files, bytes, System.currentTimeMillis()));
+      disk_bytes += bytes - (previous == null ? 0 : previous.bytes);
+      evicted = evict();
+    }
+    delete(evicted);
+  }
+
+  /**
+   * Marks a graph as used so it is evicted last.
+   * @param basepath The base path of the graph
+   */
+  synchronized void touch(final String basepath) {
+    disk.get(new File(basepath).getName());
+  }
+
+  /**
+   * Returns the contents of a file from the memory tier if the file wasn't
+   * rewritten since it was read.
+   * @param path The path of the file
+   * @param mtime The current modification time of the file
+   * @return The contents or null if not in memory
+   */
+  byte[] getImage(final String path, final long mtime) {
+    synchronized (this) {
+      final MemoryEntry entry = memory.get(path);
+      if (entry == null) {
+        return null;
+      }
+      if (entry.mtime != mtime) {
+        memory.remove(path);
+        memory_bytes -= entry.contents.length;
+        return null;
+      }
+      memory_hits.incrementAndGet();
+      return entry.contents;
+    }
+  }
+
+  /**
+   * Reads the file into the memory tier if it is small enough.
+   * @param path The path of the file
+   */
+  void offerImage(final String path) {
+    if (max_memory_bytes < 1) {
+      return;
+    }
+    final File file = new File(path);
+    final long length = file.length();
+    if (length < 1 || length > max_image_bytes || length > max_memory_bytes) {
+      return;
+    }
+    final long mtime = file.lastModified();
+    final byte[] contents = new byte[(int) length];
+    try {
+      final FileInputStream in = new FileInputStream(file);
+      try {
+        int read = 0;
+        while (read < contents.length) {
+          final int n = in.read(contents, read, contents.length - read);
+          if (n < 0) {
+            // truncated while we read it
+            return;
+          }
+          read += n;
+        }
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      LOG.debug("Unable to read " + path + " into memory", e);
+      return;
+    }
+
+    synchronized (this) {
+      final MemoryEntry previous = memory.put(path,
+          new MemoryEntry(contents, mtime));
+      memory_bytes += contents.length -
+          (previous == null ? 0 : previous.contents.length);
+      final Iterator<MemoryEntry> iterator = memory.values().iterator();
+      while (memory_bytes > max_memory_bytes && iterator.hasNext()) {
+        memory_bytes -= iterator.next().contents.length;
+        iterator.remove();
+      }
+    }
+  }
+
+  /**
+   * Collects the cache stats.
+   * @param collector The collector to use
+   */
+  void collectStats(final StatsCollector collector) {
+    collector.record("http.graph.requests", memory_hits, "cache=memory");
+    collector.record("http.graph.requests", coalesced, "cache=coalesced");
+    collector.record("http.graph.cache.evictions", evictions);
+    synchronized (this) {
+      collector.record("http.graph.cache.bytes", disk_bytes, "tier=disk");
+      collector.record("http.graph.cache.bytes", memory_bytes, "tier=memory");
+      collector.record("http.graph.cache.entries", disk.size(), "tier=disk");
+      collector.record("http.graph.cache.entries", memory.size(),
+          "tier=memory");
+    }
+  }
+
+  /** @return The bytes used by the graphs on disk */
+  synchronized long diskBytes() {
+    return disk_bytes;
+  }
+
+  /** @return The bytes used by the images in memory */
+  synchronized long memoryBytes() {
+    return memory_bytes;
+  }
+
+  /**
+   * Evicts expired graphs then the least recently used ones over budget.
+   * Must be called with the lock held.
+   * @return The files of the evicted graphs, to {@link #delete} once the lock
+   * is released
+   */
+  private List<File> evict() {
+    final long oldest = max_age > 0 ?
+        System.currentTimeMillis() - max_age : Long.MIN_VALUE;
+    final List<String> evicted = new ArrayList<String>();
+    final List<File> files = new ArrayList<File>();
+    final Iterator<Map.Entry<String, DiskEntry>> iterator =
+        disk.entrySet().iterator();
+    while (iterator.hasNext()) {
+      final Map.Entry<String, DiskEntry> entry = iterator.next();
+      if (entry.getValue().written < oldest ||
+          (max_bytes > 0 && disk_bytes > max_bytes && disk.size() > 1)) {
+        disk_bytes -= entry.getValue().bytes;
+        evicted.add(entry.getKey());
+        files.addAll(entry.getValue().files);
+        iterator.remove();
+      }
+    }
+    for (final String name : evicted) {
+      final Iterator<Map.Entry<String, MemoryEntry>> images =
+          memory.entrySet().iterator();
+      while (images.hasNext()) {
+        final Map.Entry<String, MemoryEntry> image = images.next();
+        if (isFileOf(new File(image.getKey()).getName(), name)) {
+          memory_bytes -= image.getValue().contents.length;
+          images.remove();
+        }
+      }
+      evictions.incrementAndGet();
+    }
+    return files;
+  }
+
+  /** Deletes the files of evicted graphs, outside of the lock */
+  private static void delete(final List<File> files) {
+    for (final File file : files) {
+      if (!file.delete() && file.exists()) {
+        LOG.warn("Unable to delete cached graph file " + file);
+      }
+    }
+  }
+
+  /** Indexes the graphs present on disk, oldest first */
+  private void index() {
+    final File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    Arrays.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(final File a, final File b) {
+        final long diff = a.lastModified() - b.lastModified();
+        return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+      }
+    });
+    final LinkedHashMap<String, List<File>> found =
+        new LinkedHashMap<String, List<File>>();
+    for (final File file : files) {
+      final String name = baseName(file.getName());
+      if (name == null || !file.isFile()) {
+        continue;
+      }
+      List<File> graph = found.get(name);
+      if (graph == null) {
+        graph = new ArrayList<File>();
+        found.put(name, graph);
+      }
+      graph.add(file);
+    }
+    final List<File> evicted;
+    synchronized (this) {
+      for (final Map.Entry<String, List<File>> entry : found.entrySet()) {
+        long bytes = 0;
+        for (final File file : entry.getValue()) {
+          bytes += file.length();
+        }
+        // sorted oldest first so the first file is the oldest
+        disk.put(entry.getKey(), new DiskEntry(entry.getValue(), bytes,
+            entry.getValue().get(0).lastModified()));
+        disk_bytes += bytes;
+      }
+      evicted = evict();
+    }
+    delete(evicted);
+    if (!found.isEmpty()) {
+      LOG.info("Indexed " + found.size() + " cached graphs using "
+          + disk_bytes + " bytes in " + directory);
+    }
+  }
+
+  /**
+   * Finds the files of a graph by checking the names {@link GraphHandler}
+   * and {@link net.opentsdb.graph.Plot} use rather than listing the whole
+   * directory.
+   * @return The files of the graph with the given base path
+   */
+  private static List<File> files(final String basepath) {
+    final List<File> files = new ArrayList<File>(SUFFIXES.length);
+    for (final String suffix : SUFFIXES) {
+      final File file = new File(basepath + suffix);
+      if (file.isFile()) {
+        files.add(file);
+      }
+    }
+    // the data files are numbered from 0
+    for (int i = 0; ; i++) {
+      final File file = new File(basepath + "_" + i + ".dat");
+      if (!file.isFile()) {
+        break;
+      }
+      files.add(file);
+    }
+    return files;
+  }
+
+  /** @return The base name of a graph file or null if not a graph file */
+  private static String baseName(final String file_name) {
+    int end = 0;
+    while (end < file_name.length() && file_name.charAt(end) != '.' &&
+        file_name.charAt(end) != '_') {
+      end++;
+    }
+    if (end == file_name.length()) {
+      return null;
+    }
+    final String name = file_name.substring(0, end);
+    return BASE_NAME.matcher(name).matches() ? name : null;
+  }
+
+  /** @return Whether or not the file belongs to the graph */
+  private static boolean isFileOf(final String file_name, final String name) {
+    return file_name.length() > name.length() &&
+        file_name.startsWith(name) &&
+        (file_name.charAt(name.length()) == '.' ||
+         file_name.charAt(name.length()) == '_');
+  }
+}
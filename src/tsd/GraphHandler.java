@@ -12,6 +12,7 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.tsd;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -42,12 +43,14 @@ import net.opentsdb.core.Const;
 import net.opentsdb.core.DataPoint;
 import net.opentsdb.core.DataPoints;
 import net.opentsdb.core.Query;
+import net.opentsdb.core.ReducedDataPoints;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.core.TSQuery;
 import net.opentsdb.graph.Plot;
 import net.opentsdb.meta.Annotation;
-import net.opentsdb.stats.Histogram;
+import net.opentsdb.stats.LatencyHistogram;
 import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.Config;
 import net.opentsdb.utils.DateTime;
 import net.opentsdb.utils.JSON;
 
@@ -73,12 +76,16 @@ final class GraphHandler implements HttpRpc {
     = new AtomicInteger();
 
   /** Keep track of the latency of graphing requests. */
-  private static final Histogram graphlatency =
-    new Histogram(16000, (short) 2, 100);
+  private static final LatencyHistogram graphlatency = new LatencyHistogram();
 
   /** Keep track of the latency (in ms) introduced by running Gnuplot. */
-  private static final Histogram gnuplotlatency =
-    new Histogram(16000, (short) 2, 100);
+  private static final LatencyHistogram gnuplotlatency = new LatencyHistogram();
+
+  /** Keep track of the latency (in ms) of drawing graphs with Java2D. */
+  private static final LatencyHistogram renderlatency = new LatencyHistogram();
+
+  /** Bounds the on-disk cache, created on the first graph request. */
+  private static volatile GraphCache cache;
 
   /** Executor to run Gnuplot in separate bounded thread pool. */
   private final ThreadPoolExecutor gnuplot;
@@ -119,7 +126,7 @@ final class GraphHandler implements HttpRpc {
       return;
     }
     try {
-      doGraph(tsdb, query);
+      doGraph(tsdb, query, true);
     } catch (IOException e) {
       query.internalError(e);
     } catch (IllegalArgumentException e) {
@@ -131,8 +138,9 @@ final class GraphHandler implements HttpRpc {
   // net.opentsdb.tsd.QueryRpc.java (which actually does this asynchronously),
   // so we should refactor both classes to split the actual logic used to
   // generate the data from the actual visualization (removing all duped code).
-  private void doGraph(final TSDB tsdb, final HttpQuery query)
-    throws IOException {
+  private void doGraph(final TSDB tsdb, final HttpQuery query,
+                       final boolean coalesce) throws IOException {
+    final GraphCache cache = getCache(tsdb);
     final String basepath = getGnuplotBasePath(tsdb, query);
     long start_time = DateTime.parseDateTimeString(
       query.getRequiredQueryStringParam("start"),
@@ -163,6 +171,42 @@ final class GraphHandler implements HttpRpc {
       return;
     }
 
+    // If the same graph is already being generated, wait for it instead of
+    // running the queries and Gnuplot again.
+    final String key = basepath + (query.hasQueryStringParam("ascii")
+                                   ? ".txt" : ".png");
+    if (!nocache && coalesce) {
+      final Deferred<Object> generating = cache.join(key);
+      if (generating != null) {
+        generating.addBoth(new CoalescedCB(tsdb, query, end_time, max_age,
+            basepath));
+        return;
+      }
+      try {
+        generateGraph(tsdb, query, start_time, end_time, max_age, basepath,
+            key);
+      } catch (IOException e) {
+        cache.complete(key, e);
+        throw e;
+      } catch (RuntimeException e) {
+        cache.complete(key, e);
+        throw e;
+      }
+    } else {
+      generateGraph(tsdb, query, start_time, end_time, max_age, basepath,
+          null);
+    }
+  }
+
+  /**
+   * Runs the queries and Gnuplot for a graph that wasn't found in the cache.
+   * @param key The key other requests for the same graph are waiting on, or
+   * null if the graph isn't shared. Released once the graph is written.
+   */
+  private void generateGraph(final TSDB tsdb, final HttpQuery query,
+                             final long start_time, final long end_time,
+                             final int max_age, final String basepath,
+                             final String key) throws IOException {
     // Parse TSQuery from HTTP query
     final TSQuery tsquery = QueryRpc.parseQuery(tsdb, query);
     tsquery.validateAndSetQuery();
@@ -205,6 +249,15 @@ final class GraphHandler implements HttpRpc {
           DateTime.timezones.get(query.getQueryStringParam("tz")));
     setPlotDimensions(query, plot);
     setPlotParams(query, plot);
+    // Gnuplot can't show more than the min and max of each pixel column, so
+    // don't make it read more unless asked to. ASCII output isn't reduced by
+    // default.
+    final int max_points;
+    if (query.hasQueryStringParam("max_points")) {
+      max_points = tsquery.getMaxPoints();
+    } else {
+      max_points = query.hasQueryStringParam("ascii") ? 0 : plot.getWidth() * 2;
+    }
     final int nqueries = tsdbqueries.length;
     @SuppressWarnings("unchecked")
     final HashSet<String>[] aggregated_tags = new HashSet[nqueries];
@@ -215,7 +268,9 @@ final class GraphHandler implements HttpRpc {
         // TODO(tsuna): Optimization: run each query in parallel.
         final DataPoints[] series = tsdbqueries[i].run();
         for (final DataPoints datapoints : series) {
-          plot.add(datapoints, options.get(i));
+          plot.add(max_points > 0 ? new ReducedDataPoints(datapoints,
+              start_time * 1000, end_time * 1000, max_points) : datapoints,
+              options.get(i));
           aggregated_tags[i] = new HashSet<String>();
           aggregated_tags[i].addAll(datapoints.getAggregatedTags());
           npoints += datapoints.aggregatedSize();
@@ -231,15 +286,24 @@ final class GraphHandler implements HttpRpc {
 
     if (query.hasQueryStringParam("ascii")) {
       respondAsciiQuery(query, max_age, basepath, plot);
+      cache.written(basepath);
+      release(key, null);
       return;
     }
 
+    final boolean in_process = "java2d".equals(
+        tsdb.getConfig().getString("tsd.http.graph.renderer"));
+    if (in_process && System.getProperty("java.awt.headless") == null) {
+      // Java2D would otherwise try to connect to a display.
+      System.setProperty("java.awt.headless", "true");
+    }
     final RunGnuplot rungnuplot = new RunGnuplot(query, max_age, plot, basepath,
-            aggregated_tags, npoints);
+            aggregated_tags, npoints, key, in_process);
 
     class ErrorCB implements Callback<Object, Exception> {
       public Object call(final Exception e) throws Exception {
         LOG.warn("Failed to retrieve global annotations: ", e);
+        release(key, e);
         throw e;
       }
     }
@@ -266,11 +330,102 @@ final class GraphHandler implements HttpRpc {
     try {
       gnuplot.execute(rungnuplot);
     } catch (RejectedExecutionException e) {
-      query.internalError(new Exception("Too many requests pending,"
-                                        + " please try again later", e));
+      final Exception error = new Exception("Too many requests pending,"
+                                            + " please try again later", e);
+      release(rungnuplot.key, error);
+      query.internalError(error);
+    }
+  }
+
+  /**
+   * Answers a request that waited on an identical request to generate its
+   * graph, from the cache if the graph was written or with the same error.
+   */
+  private final class CoalescedCB implements Callback<Object, Object> {
+    private final TSDB tsdb;
+    private final HttpQuery query;
+    private final long end_time;
+    private final int max_age;
+    private final String basepath;
+
+    CoalescedCB(final TSDB tsdb, final HttpQuery query, final long end_time,
+                final int max_age, final String basepath) {
+      this.tsdb = tsdb;
+      this.query = query;
+      this.end_time = end_time;
+      this.max_age = max_age;
+      this.basepath = basepath;
+    }
+
+    public Object call(final Object error) {
+      if (error instanceof Exception) {
+        respondError(query, (Exception) error);
+        return null;
+      }
+      try {
+        // the cached graph may still be unusable, e.g. if it was generated
+        // for a request with a shorter max age.
+        if (!isDiskCacheHit(query, end_time, max_age, basepath)) {
+          doGraph(tsdb, query, false);
+        }
+      } catch (IllegalArgumentException e) {
+        query.badRequest(e.getMessage());
+      } catch (Exception e) {
+        respondError(query, e);
+      }
+      return null;
     }
   }
 
+  /**
+   * Sends the error matching the exception raised while generating a graph.
+   * @param query The query to answer.
+   * @param e The exception.
+   */
+  private static void respondError(final HttpQuery query, final Exception e) {
+    if (e instanceof BadRequestException) {
+      query.badRequest(e.getMessage());
+    } else if (e instanceof GnuplotException) {
+      query.badRequest("<pre>" + e.getMessage() + "</pre>");
+    } else {
+      query.internalError(e);
+    }
+  }
+
+  /**
+   * Releases the requests waiting on a graph, if any.
+   * @param key The key of the graph, may be null if the graph isn't shared.
+   * @param error The exception if the graph couldn't be generated.
+   */
+  private static void release(final String key, final Exception error) {
+    if (key != null) {
+      cache.complete(key, error);
+    }
+  }
+
+  /**
+   * Returns the cache manager, creating it from the TSD config on first use.
+   * @param tsdb The TSDB to read the config from.
+   */
+  private static GraphCache getCache(final TSDB tsdb) {
+    GraphCache local = cache;
+    if (local == null) {
+      synchronized (GraphHandler.class) {
+        local = cache;
+        if (local == null) {
+          final Config config = tsdb.getConfig();
+          local = new GraphCache(config.getDirectoryName("tsd.http.cachedir"),
+              config.getLong("tsd.http.cache.max_bytes"),
+              config.getLong("tsd.http.cache.max_age"),
+              config.getLong("tsd.http.cache.memory.max_bytes"),
+              config.getInt("tsd.http.cache.memory.max_image_bytes"));
+          cache = local;
+        }
+      }
+    }
+    return local;
+  }
+
   /**
    * Decides how long we're going to allow the client to cache our response.
    * <p>
@@ -316,13 +471,19 @@ final class GraphHandler implements HttpRpc {
     private final String basepath;
     private final HashSet<String>[] aggregated_tags;
     private final int npoints;
+    /** The key of the graph other requests wait on, may be null */
+    private final String key;
+    /** Whether or not to draw the graph with Java2D when the plot allows it */
+    private final boolean in_process;
 
     public RunGnuplot(final HttpQuery query,
                       final int max_age,
                       final Plot plot,
                       final String basepath,
                       final HashSet<String>[] aggregated_tags,
-                      final int npoints) {
+                      final int npoints,
+                      final String key,
+                      final boolean in_process) {
       this.query = query;
       this.max_age = max_age;
       this.plot = plot;
@@ -332,24 +493,40 @@ final class GraphHandler implements HttpRpc {
         this.basepath = basepath;
       this.aggregated_tags = aggregated_tags;
       this.npoints = npoints;
+      this.key = key;
+      this.in_process = in_process;
     }
 
     public void run() {
+      Exception error = null;
       try {
         execute();
-      } catch (BadRequestException e) {
-        query.badRequest(e.getMessage());
-      } catch (GnuplotException e) {
-        query.badRequest("<pre>" + e.getMessage() + "</pre>");
       } catch (RuntimeException e) {
-        query.internalError(e);
+        error = e;
+        respondError(query, e);
       } catch (IOException e) {
-        query.internalError(e);
+        error = e;
+        respondError(query, e);
+      } finally {
+        release(key, error);
       }
     }
 
     private void execute() throws IOException {
-      final int nplotted = runGnuplot(query, basepath, plot);
+      byte[] png = null;
+      final int nplotted;
+      if (in_process && plot.isRenderable()) {
+        final long start_time = System.nanoTime();
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        nplotted = plot.renderPng(buf);
+        png = buf.toByteArray();
+        renderlatency.add((int) ((System.nanoTime() - start_time) / 1000000));
+        // on disk before replying so the next request can't find the JSON
+        // without the image
+        writeFileAtomically(query, basepath + ".png", png);
+      } else {
+        nplotted = runGnuplot(query, basepath, plot);
+      }
       if (query.hasQueryStringParam("json")) {
         final HashMap<String, Object> results = new HashMap<String, Object>();
         results.put("plotted", nplotted);
@@ -365,12 +542,17 @@ final class GraphHandler implements HttpRpc {
         query.sendReply(JSON.serializeToBytes(results));
         writeFile(query, basepath + ".json", JSON.serializeToBytes(results));
       } else if (query.hasQueryStringParam("png")) {
-        query.sendFile(basepath + ".png", max_age);
+        if (png != null) {
+          query.sendFile(basepath + ".png", png, System.currentTimeMillis(),
+              max_age);
+        } else {
+          query.sendFile(basepath + ".png", max_age);
+        }
       } else {
         query.internalError(new Exception("Should never be here!"));
       }
 
-      // TODO(tsuna): Expire old files from the on-disk cache.
+      cache.written(basepath);
       graphlatency.add(query.processingTimeMillis());
       graphs_generated.incrementAndGet();
     }
@@ -389,8 +571,13 @@ final class GraphHandler implements HttpRpc {
   public static void collectStats(final StatsCollector collector) {
     collector.record("http.latency", graphlatency, "type=graph");
     collector.record("http.latency", gnuplotlatency, "type=gnuplot");
+    collector.record("http.latency", renderlatency, "type=java2d");
     collector.record("http.graph.requests", graphs_diskcache_hit, "cache=disk");
     collector.record("http.graph.requests", graphs_generated, "cache=miss");
+    final GraphCache local = cache;
+    if (local != null) {
+      local.collectStats(collector);
+    }
   }
 
   /** Returns the base path to use for the Gnuplot files. */
@@ -448,12 +635,22 @@ final class GraphHandler implements HttpRpc {
         query.sendReply(JSON.serializeToBytes(map));
       } else if (query.hasQueryStringParam("png")
                  || query.hasQueryStringParam("ascii")) {
+        final long mtime = cachedfile.lastModified();
+        final byte[] image = cache.getImage(cachepath, mtime);
+        if (image != null) {
+          // counted by the cache as a memory hit
+          query.sendFile(cachepath, image, mtime, max_age);
+          cache.touch(basepath);
+          return true;
+        }
         query.sendFile(cachepath, max_age);
+        cache.offerImage(cachepath);
       } else {
         query.sendReply(HttpQuery.makePage("TSDB Query", "Your graph is ready",
             "<img src=\"" + query.request().getUri() + "&amp;png\"/><br/>"
             + "<small>(served from disk cache)</small>"));
       }
+      cache.touch(basepath);
       graphs_diskcache_hit.incrementAndGet();
       return true;
     }
@@ -556,6 +753,30 @@ final class GraphHandler implements HttpRpc {
     }
   }
 
+  /**
+   * Writes the given byte array into a temporary file that is then renamed
+   * to the path so that readers never see a partial file.
+   * This function logs an error but doesn't throw if it fails.
+   * @param query The query being handled (for logging purposes).
+   * @param path The path to write to.
+   * @param contents The contents to write into the file.
+   */
+  private static void writeFileAtomically(final HttpQuery query,
+                                          final String path,
+                                          final byte[] contents) {
+    final File tmp = new File(path + ".tmp");
+    writeFile(query, tmp.getPath(), contents);
+    if (!tmp.isFile()) {
+      return;  // already logged
+    }
+    final File file = new File(path);
+    // renameTo doesn't replace an existing file on every platform
+    if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+      logError(query, "Failed to rename " + tmp + " to " + path);
+      tmp.delete();
+    }
+  }
+
   /**
    * Reads a file into a byte array.
    * @param query The query being handled (for logging purposes).
@@ -0,0 +1,396 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.core.DataPoint;
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.ReducedDataPoints;
+import net.opentsdb.core.TSQuery;
+import net.opentsdb.meta.Annotation;
+import net.opentsdb.query.CancellationToken;
+import net.opentsdb.query.QueryMemoryTracker;
+import net.opentsdb.stats.QueryStats.QueryStat;
+import net.opentsdb.utils.DateTime;
+
+/**
+ * Serializes query results in a compact binary, column oriented format so
+ * that clients spend less time parsing than with JSON. Requests are still
+ * parsed as JSON and every response other than query results, including
+ * errors, is written as JSON too. Select it with {@code serializer=columnar}
+ * or an {@code Accept: application/x-opentsdb-columnar} header.
+ * <p>
+ * All integers are big endian. Varints are unsigned LEB128 and signed values
+ * are zigzag encoded first. Strings are a varint length followed by UTF-8.
+ * <pre>
+ * response  := magic("TSDC") version(byte 1) count(varint) series*
+ * series    := query_index(varint) metric(string)
+ *              tag_count(varint) (key(string) value(string))*
+ *              agg_count(varint) tag(string)*
+ *              tsuid_count(varint) tsuid(string)*
+ *              point_count(varint) timestamps values
+ * timestamps:= point_count signed varints, each the difference in
+ *              milliseconds from the previous timestamp, starting at 0
+ * values    := kind(byte 0 integers, 1 floats, 2 mixed)
+ *              [bitmap of ceil(point_count / 8) bytes, only when mixed, the
+ *              low bit of the first byte is set when the first point is an
+ *              integer]
+ *              integers as signed varint deltas from the previous integer,
+ *              floats as the varint of their IEEE 754 bits XORed with the
+ *              bits of the previous float, both starting at 0
+ * </pre>
+ * TSUIDs are only written when the query asks for them. Annotations, the
+ * original query and stats are not serialized. See
+ * {@link ColumnarQueryDecoder} for a reader.
+ * @since 2.4
+ */
+final class HttpColumnarSerializer extends HttpJsonSerializer {
+
+  /** The content type of both requests and query results */
+  static final String CONTENT_TYPE = "application/x-opentsdb-columnar";
+
+  /** The first bytes of every response */
+  static final byte[] MAGIC = { 'T', 'S', 'D', 'C' };
+
+  /** The version of the format */
+  static final byte VERSION = 1;
+
+  /** Value kinds */
+  static final byte KIND_INTEGERS = 0;
+  static final byte KIND_FLOATS = 1;
+  static final byte KIND_MIXED = 2;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /** The JSON content type used for all other responses */
+  private static final String JSON_CONTENT_TYPE =
+      "application/json; charset=UTF-8";
+
+  /** Set once query results have been written in the binary format */
+  private boolean columnar;
+
+  /**
+   * Default constructor necessary for plugin implementation
+   */
+  public HttpColumnarSerializer() {
+    super();
+    request_content_type = CONTENT_TYPE;
+    response_content_type = CONTENT_TYPE;
+  }
+
+  /**
+   * Constructor that sets the query object
+   * @param query Request/resposne object
+   */
+  public HttpColumnarSerializer(final HttpQuery query) {
+    super(query);
+    request_content_type = CONTENT_TYPE;
+    response_content_type = CONTENT_TYPE;
+  }
+
+  /** @return the version */
+  @Override
+  public String version() {
+    return "2.4.0";
+  }
+
+  /** @return the shortname */
+  @Override
+  public String shortName() {
+    return "columnar";
+  }
+
+  /** @return The binary content type after formatting query results or
+   * when listing serializers, the JSON content type for everything else */
+  @Override
+  public String responseContentType() {
+    return columnar || query == null ? response_content_type : 
+      JSON_CONTENT_TYPE;
+  }
+
+  /**
+   * Format the results from a timeseries data query
+   * @param data_query The TSQuery object used to fetch the results
+   * @param results The data fetched from storage
+   * @param globals Ignored, annotations are not serialized
+   * @return A Deferred<ChannelBuffer> object to pass on to the caller
+   * @throws IOException if serialization failed
+   */
+  @Override
+  public Deferred<ChannelBuffer> formatQueryAsyncV1(final TSQuery data_query,
+      final List<DataPoints[]> results, final List<Annotation> globals)
+          throws IOException {
+    final ChannelBuffer response = ChannelBuffers.dynamicBuffer();
+    // bytes of the response buffer charged to the query so far
+    final long[] buffer_charged = new long[1];
+
+    int count = 0;
+    for (final DataPoints[] separate_dps : results) {
+      count += separate_dps.length;
+    }
+    response.writeBytes(MAGIC);
+    response.writeByte(VERSION);
+    writeVarint(response, count);
+
+    /**
+     * Resolves the metric and tag names of a set of data points, then writes
+     * it to the buffer. Like the JSON serializer, sets are written one after
+     * the other.
+     */
+    class SeriesWriter implements Callback<Deferred<Object>, Object> {
+      final DataPoints dps;
+      String metric;
+      Map<String, String> tags;
+      List<String> agg_tags;
+      long uid_start;
+
+      SeriesWriter(final DataPoints dps) {
+        this.dps = dps;
+      }
+
+      class MetricCB implements Callback<Object, String> {
+        @Override
+        public Object call(final String name) throws Exception {
+          metric = name;
+          return null;
+        }
+      }
+
+      class TagsCB implements Callback<Object, Map<String, String>> {
+        @Override
+        public Object call(final Map<String, String> resolved)
+            throws Exception {
+          tags = resolved;
+          return null;
+        }
+      }
+
+      class AggTagsCB implements Callback<Object, List<String>> {
+        @Override
+        public Object call(final List<String> resolved) throws Exception {
+          agg_tags = resolved;
+          return null;
+        }
+      }
+
+      class WriteCB implements Callback<Object, ArrayList<Object>> {
+        @Override
+        public Object call(final ArrayList<Object> ignored) throws Exception {
+          data_query.getQueryStats().addStat(dps.getQueryIndex(),
+              QueryStat.UID_TO_STRING_TIME, (DateTime.nanoTime() - uid_start));
+          final long serialization_start = DateTime.nanoTime();
+          writeSeries(response, data_query, dps, metric, tags, agg_tags);
+
+          // charge the growth of the response buffer to the query
+          final QueryMemoryTracker memory_tracker =
+              data_query.getQueryStats().getMemoryTracker();
+          if (memory_tracker != null) {
+            memory_tracker.allocate(response.capacity() - buffer_charged[0]);
+            buffer_charged[0] = response.capacity();
+          }
+          data_query.getQueryStats().addStat(dps.getQueryIndex(),
+              QueryStat.SERIALIZATION_TIME,
+              DateTime.nanoTime() - serialization_start);
+          return null;
+        }
+      }
+
+      @Override
+      public Deferred<Object> call(final Object ignored) throws Exception {
+        final CancellationToken cancellation =
+            data_query.getQueryStats().getCancellationToken();
+        if (cancellation != null && cancellation.isCancelled()) {
+          // skip the UID lookups and formatting, nobody will read them
+          cancellation.markSerializationSkipped();
+          throw cancellation.getException();
+        }
+        uid_start = DateTime.nanoTime();
+        final List<Deferred<Object>> deferreds =
+            new ArrayList<Deferred<Object>>(3);
+        deferreds.add(dps.metricNameAsync().addCallback(new MetricCB()));
+        deferreds.add(dps.getTagsAsync().addCallback(new TagsCB()));
+        deferreds.add(dps.getAggregatedTagsAsync()
+            .addCallback(new AggTagsCB()));
+        return Deferred.group(deferreds).addCallback(new WriteCB());
+      }
+    }
+
+    final Deferred<Object> cb_chain = new Deferred<Object>();
+    for (final DataPoints[] separate_dps : results) {
+      for (final DataPoints dps : separate_dps) {
+        cb_chain.addCallback(new SeriesWriter(dps));
+      }
+    }
+
+    class FinalCB implements Callback<ChannelBuffer, Object> {
+      @Override
+      public ChannelBuffer call(final Object ignored) throws Exception {
+        data_query.getQueryStats().markSerializationSuccessful();
+        columnar = true;
+        return response;
+      }
+    }
+
+    cb_chain.callback(null);
+    return cb_chain.addCallback(new FinalCB());
+  }
+
+  /**
+   * Writes the header and data points of a single series.
+   * @param buf The buffer to write to.
+   * @param data_query The query, used for the time range and options.
+   * @param dps The series.
+   * @param metric The resolved metric name.
+   * @param tags The resolved tags, may be null.
+   * @param agg_tags The resolved aggregated tags, may be null.
+   */
+  static void writeSeries(final ChannelBuffer buf, final TSQuery data_query,
+      final DataPoints dps, final String metric, final Map<String, String> tags,
+      final List<String> agg_tags) {
+    writeVarint(buf, dps.getQueryIndex());
+    writeString(buf, metric);
+    if (tags == null) {
+      writeVarint(buf, 0);
+    } else {
+      writeVarint(buf, tags.size());
+      for (final Map.Entry<String, String> tag : tags.entrySet()) {
+        writeString(buf, tag.getKey());
+        writeString(buf, tag.getValue());
+      }
+    }
+    writeStrings(buf, agg_tags);
+    if (data_query.getShowTSUIDs()) {
+      final List<String> tsuids = new ArrayList<String>(dps.getTSUIDs());
+      Collections.sort(tsuids);
+      writeStrings(buf, tsuids);
+    } else {
+      writeVarint(buf, 0);
+    }
+
+    // buffer the points so the columns can be written one after the other
+    long[] timestamps = new long[64];
+    long[] values = new long[timestamps.length];
+    boolean[] integers = new boolean[timestamps.length];
+    int count = 0;
+    int integer_count = 0;
+    // only the min and max of each bucket if the caller has a limit
+    final DataPoints points = data_query.getMaxPoints() > 0 ?
+        new ReducedDataPoints(dps, data_query.startTime(),
+            data_query.endTime(), data_query.getMaxPoints()) : dps;
+    for (final DataPoint dp : points) {
+      if (dp.timestamp() < data_query.startTime() ||
+          dp.timestamp() > data_query.endTime()) {
+        continue;
+      }
+      if (count == timestamps.length) {
+        final int length = timestamps.length * 2;
+        timestamps = Arrays.copyOf(timestamps, length);
+        values = Arrays.copyOf(values, length);
+        integers = Arrays.copyOf(integers, length);
+      }
+      timestamps[count] = dp.timestamp();
+      if (dp.isInteger()) {
+        values[count] = dp.longValue();
+        integers[count] = true;
+        integer_count++;
+      } else {
+        values[count] = Double.doubleToRawLongBits(dp.doubleValue());
+      }
+      count++;
+    }
+    data_query.getQueryStats().addStat(dps.getQueryIndex(),
+        QueryStat.AGGREGATED_SIZE, count);
+
+    writeVarint(buf, count);
+    long previous = 0;
+    for (int i = 0; i < count; i++) {
+      writeSignedVarint(buf, timestamps[i] - previous);
+      previous = timestamps[i];
+    }
+
+    if (integer_count == count) {
+      buf.writeByte(KIND_INTEGERS);
+    } else if (integer_count == 0) {
+      buf.writeByte(KIND_FLOATS);
+    } else {
+      buf.writeByte(KIND_MIXED);
+      for (int i = 0; i < count; i += 8) {
+        int bits = 0;
+        for (int j = 0; j < 8 && i + j < count; j++) {
+          if (integers[i + j]) {
+            bits |= 1 << j;
+          }
+        }
+        buf.writeByte(bits);
+      }
+    }
+    long previous_integer = 0;
+    long previous_float = 0;
+    for (int i = 0; i < count; i++) {
+      if (integers[i]) {
+        writeSignedVarint(buf, values[i] - previous_integer);
+        previous_integer = values[i];
+      } else {
+        writeVarint(buf, values[i] ^ previous_float);
+        previous_float = values[i];
+      }
+    }
+  }
+
+  /** Writes a varint count followed by the strings, an empty list if null */
+  private static void writeStrings(final ChannelBuffer buf,
+      final List<String> strings) {
+    if (strings == null) {
+      writeVarint(buf, 0);
+      return;
+    }
+    writeVarint(buf, strings.size());
+    for (final String string : strings) {
+      writeString(buf, string);
+    }
+  }
+
+  /** Writes the UTF-8 bytes of the string prefixed by their length */
+  static void writeString(final ChannelBuffer buf, final String string) {
+    final byte[] bytes = string == null ? new byte[0] : string.getBytes(UTF8);
+    writeVarint(buf, bytes.length);
+    buf.writeBytes(bytes);
+  }
+
+  /** Writes a zigzag encoded varint */
+  static void writeSignedVarint(final ChannelBuffer buf, final long value) {
+    writeVarint(buf, (value << 1) ^ (value >> 63));
+  }
+
+  /** Writes an unsigned varint, 7 bits per byte, low bits first */
+  static void writeVarint(final ChannelBuffer buf, long value) {
+    while ((value & ~0x7FL) != 0) {
+      buf.writeByte((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    buf.writeByte((int) value);
+  }
+}
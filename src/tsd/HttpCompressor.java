@@ -0,0 +1,128 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
+import org.jboss.netty.handler.codec.http.HttpContentCompressor;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMessage;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Compresses HTTP responses with gzip or deflate, whichever the client
+ * prefers in its Accept-Encoding header. Responses smaller than the
+ * configured threshold and content that is already compressed, such as
+ * graph images, are sent as is since compressing them costs CPU for little
+ * or no gain.
+ * <p>
+ * The compressor keeps per-connection state so a new instance is needed for
+ * each channel.
+ * @since 2.4
+ */
+final class HttpCompressor extends HttpContentCompressor {
+
+  private static final AtomicLong responses_compressed = new AtomicLong();
+  private static final AtomicLong responses_skipped = new AtomicLong();
+  private static final AtomicLong bytes_raw = new AtomicLong();
+  private static final AtomicLong bytes_compressed = new AtomicLong();
+
+  /** Responses with fewer bytes than this are not compressed */
+  private final int min_bytes;
+
+  /**
+   * Default ctor.
+   * @param level The zlib compression level from 1 (fastest) to 9 (smallest).
+   * @param min_bytes The minimum size of a response to compress.
+   * @throws IllegalArgumentException if the level is out of range or the
+   * threshold is negative.
+   */
+  public HttpCompressor(final int level, final int min_bytes) {
+    super(level);
+    if (min_bytes < 0) {
+      throw new IllegalArgumentException(
+          "Compression threshold cannot be negative: " + min_bytes);
+    }
+    this.min_bytes = min_bytes;
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this instance.
+   * @param collector The collector to use.
+   */
+  public static void collectStats(final StatsCollector collector) {
+    collector.record("http.compression.responses", responses_compressed,
+        "type=compressed");
+    collector.record("http.compression.responses", responses_skipped,
+        "type=skipped");
+    collector.record("http.compression.bytes", bytes_raw, "type=raw");
+    collector.record("http.compression.bytes", bytes_compressed,
+        "type=compressed");
+  }
+
+  @Override
+  public void writeRequested(final ChannelHandlerContext ctx,
+      final MessageEvent e) throws Exception {
+    if (!(e.getMessage() instanceof HttpMessage)) {
+      super.writeRequested(ctx, e);
+      return;
+    }
+    // the encoder replaces the content before sending the message downstream
+    final HttpMessage message = (HttpMessage) e.getMessage();
+    final ChannelBuffer raw = message.getContent();
+    final int raw_bytes = raw.readableBytes();
+    super.writeRequested(ctx, e);
+    if (message.getContent() != raw) {
+      responses_compressed.incrementAndGet();
+      bytes_raw.addAndGet(raw_bytes);
+      bytes_compressed.addAndGet(message.getContent().readableBytes());
+    }
+  }
+
+  @Override
+  protected EncoderEmbedder<ChannelBuffer> newContentEncoder(
+      final HttpMessage message, final String accept_encoding)
+      throws Exception {
+    if (message.getContent().readableBytes() < min_bytes ||
+        isCompressed(message.headers().get(HttpHeaders.Names.CONTENT_TYPE))) {
+      responses_skipped.incrementAndGet();
+      return null;
+    }
+    final EncoderEmbedder<ChannelBuffer> encoder =
+        super.newContentEncoder(message, accept_encoding);
+    if (encoder == null) {
+      responses_skipped.incrementAndGet();
+    }
+    return encoder;
+  }
+
+  /**
+   * Whether or not content of the given type is already compressed.
+   * @param content_type The Content-Type of the response, may be null.
+   * @return True for images and archives, false otherwise.
+   */
+  static boolean isCompressed(final String content_type) {
+    if (content_type == null) {
+      return false;
+    }
+    return content_type.startsWith("image/")
+        || content_type.startsWith("application/gzip")
+        || content_type.startsWith("application/zip")
+        || content_type.startsWith("application/x-gzip");
+  }
+}
@@ -38,12 +38,15 @@ import net.opentsdb.core.DataPoints;
 import net.opentsdb.core.FillPolicy;
 import net.opentsdb.core.IncomingDataPoint;
 import net.opentsdb.core.QueryException;
+import net.opentsdb.core.ReducedDataPoints;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.core.TSQuery;
 import net.opentsdb.core.TSSubQuery;
 import net.opentsdb.meta.Annotation;
 import net.opentsdb.meta.TSMeta;
 import net.opentsdb.meta.UIDMeta;
+import net.opentsdb.query.CancellationToken;
+import net.opentsdb.query.QueryMemoryTracker;
 import net.opentsdb.search.SearchQuery;
 import net.opentsdb.stats.QueryStats;
 import net.opentsdb.stats.QueryStats.QueryStat;
@@ -606,6 +609,8 @@ class HttpJsonSerializer extends HttpSerializer {
     // too bad an inner class can't modify a primitive. This is a work around 
     final List<Boolean> timeout_flag = new ArrayList<Boolean>(1);
     timeout_flag.add(false);
+    // bytes of the response buffer charged to the query so far
+    final long[] buffer_charged = new long[1];
     
     // start with JSONp if we're told to
     if (jsonp != null && !jsonp.isEmpty()) {
@@ -768,11 +773,15 @@ class HttpJsonSerializer extends HttpSerializer {
           final long dps_start = DateTime.nanoTime();
           json.writeFieldName("dps");
           long counter = 0;
+          // only the min and max of each bucket if the caller has a limit
+          final DataPoints points = data_query.getMaxPoints() > 0 ?
+              new ReducedDataPoints(dps, data_query.startTime(), 
+                  data_query.endTime(), data_query.getMaxPoints()) : dps;
           
           // default is to write a map, otherwise write arrays
           if (!timeout_flag.get(0) && as_arrays) {
             json.writeStartArray();
-            for (final DataPoint dp : dps) {
+            for (final DataPoint dp : points) {
               if (dp.timestamp() < data_query.startTime() || 
                   dp.timestamp() > data_query.endTime()) {
                 continue;
@@ -799,7 +808,7 @@ class HttpJsonSerializer extends HttpSerializer {
             json.writeEndArray();
           } else if (!timeout_flag.get(0)) {
             json.writeStartObject();
-            for (final DataPoint dp : dps) {
+            for (final DataPoint dp : points) {
               if (dp.timestamp() < (data_query.startTime()) || 
                   dp.timestamp() > (data_query.endTime())) {
                 continue;
@@ -855,6 +864,15 @@ class HttpJsonSerializer extends HttpSerializer {
 
           // close the results for this particular query
           json.writeEndObject();
+          
+          // charge the growth of the response buffer to the query
+          final QueryMemoryTracker memory_tracker = 
+              data_query.getQueryStats().getMemoryTracker();
+          if (memory_tracker != null) {
+            json.flush();
+            memory_tracker.allocate(response.capacity() - buffer_charged[0]);
+            buffer_charged[0] = response.capacity();
+          }
           return null;
         }
       }
@@ -864,6 +882,13 @@ class HttpJsonSerializer extends HttpSerializer {
        * then prints to the output buffer once they are completed.
        */
       public Deferred<Object> call(final Object obj) throws Exception {
+        final CancellationToken cancellation = 
+            data_query.getQueryStats().getCancellationToken();
+        if (cancellation != null && cancellation.isCancelled()) {
+          // skip the UID lookups and formatting, nobody will read them
+          cancellation.markSerializationSkipped();
+          throw cancellation.getException();
+        }
         this.uid_start = DateTime.nanoTime();
         
         resolve_deferreds.add(dps.metricNameAsync()
@@ -28,7 +28,7 @@ import java.util.List;
 import net.opentsdb.core.Const;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.graph.Plot;
-import net.opentsdb.stats.Histogram;
+import net.opentsdb.stats.LatencyHistogram;
 import net.opentsdb.stats.StatsCollector;
 import net.opentsdb.utils.PluginLoader;
 
@@ -69,8 +69,7 @@ final class HttpQuery extends AbstractHttpQuery {
   /**
    * Keep track of the latency of HTTP requests.
    */
-  private static final Histogram httplatency =
-    new Histogram(16000, (short) 2, 100);
+  private static final LatencyHistogram httplatency = new LatencyHistogram();
 
   /** Maps Content-Type to a serializer */
   private static HashMap<String, Constructor<? extends HttpSerializer>>
@@ -293,9 +292,10 @@ final class HttpQuery extends AbstractHttpQuery {
    * loaded if found. If the serializer doesn't exist, an exception will be
    * thrown and the user gets an error
    * <p>
-   * If no query string parameter is supplied, the Content-Type header for the
-   * request is parsed and if a matching serializer is found, it's used.
-   * Otherwise we default to the HttpJsonSerializer.
+   * If no query string parameter is supplied, the first type in the Accept
+   * header matching a serializer other than JSON is used. Then the 
+   * Content-Type header for the request is parsed and if a matching serializer
+   * is found, it's used. Otherwise we default to the HttpJsonSerializer.
    * @throws InvocationTargetException if the serializer cannot be instantiated
    * @throws IllegalArgumentException if the serializer cannot be instantiated
    * @throws InstantiationException if the serializer cannot be instantiated
@@ -320,6 +320,24 @@ final class HttpQuery extends AbstractHttpQuery {
       return;
     }
 
+    // a client may ask for a response format with the Accept header. JSON is
+    // the default so it doesn't override a serializer picked by Content-Type
+    final String accept = request().headers().get("Accept");
+    if (accept != null && !accept.isEmpty()) {
+      for (String type : accept.split(",")) {
+        if (type.indexOf(";") > -1) {
+          type = type.substring(0, type.indexOf(";"));
+        }
+        final Constructor<? extends HttpSerializer> ctor =
+          serializer_map_content_type.get(type.trim());
+        if (ctor != null && 
+            ctor.getDeclaringClass() != HttpJsonSerializer.class) {
+          this.serializer = ctor.newInstance(this);
+          return;
+        }
+      }
+    }
+
     // attempt to parse the Content-Type string. We only want the first part,
     // not the character set. And if the CT is missing, we'll use the default
     // serializer
@@ -679,6 +697,34 @@ final class HttpQuery extends AbstractHttpQuery {
     }
   }
 
+  /**
+   * Send the contents of a file already read in memory to the client with a
+   * 200 OK status and the same headers as {@link #sendFile(String, int)}.
+   * @param path The path of the file, used to guess the MIME type.
+   * @param contents The contents of the file.
+   * @param mtime The modification time of the file in milliseconds.
+   * @param max_age The expiration time of this entity, in seconds.
+   * @since 2.4
+   */
+  public void sendFile(final String path,
+                       final byte[] contents,
+                       final long mtime,
+                       final int max_age) {
+    if (max_age < 0) {
+      throw new IllegalArgumentException("Negative max_age=" + max_age
+                                         + " for path=" + path);
+    }
+    final String mimetype = guessMimeTypeFromUri(path);
+    if (mtime > 0) {
+      response().headers().set(HttpHeaders.Names.AGE,
+                         (System.currentTimeMillis() - mtime) / 1000);
+    }
+    response().headers().set(HttpHeaders.Names.CACHE_CONTROL,
+                       "max-age=" + max_age);
+    sendBuffer(HttpResponseStatus.OK, ChannelBuffers.wrappedBuffer(contents),
+        mimetype == null ? "text/plain" : mimetype);
+  }
+
   /**
    * Method to call after writing the HTTP response to the wire.
    */
@@ -798,6 +844,7 @@ final class HttpQuery extends AbstractHttpQuery {
     }
     final HttpSerializer default_serializer = new HttpJsonSerializer();
     serializers.add(default_serializer);
+    serializers.add(new HttpColumnarSerializer());
 
     serializer_map_content_type =
       new HashMap<String, Constructor<? extends HttpSerializer>>();
@@ -24,10 +24,10 @@ import org.jboss.netty.handler.codec.frame.FrameDecoder;
 import org.jboss.netty.handler.codec.string.StringEncoder;
 import org.jboss.netty.handler.codec.http.HttpChunkAggregator;
 import org.jboss.netty.handler.codec.http.HttpContentDecompressor;
-import org.jboss.netty.handler.codec.http.HttpContentCompressor;
 import org.jboss.netty.handler.codec.http.HttpRequestDecoder;
 import org.jboss.netty.handler.codec.http.HttpResponseEncoder;
 import org.jboss.netty.handler.timeout.IdleStateHandler;
+import org.jboss.netty.util.ExternalResourceReleasable;
 import org.jboss.netty.util.Timer;
 
 import net.opentsdb.core.TSDB;
@@ -38,8 +38,13 @@ import net.opentsdb.core.TSDB;
  * NOTE: On creation (as of 2.3) the property given in the config for 
  * "tsd.core.connections.limit" will be used to limit the number of concurrent
  * connections supported by the pipeline. The default is zero.
+ * As of 2.4 the RPC handlers can run on a pool of threads sized with
+ * "tsd.network.executor.threads" rather than on the I/O threads when
+ * "tsd.network.executor.enable" is true. The pool must then be released
+ * with {@link #releaseExternalResources} when the server shuts down.
  */
-public final class PipelineFactory implements ChannelPipelineFactory {
+public final class PipelineFactory implements ChannelPipelineFactory,
+    ExternalResourceReleasable {
 
   // Those are entirely stateless and thus a single instance is needed.
   private static final StringEncoder ENCODER = new StringEncoder();
@@ -60,6 +65,15 @@ public final class PipelineFactory implements ChannelPipelineFactory {
   
   /** The server side socket timeout. **/
   private final int socketTimeout;
+
+  /** Runs the RPC handlers off of the I/O threads, null if disabled */
+  private final ExecutionStage executor;
+
+  /** Whether or not to compress HTTP responses, the zlib level and the
+   * smallest response to compress */
+  private final boolean compression;
+  private final int compression_level;
+  private final int compression_min_bytes;
   
   /**
    * Constructor that initializes the RPC router and loads HTTP formatter 
@@ -102,8 +116,27 @@ public final class PipelineFactory implements ChannelPipelineFactory {
       final int connections_limit) {
     this.tsdb = tsdb;
     socketTimeout = tsdb.getConfig().getInt("tsd.core.socket.timeout");
+    compression = tsdb.getConfig().getBoolean("tsd.http.compression.enable");
+    compression_level = tsdb.getConfig().getInt("tsd.http.compression.level");
+    compression_min_bytes = 
+        tsdb.getConfig().getInt("tsd.http.compression.min_bytes");
+    if (compression_level < 1 || compression_level > 9) {
+      throw new IllegalArgumentException("The compression level must be "
+          + "between 1 and 9: " + compression_level);
+    }
     timer = tsdb.getTimer();
     timeoutHandler = new IdleStateHandler(timer, 0, 0, socketTimeout);
+    if (tsdb.getConfig().getBoolean("tsd.network.executor.enable")) {
+      int threads = Runtime.getRuntime().availableProcessors() * 4;
+      if (tsdb.getConfig().hasProperty("tsd.network.executor.threads")) {
+        threads = tsdb.getConfig().getInt("tsd.network.executor.threads");
+      }
+      executor = new ExecutionStage(threads, 
+          tsdb.getConfig().getLong("tsd.network.executor.max_channel_bytes"),
+          tsdb.getConfig().getLong("tsd.network.executor.max_total_bytes"));
+    } else {
+      executor = null;
+    }
     rpchandler = new RpcHandler(tsdb, manager);
     connmgr = new ConnectionManager(connections_limit);
     try {
@@ -115,6 +148,14 @@ public final class PipelineFactory implements ChannelPipelineFactory {
     }
   }
 
+  /** Stops the threads running the RPC handlers, if any. */
+  @Override
+  public void releaseExternalResources() {
+    if (executor != null) {
+      executor.releaseExternalResources();
+    }
+  }
+
   @Override
   public ChannelPipeline getPipeline() throws Exception {
    final ChannelPipeline pipeline = pipeline();
@@ -153,7 +194,10 @@ public final class PipelineFactory implements ChannelPipelineFactory {
         // allow client to encode the payload (ie : with gziped json)
         pipeline.addLast("inflater", new HttpContentDecompressor());
         pipeline.addLast("encoder", new HttpResponseEncoder());
-        pipeline.addLast("deflater", new HttpContentCompressor());
+        if (compression) {
+          pipeline.addLast("deflater", 
+              new HttpCompressor(compression_level, compression_min_bytes));
+        }
       } else {
         pipeline.addLast("framer", new LineBasedFrameDecoder(1024));
         pipeline.addLast("encoder", ENCODER);
@@ -161,6 +205,10 @@ public final class PipelineFactory implements ChannelPipelineFactory {
       }
 
       pipeline.addLast("timeout", timeoutHandler);
+      if (executor != null) {
+        // handlers may block, keep them off of the I/O threads
+        pipeline.addLast("executor", executor);
+      }
       pipeline.remove(this);
       pipeline.addLast("handler", rpchandler);
 
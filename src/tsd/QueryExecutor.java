@@ -12,15 +12,15 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.tsd;
 
-import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.hbase.async.HBaseException;
 import org.hbase.async.RpcTimedOutException;
@@ -52,6 +52,8 @@ import net.opentsdb.query.expression.ExpressionIterator;
 import net.opentsdb.query.expression.NumericFillPolicy;
 import net.opentsdb.query.expression.TimeSyncedIterator;
 import net.opentsdb.query.expression.VariableIterator.SetOperator;
+import net.opentsdb.query.CancellationToken;
+import net.opentsdb.query.QueryMemoryTracker;
 import net.opentsdb.query.filter.TagVFilter;
 import net.opentsdb.query.pojo.Expression;
 import net.opentsdb.query.pojo.Filter;
@@ -100,6 +102,13 @@ public class QueryExecutor {
   /** A map of the sub query results to their Metric ids */
   private final Map<String, DataPoints[]> sub_query_results;
   
+  /** A map of the Metric ids to the index of their sub query in the TSQuery.
+   * Metrics with identical sub queries share the same index. */
+  private final Map<String, Integer> sub_query_index;
+  
+  /** The results of each sub query in the TSQuery */
+  private DataPoints[][] scan_results;
+  
   /** A map of expression iterators to their IDs */
   private final Map<String, ExpressionIterator> expressions;
 
@@ -189,8 +198,34 @@ public class QueryExecutor {
           mq.getAggregator() != null ? mq.getAggregator() : timespan.getAggregator());
     }
     
+    // identical sub queries are scanned once and shared by their metric IDs
     final ArrayList<TSSubQuery> subs = 
-        new ArrayList<TSSubQuery>(sub_queries.values()); 
+        new ArrayList<TSSubQuery>(sub_queries.size());
+    sub_query_index = new HashMap<String, Integer>(sub_queries.size());
+    for (final Metric mq : query.getMetrics()) {
+      if (sub_query_index.containsKey(mq.getId())) {
+        continue;
+      }
+      final TSSubQuery sub = sub_queries.get(mq.getId());
+      int index = -1;
+      for (int i = 0; i < subs.size(); i++) {
+        if (sameScan(subs.get(i), sub)) {
+          index = i;
+          break;
+        }
+      }
+      if (index < 0) {
+        index = subs.size();
+        subs.add(sub);
+      } else {
+        sub_queries.put(mq.getId(), subs.get(index));
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Metric " + mq.getId() + " shares the scan of " 
+              + subs.get(index));
+        }
+      }
+      sub_query_index.put(mq.getId(), index);
+    }
     ts_query.setQueries(subs);
     
     // setup expressions
@@ -223,6 +258,9 @@ public class QueryExecutor {
     http_query = query;
     final QueryStats query_stats = 
         new QueryStats(query.getRemoteAddress(), ts_query, query.getHeaders());
+    query_stats.setMemoryTracker(new QueryMemoryTracker(tsdb.getConfig()));
+    query_stats.setCancellationToken(
+        QueryRpc.newCancellationToken(tsdb, query));
     ts_query.setQueryStats(query_stats);
     
     /**
@@ -238,202 +276,20 @@ public class QueryExecutor {
     }
     
     /**
-     * After all of the queries have run and we have data (or not) then we
-     * need to compile the iterators.
-     * This class could probably be improved:
-     * First we iterate over the results AND for each result, iterate over
-     * the expressions, giving a time synced iterator to each expression that 
-     * needs the result set.
-     * THEN we iterate over the expressions again and build a DAG to determine
-     * if any of the expressions require the output of an expression. If so
-     * then we add the expressions to the proper parent and compile them in
-     * order.
-     * After all of that we're ready to start serializing and iterating
-     * over the results.
+     * After all of the scans and expressions have completed we map the scan
+     * results to their metric IDs and start serializing.
      */
-    class QueriesCB implements Callback<Object, ArrayList<DataPoints[]>> {
-      public Object call(final ArrayList<DataPoints[]> query_results) 
-        throws Exception {
-        
-        for (int i = 0; i < query_results.size(); i++) {
-          final TSSubQuery sub = ts_query.getQueries().get(i);
-          
-          Iterator<Entry<String, TSSubQuery>> it = sub_queries.entrySet().iterator();
-          while (it.hasNext()) {
-            final Entry<String, TSSubQuery> entry = it.next();
-            if (entry.getValue().equals(sub)) {
-              sub_query_results.put(entry.getKey(), query_results.get(i));
-              for (final ExpressionIterator ei : expressions.values()) {
-                if (ei.getVariableNames().contains(entry.getKey())) {
-                  final TimeSyncedIterator tsi = new TimeSyncedIterator(
-                      entry.getKey(), sub.getFilterTagKs(), 
-                      query_results.get(i));
-                  final NumericFillPolicy fill = fills.get(entry.getKey());
-                  if (fill != null) {
-                    tsi.setFillPolicy(fill);
-                  }
-                  ei.addResults(entry.getKey(), tsi);
-                  if (LOG.isDebugEnabled()) {
-                    LOG.debug("Added results for " + entry.getKey() + 
-                        " to " + ei.getId());
-                  }
-                }
-              }
-            }
-          }
-        }
-
-        // handle nested expressions
-        final DirectedAcyclicGraph<String, DefaultEdge> graph = 
-            new DirectedAcyclicGraph<String, DefaultEdge>(DefaultEdge.class);
-
-        for (final Entry<String, ExpressionIterator> eii : expressions.entrySet()) {
-          if (LOG.isDebugEnabled()) {
-            LOG.debug(String.format("Expression entry key is %s, value is %s", 
-                eii.getKey(), eii.getValue().toString()));
-            LOG.debug(String.format("Time to loop through the variable names "
-                + "for %s", eii.getKey()));
-          }
-
-          if (!graph.containsVertex(eii.getKey())) {
-            if (LOG.isDebugEnabled()) {
-              LOG.debug("Adding vertex " + eii.getKey());
-            }
-            graph.addVertex(eii.getKey());
-          }
-
-          for (final String var : eii.getValue().getVariableNames()) {
-            if (LOG.isDebugEnabled()) {
-              LOG.debug(String.format("var is %s", var));
-            }
-
-            final ExpressionIterator ei = expressions.get(var);
-
-            if (ei != null) {
-              if (LOG.isDebugEnabled()) {
-                LOG.debug(String.format("The expression iterator for %s is %s", 
-                    var, ei.toString()));
-              }
-
-              // TODO - really ought to calculate this earlier
-              if (eii.getKey().equals(var)) {
-                throw new IllegalArgumentException(
-                    "Self referencing expression found: " + eii.getKey());
-              }
-
-              if (LOG.isDebugEnabled()) {
-                LOG.debug("Nested expression detected. " + eii.getKey() + 
-                    " depends on " + var);
-              }
-
-              if (!graph.containsVertex(eii.getKey())) {
-                if (LOG.isDebugEnabled()) {
-                  LOG.debug("Added vertex " + eii.getKey());
-                }
-                graph.addVertex(eii.getKey());
-              } else if (LOG.isDebugEnabled()) {
-                LOG.debug("Already contains vertex " + eii.getKey());
-              }
-
-              if (!graph.containsVertex(var)) {
-                if (LOG.isDebugEnabled()) {
-                  LOG.debug("Added vertex " + var);
-                }
-                graph.addVertex(var);
-              } else if (LOG.isDebugEnabled()) {
-                LOG.debug("Already contains vertex " + var);
-              }
-
-              try {
-                if (LOG.isDebugEnabled()) {
-                  LOG.debug("Added Edge " + eii.getKey() + " - " + var);
-                }
-                graph.addDagEdge(eii.getKey(), var);
-              } catch (CycleFoundException cfe) {
-                throw new IllegalArgumentException("Circular reference found: " + 
-                    eii.getKey(), cfe);
-              }
-            } else if (LOG.isDebugEnabled()) {
-              LOG.debug(String.format("The expression iterator for %s is null", var));
-            }
-          }
-        }
-
-        // compile all of the expressions
-        final long intersect_start = DateTime.currentTimeMillis();
-
-        final Integer expressionLength = expressions.size();
-        final ExpressionIterator[] compile_stack = 
-            new ExpressionIterator[expressionLength];
-        final TopologicalOrderIterator<String, DefaultEdge> it = 
-            new TopologicalOrderIterator<String, DefaultEdge>(graph);
-
-        if (LOG.isDebugEnabled()) {
-          LOG.debug(String.format("Expressions Size is %d", expressionLength));
-          LOG.debug(String.format("Topology Iterator %s", it.toString()));
-        }
-
-        int i = 0;
-        while (it.hasNext()) {
-          String next = it.next();
-          if (LOG.isDebugEnabled()) {
-            LOG.debug(String.format("Expression: %s", next));
-          }
-          ExpressionIterator ei = expressions.get(next);
-          if (LOG.isDebugEnabled()) {
-            LOG.debug(String.format("Expression Iterator: %s", ei.toString()));
-          }
-          if (ei == null) {
-            LOG.error(String.format("The expression iterator for %s is null", next));
-          }
-          compile_stack[i] = ei;
-          if (LOG.isDebugEnabled()) {
-            LOG.debug(String.format("Added expression %s to compile_stack[%d]", 
-                next, i));
-          }
-          i++;
-        }
-
-        if (i != expressionLength) {
-          throw new IOException(String.format(" Internal Error: Fewer "
-              + "expressions where added to the compile stack than "
-              + "expressions.size (%d instead of %d)", i, expressionLength));
-        }
-
-        if (LOG.isDebugEnabled()) {
-          LOG.debug(String.format("compile stack length: %d", compile_stack.length));
-        }
-
-        for (int x = compile_stack.length - 1; x >= 0; x--) {
-          if (compile_stack[x] == null) {
-            throw new NullPointerException(String.format("Item %d in "
-                + "compile_stack[] is null", x));
-          }
-          // look for and add expressions
-          for (final String var : compile_stack[x].getVariableNames()) {
-            if (LOG.isDebugEnabled()) {
-              LOG.debug(String.format("Looking for variable %s for %s", var, 
-                  compile_stack[x].getId()));
-            }
-            ExpressionIterator source = expressions.get(var);
-            if (source != null) {
-              compile_stack[x].addResults(var, source.getCopy());
-              if (LOG.isDebugEnabled()) {
-                LOG.debug(String.format("Adding expression %s to %s", 
-                    source.getId(), compile_stack[x].getId()));
-              }
-            }
-          }
-          compile_stack[x].compile();
-          if (LOG.isDebugEnabled()) {
-            LOG.debug(String.format("Successfully compiled %s", 
-                compile_stack[x].getId()));
-          }
+    class QueriesCB implements Callback<Object, ArrayList<Object>> {
+      public Object call(final ArrayList<Object> ignored) throws Exception {
+        final CancellationToken cancellation = 
+            query_stats.getCancellationToken();
+        if (cancellation.isCancelled()) {
+          cancellation.markSerializationSkipped();
+          throw cancellation.getException();
         }
-
-        if (LOG.isDebugEnabled()) {
-          LOG.debug("Finished compilations in " +
-              (DateTime.currentTimeMillis() - intersect_start) + " ms");
+        
+        for (final Entry<String, Integer> entry : sub_query_index.entrySet()) {
+          sub_query_results.put(entry.getKey(), scan_results[entry.getValue()]);
         }
         
         return serialize()
@@ -445,18 +301,50 @@ public class QueryExecutor {
     /**
      * Callback executed after we have resolved the metric, tag names and tag
      * values to their respective UIDs. This callback then runs the actual 
-     * queries and fetches their results.
+     * queries and wires each expression to wait on the scans and expressions
+     * it needs. Each expression is then evaluated as soon as its inputs are 
+     * ready, in parallel with other branches of the graph when the TSD has a
+     * compute pool.
      */
     class BuildCB implements Callback<Deferred<Object>, net.opentsdb.core.Query[]> {
       @Override
       public Deferred<Object> call(final net.opentsdb.core.Query[] queries) {
-        final ArrayList<Deferred<DataPoints[]>> deferreds = 
-            new ArrayList<Deferred<DataPoints[]>>(queries.length);
+        // validate the graph before spending time on the scans
+        final List<String> evaluation_order = sortExpressions();
+        
+        final ArrayList<Deferred<Object>> deferreds = 
+            new ArrayList<Deferred<Object>>(queries.length + 
+                evaluation_order.size());
+        scan_results = new DataPoints[queries.length][];
+        final Completion[] scans = new Completion[queries.length];
+        for (int i = 0; i < queries.length; i++) {
+          scans[i] = new Completion();
+          deferreds.add(QueryRpc.runScheduled(tsdb, http_query, queries[i], 
+              ts_query.getQueryStats(), i)
+                .addCallback(new ScanCB(i, DateTime.nanoTime()))
+                .addBoth(scans[i]));
+        }
         
-        for (final net.opentsdb.core.Query query : queries) {
-          deferreds.add(query.runAsync());
+        final Map<String, Completion> nodes = 
+            new HashMap<String, Completion>(evaluation_order.size());
+        for (final String id : evaluation_order) {
+          final ExpressionIterator iterator = expressions.get(id);
+          final List<Deferred<Object>> inputs = new ArrayList<Deferred<Object>>();
+          for (final String var : iterator.getVariableNames()) {
+            if (nodes.containsKey(var)) {
+              inputs.add(nodes.get(var).await());
+            } else if (sub_query_index.containsKey(var)) {
+              inputs.add(scans[sub_query_index.get(var)].await());
+            }
+          }
+          final Completion node = new Completion();
+          nodes.put(id, node);
+          deferreds.add(Deferred.group(inputs)
+              .addCallbackDeferring(new EvaluateCB(id, iterator))
+              .addBoth(node));
         }
-        return Deferred.groupInOrder(deferreds).addCallback(new QueriesCB())
+        
+        return Deferred.group(deferreds).addCallback(new QueriesCB())
             .addErrback(new ErrorCB());
       }
     }
@@ -468,6 +356,236 @@ public class QueryExecutor {
       .addErrback(new ErrorCB());
   }
   
+  /**
+   * Builds a DAG of the expressions to determine if any of the expressions 
+   * require the output of another expression.
+   * @return The expression IDs ordered so that each expression comes after
+   * the expressions it depends on.
+   * @throws IllegalArgumentException if an expression references itself or 
+   * there is a circular reference.
+   */
+  private List<String> sortExpressions() {
+    if (expressions == null || expressions.isEmpty()) {
+      return Collections.emptyList();
+    }
+    final DirectedAcyclicGraph<String, DefaultEdge> graph = 
+        new DirectedAcyclicGraph<String, DefaultEdge>(DefaultEdge.class);
+
+    for (final Entry<String, ExpressionIterator> eii : expressions.entrySet()) {
+      if (LOG.isDebugEnabled()) {
+        LOG.debug(String.format("Expression entry key is %s, value is %s", 
+            eii.getKey(), eii.getValue().toString()));
+      }
+
+      if (!graph.containsVertex(eii.getKey())) {
+        graph.addVertex(eii.getKey());
+      }
+
+      for (final String var : eii.getValue().getVariableNames()) {
+        if (!expressions.containsKey(var)) {
+          continue;
+        }
+        if (eii.getKey().equals(var)) {
+          throw new IllegalArgumentException(
+              "Self referencing expression found: " + eii.getKey());
+        }
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Nested expression detected. " + eii.getKey() + 
+              " depends on " + var);
+        }
+        if (!graph.containsVertex(var)) {
+          graph.addVertex(var);
+        }
+        try {
+          graph.addDagEdge(eii.getKey(), var);
+        } catch (CycleFoundException cfe) {
+          throw new IllegalArgumentException("Circular reference found: " + 
+              eii.getKey(), cfe);
+        }
+      }
+    }
+
+    // the topological order has the dependents first so flip it
+    final List<String> order = new ArrayList<String>(expressions.size());
+    final TopologicalOrderIterator<String, DefaultEdge> it = 
+        new TopologicalOrderIterator<String, DefaultEdge>(graph);
+    while (it.hasNext()) {
+      order.add(it.next());
+    }
+    Collections.reverse(order);
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Expression evaluation order: " + order);
+    }
+    return order;
+  }
+  
+  /**
+   * Stores the results of a scan and records how long it took. The tags of
+   * each series are computed here as they're computed lazily and the results
+   * may be shared by expressions running on other threads.
+   */
+  class ScanCB implements Callback<Object, DataPoints[]> {
+    final int index;
+    final long start;
+    
+    ScanCB(final int index, final long start) {
+      this.index = index;
+      this.start = start;
+    }
+    
+    @Override
+    public Object call(final DataPoints[] results) throws Exception {
+      for (final DataPoints dps : results) {
+        dps.getTagUids();
+        dps.getAggregatedTagUids();
+      }
+      scan_results[index] = results;
+      final long elapsed = DateTime.nanoTime() - start;
+      for (final Entry<String, Integer> entry : sub_query_index.entrySet()) {
+        if (entry.getValue() == index) {
+          ts_query.getQueryStats().addNodeTime(entry.getKey(), elapsed);
+        }
+      }
+      return null;
+    }
+  }
+  
+  /**
+   * Hands the scan results and copies of the expressions it depends on to an
+   * expression and compiles it, on the compute pool if the TSD has one.
+   */
+  class EvaluateCB implements Callback<Deferred<Object>, ArrayList<Object>>, 
+      Runnable {
+    final String id;
+    final ExpressionIterator iterator;
+    final Deferred<Object> completed;
+    
+    EvaluateCB(final String id, final ExpressionIterator iterator) {
+      this.id = id;
+      this.iterator = iterator;
+      completed = new Deferred<Object>();
+    }
+    
+    @Override
+    public Deferred<Object> call(final ArrayList<Object> ignored) {
+      final ExecutorService pool = tsdb.getQueryComputePool();
+      if (pool == null) {
+        run();
+      } else {
+        try {
+          pool.execute(this);
+        } catch (RejectedExecutionException e) {
+          // shutting down
+          run();
+        }
+      }
+      return completed;
+    }
+    
+    @Override
+    public void run() {
+      try {
+        final long start = DateTime.nanoTime();
+        for (final String var : iterator.getVariableNames()) {
+          final ExpressionIterator source = expressions.get(var);
+          if (source != null) {
+            iterator.addResults(var, source.getCopy());
+            if (LOG.isDebugEnabled()) {
+              LOG.debug("Added expression " + var + " to " + id);
+            }
+            continue;
+          }
+          final Integer index = sub_query_index.get(var);
+          if (index != null) {
+            final TimeSyncedIterator tsi = new TimeSyncedIterator(var, 
+                sub_queries.get(var).getFilterTagKs(), scan_results[index]);
+            final NumericFillPolicy fill = fills.get(var);
+            if (fill != null) {
+              tsi.setFillPolicy(fill);
+            }
+            iterator.addResults(var, tsi);
+            if (LOG.isDebugEnabled()) {
+              LOG.debug("Added results for " + var + " to " + id);
+            }
+          }
+        }
+        iterator.compile();
+        final long elapsed = DateTime.nanoTime() - start;
+        ts_query.getQueryStats().addNodeTime(id, elapsed);
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Compiled " + id + " in " + DateTime.msFromNano(elapsed) 
+              + " ms on " + Thread.currentThread().getName());
+        }
+        completed.callback(null);
+      } catch (Exception e) {
+        completed.callback(e);
+      }
+    }
+  }
+  
+  /**
+   * Lets any number of dependents wait on a scan or an expression. A Deferred
+   * can only be chained once so each dependent gets its own that is called 
+   * with the result or exception of the node.
+   */
+  private static final class Completion implements Callback<Object, Object> {
+    private final List<Deferred<Object>> waiting = 
+        new ArrayList<Deferred<Object>>(1);
+    private boolean done;
+    private Object result;
+    
+    /** @return A deferred called when the node completes */
+    synchronized Deferred<Object> await() {
+      if (!done) {
+        final Deferred<Object> deferred = new Deferred<Object>();
+        waiting.add(deferred);
+        return deferred;
+      }
+      if (result instanceof Exception) {
+        return Deferred.fromError((Exception) result);
+      }
+      return Deferred.fromResult(result);
+    }
+    
+    @Override
+    public Object call(final Object result) {
+      final List<Deferred<Object>> to_call;
+      synchronized (this) {
+        this.result = result;
+        done = true;
+        to_call = new ArrayList<Deferred<Object>>(waiting);
+        waiting.clear();
+      }
+      for (final Deferred<Object> deferred : to_call) {
+        deferred.callback(result);
+      }
+      return result;
+    }
+  }
+  
+  /**
+   * Whether or not two sub queries would fetch the same results. The filter
+   * comparison ignores the group by flag so we check those as well.
+   * @param a A sub query
+   * @param b Another sub query
+   * @return True if one scan can serve both
+   */
+  static boolean sameScan(final TSSubQuery a, final TSSubQuery b) {
+    if (!a.equals(b)) {
+      return false;
+    }
+    if (a.getFilters() == null || b.getFilters() == null) {
+      return a.getFilters() == b.getFilters();
+    }
+    for (int i = 0; i < a.getFilters().size(); i++) {
+      if (a.getFilters().get(i).isGroupBy() != 
+          b.getFilters().get(i).isGroupBy()) {
+        return false;
+      }
+    }
+    return true;
+  }
+  
   /**
    * Writes the results to a ChannelBuffer to return to the caller. This will
    * iterate over all of the outputs and drop in meta data where appropriate.
@@ -544,23 +662,12 @@ public class QueryExecutor {
 //            DateTime.currentTimeMillis() - start);
         ts_query.getQueryStats().markSerializationSuccessful();
 
-        // dump overall stats as an extra object in the array
-//        if (true) {
-//          final QueryStats stats = ts_query.getQueryStats();
-//          json.writeFieldName("statsSummary");
-//          json.writeStartObject();
-//          //json.writeStringField("hostname", TSDB.getHostname());
-//          //json.writeNumberField("runningQueries", stats.getNumRunningQueries());
-//          json.writeNumberField("datapoints", stats.getAggregatedSize());
-//          json.writeNumberField("rawDatapoints", stats.getSize());
-//          //json.writeNumberField("rowsFetched", stats.getRowsFetched());
-//          json.writeNumberField("aggregationTime", stats.getTimeAggregation());
-//          json.writeNumberField("serializationTime", stats.getTimeSerialization());
-//          json.writeNumberField("storageTime", stats.getTimeStorage());
-//          json.writeNumberField("timeTotal", 
-//              ((double)stats.getTimeTotal() / (double)1000000));
-//          json.writeEndObject();
-//        }
+        // dump overall stats, including the time taken by each scan and 
+        // expression, if asked for
+        if (http_query.hasQueryStringParam("show_summary")) {
+          json.writeFieldName("statsSummary");
+          json.writeObject(ts_query.getQueryStats().getStats(true, false));
+        }
         
         // dump the original query
         if (true) {
@@ -595,27 +702,40 @@ public class QueryExecutor {
             LOG.error("The deferred group exception didn't have a cause???");
           }
         }
+        final QueryStats query_stats = ts_query.getQueryStats();
         if (ex instanceof RpcTimedOutException) {
+          query_stats.markSerialized(HttpResponseStatus.REQUEST_TIMEOUT, ex);
           QueryExecutor.this.http_query.badRequest(new BadRequestException(
               HttpResponseStatus.REQUEST_TIMEOUT, ex.getMessage()));
         } else if (ex instanceof HBaseException) {
+          query_stats.markSerialized(HttpResponseStatus.FAILED_DEPENDENCY, ex);
           QueryExecutor.this.http_query.badRequest(new BadRequestException(
               HttpResponseStatus.FAILED_DEPENDENCY, ex.getMessage()));
         } else if (ex instanceof QueryException) {
+          query_stats.markSerialized(((QueryException)ex).getStatus(), ex);
           QueryExecutor.this.http_query.badRequest(new BadRequestException(
               ((QueryException)ex).getStatus(), ex.getMessage()));
         } else if (ex instanceof BadRequestException) {
+          query_stats.markSerialized(((BadRequestException)ex).getStatus(), ex);
           QueryExecutor.this.http_query.badRequest((BadRequestException)ex);
         } else if (ex instanceof NoSuchUniqueName) {
+          query_stats.markSerialized(HttpResponseStatus.BAD_REQUEST, ex);
           QueryExecutor.this.http_query.badRequest(new BadRequestException(ex));
         } else {
+          query_stats.markSerialized(HttpResponseStatus.INTERNAL_SERVER_ERROR, 
+              ex);
           QueryExecutor.this.http_query.badRequest(new BadRequestException(ex));
         }
         
       } catch (RuntimeException ex2) {
         LOG.error("Exception thrown during exception handling", ex2);
+        ts_query.getQueryStats().markSerialized(
+            HttpResponseStatus.INTERNAL_SERVER_ERROR, ex2);
         QueryExecutor.this.http_query.sendReply
           (HttpResponseStatus.INTERNAL_SERVER_ERROR, ex2.getMessage().getBytes());
+      } finally {
+        // no-op when serialization already completed or cancelled it
+        ts_query.getQueryStats().getCancellationToken().complete();
       }
       return null;
     }
@@ -44,11 +44,16 @@ import net.opentsdb.core.TSQuery;
 import net.opentsdb.core.TSSubQuery;
 import net.opentsdb.core.Tags;
 import net.opentsdb.meta.Annotation;
+import net.opentsdb.meta.BatchLastPointQuery;
 import net.opentsdb.meta.TSUIDQuery;
+import net.opentsdb.query.CancellationToken;
+import net.opentsdb.query.QueryMemoryTracker;
+import net.opentsdb.query.QueryScheduler;
 import net.opentsdb.query.expression.ExpressionTree;
 import net.opentsdb.query.expression.Expressions;
 import net.opentsdb.query.filter.TagVFilter;
 import net.opentsdb.stats.QueryStats;
+import net.opentsdb.stats.QueryStats.QueryStat;
 import net.opentsdb.stats.StatsCollector;
 import net.opentsdb.uid.NoSuchUniqueName;
 import net.opentsdb.uid.UniqueId;
@@ -73,6 +78,7 @@ final class QueryRpc implements HttpRpc {
   static final AtomicLong query_invalid = new AtomicLong();
   static final AtomicLong query_exceptions = new AtomicLong();
   static final AtomicLong query_success = new AtomicLong();
+  static final AtomicLong last_point_gets = new AtomicLong();
   
   /**
    * Implements the /api/query endpoint to fetch data from OpenTSDB.
@@ -161,6 +167,8 @@ final class QueryRpc implements HttpRpc {
     final QueryStats query_stats = 
         new QueryStats(query.getRemoteAddress(), data_query, 
             query.getPrintableHeaders());
+    query_stats.setMemoryTracker(new QueryMemoryTracker(tsdb.getConfig()));
+    query_stats.setCancellationToken(newCancellationToken(tsdb, query));
     data_query.setQueryStats(query_stats);
     query.setStats(query_stats);
     
@@ -231,6 +239,12 @@ final class QueryRpc implements HttpRpc {
     class QueriesCB implements Callback<Object, ArrayList<DataPoints[]>> {
       public Object call(final ArrayList<DataPoints[]> query_results) 
         throws Exception {
+        final CancellationToken cancellation = 
+            query_stats.getCancellationToken();
+        if (cancellation.isCancelled()) {
+          cancellation.markSerializationSkipped();
+          throw cancellation.getException();
+        }
         if (allow_expressions) {
           // process each of the expressions into a new list, then merge it
           // with the original. This avoids possible recursion loops.
@@ -280,8 +294,8 @@ final class QueryRpc implements HttpRpc {
       public Deferred<Object> call(final Query[] queries) {
         final ArrayList<Deferred<DataPoints[]>> deferreds = 
             new ArrayList<Deferred<DataPoints[]>>(queries.length);
-        for (final Query query : queries) {
-          deferreds.add(query.runAsync());
+        for (int i = 0; i < queries.length; i++) {
+          deferreds.add(runScheduled(tsdb, query, queries[i], query_stats, i));
         }
         return Deferred.groupInOrder(deferreds).addCallback(new QueriesCB());
       }
@@ -308,6 +322,114 @@ final class QueryRpc implements HttpRpc {
     }
   }
   
+  /**
+   * Creates a token that cancels the query when the client disconnects or
+   * when {@code tsd.query.timeout} elapses.
+   * @param tsdb The TSDB to which we belong
+   * @param query The HTTP query to watch
+   * @return A cancellation token for the query
+   * @since 2.4
+   */
+  static CancellationToken newCancellationToken(final TSDB tsdb, 
+      final HttpQuery query) {
+    final CancellationToken token = new CancellationToken();
+    token.cancelOnClose(query.channel());
+    final long timeout = tsdb.getConfig().getLong("tsd.query.timeout");
+    if (timeout > 0) {
+      token.scheduleDeadline(tsdb.getTimer(), timeout);
+    }
+    return token;
+  }
+  
+  /**
+   * Runs the query once the TSD's query scheduler admits it. If the scheduler
+   * is disabled the query is run immediately. The source of the query is the
+   * value of the {@code tsd.query.scheduler.source_header} header if set and
+   * present, otherwise the client's address. The priority comes from the
+   * {@code tsd.query.scheduler.priority_header} header.
+   * @param tsdb The TSDB to which we belong
+   * @param http_query The HTTP query the query came from
+   * @param query The query to run
+   * @param query_stats The stats to record the queue wait in, may be null
+   * @param index The index of the sub query for stats
+   * @return A deferred resolving to the query results
+   * @throws BadRequestException if the priority header was invalid
+   * @since 2.4
+   */
+  static Deferred<DataPoints[]> runScheduled(final TSDB tsdb, 
+      final HttpQuery http_query, final Query query, 
+      final QueryStats query_stats, final int index) {
+    final QueryScheduler scheduler = tsdb.getQueryScheduler();
+    if (scheduler == null) {
+      return query.runAsync();
+    }
+    
+    String source = null;
+    final String source_header = 
+        tsdb.getConfig().getString("tsd.query.scheduler.source_header");
+    if (source_header != null && !source_header.isEmpty()) {
+      source = http_query.request().headers().get(source_header);
+    }
+    if (source == null || source.isEmpty()) {
+      // drop the leading slash and the client port
+      source = http_query.getRemoteAddress();
+      final int port = source.lastIndexOf(':');
+      source = source.substring(source.startsWith("/") ? 1 : 0, 
+          port > 0 ? port : source.length());
+    }
+    
+    String priority = http_query.request().headers().get(
+        tsdb.getConfig().getString("tsd.query.scheduler.priority_header"));
+    if (priority == null || priority.isEmpty()) {
+      priority = tsdb.getConfig().getString(
+          "tsd.query.scheduler.default_priority");
+    }
+    final QueryScheduler.Priority query_priority;
+    try {
+      query_priority = QueryScheduler.Priority.fromString(priority);
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestException(HttpResponseStatus.BAD_REQUEST, 
+          "Invalid query priority", e.getMessage(), e);
+    }
+    
+    /** Hands the slot to the next query, passing the results through */
+    class ReleaseCB implements Callback<DataPoints[], DataPoints[]> {
+      @Override
+      public DataPoints[] call(final DataPoints[] results) {
+        scheduler.release();
+        return results;
+      }
+    }
+    
+    /** Records the time spent waiting and runs the query */
+    class AdmittedCB implements Callback<Deferred<DataPoints[]>, Long> {
+      @Override
+      public Deferred<DataPoints[]> call(final Long wait) {
+        if (query_stats != null) {
+          query_stats.addStat(index, QueryStat.QUEUE_WAIT_TIME, wait);
+          // don't start scanning if the client gave up while we waited
+          final CancellationToken cancellation = 
+              query_stats.getCancellationToken();
+          if (cancellation != null && cancellation.isCancelled()) {
+            scheduler.release();
+            throw cancellation.getException();
+          }
+        }
+        final Deferred<DataPoints[]> results;
+        try {
+          results = query.runAsync();
+        } catch (RuntimeException e) {
+          scheduler.release();
+          throw e;
+        }
+        return results.addBoth(new ReleaseCB());
+      }
+    }
+    
+    return scheduler.acquire(source, query_priority)
+        .addCallbackDeferring(new AdmittedCB());
+  }
+  
   /**
    * Handles an expression query
    * @param tsdb The TSDB to which we belong
@@ -350,6 +472,10 @@ final class QueryRpc implements HttpRpc {
           "Missing sub queries");
     }
     
+    // batch the gets of many series unless disabled
+    final boolean batched = 
+        tsdb.getConfig().getInt("tsd.query.last.batch_size") > 0;
+    
     // a list of deferreds to wait on
     final ArrayList<Deferred<Object>> calls = new ArrayList<Deferred<Object>>();
     // final results for serialization
@@ -408,6 +534,14 @@ final class QueryRpc implements HttpRpc {
         if (tsuids == null || tsuids.isEmpty()) {
           return null;
         }
+        if (batched) {
+          final BatchLastPointQuery batch = new BatchLastPointQuery(tsdb, 
+              data_query.getResolveNames(), data_query.getBackScan());
+          for (final Map.Entry<byte[], Long> entry : tsuids.entrySet()) {
+            batch.addTSUID(entry.getKey(), entry.getValue());
+          }
+          return fetchBatch(batch).addCallbackDeferring(new FetchCB());
+        }
         final ArrayList<Deferred<IncomingDataPoint>> deferreds =
             new ArrayList<Deferred<IncomingDataPoint>>(tsuids.size());
         for (Map.Entry<byte[], Long> entry : tsuids.entrySet()) {
@@ -439,13 +573,24 @@ final class QueryRpc implements HttpRpc {
     }
     
     try {   
+      // the listed TSUIDs of all sub queries are fetched in one batch
+      final BatchLastPointQuery tsuid_batch = batched ? 
+          new BatchLastPointQuery(tsdb, data_query.getResolveNames(), 
+              data_query.getBackScan()) : null;
+      
       // start executing the queries
       for (final LastPointSubQuery sub_query : data_query.getQueries()) {
         final ArrayList<Deferred<IncomingDataPoint>> deferreds =
             new ArrayList<Deferred<IncomingDataPoint>>();
         // TSUID queries take precedence so if there are any TSUIDs listed, 
         // process the TSUIDs and ignore the metric/tags
-        if (sub_query.getTSUIDs() != null && !sub_query.getTSUIDs().isEmpty()) {
+        if (sub_query.getTSUIDs() != null && !sub_query.getTSUIDs().isEmpty() &&
+            tsuid_batch != null) {
+          for (final String tsuid : sub_query.getTSUIDs()) {
+            tsuid_batch.addTSUID(UniqueId.stringToUid(tsuid), 0);
+          }
+        } else if (sub_query.getTSUIDs() != null && 
+            !sub_query.getTSUIDs().isEmpty()) {
           for (final String tsuid : sub_query.getTSUIDs()) {
             final TSUIDQuery tsuid_query = new TSUIDQuery(tsdb, 
                 UniqueId.stringToUid(tsuid));
@@ -471,6 +616,9 @@ final class QueryRpc implements HttpRpc {
           calls.add(Deferred.group(deferreds).addCallbackDeferring(new FetchCB()));
         }
       }
+      if (tsuid_batch != null) {
+        calls.add(fetchBatch(tsuid_batch).addCallbackDeferring(new FetchCB()));
+      }
       
       Deferred.group(calls)
         .addCallback(new FinalCB())
@@ -494,6 +642,29 @@ final class QueryRpc implements HttpRpc {
     }
   }
   
+  /**
+   * Fetches a batch of last points and counts the gets it issued.
+   * @param batch The batch to fetch
+   * @return A deferred resolving to the data points found
+   */
+  private static Deferred<ArrayList<IncomingDataPoint>> fetchBatch(
+      final BatchLastPointQuery batch) {
+    /** Counts the gets, even if the batch failed */
+    final class GetsCB<T> implements Callback<T, T> {
+      @Override
+      public T call(final T result) throws Exception {
+        last_point_gets.addAndGet(batch.getGets());
+        return result;
+      }
+      @Override
+      public String toString() {
+        return "Last point gets CB";
+      }
+    }
+    return batch.fetch().addCallbacks(
+        new GetsCB<ArrayList<IncomingDataPoint>>(), new GetsCB<Exception>());
+  }
+  
   /**
    * Parses a query string legacy style query from the URI
    * @param tsdb The TSDB we belong to
@@ -555,6 +726,16 @@ final class QueryRpc implements HttpRpc {
         data_query.setShowSummary(true);
     }
     
+    if (query.hasQueryStringParam("max_points")) {
+      try {
+        data_query.setMaxPoints(Integer.parseInt(
+            query.getQueryStringParam("max_points")));
+      } catch (NumberFormatException e) {
+        throw new BadRequestException("Unable to parse max_points: "
+            + query.getQueryStringParam("max_points"));
+      }
+    }
+    
     // handle tsuid queries first
     if (query.hasQueryStringParam("tsuid")) {
       final List<String> tsuids = query.getQueryStringParams("tsuid");     
@@ -814,6 +995,7 @@ final class QueryRpc implements HttpRpc {
     collector.record("http.query.invalid_requests", query_invalid);
     collector.record("http.query.exceptions", query_exceptions);
     collector.record("http.query.success", query_success);
+    collector.record("http.query.last.gets", last_point_gets);
   }
   
   public static class LastPointQuery {
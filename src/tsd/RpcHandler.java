@@ -329,6 +329,7 @@ final class RpcHandler extends IdleStateAwareChannelUpstreamHandler {
     collector.record("rpc.received", http_plugin_rpcs_received, "type=http_plugin");
     collector.record("rpc.exceptions", exceptions_caught);
     HttpQuery.collectStats(collector);
+    HttpCompressor.collectStats(collector);
     GraphHandler.collectStats(collector);
     PutDataPointRpc.collectStats(collector);
     QueryRpc.collectStats(collector);
@@ -124,6 +124,7 @@ public final class StatsRpc implements TelnetRpc, HttpRpc {
     final SerializerCollector collector = new SerializerCollector("tsd", dps, 
         canonical);
     ConnectionManager.collectStats(collector);
+    ExecutionStage.collectStats(collector);
     RpcHandler.collectStats(collector);
     RpcManager.collectStats(collector);
     tsdb.collectStats(collector);
@@ -139,6 +140,7 @@ public final class StatsRpc implements TelnetRpc, HttpRpc {
       final boolean canonical) {
     collector.addHostTag(canonical);
     ConnectionManager.collectStats(collector);
+    ExecutionStage.collectStats(collector);
     RpcHandler.collectStats(collector);
     RpcManager.collectStats(collector);
     collectThreadStats(collector);
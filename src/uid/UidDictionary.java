@@ -0,0 +1,598 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.uid;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hbase.async.HBaseClient;
+import org.hbase.async.KeyValue;
+import org.hbase.async.Scanner;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * A sorted, in-memory dictionary of all the names of one kind of UID, e.g.
+ * the tag values, to their UIDs. Unlike the caches in {@link UniqueId} it
+ * holds every name so that it can answer questions such as "which tag values
+ * match this regular expression" without going to storage.
+ * <p>
+ * The bulk of the entries live in a compact snapshot: the names are stored
+ * back to back in a single byte array, ISO-8859-1 encoded as in the UID
+ * table so that the byte order is the name order, with an array of offsets
+ * and an array of the fixed width UIDs. Names assigned or resolved by the
+ * {@link UniqueId} after the snapshot was built are kept in a small sorted
+ * map that is folded into a new snapshot on the refresh timer once it grows.
+ * <p>
+ * The dictionary is filled by scanning the UID table with {@link #load} and
+ * should be reloaded periodically with {@link #scheduleRefresh} so that names
+ * assigned by other TSDs show up.
+ * @since 2.4
+ */
+public final class UidDictionary {
+  private static final Logger LOG = 
+      LoggerFactory.getLogger(UidDictionary.class);
+
+  /** Names are stored as in the UID table */
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  /** Fold the recent names into the snapshot once there are this many */
+  static final int COMPACT_THRESHOLD = 4096;
+
+  /** Matches names when expanding */
+  public interface Matcher {
+    /**
+     * @param name The name to test
+     * @return True if the name should be included
+     */
+    boolean matches(String name);
+  }
+
+  /** The kind of UID */
+  private final String kind;
+
+  /** The width of the UIDs */
+  private final short width;
+
+  /** The compact bulk of the dictionary, replaced atomically */
+  private volatile Snapshot snapshot;
+
+  /** Names added since the snapshot was built */
+  private final ConcurrentSkipListMap<String, byte[]> recent =
+      new ConcurrentSkipListMap<String, byte[]>();
+
+  /** Number of entries in recent, as the skip list's size() is O(n) */
+  private final AtomicInteger recent_count = new AtomicInteger();
+
+  /** Whether or not a compaction is scheduled on the timer */
+  private final AtomicBoolean compaction_scheduled = new AtomicBoolean();
+
+  /** The timer refreshes and compactions run on, null until scheduled */
+  private volatile Timer timer;
+
+  /** Names deleted since the snapshot was built */
+  private final Set<String> removed = Collections.newSetFromMap(
+      new ConcurrentHashMap<String, Boolean>());
+
+  /** Whether or not the dictionary was loaded from storage at least once */
+  private volatile boolean loaded;
+
+  /** Number of loads from storage */
+  private volatile long loads;
+
+  /** When the last complete load started, in milliseconds */
+  private volatile long load_start_time;
+
+  /**
+   * Default ctor.
+   * @param kind The kind of UID, e.g. "tagv"
+   * @param width The width of the UIDs in bytes
+   */
+  public UidDictionary(final String kind, final short width) {
+    if (kind == null || kind.isEmpty()) {
+      throw new IllegalArgumentException("Kind cannot be null or empty");
+    }
+    if (width < 1) {
+      throw new IllegalArgumentException("Width must be greater than 0");
+    }
+    this.kind = kind;
+    this.width = width;
+    snapshot = new Snapshot(new TreeMap<String, byte[]>(), width);
+  }
+
+  /**
+   * Adds or replaces a name. Called by the {@link UniqueId} whenever it learns
+   * of a mapping.
+   * @param name The name
+   * @param uid The UID of the name
+   */
+  public void add(final String name, final byte[] uid) {
+    removed.remove(name);
+    final byte[] existing = snapshot.get(name);
+    if (existing != null && Arrays.equals(existing, uid)) {
+      removeRecent(name);
+      return;
+    }
+    if (recent.put(name, Arrays.copyOf(uid, uid.length)) == null &&
+        recent_count.incrementAndGet() >= COMPACT_THRESHOLD) {
+      scheduleCompaction();
+    }
+  }
+
+  /**
+   * Removes a name, e.g. when it was renamed or deleted.
+   * @param name The name to remove
+   */
+  public void remove(final String name) {
+    removeRecent(name);
+    if (snapshot.get(name) != null) {
+      removed.add(name);
+    }
+  }
+
+  /**
+   * @param name The name to look up
+   * @return The UID of the name or null if it's not in the dictionary
+   */
+  public byte[] getId(final String name) {
+    final byte[] uid = recent.get(name);
+    if (uid != null) {
+      return Arrays.copyOf(uid, uid.length);
+    }
+    if (removed.contains(name)) {
+      return null;
+    }
+    return snapshot.get(name);
+  }
+
+  /**
+   * Finds the UIDs of the names starting with the prefix that match.
+   * @param prefix A prefix all matching names share, may be empty
+   * @param matcher The matcher to test the names with
+   * @param limit The maximum number of UIDs to return
+   * @return The UIDs, in no particular order, or null if more than limit
+   * names matched
+   */
+  public List<byte[]> find(final String prefix, final Matcher matcher,
+      final int limit) {
+    final List<byte[]> uids = new ArrayList<byte[]>();
+    final Snapshot current = snapshot;
+    final byte[] prefix_bytes = prefix == null ? new byte[0] :
+      prefix.getBytes(CHARSET);
+    for (int i = current.lowerBound(prefix_bytes); i < current.size() &&
+        current.startsWith(i, prefix_bytes); i++) {
+      final String name = current.name(i);
+      if (removed.contains(name) || recent.containsKey(name) ||
+          !matcher.matches(name)) {
+        continue;
+      }
+      if (uids.size() >= limit) {
+        return null;
+      }
+      uids.add(current.id(i));
+    }
+    for (final Map.Entry<String, byte[]> entry :
+        range(recent, prefix).entrySet()) {
+      if (!matcher.matches(entry.getKey())) {
+        continue;
+      }
+      if (uids.size() >= limit) {
+        return null;
+      }
+      uids.add(Arrays.copyOf(entry.getValue(), entry.getValue().length));
+    }
+    return uids;
+  }
+
+  /**
+   * Returns the names starting with the prefix in the same order as the UID
+   * table scan of {@link UniqueId#suggestAsync} would.
+   * @param prefix The prefix to match, may be empty
+   * @param max_results The maximum number of names to return
+   * @return The sorted names, may be empty
+   */
+  public List<String> suggest(final String prefix, final int max_results) {
+    final List<String> names = new ArrayList<String>();
+    final Snapshot current = snapshot;
+    final byte[] prefix_bytes = prefix == null ? new byte[0] :
+      prefix.getBytes(CHARSET);
+    int i = current.lowerBound(prefix_bytes);
+    final Iterator<String> recent_names = 
+        range(recent, prefix).keySet().iterator();
+    String next_recent = recent_names.hasNext() ? recent_names.next() : null;
+    while (names.size() < max_results) {
+      // skip the names that were deleted or re-assigned since the snapshot
+      String next_snapshot = null;
+      while (i < current.size() && current.startsWith(i, prefix_bytes)) {
+        final String name = current.name(i);
+        if (!removed.contains(name) && !recent.containsKey(name)) {
+          next_snapshot = name;
+          break;
+        }
+        i++;
+      }
+      if (next_snapshot == null && next_recent == null) {
+        break;
+      }
+      if (next_recent == null || 
+          (next_snapshot != null && next_snapshot.compareTo(next_recent) < 0)) {
+        names.add(next_snapshot);
+        i++;
+      } else {
+        names.add(next_recent);
+        next_recent = recent_names.hasNext() ? recent_names.next() : null;
+      }
+    }
+    return names;
+  }
+
+  /** @return The approximate number of names in the dictionary */
+  public int size() {
+    return snapshot.size() - removed.size() + recent_count.get();
+  }
+
+  /** @return Whether or not the dictionary was loaded from storage */
+  public boolean isLoaded() {
+    return loaded;
+  }
+
+  /**
+   * Every name in the UID table before this time is in the dictionary, unless
+   * it was deleted since. Names assigned by other TSDs later may be missing
+   * until the next load.
+   * @return The time the last complete load started, in milliseconds, 0 if
+   * none completed yet
+   */
+  public long getLoadStartTime() {
+    return load_start_time;
+  }
+
+  /** @return The kind of UID in the dictionary */
+  public String kind() {
+    return kind;
+  }
+
+  /**
+   * Replaces the dictionary with all the names of the kind in the UID table.
+   * Names added while the table is scanned are kept.
+   * @param client The client to scan with
+   * @param table The UID table
+   * @return A deferred resolving to the number of names loaded
+   */
+  public Deferred<Integer> load(final HBaseClient client, final byte[] table) {
+    final Scanner scanner = UniqueId.getSuggestScanner(client, table, "",
+        kind.getBytes(CHARSET), Integer.MAX_VALUE);
+    final TreeMap<String, byte[]> names = new TreeMap<String, byte[]>();
+    final Deferred<Integer> result = new Deferred<Integer>();
+    final long start = System.currentTimeMillis();
+
+    /** Fails the load */
+    final class ErrorCB implements Callback<Object, Exception> {
+      @Override
+      public Object call(final Exception e) throws Exception {
+        LOG.error("Failed to load the " + kind + " dictionary", e);
+        result.callback(e);
+        return null;
+      }
+    }
+
+    /** Collects the names and swaps the snapshot at the end */
+    final class ScanCB implements
+        Callback<Object, ArrayList<ArrayList<KeyValue>>> {
+      @Override
+      public Object call(final ArrayList<ArrayList<KeyValue>> rows)
+          throws Exception {
+        if (rows == null) {
+          replace(names, start);
+          LOG.info("Loaded " + names.size() + " names into the " + kind
+              + " dictionary in " + (System.currentTimeMillis() - start)
+              + "ms");
+          result.callback(names.size());
+          return null;
+        }
+        for (final ArrayList<KeyValue> row : rows) {
+          for (final KeyValue kv : row) {
+            if (kv.value().length == width) {
+              names.put(new String(kv.key(), CHARSET), kv.value());
+            }
+          }
+        }
+        return scanner.nextRows().addCallbacks(this, new ErrorCB());
+      }
+    }
+
+    scanner.nextRows().addCallbacks(new ScanCB(), new ErrorCB());
+    return result;
+  }
+
+  /**
+   * Reloads the dictionary from storage every interval until the timer stops.
+   * @param timer The timer to schedule the reloads on
+   * @param client The client to scan with
+   * @param table The UID table
+   * @param interval The interval between loads in seconds
+   */
+  public void scheduleRefresh(final Timer timer, final HBaseClient client,
+      final byte[] table, final long interval) {
+    if (interval < 1) {
+      throw new IllegalArgumentException("Interval must be greater than 0");
+    }
+    this.timer = timer;
+
+    /** Reloads and re-schedules itself once the load completes */
+    final class RefreshTask implements TimerTask {
+      @Override
+      public void run(final Timeout timeout) throws Exception {
+        final TimerTask task = this;
+        final class RescheduleCB<T> implements Callback<Object, T> {
+          @Override
+          public Object call(final T ignored) throws Exception {
+            try {
+              timer.newTimeout(task, interval, TimeUnit.SECONDS);
+            } catch (IllegalStateException e) {
+              LOG.debug("Timer stopped, no longer refreshing the " + kind 
+                  + " dictionary");
+            }
+            return null;
+          }
+        }
+        try {
+          load(client, table).addCallbacks(new RescheduleCB<Integer>(), 
+              new RescheduleCB<Exception>());
+        } catch (Exception e) {
+          LOG.error("Unexpected exception refreshing the " + kind
+              + " dictionary", e);
+          timer.newTimeout(this, interval, TimeUnit.SECONDS);
+        }
+      }
+    }
+    timer.newTimeout(new RefreshTask(), interval, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Collects the dictionary stats.
+   * @param collector The collector to use
+   */
+  public void collectStats(final StatsCollector collector) {
+    collector.record("uid.dictionary.size", size(), "kind=" + kind);
+    collector.record("uid.dictionary.bytes", snapshot.bytes(), "kind=" + kind);
+    collector.record("uid.dictionary.loads", loads, "kind=" + kind);
+  }
+
+  /**
+   * Compacts on the refresh timer so that callers of {@link #add} never pay
+   * for a new snapshot. Without a timer the recent names are only folded in
+   * by the next load.
+   */
+  private void scheduleCompaction() {
+    final Timer timer = this.timer;
+    if (timer == null || !compaction_scheduled.compareAndSet(false, true)) {
+      return;
+    }
+
+    /** Compacts and allows the next one to be scheduled */
+    final class CompactTask implements TimerTask {
+      @Override
+      public void run(final Timeout timeout) throws Exception {
+        try {
+          compact();
+        } catch (Exception e) {
+          LOG.error("Unexpected exception compacting the " + kind
+              + " dictionary", e);
+        } finally {
+          compaction_scheduled.set(false);
+        }
+      }
+    }
+    try {
+      timer.newTimeout(new CompactTask(), 0, TimeUnit.MILLISECONDS);
+    } catch (IllegalStateException e) {
+      compaction_scheduled.set(false);
+      LOG.debug("Timer stopped, no longer compacting the " + kind
+          + " dictionary");
+    }
+  }
+
+  /** Removes a recent name, keeping the count in sync */
+  private void removeRecent(final String name) {
+    if (recent.remove(name) != null) {
+      recent_count.decrementAndGet();
+    }
+  }
+
+  /** Removes a recent name if it still maps to the UID */
+  private void removeRecent(final String name, final byte[] uid) {
+    if (recent.remove(name, uid)) {
+      recent_count.decrementAndGet();
+    }
+  }
+
+  /** Folds the recent and removed names into a new snapshot */
+  synchronized void compact() {
+    final TreeMap<String, byte[]> names = snapshot.toMap();
+    final Map<String, byte[]> added = new TreeMap<String, byte[]>(recent);
+    final List<String> deleted = new ArrayList<String>(removed);
+    names.keySet().removeAll(deleted);
+    names.putAll(added);
+    snapshot = new Snapshot(names, width);
+    // only drop what was folded in, names may have arrived meanwhile
+    for (final Map.Entry<String, byte[]> entry : added.entrySet()) {
+      removeRecent(entry.getKey(), entry.getValue());
+    }
+    removed.removeAll(deleted);
+  }
+
+  /** Replaces the snapshot with freshly loaded names */
+  private synchronized void replace(final TreeMap<String, byte[]> names,
+      final long start) {
+    snapshot = new Snapshot(names, width);
+    // the recent names that are now in the snapshot are no longer needed
+    for (final Map.Entry<String, byte[]> entry : recent.entrySet()) {
+      final byte[] uid = snapshot.get(entry.getKey());
+      if (uid != null && Arrays.equals(uid, entry.getValue())) {
+        removeRecent(entry.getKey(), entry.getValue());
+      }
+    }
+    // names deleted after the scan passed them would otherwise come back
+    for (final String name : new ArrayList<String>(removed)) {
+      if (snapshot.get(name) == null) {
+        removed.remove(name);
+      }
+    }
+    load_start_time = start;
+    loaded = true;
+    loads++;
+  }
+
+  /** @return The entries of the map starting with the prefix */
+  private static SortedMap<String, byte[]> range(
+      final ConcurrentSkipListMap<String, byte[]> map, final String prefix) {
+    if (prefix == null || prefix.isEmpty()) {
+      return map;
+    }
+    return map.subMap(prefix, prefix + Character.MAX_VALUE);
+  }
+
+  /** An immutable, sorted set of names and UIDs packed into arrays */
+  private static final class Snapshot {
+    /** The names back to back */
+    private final byte[] names;
+    /** The offset of each name in names with an extra one for the end */
+    private final int[] offsets;
+    /** The UIDs back to back */
+    private final byte[] ids;
+    /** The width of the UIDs */
+    private final short width;
+
+    Snapshot(final TreeMap<String, byte[]> map, final short width) {
+      this.width = width;
+      offsets = new int[map.size() + 1];
+      ids = new byte[map.size() * width];
+      int length = 0;
+      for (final String name : map.keySet()) {
+        length += name.length();
+      }
+      names = new byte[length];
+      int i = 0;
+      int offset = 0;
+      for (final Map.Entry<String, byte[]> entry : map.entrySet()) {
+        final byte[] name = entry.getKey().getBytes(CHARSET);
+        System.arraycopy(name, 0, names, offset, name.length);
+        offsets[i] = offset;
+        System.arraycopy(entry.getValue(), 0, ids, i * width, width);
+        offset += name.length;
+        i++;
+      }
+      offsets[i] = offset;
+    }
+
+    int size() {
+      return offsets.length - 1;
+    }
+
+    long bytes() {
+      return names.length + (long) offsets.length * 4 + ids.length;
+    }
+
+    String name(final int i) {
+      return new String(names, offsets[i], offsets[i + 1] - offsets[i],
+          CHARSET);
+    }
+
+    byte[] id(final int i) {
+      return Arrays.copyOfRange(ids, i * width, (i + 1) * width);
+    }
+
+    /** @return A copy of the UID of the name or null if not present */
+    byte[] get(final String name) {
+      final byte[] key = name.getBytes(CHARSET);
+      final int i = lowerBound(key);
+      if (i < size() && compare(i, key) == 0) {
+        return id(i);
+      }
+      return null;
+    }
+
+    /** @return The index of the first name greater than or equal to key */
+    int lowerBound(final byte[] key) {
+      int low = 0;
+      int high = size();
+      while (low < high) {
+        final int mid = (low + high) >>> 1;
+        if (compare(mid, key) < 0) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return low;
+    }
+
+    /** @return Whether or not the ith name starts with the prefix */
+    boolean startsWith(final int i, final byte[] prefix) {
+      if (offsets[i + 1] - offsets[i] < prefix.length) {
+        return false;
+      }
+      final int start = offsets[i];
+      for (int j = 0; j < prefix.length; j++) {
+        if (names[start + j] != prefix[j]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /** Compares the ith name with the key as unsigned bytes */
+    private int compare(final int i, final byte[] key) {
+      final int start = offsets[i];
+      final int length = offsets[i + 1] - start;
+      final int common = Math.min(length, key.length);
+      for (int j = 0; j < common; j++) {
+        final int diff = (names[start + j] & 0xFF) - (key[j] & 0xFF);
+        if (diff != 0) {
+          return diff;
+        }
+      }
+      return length - key.length;
+    }
+
+    TreeMap<String, byte[]> toMap() {
+      final TreeMap<String, byte[]> map = new TreeMap<String, byte[]>();
+      for (int i = 0; i < size(); i++) {
+        map.put(name(i), id(i));
+      }
+      return map;
+    }
+  }
+}
@@ -124,6 +124,9 @@ public final class UniqueId implements UniqueIdInterface {
   /** TSDB object used for filtering and/or meta generation. */
   private TSDB tsdb;
   
+  /** Optional dictionary of all the names, fed with every mapping we learn */
+  private volatile UidDictionary dictionary;
+  
   /**
    * Constructor.
    * @param client The HBase client to use.
@@ -231,6 +234,22 @@ public final class UniqueId implements UniqueIdInterface {
     this.tsdb = tsdb;
   }
   
+  /**
+   * Sets a dictionary to keep up to date with the mappings this instance
+   * resolves, assigns, renames or deletes.
+   * @param dictionary The dictionary, may be null to stop updating it
+   * @since 2.4
+   */
+  public void setDictionary(final UidDictionary dictionary) {
+    this.dictionary = dictionary;
+  }
+  
+  /** @return The dictionary of all the names or null if not set
+   * @since 2.4 */
+  public UidDictionary getDictionary() {
+    return dictionary;
+  }
+  
   /** The largest possible ID given the number of bytes the IDs are 
    * represented on.
    * @deprecated Use {@link Internal.getMaxUnsignedValueOnBytes}
@@ -391,6 +410,10 @@ public final class UniqueId implements UniqueIdInterface {
           + Arrays.toString(id) + ", already mapped to "
           + Arrays.toString(found));
     }
+    final UidDictionary dictionary = this.dictionary;
+    if (dictionary != null) {
+      dictionary.add(name, id);
+    }
   }
 
   /**
@@ -901,6 +924,11 @@ public final class UniqueId implements UniqueIdInterface {
    */
   public Deferred<List<String>> suggestAsync(final String search, 
       final int max_results) {
+    // answer from memory once the dictionary was loaded, scan until then
+    final UidDictionary dictionary = this.dictionary;
+    if (dictionary != null && dictionary.isLoaded()) {
+      return Deferred.fromResult(dictionary.suggest(search, max_results));
+    }
     return new SuggestCB(search, max_results).search();
   }
 
@@ -1044,6 +1072,9 @@ public final class UniqueId implements UniqueIdInterface {
     addIdToCache(newname, row);            // add     new name -> ID
     id_cache.put(fromBytes(row), newname);  // update  ID -> new name
     name_cache.remove(oldname);             // remove  old name -> ID
+    if (dictionary != null) {
+      dictionary.remove(oldname);
+    }
 
     // Delete the old forward mapping.
     try {
@@ -1105,6 +1136,9 @@ public final class UniqueId implements UniqueIdInterface {
       public Object call(final Exception ex) throws Exception {
         name_cache.remove(name);
         id_cache.remove(fromBytes(uid));
+        if (dictionary != null) {
+          dictionary.remove(name);
+        }
         LOG.error("Failed to delete " + fromBytes(kind) + " UID " + name 
             + " but still cleared the cache", ex);
         return ex;
@@ -1118,6 +1152,9 @@ public final class UniqueId implements UniqueIdInterface {
           throws Exception {
         name_cache.remove(name);
         id_cache.remove(fromBytes(uid));
+        if (dictionary != null) {
+          dictionary.remove(name);
+        }
         LOG.info("Successfully deleted " + fromBytes(kind) + " UID " + name);
         return Deferred.fromResult(null);
       }
@@ -1181,7 +1218,7 @@ public final class UniqueId implements UniqueIdInterface {
    * @param kind_or_null The kind of UID to search or null for any kinds.
    * @param max_results The max number of results to return
    */
-  private static Scanner getSuggestScanner(final HBaseClient client,
+  static Scanner getSuggestScanner(final HBaseClient client,
       final byte[] tsd_uid_table, final String search,
       final byte[] kind_or_null, final int max_results) {
     final byte[] start_row;
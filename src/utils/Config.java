@@ -480,6 +480,10 @@ public class Config {
     default_map.put("tsd.no_diediedie", "false");
     default_map.put("tsd.network.bind", "0.0.0.0");
     default_map.put("tsd.network.worker_threads", "");
+    default_map.put("tsd.network.executor.enable", "false");
+    default_map.put("tsd.network.executor.threads", "");
+    default_map.put("tsd.network.executor.max_channel_bytes", "1048576");
+    default_map.put("tsd.network.executor.max_total_bytes", "67108864");
     default_map.put("tsd.network.async_io", "true");
     default_map.put("tsd.network.tcp_no_delay", "true");
     default_map.put("tsd.network.keep_alive", "true");
@@ -502,15 +506,52 @@ public class Config {
     default_map.put("tsd.core.preload_uid_cache.max_entries", "300000");
     default_map.put("tsd.core.storage_exception_handler.enable", "false");
     default_map.put("tsd.core.uid.random_metrics", "false");
+    default_map.put("tsd.core.uid.suggest_index.enable", "false");
+    default_map.put("tsd.core.uid.suggest_index.refresh_interval", "300");
     default_map.put("tsd.query.filter.expansion_limit", "4096");
+    default_map.put("tsd.query.filter.cache.max_entries", "0");
+    default_map.put("tsd.query.filter.dictionary.enable", "false");
+    default_map.put("tsd.query.filter.dictionary.refresh_interval", "300");
+    default_map.put("tsd.query.filter.dictionary.single_writer", "false");
     default_map.put("tsd.query.skip_unresolved_tagvs", "false");
     default_map.put("tsd.query.allow_simultaneous_duplicates", "true");
     default_map.put("tsd.query.enable_fuzzy_filter", "true");
+    default_map.put("tsd.query.planner.enable", "false");
+    default_map.put("tsd.query.planner.max_gets", "1024");
+    default_map.put("tsd.query.planner.max_ranges", "64");
+    default_map.put("tsd.query.planner.get_batch_size", "128");
+    default_map.put("tsd.query.planner.use_tag_index", "false");
+    default_map.put("tsd.query.last.batch_size", "128");
+    default_map.put("tsd.query.last.max_concurrent_gets", "8");
+    default_map.put("tsd.query.downsample.early", "false");
+    default_map.put("tsd.query.single_flight.enable", "false");
+    default_map.put("tsd.query.expression.compute_threads", "0");
+    default_map.put("tsd.query.limits.memory.bytes", "0");
+    default_map.put("tsd.query.limits.memory.global_bytes", "0");
+    default_map.put("tsd.query.scheduler.enable", "false");
+    default_map.put("tsd.query.scheduler.max_concurrent", "16");
+    default_map.put("tsd.query.scheduler.max_queued", "1024");
+    default_map.put("tsd.query.scheduler.interactive_weight", "4");
+    default_map.put("tsd.query.scheduler.source_weights", "");
+    default_map.put("tsd.query.scheduler.source_header", "");
+    default_map.put("tsd.query.scheduler.priority_header", 
+        "X-OpenTSDB-Query-Priority");
+    default_map.put("tsd.query.scheduler.default_priority", "interactive");
+    default_map.put("tsd.rollups.enable", "false");
+    default_map.put("tsd.rollups.intervals", 
+        "1m:tsdb-rollup-1m:1d,1h:tsdb-rollup-1h:1d");
+    default_map.put("tsd.rollups.flush_interval", "10");
+    default_map.put("tsd.rollups.flush_delay", "60");
     default_map.put("tsd.rtpublisher.enable", "false");
     default_map.put("tsd.rtpublisher.plugin", "");
     default_map.put("tsd.search.enable", "false");
     default_map.put("tsd.search.plugin", "");
+    default_map.put("tsd.search.tag_index.enable", "false");
+    default_map.put("tsd.search.tag_index.refresh_interval", "300");
+    default_map.put("tsd.search.tag_index.single_writer", "false");
     default_map.put("tsd.stats.canonical", "false");
+    default_map.put("tsd.stats.histogram.window", "60");
+    default_map.put("tsd.stats.percentiles", "50,75,90,95,99,99.9");
     default_map.put("tsd.startup.enable", "false");
     default_map.put("tsd.startup.plugin", "");
     default_map.put("tsd.storage.hbase.scanner.maxNumRows", "128");
@@ -534,6 +575,14 @@ public class Config {
     default_map.put("tsd.uidfilter.enable", "false");
     default_map.put("tsd.core.stats_with_port", "false");    
     default_map.put("tsd.http.show_stack_trace", "true");
+    default_map.put("tsd.http.graph.renderer", "gnuplot");
+    default_map.put("tsd.http.cache.max_bytes", "1073741824");
+    default_map.put("tsd.http.cache.max_age", "86400");
+    default_map.put("tsd.http.cache.memory.max_bytes", "33554432");
+    default_map.put("tsd.http.cache.memory.max_image_bytes", "65536");
+    default_map.put("tsd.http.compression.enable", "true");
+    default_map.put("tsd.http.compression.level", "6");
+    default_map.put("tsd.http.compression.min_bytes", "1024");
     default_map.put("tsd.http.query.allow_delete", "false");
     default_map.put("tsd.http.request.enable_chunked", "false");
     default_map.put("tsd.http.request.max_chunk", "4096");
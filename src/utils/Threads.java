@@ -14,7 +14,11 @@ package net.opentsdb.utils;
 
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jboss.netty.util.HashedWheelTimer;
@@ -95,5 +99,40 @@ public class Threads {
         new TimerThreadNamer(), ticks, MILLISECONDS, ticks_per_wheel);
   }
   
+  /**
+   * Returns a new fixed size pool of daemon threads with a name. Idle threads
+   * are stopped after a minute and restarted when work arrives.
+   * @param threads The number of threads in the pool
+   * @param name The name to add to the thread name
+   * @return A thread pool with an unbounded queue
+   * @since 2.4
+   */
+  public static ExecutorService newFixedPool(final int threads, 
+      final String name) {
+    final ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 
+        60000, MILLISECONDS, new LinkedBlockingQueue<Runnable>(), 
+        newThreadFactory(name));
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
   
+  /**
+   * Returns a factory of daemon threads named "OpenTSDB name #N".
+   * @param name The name to add to the thread name
+   * @return A thread factory
+   * @since 2.4
+   */
+  public static ThreadFactory newThreadFactory(final String name) {
+    final AtomicInteger tid = new AtomicInteger();
+    class PoolThreadFactory implements ThreadFactory {
+      @Override
+      public Thread newThread(final Runnable r) {
+        final Thread thread = new Thread(r, 
+            "OpenTSDB " + name + " #" + tid.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    }
+    return new PoolThreadFactory();
+  }
 }
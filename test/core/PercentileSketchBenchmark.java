@@ -0,0 +1,122 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Compares the speed and error of the sketch percentile aggregators with the
+ * exact ones for a range of input sizes and distributions. Not a unit test,
+ * run it by hand with:
+ * <pre>
+ * java -cp &lt;classpath&gt; net.opentsdb.core.PercentileSketchBenchmark
+ * </pre>
+ * For each case it prints the average time per aggregation and the largest
+ * relative error of the sketch against the nearest rank value. The exact
+ * aggregators interpolate so their own difference from the nearest rank is
+ * printed as well for reference.
+ */
+public final class PercentileSketchBenchmark {
+  private static final int[] SIZES = { 100, 1000, 10000, 100000, 1000000 };
+  private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+  private static final Aggregator[] EXACT = { Aggregators.p50,
+    Aggregators.p90, Aggregators.p99, Aggregators.p999 };
+  private static final Aggregator[] SKETCH = { Aggregators.sp50,
+    Aggregators.sp90, Aggregators.sp99, Aggregators.sp999 };
+
+  /** Feeds an array to an aggregator */
+  private static final class Values implements Aggregator.Doubles {
+    private final double[] values;
+    private int i;
+
+    Values(final double[] values) {
+      this.values = values;
+    }
+
+    @Override
+    public boolean hasNextValue() {
+      return i < values.length;
+    }
+
+    @Override
+    public double nextDoubleValue() {
+      return values[i++];
+    }
+
+    Values reset() {
+      i = 0;
+      return this;
+    }
+  }
+
+  public static void main(final String[] args) {
+    final Random random = new Random(42);
+    System.out.println(String.format(Locale.US, "%-10s %9s %12s %12s %8s %11s %11s",
+        "dist", "values", "exact ns", "sketch ns", "speedup",
+        "exact err", "sketch err"));
+    for (final String dist : new String[] { "uniform", "lognormal" }) {
+      for (final int size : SIZES) {
+        final double[] values = new double[size];
+        for (int i = 0; i < size; i++) {
+          values[i] = dist.equals("uniform") ? random.nextDouble() * 1000 :
+            Math.exp(random.nextGaussian() * 2 + 3);
+        }
+        final double[] sorted = Arrays.copyOf(values, size);
+        Arrays.sort(sorted);
+        final Values it = new Values(values);
+        final int iterations = Math.max(5, 2000000 / size);
+
+        // warm up the JIT before timing
+        time(EXACT, it, iterations);
+        time(SKETCH, it, iterations);
+        final double exact_ns = time(EXACT, it, iterations);
+        final double sketch_ns = time(SKETCH, it, iterations);
+
+        double exact_err = 0;
+        double sketch_err = 0;
+        for (int i = 0; i < PERCENTILES.length; i++) {
+          final double expected = sorted[Math.max(0,
+              (int) Math.ceil(PERCENTILES[i] / 100 * size) - 1)];
+          exact_err = Math.max(exact_err, Math.abs(
+              EXACT[i].runDouble(it.reset()) - expected) / expected);
+          sketch_err = Math.max(sketch_err, Math.abs(
+              SKETCH[i].runDouble(it.reset()) - expected) / expected);
+        }
+        System.out.println(String.format(Locale.US,
+            "%-10s %9d %12.0f %12.0f %7.1fx %10.4f%% %10.4f%%", dist, size,
+            exact_ns, sketch_ns, exact_ns / sketch_ns, exact_err * 100,
+            sketch_err * 100));
+      }
+    }
+  }
+
+  /** @return The average nanoseconds per aggregation */
+  private static double time(final Aggregator[] aggs, final Values it,
+      final int iterations) {
+    double sink = 0;
+    final long start = System.nanoTime();
+    for (int n = 0; n < iterations; n++) {
+      for (final Aggregator agg : aggs) {
+        sink += agg.runDouble(it.reset());
+      }
+    }
+    final long elapsed = System.nanoTime() - start;
+    if (sink == Double.MIN_VALUE) {
+      // keeps the JIT from dropping the loop
+      System.out.println(sink);
+    }
+    return (double) elapsed / (iterations * aggs.length);
+  }
+}
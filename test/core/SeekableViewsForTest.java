@@ -92,6 +92,31 @@ public class SeekableViewsForTest {
      is_integer, starting_value, increment, wholes_as_integer);
   }
 
+  /**
+   * Asserts that two views return the same data points.
+   * @param msg A message to prefix failures with
+   * @param expected The view with the expected data points
+   * @param actual The view to check
+   */
+  public static void assertSameDataPoints(final String msg,
+      final SeekableView expected, final SeekableView actual) {
+    int i = 0;
+    while (expected.hasNext()) {
+      assertTrue(msg + " #" + i, actual.hasNext());
+      final DataPoint e = expected.next();
+      final DataPoint a = actual.next();
+      assertEquals(msg + " #" + i, e.timestamp(), a.timestamp());
+      assertEquals(msg + " #" + i, e.isInteger(), a.isInteger());
+      if (e.isInteger()) {
+        assertEquals(msg + " #" + i, e.longValue(), a.longValue());
+      } else {
+        assertEquals(msg + " #" + i, e.doubleValue(), a.doubleValue(), 0.0);
+      }
+      i++;
+    }
+    assertFalse(msg + " #" + i, actual.hasNext());
+  }
+
   /** Iterates an array of data points. */
   public static class MockSeekableView implements SeekableView {
 
@@ -13,6 +13,7 @@
 package net.opentsdb.core;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.util.Random;
 
@@ -172,6 +173,35 @@ public final class TestAggregators {
     assertAggregatorEquals(990, Aggregators.get("ep99r7"), values);
     assertAggregatorEquals(999, Aggregators.get("ep999r7"), values);
   }
+  
+  @Test
+  public void testSketchPercentiles() {
+    final long[] longValues = new long[1000];
+    final double[] doubleValues = new double[1000];
+    for (int i = 0; i < longValues.length; i++) {
+      longValues[i] = i+1;
+      doubleValues[i] = i+1;
+    }
+    
+    // within 1% of the exact values
+    final String[] names = { "sp50", "sp75", "sp90", "sp95", "sp99", "sp999" };
+    final long[] expected = { 500, 750, 900, 950, 990, 999 };
+    final Numbers longs = new Numbers(longValues);
+    final Numbers doubles = new Numbers(doubleValues);
+    for (int i = 0; i < names.length; i++) {
+      final Aggregator agg = Aggregators.get(names[i]);
+      assertEquals(expected[i], agg.runLong(longs), expected[i] * 0.01);
+      assertEquals(expected[i], agg.runDouble(doubles), expected[i] * 0.01);
+      longs.reset();
+      doubles.reset();
+    }
+    
+    // NaNs are skipped
+    final Numbers nans = new Numbers(new double[] { Double.NaN, 1, Double.NaN });
+    assertEquals(1, Aggregators.get("sp99").runDouble(nans), 0.01);
+    assertTrue(Double.isNaN(Aggregators.get("sp99").runDouble(
+        new Numbers(new double[] { Double.NaN }))));
+  }
 
   @Test
   public void testFirst() {
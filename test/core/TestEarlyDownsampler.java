@@ -0,0 +1,114 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import net.opentsdb.storage.MockBase;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+import org.junit.Test;
+
+public final class TestEarlyDownsampler {
+  private static final byte[] KEY =
+      MockBase.stringToBytes("00000150E22700000001000001");
+  private static final byte[] FAMILY = { 't' };
+
+  @Test
+  public void canFold() throws Exception {
+    assertTrue(EarlyDownsampler.canFold(
+        new DownsamplingSpecification("1m-sum")));
+    assertTrue(EarlyDownsampler.canFold(
+        new DownsamplingSpecification("1h-avg")));
+    assertTrue(EarlyDownsampler.canFold(
+        new DownsamplingSpecification("500ms-max")));
+    assertTrue(EarlyDownsampler.canFold(
+        new DownsamplingSpecification("15m-last-zero")));
+  }
+
+  @Test
+  public void canFoldNot() throws Exception {
+    assertFalse(EarlyDownsampler.canFold(null));
+    assertFalse(EarlyDownsampler.canFold(
+        DownsamplingSpecification.NO_DOWNSAMPLER));
+    // spans rows
+    assertFalse(EarlyDownsampler.canFold(
+        new DownsamplingSpecification("1d-sum")));
+    assertFalse(EarlyDownsampler.canFold(
+        new DownsamplingSpecification("7m-sum")));
+    assertFalse(EarlyDownsampler.canFold(
+        new DownsamplingSpecification("0all-sum")));
+    assertFalse(EarlyDownsampler.canFold(
+        new DownsamplingSpecification("1hc-sum")));
+    // f(v) != v
+    assertFalse(EarlyDownsampler.canFold(
+        new DownsamplingSpecification("1m-count")));
+    assertFalse(EarlyDownsampler.canFold(
+        new DownsamplingSpecification("1m-dev")));
+    assertNull(EarlyDownsampler.create(
+        new DownsamplingSpecification("1m-count")));
+  }
+
+  @Test
+  public void downsampleSeconds() throws Exception {
+    final EarlyDownsampler downsampler = EarlyDownsampler.create(
+        new DownsamplingSpecification("1m-avg"));
+    // 0s = 1, 30s = 2, 60s = 1.5f, 150s = 4
+    final KeyValue row = new KeyValue(KEY, FAMILY,
+        MockBase.concatByteArrays(new byte[] { 0, 0 },
+            new byte[] { 1, (byte) 0xE0 }, new byte[] { 3, (byte) 0xCB },
+            new byte[] { 9, 0x60 }),
+        MockBase.concatByteArrays(new byte[] { 1, 2 },
+            Bytes.fromInt(Float.floatToRawIntBits(1.5f)), new byte[] { 4, 0 }));
+    final KeyValue folded = downsampler.downsample(row);
+    assertSame(KEY, folded.key());
+    assertArrayEquals(new byte[] { 0, 0x0F, 3, (byte) 0xCF, 7, (byte) 0x8F },
+        folded.qualifier());
+    assertEquals(25, folded.value().length);
+    assertEquals(1.5, Double.longBitsToDouble(
+        Bytes.getLong(folded.value(), 0)), 0.00001);
+    assertEquals(1.5, Double.longBitsToDouble(
+        Bytes.getLong(folded.value(), 8)), 0.00001);
+    assertEquals(4, Double.longBitsToDouble(
+        Bytes.getLong(folded.value(), 16)), 0.00001);
+    assertEquals(0, folded.value()[24]);
+  }
+
+  @Test
+  public void downsampleMilliseconds() throws Exception {
+    final EarlyDownsampler downsampler = EarlyDownsampler.create(
+        new DownsamplingSpecification("500ms-sum"));
+    // 100ms = 1, 400ms = 2, 700ms = 3
+    final KeyValue row = new KeyValue(KEY, FAMILY,
+        MockBase.concatByteArrays(
+            Internal.buildQualifier(1356998400100L, (short) 0),
+            Internal.buildQualifier(1356998400400L, (short) 0),
+            Internal.buildQualifier(1356998400700L, (short) 0)),
+        new byte[] { 1, 2, 3, 0 });
+    final KeyValue folded = downsampler.downsample(row);
+    assertArrayEquals(MockBase.concatByteArrays(
+        Internal.buildQualifier(1356998400000L, (short) 0x0F),
+        Internal.buildQualifier(1356998400500L, (short) 0x0F)),
+        folded.qualifier());
+    assertEquals(3, Double.longBitsToDouble(
+        Bytes.getLong(folded.value(), 0)), 0.00001);
+    assertEquals(3, Double.longBitsToDouble(
+        Bytes.getLong(folded.value(), 8)), 0.00001);
+  }
+}
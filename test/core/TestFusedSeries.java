@@ -0,0 +1,470 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static net.opentsdb.core.SeekableViewsForTest.assertSameDataPoints;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import net.opentsdb.core.Aggregators.Interpolation;
+import net.opentsdb.uid.UniqueId;
+import net.opentsdb.utils.Config;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+  "ch.qos.*", "org.slf4j.*",
+  "com.sum.*", "org.xml.*"})
+@PrepareForTest({ TSDB.class, UniqueId.class, Config.class })
+public final class TestFusedSeries {
+  private static final byte[] FAMILY = { 't' };
+  private static final long BASE_TIME = 1356998400L;
+  private static final String[] SPECS = { "1m-sum", "1m-zimsum", "1m-avg",
+    "5m-min", "5m-mimmin", "5m-max", "5m-mimmax", "1m-count", "10m-first",
+    "10m-last", "15s-avg", "1h-sum" };
+  private static final RateOptions[] RATES = {
+    new RateOptions(),
+    new RateOptions(true, Long.MAX_VALUE, 0),
+    new RateOptions(true, 1000, 0),
+    new RateOptions(true, 1000, 2),
+    new RateOptions(true, Long.MAX_VALUE, 0, true) };
+
+  private TSDB tsdb = mock(TSDB.class);
+  private Config config = mock(Config.class);
+  private UniqueId metrics = mock(UniqueId.class);
+
+  @Before
+  public void before() throws Exception {
+    Whitebox.setInternalState(tsdb, "metrics", metrics);
+    Whitebox.setInternalState(tsdb, "config", config);
+    when(tsdb.getConfig()).thenReturn(config);
+    when(tsdb.metrics.width()).thenReturn((short)3);
+  }
+
+  @Test
+  public void canFuse() throws Exception {
+    assertTrue(FusedSeries.canFuse(new DownsamplingSpecification("1m-sum")));
+    assertTrue(FusedSeries.canFuse(new DownsamplingSpecification("1m-avg")));
+    assertTrue(FusedSeries.canFuse(new DownsamplingSpecification("1h-last")));
+    assertFalse(FusedSeries.canFuse(null));
+    assertFalse(FusedSeries.canFuse(DownsamplingSpecification.NO_DOWNSAMPLER));
+    assertFalse(FusedSeries.canFuse(new DownsamplingSpecification("1dc-sum")));
+    assertFalse(FusedSeries.canFuse(new DownsamplingSpecification("0all-sum")));
+    assertFalse(FusedSeries.canFuse(
+        new DownsamplingSpecification("1m-sum-nan")));
+    assertFalse(FusedSeries.canFuse(new DownsamplingSpecification("1m-p99")));
+    assertFalse(FusedSeries.canFuse(new DownsamplingSpecification("1m-dev")));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorCannotFuse() throws Exception {
+    new FusedSeries(new Span(tsdb), new DownsamplingSpecification("1m-p99"),
+        false, null);
+  }
+
+  @Test
+  public void downsample() throws Exception {
+    final Span span = new Span(tsdb);
+    addRow(span, new long[] { BASE_TIME, BASE_TIME + 30, BASE_TIME + 60,
+        BASE_TIME + 190 }, new Number[] { 1L, 2.5F, 4L, 8L });
+    final FusedSeries it = new FusedSeries(span,
+        new DownsamplingSpecification("1m-sum"), false, null);
+
+    assertTrue(it.hasNext());
+    DataPoint dp = it.next();
+    assertEquals(BASE_TIME * 1000, dp.timestamp());
+    assertFalse(dp.isInteger());
+    assertEquals(3.5, dp.doubleValue(), 0.0);
+    dp = it.next();
+    assertEquals((BASE_TIME + 60) * 1000, dp.timestamp());
+    assertEquals(4, dp.toDouble(), 0.0);
+    dp = it.next();
+    assertEquals((BASE_TIME + 180) * 1000, dp.timestamp());
+    assertEquals(8, dp.doubleValue(), 0.0);
+    assertFalse(it.hasNext());
+  }
+
+  @Test (expected = NoSuchElementException.class)
+  public void nextPastEnd() throws Exception {
+    final Span span = new Span(tsdb);
+    addRow(span, new long[] { BASE_TIME }, new Number[] { 1L });
+    final FusedSeries it = new FusedSeries(span,
+        new DownsamplingSpecification("1m-sum"), false, null);
+    it.next();
+    it.next();
+  }
+
+  @Test (expected = ClassCastException.class)
+  public void longValue() throws Exception {
+    final Span span = new Span(tsdb);
+    addRow(span, new long[] { BASE_TIME }, new Number[] { 1L });
+    final FusedSeries it = new FusedSeries(span,
+        new DownsamplingSpecification("1m-sum"), false, null);
+    it.next().longValue();
+  }
+
+  @Test
+  public void matchesIteratorChain() throws Exception {
+    final List<Span> spans = new ArrayList<Span>();
+    spans.add(gauge(new Random(42)));
+    spans.add(counter(new Random(42)));
+    spans.add(gaugeMs(new Random(42)));
+
+    for (final Span span : spans) {
+      for (final String spec : SPECS) {
+        final DownsamplingSpecification ds =
+            new DownsamplingSpecification(spec);
+        assertSameDataPoints(spec, chain(span, ds, false, null, -1),
+            new FusedSeries(span, ds, false, null));
+        for (final RateOptions options : RATES) {
+          assertSameDataPoints(spec + " " + options, chain(span, ds, true, options, -1),
+              new FusedSeries(span, ds, true, options));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void matchesIteratorChainAfterSeek() throws Exception {
+    final Span span = counter(new Random(42));
+    final long[] seeks = { BASE_TIME * 1000, (BASE_TIME + 3601) * 1000,
+        (BASE_TIME + 5000) * 1000 + 250, (BASE_TIME + 86400) * 1000 };
+    for (final String spec : SPECS) {
+      final DownsamplingSpecification ds = new DownsamplingSpecification(spec);
+      for (final long seek : seeks) {
+        final FusedSeries fused = new FusedSeries(span, ds, false, null);
+        fused.seek(seek);
+        assertSameDataPoints(spec + " @" + seek, chain(span, ds, false, null, seek),
+            fused);
+        for (final RateOptions options : RATES) {
+          final FusedSeries rate = new FusedSeries(span, ds, true, options);
+          rate.seek(seek);
+          assertSameDataPoints(spec + " " + options + " @" + seek,
+              chain(span, ds, true, options, seek), rate);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void reseek() throws Exception {
+    final Span span = gauge(new Random(42));
+    final DownsamplingSpecification ds = new DownsamplingSpecification("1m-avg");
+    final FusedSeries fused = new FusedSeries(span, ds, false, null);
+    fused.next();
+    fused.next();
+    fused.seek((BASE_TIME + 7200) * 1000);
+    assertSameDataPoints("reseek", chain(span, ds, false, null,
+        (BASE_TIME + 7200) * 1000), fused);
+  }
+
+  @Test
+  public void aggregationIteratorReadsFusedSeries() throws Exception {
+    final List<Span> spans = new ArrayList<Span>();
+    spans.add(gauge(new Random(42)));
+    spans.add(gauge(new Random(24)));
+    final long start = BASE_TIME * 1000;
+    final long end = (BASE_TIME + 3 * 3600) * 1000;
+
+    final AggregationIterator fused = AggregationIterator.create(spans, start,
+        end, Aggregators.SUM, Interpolation.LERP,
+        new DownsamplingSpecification("1m-avg"), start, end, true,
+        new RateOptions());
+    assertTrue(fused instanceof FusedAggregationIterator);
+
+    // same as aggregating the unfused chains
+    final SeekableView[] chains = new SeekableView[spans.size()];
+    for (int i = 0; i < chains.length; i++) {
+      chains[i] = new RateSpan(new Downsampler(spans.get(i).spanIterator(),
+          new DownsamplingSpecification("1m-avg"), start, end),
+          new RateOptions());
+    }
+    final AggregationIterator expected = AggregationIterator.createForTesting(
+        chains, start, end, Aggregators.SUM, Interpolation.LERP, true);
+    assertSameDataPoints("aggregated", expected, fused);
+
+    // not fused with a fill policy
+    final AggregationIterator filled = AggregationIterator.create(spans,
+        start, end, Aggregators.SUM, Interpolation.LERP,
+        new DownsamplingSpecification("1m-avg-zero"), start, end, false, null);
+    assertFalse(filled instanceof FusedAggregationIterator);
+    assertFalse(((SeekableView[])
+        Whitebox.getInternalState(filled, "iterators"))[0]
+            instanceof FusedSeries);
+  }
+
+  @Test
+  public void aggregationMatchesIteratorChains() throws Exception {
+    final List<Span> spans = new ArrayList<Span>();
+    spans.add(gauge(new Random(42)));
+    spans.add(counter(new Random(7)));
+    spans.add(gauge(new Random(24)));
+    // starts late and ends early
+    final Span short_span = new Span(tsdb);
+    addRow(short_span, new long[] { BASE_TIME + 7210, BASE_TIME + 7450,
+        BASE_TIME + 9000 }, new Number[] { 3L, 4.5F, 1L });
+    spans.add(short_span);
+    // a single value
+    final Span single = new Span(tsdb);
+    addRow(single, new long[] { BASE_TIME + 4000 }, new Number[] { 12L });
+    spans.add(single);
+
+    final Aggregator[] aggregators = { Aggregators.SUM, Aggregators.ZIMSUM,
+        Aggregators.MIMMAX, Aggregators.MIMMIN, Aggregators.AVG,
+        Aggregators.DEV, Aggregators.COUNT, Aggregators.get("p50") };
+    final long[][] windows = {
+        { BASE_TIME * 1000, (BASE_TIME + 6 * 3600) * 1000 },
+        { (BASE_TIME + 3630) * 1000, (BASE_TIME + 4 * 3600 + 10) * 1000 } };
+    for (final String spec : SPECS) {
+      final DownsamplingSpecification ds = new DownsamplingSpecification(spec);
+      for (final Aggregator agg : aggregators) {
+        for (final long[] window : windows) {
+          final String msg = spec + " " + agg + " " + window[0];
+          assertSameDataPoints(msg, aggregate(spans, ds, agg, window, false,
+              null), AggregationIterator.create(spans, window[0], window[1],
+                  agg, agg.interpolationMethod(), ds, window[0], window[1],
+                  false, null));
+          for (final RateOptions options : RATES) {
+            assertSameDataPoints(msg + " " + options, aggregate(spans, ds,
+                agg, window, true, options), AggregationIterator.create(spans,
+                    window[0], window[1], agg, agg.interpolationMethod(), ds,
+                    window[0], window[1], true, options));
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void aggregationSingleSeries() throws Exception {
+    final List<Span> spans = new ArrayList<Span>();
+    spans.add(gaugeMs(new Random(42)));
+    final long[] window = { BASE_TIME * 1000, (BASE_TIME + 7200) * 1000 };
+    for (final String spec : SPECS) {
+      final DownsamplingSpecification ds = new DownsamplingSpecification(spec);
+      assertSameDataPoints(spec, aggregate(spans, ds, Aggregators.SUM, window,
+          false, null), AggregationIterator.create(spans, window[0], window[1],
+              Aggregators.SUM, Interpolation.LERP, ds, window[0], window[1],
+              false, null));
+    }
+  }
+
+  @Test
+  public void aggregationEmpty() throws Exception {
+    final List<Span> spans = new ArrayList<Span>();
+    spans.add(gauge(new Random(42)));
+    // after the last value
+    final long start = (BASE_TIME + 7 * 3600) * 1000;
+    final long end = (BASE_TIME + 8 * 3600) * 1000;
+    final AggregationIterator it = AggregationIterator.create(spans, start,
+        end, Aggregators.SUM, Interpolation.LERP,
+        new DownsamplingSpecification("1m-sum"), start, end, false, null);
+    assertFalse(it.hasNext());
+    try {
+      it.next();
+      fail("Expected NoSuchElementException");
+    } catch (NoSuchElementException e) { }
+  }
+
+  @Test
+  public void aggregationReseek() throws Exception {
+    final List<Span> spans = new ArrayList<Span>();
+    spans.add(gauge(new Random(42)));
+    spans.add(counter(new Random(7)));
+    final DownsamplingSpecification ds = new DownsamplingSpecification("1m-avg");
+    final long[] window = { BASE_TIME * 1000, (BASE_TIME + 6 * 3600) * 1000 };
+    final AggregationIterator it = AggregationIterator.create(spans,
+        window[0], window[1], Aggregators.SUM, Interpolation.LERP, ds,
+        window[0], window[1], false, null);
+    while (it.hasNext()) {
+      it.next().doubleValue();
+    }
+    it.seek(window[0]);
+    assertSameDataPoints("reseek", aggregate(spans, ds, Aggregators.SUM,
+        window, false, null), it);
+  }
+
+  @Test (expected = ClassCastException.class)
+  public void aggregationLongValue() throws Exception {
+    final List<Span> spans = new ArrayList<Span>();
+    spans.add(gauge(new Random(42)));
+    final AggregationIterator it = AggregationIterator.create(spans,
+        BASE_TIME * 1000, (BASE_TIME + 3600) * 1000, Aggregators.SUM,
+        Interpolation.LERP, new DownsamplingSpecification("1m-sum"),
+        BASE_TIME * 1000, (BASE_TIME + 3600) * 1000, false, null);
+    assertFalse(it.next().isInteger());
+    it.longValue();
+  }
+
+  /** @return The aggregation of the unfused iterator chains */
+  private static AggregationIterator aggregate(final List<Span> spans,
+      final DownsamplingSpecification ds, final Aggregator agg,
+      final long[] window, final boolean rate, final RateOptions options) {
+    final SeekableView[] chains = new SeekableView[spans.size()];
+    for (int i = 0; i < chains.length; i++) {
+      SeekableView it = spans.get(i).downsampler(window[0], window[1], ds,
+          window[0], window[1]);
+      if (rate) {
+        it = new RateSpan(it, options);
+      }
+      chains[i] = it;
+    }
+    return AggregationIterator.createForTesting(chains, window[0], window[1],
+        agg, agg.interpolationMethod(), rate);
+  }
+
+  /** @return The downsampler and rate iterators the fused series replaces */
+  private static SeekableView chain(final Span span,
+      final DownsamplingSpecification ds, final boolean rate,
+      final RateOptions options, final long seek) {
+    SeekableView it = new Downsampler(span.spanIterator(), ds, 0, 0);
+    if (rate) {
+      it = new RateSpan(it, options);
+    }
+    if (seek >= 0) {
+      it.seek(seek);
+    }
+    return it;
+  }
+
+  /** @return A gauge over 6 hours with a mix of longs, floats and NaNs */
+  private Span gauge(final Random random) {
+    final Span span = new Span(tsdb);
+    for (int hour = 0; hour < 6; hour++) {
+      final List<Long> timestamps = new ArrayList<Long>();
+      final List<Number> values = new ArrayList<Number>();
+      for (long ts = BASE_TIME + hour * 3600; ts < BASE_TIME + (hour + 1) * 3600;
+          ts += 1 + random.nextInt(90)) {
+        timestamps.add(ts);
+        final int type = random.nextInt(10);
+        if (type == 0) {
+          values.add(Float.NaN);
+        } else if (type < 5) {
+          values.add(random.nextFloat() * 100 - 50);
+        } else {
+          values.add((long) random.nextInt(1000) - 500);
+        }
+      }
+      addRow(span, timestamps, values);
+    }
+    return span;
+  }
+
+  /** @return A counter over 6 hours that wraps at 1000 now and then */
+  private Span counter(final Random random) {
+    final Span span = new Span(tsdb);
+    long value = 0;
+    for (int hour = 0; hour < 6; hour++) {
+      if (hour == 2) {
+        // leave a gap
+        continue;
+      }
+      final List<Long> timestamps = new ArrayList<Long>();
+      final List<Number> values = new ArrayList<Number>();
+      for (long ts = BASE_TIME + hour * 3600; ts < BASE_TIME + (hour + 1) * 3600;
+          ts += 15) {
+        timestamps.add(ts);
+        value = (value + random.nextInt(50)) % 1000;
+        values.add(value);
+      }
+      addRow(span, timestamps, values);
+    }
+    return span;
+  }
+
+  /** @return A gauge with millisecond timestamps */
+  private Span gaugeMs(final Random random) {
+    final Span span = new Span(tsdb);
+    for (int hour = 0; hour < 2; hour++) {
+      final List<Long> timestamps = new ArrayList<Long>();
+      final List<Number> values = new ArrayList<Number>();
+      for (long ts = (BASE_TIME + hour * 3600) * 1000;
+          ts < (BASE_TIME + (hour + 1) * 3600) * 1000;
+          ts += 1 + random.nextInt(20000)) {
+        timestamps.add(ts);
+        values.add(random.nextDouble() * 10);
+      }
+      addRow(span, timestamps, values);
+    }
+    return span;
+  }
+
+  /** Adds a compacted row, all timestamps must be in the same hour */
+  private static void addRow(final Span span, final long[] timestamps,
+      final Number[] values) {
+    final List<Long> ts = new ArrayList<Long>();
+    final List<Number> vals = new ArrayList<Number>();
+    for (int i = 0; i < timestamps.length; i++) {
+      ts.add(timestamps[i]);
+      vals.add(values[i]);
+    }
+    addRow(span, ts, vals);
+  }
+
+  /** Adds a compacted row, all timestamps must be in the same hour */
+  private static void addRow(final Span span, final List<Long> timestamps,
+      final List<Number> values) {
+    final boolean ms = (timestamps.get(0) & Const.SECOND_MASK) != 0;
+    final long base_time = (ms ? timestamps.get(0) / 1000 : timestamps.get(0));
+    final byte[] key = new byte[] { 0, 0, 1, 0, 0, 0, 0, 0, 0, 1, 0, 0, 2 };
+    Bytes.setInt(key, (int) (base_time - (base_time % Const.MAX_TIMESPAN)), 3);
+
+    final byte[] qualifiers = new byte[timestamps.size() * (ms ? 4 : 2)];
+    final byte[] vals = new byte[timestamps.size() * 8 + 1];
+    int q = 0;
+    int v = 0;
+    for (int i = 0; i < timestamps.size(); i++) {
+      final Number value = values.get(i);
+      final byte[] qualifier;
+      if (value instanceof Float) {
+        qualifier = Internal.buildQualifier(timestamps.get(i),
+            (short) (Const.FLAG_FLOAT | 0x3));
+        Bytes.setInt(vals, Float.floatToRawIntBits(value.floatValue()), v);
+        v += 4;
+      } else if (value instanceof Double) {
+        qualifier = Internal.buildQualifier(timestamps.get(i),
+            (short) (Const.FLAG_FLOAT | 0x7));
+        Bytes.setLong(vals, Double.doubleToRawLongBits(value.doubleValue()),
+            v);
+        v += 8;
+      } else {
+        qualifier = Internal.buildQualifier(timestamps.get(i), (short) 0x7);
+        Bytes.setLong(vals, value.longValue(), v);
+        v += 8;
+      }
+      System.arraycopy(qualifier, 0, qualifiers, q, qualifier.length);
+      q += qualifier.length;
+    }
+    final byte[] trimmed = new byte[v + 1];
+    System.arraycopy(vals, 0, trimmed, 0, v);
+    span.addRow(new KeyValue(key, FAMILY, qualifiers, trimmed));
+  }
+}
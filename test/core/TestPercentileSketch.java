@@ -0,0 +1,230 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public final class TestPercentileSketch {
+  private static final double[] PERCENTILES =
+    { 0, 1, 10, 25, 50, 75, 90, 95, 99, 99.9, 100 };
+
+  @Test
+  public void ctorDefaults() throws Exception {
+    final PercentileSketch sketch = new PercentileSketch();
+    assertEquals(PercentileSketch.DEFAULT_ACCURACY, sketch.accuracy(), 0.0);
+    assertEquals(0, sketch.count());
+    assertEquals(0, sketch.buckets());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroAccuracy() throws Exception {
+    new PercentileSketch(0, 16);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorAccuracyTooBig() throws Exception {
+    new PercentileSketch(1, 16);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorTooFewBuckets() throws Exception {
+    new PercentileSketch(0.01, 1);
+  }
+
+  @Test
+  public void empty() throws Exception {
+    assertTrue(Double.isNaN(new PercentileSketch().percentile(50)));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void percentileTooBig() throws Exception {
+    new PercentileSketch().percentile(100.1);
+  }
+
+  @Test
+  public void singleValue() throws Exception {
+    final PercentileSketch sketch = new PercentileSketch();
+    sketch.add(42);
+    for (final double p : PERCENTILES) {
+      assertEquals(42, sketch.percentile(p), 42 * 0.01);
+    }
+  }
+
+  @Test
+  public void nansIgnored() throws Exception {
+    final PercentileSketch sketch = new PercentileSketch();
+    sketch.add(Double.NaN);
+    sketch.add(1);
+    sketch.add(Double.NaN);
+    assertEquals(1, sketch.count());
+    assertEquals(1, sketch.percentile(100), 0.01);
+  }
+
+  @Test
+  public void negativesAndZeros() throws Exception {
+    final double[] values = { -1000, -5, -5, 0, 0, 0, 3, 7, 1e6 };
+    final PercentileSketch sketch = new PercentileSketch();
+    for (final double value : values) {
+      sketch.add(value);
+    }
+    assertAccurate(values, sketch, 0.01);
+    assertEquals(0, sketch.percentile(50), 0.0);
+  }
+
+  @Test
+  public void accuracyUniform() throws Exception {
+    final Random random = new Random(42);
+    final double[] values = new double[100000];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = random.nextDouble() * 1000;
+    }
+    assertAccurate(values, sketchOf(values, 0.01), 0.01);
+  }
+
+  @Test
+  public void accuracyFine() throws Exception {
+    // far more buckets per power of 2 than mantissa table cells
+    final Random random = new Random(42);
+    final double[] values = new double[100000];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = 100 + random.nextDouble() * 300;
+    }
+    final PercentileSketch sketch = new PercentileSketch(0.0001, 8192);
+    for (final double value : values) {
+      sketch.add(value);
+    }
+    assertAccurate(values, sketch, 0.0001);
+  }
+
+  @Test
+  public void accuracyAtPowersOfTwo() throws Exception {
+    for (int i = -20; i <= 20; i++) {
+      final double power = Math.scalb(1.0, i);
+      for (final double value : new double[] { Math.nextAfter(power, 0),
+          power, Math.nextUp(power), power * 1.5, -power }) {
+        final PercentileSketch sketch = new PercentileSketch();
+        sketch.add(value);
+        assertEquals(value, sketch.percentile(50), Math.abs(value) * 0.01);
+      }
+    }
+  }
+
+  @Test
+  public void accuracyLongTail() throws Exception {
+    // latencies are usually log normal with a long tail
+    final Random random = new Random(42);
+    final double[] values = new double[100000];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = Math.exp(random.nextGaussian() * 2 + 3);
+    }
+    final PercentileSketch sketch = sketchOf(values, 0.01);
+    assertAccurate(values, sketch, 0.01);
+    assertAccurate(values, sketchOf(values, 0.05), 0.05);
+    // memory depends on the range of values, not the count
+    assertTrue(sketch.buckets() < 2048);
+  }
+
+  @Test
+  public void boundedBuckets() throws Exception {
+    final PercentileSketch sketch = new PercentileSketch(0.01, 64);
+    // spans far more than 64 buckets
+    for (int i = -30; i <= 30; i++) {
+      sketch.add(Math.pow(10, i));
+    }
+    assertEquals(64, sketch.buckets());
+    assertEquals(61, sketch.count());
+    // the top of the range stays accurate, the bottom is collapsed
+    assertEquals(1e30, sketch.percentile(100), 1e30 * 0.01);
+    assertTrue(sketch.percentile(0) > 1e-30);
+  }
+
+  @Test
+  public void merge() throws Exception {
+    final Random random = new Random(42);
+    final double[] values = new double[10000];
+    final PercentileSketch a = new PercentileSketch();
+    final PercentileSketch b = new PercentileSketch();
+    for (int i = 0; i < values.length; i++) {
+      values[i] = random.nextGaussian() * 100;
+      if (i % 3 == 0) {
+        a.add(values[i]);
+      } else {
+        b.add(values[i]);
+      }
+    }
+    a.merge(b);
+    assertEquals(values.length, a.count());
+    final PercentileSketch all = sketchOf(values, 0.01);
+    for (final double p : PERCENTILES) {
+      assertEquals(all.percentile(p), a.percentile(p), 0.0);
+    }
+    assertAccurate(values, a, 0.01);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void mergeDifferentAccuracy() throws Exception {
+    new PercentileSketch(0.01, 2048).merge(new PercentileSketch(0.02, 2048));
+  }
+
+  @Test
+  public void clear() throws Exception {
+    final PercentileSketch sketch = new PercentileSketch();
+    sketch.add(1);
+    sketch.add(1000);
+    final int buckets = sketch.buckets();
+    sketch.clear();
+    assertEquals(0, sketch.count());
+    assertTrue(Double.isNaN(sketch.percentile(50)));
+    // the buckets are kept for reuse
+    assertEquals(buckets, sketch.buckets());
+
+    sketch.add(-1e6);
+    sketch.add(5);
+    assertEquals(-1e6, sketch.percentile(50), 1e6 * 0.01);
+    assertEquals(5, sketch.percentile(100), 5 * 0.01);
+  }
+
+  /** Builds a sketch from the values */
+  private static PercentileSketch sketchOf(final double[] values,
+      final double accuracy) {
+    final PercentileSketch sketch = new PercentileSketch(accuracy,
+        PercentileSketch.DEFAULT_MAX_BUCKETS);
+    for (final double value : values) {
+      sketch.add(value);
+    }
+    return sketch;
+  }
+
+  /**
+   * Makes sure every percentile is within the relative accuracy of the value
+   * with the nearest rank.
+   */
+  private static void assertAccurate(final double[] values,
+      final PercentileSketch sketch, final double accuracy) {
+    final double[] sorted = Arrays.copyOf(values, values.length);
+    Arrays.sort(sorted);
+    for (final double p : PERCENTILES) {
+      final int rank = Math.max(0,
+          (int) Math.ceil(p / 100 * sorted.length) - 1);
+      final double expected = sorted[rank];
+      assertEquals("p" + p, expected, sketch.percentile(p),
+          Math.abs(expected) * accuracy + 1e-9);
+    }
+  }
+}
@@ -0,0 +1,204 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public final class TestReducedDataPoints {
+  private static final long START = 1356998400000L;
+  private static final long END = START + 100000L;
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorNullSource() throws Exception {
+    new ReducedDataPoints(null, START, END, 10);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorEmptyRange() throws Exception {
+    new ReducedDataPoints(series(), START, START, 10);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorTooFewPoints() throws Exception {
+    new ReducedDataPoints(series(), START, END, 1);
+  }
+
+  @Test
+  public void minMaxPerBucket() throws Exception {
+    // 5 buckets of 20 seconds, 20 points each going down then up
+    final List<DataPoint> points = new ArrayList<DataPoint>();
+    for (int i = 0; i < 100; i++) {
+      final long value = i % 20 < 10 ? 10 - i % 20 : i % 20;
+      points.add(MutableDataPoint.ofLongValue(START + i * 1000, value));
+    }
+    final List<DataPoint> reduced = reduce(points, 10);
+    assertEquals(10, reduced.size());
+    for (int i = 0; i < 5; i++) {
+      final DataPoint min = reduced.get(i * 2);
+      final DataPoint max = reduced.get(i * 2 + 1);
+      assertEquals(START + (i * 20 + 9) * 1000, min.timestamp());
+      assertEquals(1, min.longValue());
+      assertEquals(START + (i * 20 + 19) * 1000, max.timestamp());
+      assertEquals(19, max.longValue());
+      assertTrue(min.isInteger());
+    }
+  }
+
+  @Test
+  public void maxBeforeMin() throws Exception {
+    final List<DataPoint> points = new ArrayList<DataPoint>();
+    points.add(MutableDataPoint.ofDoubleValue(START, 5.5));
+    points.add(MutableDataPoint.ofDoubleValue(START + 1000, 42.5));
+    points.add(MutableDataPoint.ofDoubleValue(START + 2000, -1.5));
+    points.add(MutableDataPoint.ofDoubleValue(START + 3000, 3.5));
+    final List<DataPoint> reduced = reduce(points, 2);
+    assertEquals(2, reduced.size());
+    assertEquals(42.5, reduced.get(0).doubleValue(), 0.0001);
+    assertEquals(-1.5, reduced.get(1).doubleValue(), 0.0001);
+  }
+
+  @Test
+  public void sparseSeriesUnchanged() throws Exception {
+    final List<DataPoint> points = new ArrayList<DataPoint>();
+    for (int i = 0; i < 5; i++) {
+      points.add(MutableDataPoint.ofLongValue(START + i * 20000, i));
+    }
+    final List<DataPoint> reduced = reduce(points, 100);
+    assertEquals(5, reduced.size());
+    for (int i = 0; i < 5; i++) {
+      assertEquals(START + i * 20000, reduced.get(i).timestamp());
+      assertEquals(i, reduced.get(i).longValue());
+    }
+  }
+
+  @Test
+  public void flatBucket() throws Exception {
+    final List<DataPoint> points = new ArrayList<DataPoint>();
+    for (int i = 0; i < 10; i++) {
+      points.add(MutableDataPoint.ofLongValue(START + i * 1000, 7));
+    }
+    final List<DataPoint> reduced = reduce(points, 2);
+    assertEquals(1, reduced.size());
+    assertEquals(START, reduced.get(0).timestamp());
+  }
+
+  @Test
+  public void nans() throws Exception {
+    final List<DataPoint> points = new ArrayList<DataPoint>();
+    // first bucket has a value and NaNs, second only NaNs
+    points.add(MutableDataPoint.ofDoubleValue(START, Double.NaN));
+    points.add(MutableDataPoint.ofDoubleValue(START + 1000, 1));
+    points.add(MutableDataPoint.ofDoubleValue(START + 2000, Double.NaN));
+    points.add(MutableDataPoint.ofDoubleValue(START + 60000, Double.NaN));
+    points.add(MutableDataPoint.ofDoubleValue(START + 61000, Double.NaN));
+    final List<DataPoint> reduced = reduce(points, 4);
+    assertEquals(2, reduced.size());
+    assertEquals(START + 1000, reduced.get(0).timestamp());
+    assertEquals(1, reduced.get(0).doubleValue(), 0.0001);
+    assertEquals(START + 60000, reduced.get(1).timestamp());
+    assertTrue(Double.isNaN(reduced.get(1).doubleValue()));
+  }
+
+  @Test
+  public void outsideOfRange() throws Exception {
+    final List<DataPoint> points = new ArrayList<DataPoint>();
+    points.add(MutableDataPoint.ofLongValue(START - 60000, 100));
+    points.add(MutableDataPoint.ofLongValue(START, 1));
+    points.add(MutableDataPoint.ofLongValue(START + 1000, 2));
+    points.add(MutableDataPoint.ofLongValue(START + 2000, 3));
+    points.add(MutableDataPoint.ofLongValue(END + 60000, 100));
+    final List<DataPoint> reduced = reduce(points, 2);
+    assertEquals(4, reduced.size());
+    assertEquals(START - 60000, reduced.get(0).timestamp());
+    assertEquals(START, reduced.get(1).timestamp());
+    assertEquals(START + 2000, reduced.get(2).timestamp());
+    assertEquals(END + 60000, reduced.get(3).timestamp());
+  }
+
+  @Test
+  public void empty() throws Exception {
+    assertTrue(reduce(new ArrayList<DataPoint>(), 10).isEmpty());
+  }
+
+  @Test
+  public void seek() throws Exception {
+    final DataPoints source = series(
+        MutableDataPoint.ofLongValue(START, 1),
+        MutableDataPoint.ofLongValue(START + 50000, 2),
+        MutableDataPoint.ofLongValue(START + 60000, 3));
+    final SeekableView it =
+        new ReducedDataPoints(source, START, END, 4).iterator();
+    it.seek(START + 50000);
+    assertEquals(START + 50000, it.next().timestamp());
+    assertEquals(START + 60000, it.next().timestamp());
+    assertFalse(it.hasNext());
+    try {
+      it.next();
+      fail("Expected NoSuchElementException");
+    } catch (NoSuchElementException e) { }
+  }
+
+  @Test
+  public void delegates() throws Exception {
+    final DataPoints source = series();
+    when(source.metricName()).thenReturn("sys.cpu.user");
+    when(source.size()).thenReturn(42);
+    when(source.getQueryIndex()).thenReturn(3);
+    final ReducedDataPoints reduced =
+        new ReducedDataPoints(source, START, END, 4);
+    assertEquals("sys.cpu.user", reduced.metricName());
+    assertEquals(42, reduced.size());
+    assertEquals(3, reduced.getQueryIndex());
+  }
+
+  @Test (expected = UnsupportedOperationException.class)
+  public void indexedAccess() throws Exception {
+    new ReducedDataPoints(series(), START, END, 4).timestamp(0);
+  }
+
+  private static List<DataPoint> reduce(final List<DataPoint> points,
+      final int max_points) {
+    final DataPoints reduced = new ReducedDataPoints(
+        series(points.toArray(new DataPoint[points.size()])),
+        START, END, max_points);
+    final List<DataPoint> result = new ArrayList<DataPoint>();
+    for (final DataPoint dp : reduced) {
+      result.add(MutableDataPoint.fromPoint(dp));
+    }
+    return result;
+  }
+
+  private static DataPoints series(final DataPoint... points) {
+    final DataPoints series = mock(DataPoints.class);
+    when(series.iterator()).thenAnswer(new Answer<SeekableView>() {
+      @Override
+      public SeekableView answer(final InvocationOnMock invocation) {
+        return SeekableViewsForTest.fromArray(points);
+      }
+    });
+    return series;
+  }
+}
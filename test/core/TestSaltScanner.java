@@ -13,10 +13,13 @@
 package net.opentsdb.core;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.atLeast;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
@@ -31,6 +34,8 @@ import java.util.List;
 import java.util.TreeMap;
 
 import net.opentsdb.query.filter.TagVFilter;
+import net.opentsdb.stats.QueryStats;
+import net.opentsdb.stats.QueryStats.QueryStat;
 import net.opentsdb.uid.UniqueId;
 
 import org.hbase.async.KeyValue;
@@ -185,6 +190,75 @@ public class TestSaltScanner extends BaseTsdbTest {
     verify(tag_values, never()).getNameAsync(TAGV_B_BYTES);
   }
   
+  @Test
+  public void scanMergesIncrementally() throws Exception {
+    setupMockScanners(false);
+    final Deferred<ArrayList<ArrayList<KeyValue>>> last_batch = 
+        new Deferred<ArrayList<ArrayList<KeyValue>>>();
+    when(scanner_b.nextRows())
+      .thenReturn(Deferred.fromResult(kvs_b.get(0)))
+      .thenReturn(last_batch);
+    
+    final SaltScanner scanner = new SaltScanner(tsdb, METRIC_BYTES, scanners, 
+        spans, filters);
+    final Deferred<TreeMap<byte[], Span>> deferred = scanner.scan();
+    
+    // bucket B is still running but everything fetched so far is in the spans
+    assertEquals(3, spans.size());
+    assertEquals(2, spans.get(KEY_A).size());
+    assertEquals(1, spans.get(KEY_A).getAnnotations().size());
+    assertEquals(1, spans.get(KEY_C).size());
+    
+    // the mock would keep returning the pending deferred so end the scan
+    when(scanner_b.nextRows()).thenReturn(
+        Deferred.<ArrayList<ArrayList<KeyValue>>>fromResult(null));
+    last_batch.callback(kvs_b.get(1));
+    assertEquals(2, spans.get(KEY_C).size());
+    assertTrue(spans == deferred.joinUninterruptibly());
+  }
+  
+  @Test
+  public void scanStats() throws Exception {
+    setupMockScanners(false);
+    final QueryStats query_stats = mock(QueryStats.class);
+    final SaltScanner scanner = new SaltScanner(tsdb, METRIC_BYTES, scanners, 
+        spans, filters, false, query_stats, 0);
+    assertTrue(spans == scanner.scan().joinUninterruptibly());
+    
+    // 3 rows of 14 + 2 + 1 bytes
+    verify(query_stats).addScannerStat(0, 0, QueryStat.ROWS_FROM_STORAGE, 3);
+    verify(query_stats).addScannerStat(0, 0, QueryStat.COLUMNS_FROM_STORAGE, 3);
+    verify(query_stats).addScannerStat(0, 0, QueryStat.BYTES_FROM_STORAGE, 51);
+    verify(query_stats).addScannerStat(0, 0, 
+        QueryStat.SCANNER_MERGED_BYTES, 51);
+    // the annotation is dropped from the merged bytes of B
+    verify(query_stats).addScannerStat(0, 1, QueryStat.ROWS_FROM_STORAGE, 2);
+    verify(query_stats).addScannerStat(0, 1, QueryStat.COLUMNS_FROM_STORAGE, 3);
+    verify(query_stats).addScannerStat(0, 1, 
+        QueryStat.SCANNER_MERGED_BYTES, 34);
+    verify(query_stats).addStat(eq(0), eq(QueryStat.SCANNER_MERGE_TIME), 
+        anyLong());
+  }
+  
+  @Test
+  public void scanFailedDoesNotReturnSpans() throws Exception {
+    setupMockScanners(false);
+    final RuntimeException e = new RuntimeException("From HBase");
+    when(scanner_b.nextRows())
+      .thenReturn(Deferred.fromResult(kvs_b.get(0)))
+      .thenReturn(Deferred.<ArrayList<ArrayList<KeyValue>>>fromError(e));
+    final SaltScanner scanner = new SaltScanner(tsdb, METRIC_BYTES, scanners, 
+        spans, filters);
+    try {
+      scanner.scan().joinUninterruptibly();
+      fail("Expected a runtime exception here");
+    } catch (RuntimeException re) {
+      assertEquals(e, re);
+    }
+    // partial results were merged but never handed to the caller
+    assertFalse(spans.isEmpty());
+  }
+  
   @Test
   public void scanWithFilter() throws Exception {
     setupMockScanners(false);
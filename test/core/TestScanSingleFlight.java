@@ -0,0 +1,167 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.util.TreeMap;
+
+import org.hbase.async.Bytes;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.query.CancellationToken;
+import net.opentsdb.query.CancellationToken.Reason;
+import net.opentsdb.stats.QueryStats;
+import net.opentsdb.stats.QueryStats.QueryStat;
+
+public class TestScanSingleFlight {
+  private static final String KEY = "metric=000001, start=1356998400";
+
+  private ScanSingleFlight single_flight;
+  private TreeMap<byte[], Span> spans;
+
+  @Before
+  public void before() throws Exception {
+    single_flight = new ScanSingleFlight();
+    spans = new TreeMap<byte[], Span>(Bytes.MEMCMP);
+    spans.put(new byte[] { 0, 0, 1 }, new Span(null));
+  }
+
+  @Test
+  public void sharesInFlightScan() throws Exception {
+    final MockScan leader = new MockScan();
+    final MockScan follower = new MockScan();
+    final QueryStats leader_stats = mock(QueryStats.class);
+    final QueryStats follower_stats = mock(QueryStats.class);
+
+    final Deferred<TreeMap<byte[], Span>> first =
+        single_flight.run(KEY, leader, null, leader_stats, 0);
+    final Deferred<TreeMap<byte[], Span>> second =
+        single_flight.run(KEY, follower, null, follower_stats, 1);
+    assertEquals(1, leader.scans);
+    assertEquals(0, follower.scans);
+    assertEquals(1, single_flight.inFlight());
+
+    leader.deferred.callback(spans);
+    assertSame(spans, first.join());
+    assertSame(spans, second.join());
+    assertEquals(0, single_flight.inFlight());
+    verify(leader_stats).addStat(0, QueryStat.SCAN_SHARE_COUNT, 1);
+    verify(follower_stats).addStat(1, QueryStat.SHARED_SCAN, 1);
+  }
+
+  @Test
+  public void differentKeys() throws Exception {
+    final MockScan a = new MockScan();
+    final MockScan b = new MockScan();
+    single_flight.run(KEY, a, null, null, 0);
+    single_flight.run(KEY + ", end=1357002000", b, null, null, 0);
+    assertEquals(1, a.scans);
+    assertEquals(1, b.scans);
+    assertEquals(2, single_flight.inFlight());
+  }
+
+  @Test
+  public void completedScanIsNotShared() throws Exception {
+    final MockScan first = new MockScan();
+    single_flight.run(KEY, first, null, null, 0);
+    first.deferred.callback(spans);
+
+    final MockScan second = new MockScan();
+    final QueryStats query_stats = mock(QueryStats.class);
+    single_flight.run(KEY, second, null, query_stats, 0);
+    assertEquals(1, second.scans);
+    verify(query_stats, never()).addStat(0, QueryStat.SHARED_SCAN, 1);
+  }
+
+  @Test
+  public void leaderFailed() throws Exception {
+    final MockScan leader = new MockScan();
+    final MockScan follower = new MockScan();
+    final Deferred<TreeMap<byte[], Span>> first =
+        single_flight.run(KEY, leader, null, null, 0);
+    final Deferred<TreeMap<byte[], Span>> second =
+        single_flight.run(KEY, follower, null, null, 0);
+
+    leader.deferred.callback(new IllegalStateException("Boo!"));
+    assertFails(first);
+    assertFails(second);
+    assertEquals(0, follower.scans);
+    assertEquals(0, single_flight.inFlight());
+  }
+
+  @Test
+  public void leaderThrew() throws Exception {
+    final ScanSingleFlight.Scan leader = new ScanSingleFlight.Scan() {
+      @Override
+      public Deferred<TreeMap<byte[], Span>> scan() {
+        throw new IllegalStateException("Boo!");
+      }
+    };
+    try {
+      single_flight.run(KEY, leader, null, null, 0);
+      fail("Expected an IllegalStateException");
+    } catch (IllegalStateException e) { }
+    assertEquals(0, single_flight.inFlight());
+  }
+
+  @Test
+  public void leaderCancelled() throws Exception {
+    final CancellationToken token = new CancellationToken();
+    final MockScan leader = new MockScan();
+    final MockScan follower = new MockScan();
+    final Deferred<TreeMap<byte[], Span>> first =
+        single_flight.run(KEY, leader, token, null, 0);
+    final Deferred<TreeMap<byte[], Span>> second =
+        single_flight.run(KEY, follower, null, null, 0);
+
+    token.cancel(Reason.DISCONNECTED);
+    leader.deferred.callback(token.getException());
+    assertFails(first);
+
+    // the follower scans on its own
+    assertEquals(1, follower.scans);
+    follower.deferred.callback(spans);
+    assertSame(spans, second.join());
+  }
+
+  /** Asserts that the deferred resolved to an exception */
+  private static void assertFails(
+      final Deferred<TreeMap<byte[], Span>> deferred) throws Exception {
+    try {
+      deferred.join();
+      fail("Expected an exception");
+    } catch (RuntimeException e) { }
+  }
+
+  /** Counts the scans and returns a deferred to complete by hand */
+  private static final class MockScan implements ScanSingleFlight.Scan {
+    final Deferred<TreeMap<byte[], Span>> deferred =
+        new Deferred<TreeMap<byte[], Span>>();
+    int scans;
+
+    @Override
+    public Deferred<TreeMap<byte[], Span>> scan() {
+      scans++;
+      return deferred;
+    }
+  }
+}
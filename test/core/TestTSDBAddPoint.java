@@ -36,6 +36,7 @@ import org.powermock.reflect.Whitebox;
 
 import com.stumbleupon.async.Deferred;
 
+import net.opentsdb.search.TagIndex;
 import net.opentsdb.uid.NoSuchUniqueName;
 
 public class TestTSDBAddPoint extends BaseTsdbTest {
@@ -55,6 +56,26 @@ public class TestTSDBAddPoint extends BaseTsdbTest {
     assertEquals(42, value[0]);
   }
   
+  @Test
+  public void addPointTagIndex() throws Exception {
+    final TagIndex index = new TagIndex();
+    Whitebox.setInternalState(tsdb, "tag_index", index);
+    Whitebox.setInternalState(config, "enable_tsuid_tracking", true);
+    tsdb.addPoint(METRIC_STRING, 1356998400, 42, tags).joinUninterruptibly();
+    tsdb.addPoint(METRIC_STRING, 1356998401, 24, tags).joinUninterruptibly();
+    assertEquals(1, index.size());
+    assertArrayEquals(new byte[] { 0, 0, 1, 0, 0, 1, 0, 0, 1 }, 
+        index.lookup(null, null, 0).get(0));
+  }
+  
+  @Test
+  public void addPointTagIndexNotTracked() throws Exception {
+    final TagIndex index = new TagIndex();
+    Whitebox.setInternalState(tsdb, "tag_index", index);
+    tsdb.addPoint(METRIC_STRING, 1356998400, 42, tags).joinUninterruptibly();
+    assertEquals(0, index.size());
+  }
+  
   @Test
   public void addPointLong1ByteNegative() throws Exception {
     tsdb.addPoint(METRIC_STRING, 1356998400, -42, tags).joinUninterruptibly();
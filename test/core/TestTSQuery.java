@@ -99,6 +99,28 @@ public final class TestTSQuery {
     assertFalse(q.getQueries().get(0).downsamplingSpecification().useCalendar());
   }
   
+  @Test
+  public void validateMaxPoints() {
+    TSQuery q = this.getMetricForValidate();
+    q.setMaxPoints(2048);
+    q.validateAndSetQuery();
+    assertEquals(2048, q.getMaxPoints());
+  }
+  
+  @Test (expected = IllegalArgumentException.class)
+  public void validateMaxPointsNegative() {
+    TSQuery q = this.getMetricForValidate();
+    q.setMaxPoints(-1);
+    q.validateAndSetQuery();
+  }
+  
+  @Test (expected = IllegalArgumentException.class)
+  public void validateMaxPointsOne() {
+    TSQuery q = this.getMetricForValidate();
+    q.setMaxPoints(1);
+    q.validateAndSetQuery();
+  }
+  
   @Test (expected = IllegalArgumentException.class)
   public void validateNullStart() {
     TSQuery q = this.getMetricForValidate();
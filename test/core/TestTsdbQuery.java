@@ -14,11 +14,13 @@ package net.opentsdb.core;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.mockito.Mockito.when;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -29,6 +31,7 @@ import net.opentsdb.query.filter.TagVFilter;
 import net.opentsdb.query.filter.TagVWildcardFilter;
 import net.opentsdb.storage.MockBase;
 import net.opentsdb.uid.NoSuchUniqueName;
+import net.opentsdb.uid.UidDictionary;
 import net.opentsdb.utils.DateTime;
 
 import org.junit.Before;
@@ -37,6 +40,7 @@ import org.junit.runner.RunWith;
 import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
 
 import com.stumbleupon.async.DeferredGroupException;
 
@@ -143,6 +147,28 @@ public final class TestTsdbQuery extends BaseTsdbTest {
         ForTesting.getRowKeyLiterals(query).get(TAGV_BYTES)[0]);
   }
   
+  @Test
+  public void getScanKey() throws Exception {
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+    
+    // same rows scanned, aggregated differently
+    final TsdbQuery other = new TsdbQuery(tsdb);
+    other.setStartTime(1356998460);
+    other.setEndTime(1357041600);
+    other.setTimeSeries(METRIC_STRING, tags, Aggregators.MAX, true);
+    assertEquals(query.getScanKey(), other.getScanKey());
+    
+    other.setEndTime(1357045200);
+    assertFalse(query.getScanKey().equals(other.getScanKey()));
+    
+    tags.put(TAGK_STRING, TAGV_B_STRING);
+    other.setEndTime(1357041600);
+    other.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+    assertFalse(query.getScanKey().equals(other.getScanKey()));
+  }
+  
   @Test (expected = NullPointerException.class)
   public void setTimeSeriesNullTags() throws Exception {
     query.setTimeSeries(METRIC_STRING, null, Aggregators.SUM, false);
@@ -331,6 +357,85 @@ public final class TestTsdbQuery extends BaseTsdbTest {
     assertNotNull(ForTesting.getRateOptions(query));
   }
   
+  @Test
+  public void configureFromQueryWithExpandedFilter() throws Exception {
+    setDataPointStorage();
+    setTagVDictionary(Long.MAX_VALUE, TAGV_STRING, TAGV_B_STRING);
+    final TSQuery ts_query = getTSQuery();
+    final List<TagVFilter> filters = new ArrayList<TagVFilter>(1);
+    filters.add(new TagVWildcardFilter("host", "web*"));
+    ts_query.getQueries().get(0).setFilters(filters);
+    ts_query.validateAndSetQuery();
+    query = new TsdbQuery(tsdb);
+    query.configureFromQuery(ts_query, 0).joinUninterruptibly();
+    
+    assertEquals(1, ForTesting.getRowKeyLiterals(query).size());
+    assertEquals(2, ForTesting.getRowKeyLiterals(query).get(TAGK_BYTES).length);
+    assertFalse(ForTesting.getFilters(query).get(0).postScan());
+  }
+  
+  @Test
+  public void configureFromQueryWithStaleDictionary() throws Exception {
+    setDataPointStorage();
+    // loaded before the end of the query
+    setTagVDictionary(1357041600000L, TAGV_STRING, TAGV_B_STRING);
+    query = new TsdbQuery(tsdb);
+    query.configureFromQuery(getExpandedTSQuery(), 0).joinUninterruptibly();
+    
+    assertEquals(1, ForTesting.getRowKeyLiterals(query).size());
+    assertNull(ForTesting.getRowKeyLiterals(query).get(TAGK_BYTES));
+    assertTrue(ForTesting.getFilters(query).get(0).postScan());
+  }
+  
+  @Test
+  public void configureFromQueryWithStaleDictionarySingleWriter() 
+      throws Exception {
+    config.overrideConfig("tsd.query.filter.dictionary.single_writer", "true");
+    setDataPointStorage();
+    setTagVDictionary(1357041600000L, TAGV_STRING, TAGV_B_STRING);
+    query = new TsdbQuery(tsdb);
+    query.configureFromQuery(getExpandedTSQuery(), 0).joinUninterruptibly();
+    
+    assertEquals(2, ForTesting.getRowKeyLiterals(query).get(TAGK_BYTES).length);
+    assertFalse(ForTesting.getFilters(query).get(0).postScan());
+  }
+  
+  @Test
+  public void runExpandedFilterValueMissingFromDictionary() throws Exception {
+    storeLongTimeSeriesSeconds(false, false);
+    // web02 was assigned by another TSD after the last load
+    setTagVDictionary(1356998400000L, TAGV_STRING);
+    query = new TsdbQuery(tsdb);
+    query.configureFromQuery(getExpandedTSQuery(), 0).joinUninterruptibly();
+    
+    final DataPoints[] dps = query.run();
+    assertEquals(2, dps.length);
+    assertEquals(TAGV_STRING, dps[0].getTags().get(TAGK_STRING));
+    assertEquals(TAGV_B_STRING, dps[1].getTags().get(TAGK_STRING));
+  }
+  
+  @Test
+  public void configureFromQueryWithExpandedAndLiteralFilters() 
+      throws Exception {
+    setDataPointStorage();
+    setTagVDictionary(Long.MAX_VALUE, TAGV_STRING, TAGV_B_STRING);
+    final TSQuery ts_query = getTSQuery();
+    final List<TagVFilter> filters = new ArrayList<TagVFilter>(2);
+    filters.add(new TagVWildcardFilter("host", "web*"));
+    filters.add(TagVFilter.Builder().setFilter(TAGV_STRING).setTagk("host")
+        .setType("literal_or").build());
+    ts_query.getQueries().get(0).setFilters(filters);
+    ts_query.validateAndSetQuery();
+    query = new TsdbQuery(tsdb);
+    query.configureFromQuery(ts_query, 0).joinUninterruptibly();
+    
+    // the row key matches either filter so both still run after the scan
+    assertEquals(2, ForTesting.getRowKeyLiterals(query).get(TAGK_BYTES).length);
+    for (final TagVFilter filter : ForTesting.getFilters(query)) {
+      assertTrue(filter.postScan());
+    }
+  }
+  
   @Test
   public void configureFromQueryWithGroupByAndRegularFilters() throws Exception {
     setDataPointStorage();
@@ -508,4 +613,33 @@ public final class TestTsdbQuery extends BaseTsdbTest {
     ts_query.setQueries(sub_queries);
     return ts_query;
   }
+  
+  /**
+   * Sets a loaded tag value dictionary
+   * @param load_start_time When the load of the dictionary started in ms
+   * @param names Any of web01 or web02
+   */
+  private void setTagVDictionary(final long load_start_time, 
+      final String... names) {
+    final UidDictionary dictionary = new UidDictionary("tagv", (short) 3);
+    for (final String name : names) {
+      dictionary.add(name, 
+          name.equals(TAGV_STRING) ? TAGV_BYTES : TAGV_B_BYTES);
+    }
+    Whitebox.setInternalState(dictionary, "loaded", true);
+    Whitebox.setInternalState(dictionary, "load_start_time", load_start_time);
+    when(tag_values.getDictionary()).thenReturn(dictionary);
+  }
+  
+  /** @return A query for web* grouped by host over the long time series */
+  private TSQuery getExpandedTSQuery() {
+    final TSQuery ts_query = getTSQuery();
+    ts_query.setEnd("1357041600");
+    final List<TagVFilter> filters = new ArrayList<TagVFilter>(1);
+    filters.add(TagVFilter.Builder().setFilter("web*").setTagk(TAGK_STRING)
+        .setType("wildcard").setGroupBy(true).build());
+    ts_query.getQueries().get(0).setFilters(filters);
+    ts_query.validateAndSetQuery();
+    return ts_query;
+  }
 }
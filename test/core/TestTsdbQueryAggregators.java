@@ -993,6 +993,32 @@ public class TestTsdbQueryAggregators extends BaseTsdbTest {
     testPercentile(Aggregators.ep95r7, 150, 150);
     testPercentile(Aggregators.ep99r7, 150, 150);
     testPercentile(Aggregators.ep999r7, 150, 150);
+    // The sketches return the nearest rank so either value, within 1%
+    testPercentile(Aggregators.sp50, 150, 153);
+    testPercentile(Aggregators.sp75, 150, 153);
+    testPercentile(Aggregators.sp90, 150, 153);
+    testPercentile(Aggregators.sp95, 150, 153);
+    testPercentile(Aggregators.sp99, 150, 153);
+    testPercentile(Aggregators.sp999, 150, 153);
+  }
+  
+  @Test
+  public void runSketchPercentileDownsampler() throws Exception {
+    storeLongTimeSeriesSeconds(false, false);
+    
+    // with two values per bucket the 99th percentile is the max
+    final DataPoints[] expected = runDownsampled(Aggregators.MAX);
+    final DataPoints[] dps = runDownsampled(Aggregators.sp99);
+    assertEquals(expected[0].size(), dps[0].size());
+    final SeekableView expected_it = expected[0].iterator();
+    final SeekableView it = dps[0].iterator();
+    while (expected_it.hasNext()) {
+      final DataPoint expected_dp = expected_it.next();
+      final DataPoint dp = it.next();
+      assertEquals(expected_dp.timestamp(), dp.timestamp());
+      assertEquals(expected_dp.toDouble(), dp.toDouble(), 
+          expected_dp.toDouble() * 0.01);
+    }
   }
   
   public void runCount() throws Exception {
@@ -1114,4 +1140,14 @@ public class TestTsdbQueryAggregators extends BaseTsdbTest {
     }
     assertEquals(600, size);
   }
+
+  /** Runs a one minute downsampled query with the given downsampler */
+  private DataPoints[] runDownsampled(final Aggregator downsampler) {
+    final TsdbQuery query = new TsdbQuery(tsdb);
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.downsample(60000, downsampler);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+    return query.run();
+  }
 }
@@ -0,0 +1,176 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Map;
+
+import org.hbase.async.Scanner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+/**
+ * Makes sure that downsampling rows as they are scanned returns exactly what
+ * the regular downsampler returns from the raw rows.
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ Scanner.class })
+public class TestTsdbQueryEarlyDownsample extends BaseTsdbTest {
+
+  @Before
+  public void beforeLocal() throws Exception {
+    // nothing to set up, the salted version overrides this
+  }
+
+  @Test
+  public void sum() throws Exception {
+    storeLongTimeSeriesSeconds(false, false);
+    final DataPoints[] dps = assertSameResults(60000, Aggregators.SUM,
+        FillPolicy.NONE, Aggregators.SUM, tags, false);
+    assertEquals(151, dps[0].size());
+    // one folded value per interval instead of 300 raw values
+    assertEquals(151, dps[0].aggregatedSize());
+    assertEquals(5, dps[0].doubleValue(1), 0.00001);
+  }
+
+  @Test
+  public void avgGroupBy() throws Exception {
+    storeLongTimeSeriesSeconds(false, false);
+    tags.clear();
+    final DataPoints[] dps = assertSameResults(300000, Aggregators.AVG,
+        FillPolicy.NONE, Aggregators.SUM, tags, false);
+    assertEquals(1, dps.length);
+    assertEquals(62, dps[0].aggregatedSize());
+  }
+
+  @Test
+  public void maxRate() throws Exception {
+    storeLongTimeSeriesSeconds(false, false);
+    assertSameResults(60000, Aggregators.MAX, FillPolicy.NONE,
+        Aggregators.SUM, tags, true);
+  }
+
+  @Test
+  public void firstAndLast() throws Exception {
+    storeLongTimeSeriesSeconds(false, false);
+    assertSameResults(120000, Aggregators.FIRST, FillPolicy.NONE,
+        Aggregators.SUM, tags, false);
+    assertSameResults(120000, Aggregators.LAST, FillPolicy.NONE,
+        Aggregators.SUM, tags, false);
+  }
+
+  @Test
+  public void floats() throws Exception {
+    storeFloatTimeSeriesSeconds(false, false);
+    assertSameResults(60000, Aggregators.SUM, FillPolicy.NONE,
+        Aggregators.SUM, tags, false);
+  }
+
+  @Test
+  public void milliseconds() throws Exception {
+    storeLongTimeSeriesMs();
+    final DataPoints[] dps = assertSameResults(1500, Aggregators.AVG,
+        FillPolicy.NONE, Aggregators.SUM, tags, false);
+    assertEquals(101, dps[0].aggregatedSize());
+  }
+
+  @Test
+  public void missingDataWithFill() throws Exception {
+    storeLongTimeSeriesWithMissingData();
+    tags.clear();
+    assertSameResults(20000, Aggregators.SUM, FillPolicy.ZERO,
+        Aggregators.SUM, tags, false);
+  }
+
+  @Test
+  public void notFoldedCount() throws Exception {
+    storeLongTimeSeriesSeconds(false, false);
+    final DataPoints[] dps = assertSameResults(60000, Aggregators.COUNT,
+        FillPolicy.NONE, Aggregators.SUM, tags, false);
+    assertEquals(300, dps[0].aggregatedSize());
+  }
+
+  @Test
+  public void notFoldedDev() throws Exception {
+    storeLongTimeSeriesSeconds(false, false);
+    final DataPoints[] dps = assertSameResults(60000, Aggregators.DEV,
+        FillPolicy.NONE, Aggregators.SUM, tags, false);
+    assertEquals(300, dps[0].aggregatedSize());
+  }
+
+  @Test
+  public void notFoldedUnevenInterval() throws Exception {
+    storeLongTimeSeriesSeconds(false, false);
+    // 7 minutes don't divide an hour so intervals straddle rows
+    final DataPoints[] dps = assertSameResults(420000, Aggregators.SUM,
+        FillPolicy.NONE, Aggregators.SUM, tags, false);
+    assertEquals(300, dps[0].aggregatedSize());
+  }
+
+  @Test
+  public void notFoldedDisabled() throws Exception {
+    storeLongTimeSeriesSeconds(false, false);
+    final DataPoints[] dps = runQuery(false, 60000, Aggregators.SUM,
+        FillPolicy.NONE, Aggregators.SUM, tags, false);
+    assertEquals(300, dps[0].aggregatedSize());
+  }
+
+  /**
+   * Runs the query with and without early downsampling and makes sure the
+   * results match.
+   * @return The results with early downsampling enabled
+   */
+  private DataPoints[] assertSameResults(final long interval,
+      final Aggregator downsampler, final FillPolicy fill_policy,
+      final Aggregator aggregator, final Map<String, String> tags,
+      final boolean rate) throws Exception {
+    final DataPoints[] expected = runQuery(false, interval, downsampler,
+        fill_policy, aggregator, tags, rate);
+    final DataPoints[] actual = runQuery(true, interval, downsampler,
+        fill_policy, aggregator, tags, rate);
+    assertEquals(expected.length, actual.length);
+    for (int i = 0; i < expected.length; i++) {
+      final SeekableView expected_it = expected[i].iterator();
+      final SeekableView actual_it = actual[i].iterator();
+      int points = 0;
+      while (expected_it.hasNext()) {
+        final DataPoint expected_dp = expected_it.next();
+        final DataPoint actual_dp = actual_it.next();
+        assertEquals(expected_dp.timestamp(), actual_dp.timestamp());
+        assertEquals(expected_dp.toDouble(), actual_dp.toDouble(), 0.00001);
+        ++points;
+      }
+      assertEquals(false, actual_it.hasNext());
+      assertEquals(expected[i].size(), points);
+    }
+    return actual;
+  }
+
+  private DataPoints[] runQuery(final boolean early, final long interval,
+      final Aggregator downsampler, final FillPolicy fill_policy,
+      final Aggregator aggregator, final Map<String, String> tags,
+      final boolean rate) throws Exception {
+    config.overrideConfig("tsd.query.downsample.early",
+        Boolean.toString(early));
+    final TsdbQuery query = new TsdbQuery(tsdb);
+    query.setStartTime(1356998400000L);
+    query.setEndTime(1357041600000L);
+    query.downsample(interval, downsampler, fill_policy);
+    query.setTimeSeries(METRIC_STRING, tags, aggregator, rate);
+    return query.run();
+  }
+}
@@ -0,0 +1,37 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import org.junit.Before;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+/**
+ * Integration test that runs all of the tests in
+ * {@see TestTsdbQueryEarlyDownsample} but with salting enabled so the rows
+ * are folded by the salt scanner.
+ */
+@RunWith(PowerMockRunner.class)
+public class TestTsdbQueryEarlyDownsampleSalted
+  extends TestTsdbQueryEarlyDownsample {
+
+  @Before
+  public void beforeLocal() throws Exception {
+    PowerMockito.mockStatic(Const.class);
+    PowerMockito.when(Const.SALT_WIDTH()).thenReturn(1);
+    PowerMockito.when(Const.SALT_BUCKETS()).thenReturn(2);
+    PowerMockito.when(Const.MAX_NUM_TAGS()).thenReturn((short) 8);
+  }
+
+}
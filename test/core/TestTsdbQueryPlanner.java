@@ -0,0 +1,353 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import net.opentsdb.search.TagIndex;
+import net.opentsdb.stats.QueryStats;
+
+import org.hbase.async.Scanner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+import com.stumbleupon.async.Deferred;
+
+/**
+ * Makes sure the plans picked by the {@link ScanPlanner} return the same
+ * data as a regular scan.
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ Scanner.class })
+public class TestTsdbQueryPlanner extends BaseTsdbTest {
+  private static final byte[] TSUID_A = { 0, 0, 1, 0, 0, 1, 0, 0, 1 };
+  private static final byte[] TSUID_B = { 0, 0, 1, 0, 0, 1, 0, 0, 2 };
+  
+  protected TsdbQuery query = null;
+  protected QueryStats query_stats;
+
+  @Before
+  public void beforeLocal() throws Exception {
+    config.overrideConfig("tsd.query.planner.enable", "true");
+    query = new TsdbQuery(tsdb);
+    query_stats = mock(QueryStats.class);
+    Whitebox.setInternalState(query, "query_stats", query_stats);
+  }
+
+  @Test
+  public void multiGet() throws Exception {
+    storeLongTimeSeriesSeconds(true, false);
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setExplicitTags(true);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+    final DataPoints[] dps = query.run();
+
+    assertMeta(dps, 0, false);
+    assertSeries(dps[0], true);
+    assertEquals(0, storage.getScanners().size());
+    // 13 hours including the row after the end time
+    verify(query_stats).addScanPlan(0, "MULTI_GET", 13);
+  }
+
+  @Test
+  public void multiGetGroupBy() throws Exception {
+    storeLongTimeSeriesSeconds(true, false);
+    tags.put(TAGK_STRING, TAGV_STRING + "|" + TAGV_B_STRING);
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setExplicitTags(true);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+    final DataPoints[] dps = query.run();
+
+    assertEquals(2, dps.length);
+    assertSeries(dps[0], true);
+    assertSeries(dps[1], false);
+    assertEquals(0, storage.getScanners().size());
+    verify(query_stats).addScanPlan(0, "MULTI_GET", 26);
+  }
+
+  @Test
+  public void multiGetMissingTag() throws Exception {
+    when(tag_names.getIdAsync("colo"))
+      .thenReturn(Deferred.fromResult(new byte[] { 0, 0, 4 }));
+    when(tag_values.getIdAsync("lga"))
+      .thenReturn(Deferred.fromResult(new byte[] { 0, 0, 4 }));
+    storeLongTimeSeriesSeconds(true, false);
+    tags.put("colo", "lga");
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setExplicitTags(true);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+    final DataPoints[] dps = query.run();
+
+    assertEquals(0, dps.length);
+    verify(query_stats).addScanPlan(0, "MULTI_GET", 13);
+  }
+
+  @Test
+  public void multiGetSmallBatches() throws Exception {
+    config.overrideConfig("tsd.query.planner.get_batch_size", "2");
+    storeLongTimeSeriesSeconds(true, false);
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setExplicitTags(true);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+    final DataPoints[] dps = query.run();
+
+    assertMeta(dps, 0, false);
+    assertSeries(dps[0], true);
+  }
+
+  @Test
+  public void multiRange() throws Exception {
+    config.overrideConfig("tsd.query.planner.max_gets", "1");
+    storeLongTimeSeriesSeconds(true, false);
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setExplicitTags(true);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+    final DataPoints[] dps = query.run();
+
+    assertMeta(dps, 0, false);
+    assertSeries(dps[0], true);
+    assertEquals(13 * buckets(), storage.getScanners().size());
+    verify(query_stats).addScanPlan(0, "MULTI_RANGE", 13);
+  }
+
+  @Test
+  public void multiRangeWildcard() throws Exception {
+    config.overrideConfig("tsd.query.planner.max_gets", "1");
+    when(tag_names.getIdAsync("colo"))
+      .thenReturn(Deferred.fromResult(new byte[] { 0, 0, 4 }));
+    storeLongTimeSeriesSeconds(true, false);
+    tags.put("colo", "*");
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setExplicitTags(true);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+    final DataPoints[] dps = query.run();
+
+    // the series don't have the colo tag
+    assertEquals(0, dps.length);
+    verify(query_stats).addScanPlan(0, "MULTI_RANGE", -1);
+  }
+
+  @Test
+  public void scanTooManyRanges() throws Exception {
+    config.overrideConfig("tsd.query.planner.max_gets", "1");
+    config.overrideConfig("tsd.query.planner.max_ranges", "1");
+    storeLongTimeSeriesSeconds(true, false);
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setExplicitTags(true);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+    final DataPoints[] dps = query.run();
+
+    assertMeta(dps, 0, false);
+    assertSeries(dps[0], true);
+    assertEquals(buckets(), storage.getScanners().size());
+    verify(query_stats).addScanPlan(0, "SCAN", 13);
+  }
+
+  @Test
+  public void scanNotExplicit() throws Exception {
+    storeLongTimeSeriesSeconds(true, false);
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+    final DataPoints[] dps = query.run();
+
+    assertMeta(dps, 0, false);
+    assertSeries(dps[0], true);
+    assertEquals(buckets(), storage.getScanners().size());
+    verify(query_stats).addScanPlan(0, "SCAN", 13);
+  }
+
+  @Test
+  public void scanWildcard() throws Exception {
+    storeLongTimeSeriesSeconds(true, false);
+    tags.put(TAGK_STRING, "*");
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setExplicitTags(true);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+    final DataPoints[] dps = query.run();
+
+    assertEquals(2, dps.length);
+    verify(query_stats).addScanPlan(0, "SCAN", -1);
+  }
+
+  @Test
+  public void scanNoEndTime() throws Exception {
+    storeLongTimeSeriesSeconds(true, false);
+    query.setStartTime(1356998400);
+    query.setExplicitTags(true);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+    final DataPoints[] dps = query.run();
+
+    assertMeta(dps, 0, false);
+    assertSeries(dps[0], true);
+    verify(query_stats, never()).addScanPlan(anyInt(), anyString(), anyLong());
+  }
+
+  @Test
+  public void disabled() throws Exception {
+    config.overrideConfig("tsd.query.planner.enable", "false");
+    query = new TsdbQuery(tsdb);
+    Whitebox.setInternalState(query, "query_stats", query_stats);
+    storeLongTimeSeriesSeconds(true, false);
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setExplicitTags(true);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+    final DataPoints[] dps = query.run();
+
+    assertMeta(dps, 0, false);
+    assertSeries(dps[0], true);
+    assertEquals(buckets(), storage.getScanners().size());
+    verify(query_stats, never()).addScanPlan(anyInt(), anyString(), anyLong());
+  }
+
+  @Test
+  public void tagIndexNotExplicit() throws Exception {
+    setTagIndex(true, 0);
+    // the only writer registers the series as it writes them
+    config.overrideConfig("tsd.core.meta.enable_tsuid_tracking", "true");
+    config.overrideConfig("tsd.search.tag_index.single_writer", "true");
+    storeLongTimeSeriesSeconds(true, false);
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+    final DataPoints[] dps = query.run();
+
+    assertMeta(dps, 0, false);
+    assertSeries(dps[0], true);
+    assertEquals(0, storage.getScanners().size());
+    verify(query_stats).addScanPlan(0, "MULTI_GET", 13);
+  }
+
+  @Test
+  public void tagIndexSkipsUnknownSeries() throws Exception {
+    storeLongTimeSeriesSeconds(true, false);
+    // e.g. the second series was deleted from the meta table
+    setTagIndex(true, System.currentTimeMillis(), TSUID_A);
+    tags.put(TAGK_STRING, TAGV_STRING + "|" + TAGV_B_STRING);
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+    final DataPoints[] dps = query.run();
+
+    verify(query_stats).addScanPlan(0, "MULTI_GET", 13);
+    // only the series in the registry are fetched
+    assertEquals(1, dps.length);
+    assertSeries(dps[0], true);
+  }
+
+  @Test
+  public void tagIndexLoadedBeforeQueryEnd() throws Exception {
+    storeLongTimeSeriesSeconds(true, false);
+    // another TSD may have written a series since the scan
+    setTagIndex(true, 1357000000000L, TSUID_A);
+    tags.put(TAGK_STRING, TAGV_STRING + "|" + TAGV_B_STRING);
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+    final DataPoints[] dps = query.run();
+
+    verify(query_stats).addScanPlan(0, "SCAN", 26);
+    assertEquals(2, dps.length);
+    assertEquals(buckets(), storage.getScanners().size());
+  }
+
+  @Test
+  public void tagIndexSingleWriterNotTracking() throws Exception {
+    storeLongTimeSeriesSeconds(true, false);
+    setTagIndex(true, 0, TSUID_A);
+    config.overrideConfig("tsd.search.tag_index.single_writer", "true");
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+    query.run();
+
+    verify(query_stats).addScanPlan(0, "SCAN", 13);
+  }
+
+  @Test
+  public void tagIndexNotLoaded() throws Exception {
+    setTagIndex(false, 0, TSUID_A, TSUID_B);
+    storeLongTimeSeriesSeconds(true, false);
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+    final DataPoints[] dps = query.run();
+
+    assertMeta(dps, 0, false);
+    assertSeries(dps[0], true);
+    assertEquals(buckets(), storage.getScanners().size());
+    verify(query_stats).addScanPlan(0, "SCAN", 13);
+  }
+
+  /**
+   * Gives the TSD a tag index with the given series.
+   * @param loaded Whether or not the index finished loading
+   * @param load_start_time When the last scan of the meta table started
+   * @param tsuids The series in the index
+   */
+  private void setTagIndex(final boolean loaded, final long load_start_time,
+      final byte[]... tsuids) {
+    config.overrideConfig("tsd.query.planner.use_tag_index", "true");
+    final TagIndex index = new TagIndex();
+    for (final byte[] tsuid : tsuids) {
+      index.add(tsuid);
+    }
+    Whitebox.setInternalState(index, "loaded", loaded);
+    Whitebox.setInternalState(index, "load_start_time", load_start_time);
+    Whitebox.setInternalState(tsdb, "tag_index", index);
+  }
+
+  /**
+   * Validates the values and timestamps from the data stored by
+   * {@link #storeLongTimeSeriesSeconds}.
+   * @param dps The series to validate
+   * @param ascending Whether or not the values go from 1 to 300
+   */
+  private static void assertSeries(final DataPoints dps,
+      final boolean ascending) {
+    long value = ascending ? 1 : 300;
+    long timestamp = 1356998430000L;
+    for (final DataPoint dp : dps) {
+      assertEquals(value, dp.longValue());
+      assertEquals(timestamp, dp.timestamp());
+      value += ascending ? 1 : -1;
+      timestamp += 30000;
+    }
+    assertEquals(300, dps.size());
+  }
+
+  /** @return The number of scanners used for a full scan */
+  private static int buckets() {
+    return Const.SALT_WIDTH() > 0 ? Const.SALT_BUCKETS() : 1;
+  }
+}
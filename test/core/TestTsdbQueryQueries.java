@@ -18,6 +18,7 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -25,16 +26,24 @@ import static org.mockito.Mockito.when;
 
 import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import net.opentsdb.query.CancellationToken;
+import net.opentsdb.query.QueryMemoryTracker;
+import net.opentsdb.query.filter.TagVFilter;
+import net.opentsdb.query.filter.TagVFilterCache;
+import net.opentsdb.stats.QueryStats;
 import net.opentsdb.storage.MockBase;
 import net.opentsdb.storage.MockBase.MockScanner;
 import net.opentsdb.uid.NoSuchUniqueId;
 import net.opentsdb.utils.Config;
 
 import org.hbase.async.Bytes;
+import org.hbase.async.Bytes.ByteMap;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.hbase.async.FilterList;
 import org.hbase.async.Scanner;
 import org.junit.Before;
@@ -42,6 +51,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
 
 import com.stumbleupon.async.Deferred;
 
@@ -60,6 +70,61 @@ public class TestTsdbQueryQueries extends BaseTsdbTest {
     query = new TsdbQuery(tsdb);
   }
   
+  @Test
+  public void runMemoryTracked() throws Exception {
+    storeLongTimeSeriesSeconds(true, false);
+    final QueryMemoryTracker tracker = setMemoryTracker(0);
+
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+    final DataPoints[] dps = query.run();
+    assertMeta(dps, 0, false);
+    
+    // at least the 2 byte qualifiers and 1 byte values of the 300 points
+    assertTrue(tracker.getUsed() > 900);
+    assertEquals(tracker.getUsed(), tracker.getPeak());
+    tracker.releaseAll();
+  }
+  
+  @Test
+  public void runMemoryLimitExceeded() throws Exception {
+    storeLongTimeSeriesSeconds(true, false);
+    final QueryMemoryTracker tracker = setMemoryTracker(512);
+
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+    try {
+      query.run();
+      fail("Expected a QueryException");
+    } catch (QueryException e) {
+      assertEquals(HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, e.getStatus());
+    }
+    assertTrue(tracker.getUsed() <= 512);
+    tracker.releaseAll();
+  }
+  
+  @Test
+  public void runCancelled() throws Exception {
+    storeLongTimeSeriesSeconds(true, false);
+    final CancellationToken token = new CancellationToken();
+    final QueryStats query_stats = mock(QueryStats.class);
+    when(query_stats.getCancellationToken()).thenReturn(token);
+    Whitebox.setInternalState(query, "query_stats", query_stats);
+    token.cancel(CancellationToken.Reason.TIMED_OUT);
+
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+    try {
+      query.run();
+      fail("Expected a QueryException");
+    } catch (QueryException e) {
+      assertEquals(HttpResponseStatus.REQUEST_TIMEOUT, e.getStatus());
+    }
+  }
+  
   @Test
   public void runLongSingleTS() throws Exception {
     storeLongTimeSeriesSeconds(true, false);
@@ -84,6 +149,22 @@ public class TestTsdbQueryQueries extends BaseTsdbTest {
     assertEquals(300, dps[0].aggregatedSize());
   }
 
+  @Test
+  public void runLongSingleTSSingleFlight() throws Exception {
+    final ScanSingleFlight single_flight = new ScanSingleFlight();
+    Whitebox.setInternalState(tsdb, "scan_single_flight", single_flight);
+    storeLongTimeSeriesSeconds(true, false);
+
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+
+    final DataPoints[] dps = query.run();
+    assertMeta(dps, 0, false);
+    assertEquals(300, dps[0].aggregatedSize());
+    assertEquals(0, single_flight.inFlight());
+  }
+
   @Test
   public void runLongSingleTSMs() throws Exception {
     storeLongTimeSeriesMs();
@@ -1472,6 +1553,66 @@ public class TestTsdbQueryQueries extends BaseTsdbTest {
     assertEquals(300, dps[0].aggregatedSize());
   }
   
+  @Test
+  public void runRegexpFilterCache() throws Exception {
+    final TagVFilterCache filter_cache = new TagVFilterCache(1024);
+    Whitebox.setInternalState(tsdb, "tagv_filter_cache", filter_cache);
+    storeLongTimeSeriesSeconds(true, false);
+    tags.clear();
+    tags.put("host", "regexp(web01)");
+
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+    assertEquals(300, query.run()[0].aggregatedSize());
+    verify(tag_values, times(1)).getNameAsync(TAGV_B_BYTES);
+    assertEquals(2, filter_cache.size());
+
+    // the second query re-uses the decisions without resolving the UIDs
+    final TsdbQuery second = new TsdbQuery(tsdb);
+    second.setStartTime(1356998400);
+    second.setEndTime(1357041600);
+    second.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+    final DataPoints[] dps = second.run();
+    assertMeta(dps, 0, false);
+    assertEquals(300, dps[0].aggregatedSize());
+    verify(tag_values, times(1)).getNameAsync(TAGV_B_BYTES);
+  }
+  
+  @Test
+  public void runFilterCacheLateMatch() throws Exception {
+    final TagVFilterCache filter_cache = new TagVFilterCache(1024);
+    Whitebox.setInternalState(tsdb, "tagv_filter_cache", filter_cache);
+    storeLongTimeSeriesSeconds(true, false);
+    final TagVFilter late = new LateFilter("host", "web01");
+    final List<TagVFilter> filters = new ArrayList<TagVFilter>(2);
+    filters.add(late);
+    Whitebox.setInternalState(query, "filters", filters);
+    tags.clear();
+    tags.put("host", "regexp(web02)");
+
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+    assertEquals(0, query.run().length);
+
+    // each decision must be cached under the filter that made it even
+    // though the late filter completed after the regexp
+    final TagVFilter regexp = filters.get(1);
+    final ByteMap<byte[]> web01 = new ByteMap<byte[]>();
+    web01.put(TAGK_BYTES, TAGV_BYTES);
+    final ByteMap<byte[]> web02 = new ByteMap<byte[]>();
+    web02.put(TAGK_BYTES, TAGV_B_BYTES);
+    assertEquals(Boolean.TRUE, 
+        filter_cache.match(Collections.singletonList(late), web01));
+    assertEquals(Boolean.FALSE, 
+        filter_cache.match(Collections.singletonList(late), web02));
+    assertEquals(Boolean.FALSE, 
+        filter_cache.match(Collections.singletonList(regexp), web01));
+    assertEquals(Boolean.TRUE, 
+        filter_cache.match(Collections.singletonList(regexp), web02));
+  }
+  
   @Test
   public void runRegexpNoMatch() throws Exception {
     storeLongTimeSeriesSeconds(true, false);
@@ -1576,4 +1717,57 @@ public class TestTsdbQueryQueries extends BaseTsdbTest {
     }
   }
   
+  
+  /**
+   * Hands a memory tracker to the query through a mocked stats object.
+   * @param limit The per query limit, 0 for no limit
+   * @return The tracker
+   */
+  private QueryMemoryTracker setMemoryTracker(final long limit) {
+    final QueryMemoryTracker tracker = new QueryMemoryTracker(limit, 0);
+    final QueryStats query_stats = mock(QueryStats.class);
+    when(query_stats.getMemoryTracker()).thenReturn(tracker);
+    Whitebox.setInternalState(query, "query_stats", query_stats);
+    return tracker;
+  }
+
+  /** A cacheable literal filter whose decisions complete on another thread */
+  static final class LateFilter extends TagVFilter {
+    LateFilter(final String tagk, final String filter) {
+      super(tagk, filter);
+    }
+
+    @Override
+    public Deferred<Boolean> match(final Map<String, String> tags) {
+      final Deferred<Boolean> deferred = new Deferred<Boolean>();
+      final boolean matched = filter.equals(tags.get(tagk));
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            Thread.sleep(10);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          deferred.callback(matched);
+        }
+      }.start();
+      return deferred;
+    }
+
+    @Override
+    public String getType() {
+      return "late";
+    }
+
+    @Override
+    public String debugInfo() {
+      return "{}";
+    }
+
+    @Override
+    public boolean cacheable() {
+      return true;
+    }
+  }
 }
@@ -0,0 +1,316 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import net.opentsdb.rollup.RollupConfig;
+import net.opentsdb.rollup.RollupInterval;
+import net.opentsdb.rollup.RollupQueue;
+import net.opentsdb.storage.MockBase;
+
+import org.hbase.async.Scanner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+/**
+ * Tests queries served from rollup tables written at ingest time.
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ Scanner.class })
+public class TestTsdbQueryRollup extends BaseTsdbTest {
+  protected TsdbQuery query = null;
+  protected RollupConfig rollup_config;
+  protected RollupQueue rollup_queue;
+
+  @Before
+  public void beforeLocal() throws Exception {
+    query = new TsdbQuery(tsdb);
+  }
+
+  @Test
+  public void sumFromRollup() throws Exception {
+    storeAndRollup();
+
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.downsample(60000, Aggregators.SUM);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+    final DataPoints[] dps = query.run();
+    assertMeta(dps, 0, false);
+
+    // Timeseries in intervals: (1), (2, 3), (4, 5), ... (298, 299), (300)
+    int i = 0;
+    for (final DataPoint dp : dps[0]) {
+      if (i == 0) {
+        assertEquals(1, dp.doubleValue(), 0.00001);
+      } else if (i >= 150) {
+        assertEquals(300, dp.doubleValue(), 0.00001);
+      } else {
+        assertEquals(4 * i + 1, dp.doubleValue(), 0.00001);
+      }
+      assertEquals(0, dp.timestamp() % 60000);
+      ++i;
+    }
+    assertEquals(151, dps[0].size());
+  }
+
+  @Test
+  public void countFromRollup() throws Exception {
+    storeAndRollup();
+
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.downsample(300000, Aggregators.COUNT);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+    final DataPoints[] dps = query.run();
+    assertMeta(dps, 0, false);
+
+    // The per minute counts must be summed, not counted
+    int i = 0;
+    for (final DataPoint dp : dps[0]) {
+      if (i == 0) {
+        assertEquals(9, dp.doubleValue(), 0.00001);
+      } else if (i >= 30) {
+        assertEquals(1, dp.doubleValue(), 0.00001);
+      } else {
+        assertEquals(10, dp.doubleValue(), 0.00001);
+      }
+      ++i;
+    }
+    assertEquals(31, dps[0].size());
+  }
+
+  @Test
+  public void maxFromFinerRollup() throws Exception {
+    storeAndRollup();
+
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.downsample(300000, Aggregators.MAX);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+    final DataPoints[] dps = query.run();
+    assertMeta(dps, 0, false);
+
+    int i = 0;
+    for (final DataPoint dp : dps[0]) {
+      if (i >= 30) {
+        assertEquals(300, dp.doubleValue(), 0.00001);
+      } else {
+        assertEquals(10 * i + 9, dp.doubleValue(), 0.00001);
+      }
+      assertEquals(0, dp.timestamp() % 300000);
+      ++i;
+    }
+    assertEquals(31, dps[0].size());
+  }
+
+  @Test
+  public void avgFromRollup() throws Exception {
+    storeAndRollup();
+
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.downsample(60000, Aggregators.AVG);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+    final DataPoints[] dps = query.run();
+    assertMeta(dps, 0, false);
+
+    int i = 0;
+    for (final DataPoint dp : dps[0]) {
+      assertFalse(dp.isInteger());
+      if (i == 0) {
+        assertEquals(1, dp.doubleValue(), 0.00001);
+      } else if (i >= 150) {
+        assertEquals(300, dp.doubleValue(), 0.00001);
+      } else {
+        assertEquals(i * 2 + 0.5, dp.doubleValue(), 0.00001);
+      }
+      ++i;
+    }
+    assertEquals(151, dps[0].size());
+  }
+
+  @Test
+  public void hourlyRollupGroupBy() throws Exception {
+    storeAndRollup();
+
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.downsample(3600000, Aggregators.SUM);
+    tags.clear();
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+    final DataPoints[] dps = query.run();
+    assertEquals(1, dps.length);
+
+    // both series hold 1 to 300 so every hour sums to the same as the raw data
+    double total = 0;
+    for (final DataPoint dp : dps[0]) {
+      total += dp.doubleValue();
+    }
+    assertEquals(300 * 301, total, 0.00001);
+    assertEquals(3, dps[0].size());
+  }
+
+  @Test
+  public void fallbackToRawWhenRollupEmpty() throws Exception {
+    setupRollups();
+    storeLongTimeSeriesSeconds(false, false);
+    addRollupTables();
+    // never flushed so the rollup tables are empty
+
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.downsample(60000, Aggregators.SUM);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+    final DataPoints[] dps = query.run();
+    assertMeta(dps, 0, false);
+    assertEquals(151, dps[0].size());
+    assertEquals(5, dps[0].doubleValue(1), 0.00001);
+  }
+
+  @Test
+  public void fallbackToRawWhenRollupPartial() throws Exception {
+    setDataPointStorage();
+    setupRollups();
+    addRollupTables();
+    Whitebox.setInternalState(tsdb, "rollup_queue", (RollupQueue) null);
+    long timestamp = 1356998400;
+    for (int i = 1; i <= 300; i++) {
+      if (i == 151) {
+        // rollups enabled half way through
+        Whitebox.setInternalState(tsdb, "rollup_queue", rollup_queue);
+      }
+      tsdb.addPoint(METRIC_STRING, timestamp += 30, i, tags)
+        .joinUninterruptibly();
+    }
+    rollup_queue.flush(Integer.MAX_VALUE).joinUninterruptibly();
+
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.downsample(60000, Aggregators.SUM);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+    final DataPoints[] dps = query.run();
+    assertMeta(dps, 0, false);
+    assertEquals(151, dps[0].size());
+    assertEquals(1, dps[0].doubleValue(0), 0.00001);
+    assertEquals(5, dps[0].doubleValue(1), 0.00001);
+  }
+
+  @Test
+  public void rawTailPastRollups() throws Exception {
+    setDataPointStorage();
+    setupRollups();
+    addRollupTables();
+    final long now = System.currentTimeMillis() / 1000;
+    final long hour = now - (now % 3600);
+    for (long timestamp = hour - 7200; timestamp <= now; timestamp += 60) {
+      tsdb.addPoint(METRIC_STRING, timestamp, 1, tags).joinUninterruptibly();
+    }
+    rollup_queue.flush(now).joinUninterruptibly();
+    // only in the raw table
+    Whitebox.setInternalState(tsdb, "rollup_queue", (RollupQueue) null);
+    tsdb.addPoint(METRIC_STRING, hour - 1800 + 15, 100, tags)
+      .joinUninterruptibly();
+    tsdb.addPoint(METRIC_STRING, hour + 15, 100, tags).joinUninterruptibly();
+
+    query.setStartTime(hour - 7200);
+    query.downsample(60000, Aggregators.SUM);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+    final DataPoints[] dps = query.run();
+    assertMeta(dps, 0, false);
+    int i = 0;
+    for (final DataPoint dp : dps[0]) {
+      assertEquals((hour - 7200 + i * 60) * 1000, dp.timestamp());
+      // the rollups are read before the hour and the raw data after
+      assertEquals(dp.timestamp() == hour * 1000 ? 101 : 1, 
+          dp.doubleValue(), 0.00001);
+      ++i;
+    }
+    assertEquals((now - hour) / 60 + 121, dps[0].size());
+  }
+
+  @Test
+  public void rawWhenNotDownsampled() throws Exception {
+    storeAndRollup(false);
+
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+    final DataPoints[] dps = query.run();
+    assertMeta(dps, 0, false);
+    assertEquals(300, dps[0].size());
+  }
+
+  @Test
+  public void rawWhenUnsupportedFunction() throws Exception {
+    storeAndRollup(false);
+
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.downsample(60000, Aggregators.DEV);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+    final DataPoints[] dps = query.run();
+    assertMeta(dps, 0, false);
+    assertEquals(151, dps[0].size());
+  }
+
+  /** Stores the data, rolls it up and drops the raw data so we know the
+   * results came from the rollup tables. */
+  protected void storeAndRollup() throws Exception {
+    storeAndRollup(true);
+  }
+
+  /**
+   * Stores the data and rolls it up.
+   * @param drop_raw Whether or not to remove the raw data afterwards
+   */
+  protected void storeAndRollup(final boolean drop_raw) throws Exception {
+    setupRollups();
+    storeLongTimeSeriesSeconds(false, false);
+    addRollupTables();
+    rollup_queue.flush(Integer.MAX_VALUE).joinUninterruptibly();
+    assertEquals(0, rollup_queue.size());
+    for (final RollupInterval interval : rollup_config.getIntervals()) {
+      assertTrue(storage.numRows(interval.getTable()) > 0);
+    }
+    if (drop_raw) {
+      storage.flushStorage(tsdb.dataTable());
+    }
+  }
+
+  /** Enables rollups on the TSDB after it was created by the base class */
+  protected void setupRollups() {
+    rollup_config = new RollupConfig(
+        "1m:tsdb-rollup-1m:1d,1h:tsdb-rollup-1h:1d", 0);
+    rollup_queue = new RollupQueue(tsdb, rollup_config);
+    Whitebox.setInternalState(tsdb, "rollup_config", rollup_config);
+    Whitebox.setInternalState(tsdb, "rollup_queue", rollup_queue);
+  }
+
+  /** Creates the rollup tables in the mock storage */
+  protected void addRollupTables() {
+    for (final RollupInterval interval : rollup_config.getIntervals()) {
+      storage.addTable(interval.getTable(),
+          Collections.singletonList("t".getBytes(MockBase.ASCII())));
+    }
+  }
+}
@@ -0,0 +1,244 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.graph;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import javax.imageio.ImageIO;
+
+import net.opentsdb.core.DataPoint;
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.MutableDataPoint;
+import net.opentsdb.core.SeekableView;
+import net.opentsdb.core.SeekableViewsForTest;
+import net.opentsdb.meta.Annotation;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public final class TestPngRenderer {
+  private static final long START = 1356998400L;
+  private static final long END = 1357002000L;
+
+  private Plot plot;
+  private Map<String, String> params;
+
+  @Before
+  public void before() throws Exception {
+    plot = new Plot(START, END, TimeZone.getTimeZone("UTC"));
+    plot.setDimensions((short) 400, (short) 300);
+    params = new HashMap<String, String>();
+    plot.setParams(params);
+  }
+
+  @Test
+  public void renderSeries() throws Exception {
+    final List<DataPoint> dps = new ArrayList<DataPoint>();
+    for (int i = 0; i < 60; i++) {
+      dps.add(MutableDataPoint.ofLongValue((START + i * 60) * 1000, i));
+    }
+    // outside of the time range, not counted
+    dps.add(MutableDataPoint.ofLongValue((END + 60) * 1000, 42));
+    // skipped
+    dps.add(MutableDataPoint.ofDoubleValue((END - 1) * 1000, Double.NaN));
+    plot.add(series("sys.cpu.user", dps), "");
+
+    final BufferedImage image = render(60);
+    assertEquals(400, image.getWidth());
+    assertEquals(300, image.getHeight());
+    assertEquals(0xFFFFFF, image.getRGB(0, 0) & 0xFFFFFF);
+    assertTrue(countColor(image, 0xFF0000) > 100);
+  }
+
+  @Test
+  public void renderEmpty() throws Exception {
+    final BufferedImage image = render(0);
+    assertEquals(400, image.getWidth());
+  }
+
+  @Test
+  public void renderTwoAxes() throws Exception {
+    final List<DataPoint> dps = new ArrayList<DataPoint>();
+    final List<DataPoint> dps2 = new ArrayList<DataPoint>();
+    for (int i = 0; i < 10; i++) {
+      dps.add(MutableDataPoint.ofDoubleValue((START + i * 360) * 1000,
+          Math.pow(10, i)));
+      dps2.add(MutableDataPoint.ofLongValue((START + i * 360) * 1000, -i));
+    }
+    plot.add(series("sys.cpu.user", dps), "");
+    plot.add(series("sys.cpu.nice", dps2), "axis x1y2");
+    params.put("logscale y", "");
+    params.put("ylabel", "\"user\"");
+    params.put("y2label", "\"nice\"");
+    params.put("y2range", "[-20:]");
+    params.put("title", "\"CPU \\\"usage\\\"\"");
+    params.put("key", "bottom left box");
+    params.put("style", "lines");
+    final BufferedImage image = render(20);
+    assertTrue(countColor(image, 0xFF0000) > 0);
+    assertTrue(countColor(image, 0x00C000) > 0);
+  }
+
+  @Test
+  public void renderTransparent() throws Exception {
+    params.put("bgcolor", "transparent");
+    params.put("fgcolor", "x0000FF");
+    final BufferedImage image = render(0);
+    assertEquals(0, image.getRGB(0, 0) >>> 24);
+  }
+
+  @Test
+  public void renderAnnotations() throws Exception {
+    final Annotation note = new Annotation();
+    note.setStartTime(START + 1800);
+    note.setDescription("deploy");
+    plot.setGlobals(Collections.singletonList(note));
+    final BufferedImage image = render(0);
+    assertTrue(countColor(image, 0x0080FF) > 100);
+  }
+
+  @Test (expected = IllegalStateException.class)
+  public void renderInfinity() throws Exception {
+    final List<DataPoint> dps = new ArrayList<DataPoint>();
+    dps.add(MutableDataPoint.ofDoubleValue(START * 1000,
+        Double.POSITIVE_INFINITY));
+    plot.add(series("sys.cpu.user", dps), "");
+    render(0);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void renderUnsupported() throws Exception {
+    params.put("smooth", "csplines");
+    render(0);
+  }
+
+  @Test
+  public void isRenderable() throws Exception {
+    plot.add(series("sys.cpu.user", new ArrayList<DataPoint>()),
+        "axes x1y2");
+    params.put("yrange", "[0:100]");
+    params.put("y2range", "[*:10]");
+    params.put("format x", "\"%H:%M\"");
+    params.put("format y", "\"%.2f\"");
+    params.put("bgcolor", "x000000");
+    params.put("style", "linespoint");
+    params.put("key", null);
+    assertTrue(plot.isRenderable());
+
+    params.put("format y", "\"%.0s%c\"");
+    assertFalse(plot.isRenderable());
+    params.remove("format y");
+    params.put("key", "outside");
+    assertFalse(plot.isRenderable());
+    params.remove("key");
+    params.put("yrange", "[0:foo]");
+    assertFalse(plot.isRenderable());
+    params.remove("yrange");
+    params.put("label", "\"hi\" at 0,0");
+    assertFalse(plot.isRenderable());
+    params.remove("label");
+    assertTrue(plot.isRenderable());
+
+    plot.add(series("sys.cpu.nice", new ArrayList<DataPoint>()),
+        "with boxes");
+    assertFalse(plot.isRenderable());
+  }
+
+  @Test
+  public void timeFormat() throws Exception {
+    assertEquals("HH:mm:ss", PngRenderer.timeFormat("%H:%M:%S"));
+    assertEquals("yyyy/MM/dd", PngRenderer.timeFormat("%Y/%m/%d"));
+    assertEquals("EEE dd", PngRenderer.timeFormat("%a %d"));
+    assertEquals("'at' HH", PngRenderer.timeFormat("at %H"));
+    assertNull(PngRenderer.timeFormat("%Q"));
+    assertNull(PngRenderer.timeFormat("%"));
+  }
+
+  @Test
+  public void parseRange() throws Exception {
+    assertArrayEquals(new Double[] { 0.0, null },
+        PngRenderer.parseRange("[0:]"));
+    assertArrayEquals(new Double[] { null, 10.5 },
+        PngRenderer.parseRange("[*:10.5]"));
+    assertNull(PngRenderer.parseRange("0:10"));
+    assertNull(PngRenderer.parseRange("[a:10]"));
+  }
+
+  @Test
+  public void unquote() throws Exception {
+    assertEquals("say \"hi\"\n", PngRenderer.unquote("\"say \\\"hi\\\"\\n\""));
+    assertEquals("\u00e9", PngRenderer.unquote("\"\\u00e9\""));
+    assertEquals("bare", PngRenderer.unquote("bare"));
+    assertNull(PngRenderer.unquote(null));
+  }
+
+  @Test
+  public void formatNumber() throws Exception {
+    assertEquals("0", PngRenderer.formatNumber(0));
+    assertEquals("2.5", PngRenderer.formatNumber(2.5));
+    assertEquals("100", PngRenderer.formatNumber(100));
+    assertEquals("1E9", PngRenderer.formatNumber(1e9));
+  }
+
+  private BufferedImage render(final int expected_points) throws Exception {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertEquals(expected_points, plot.renderPng(out));
+    return ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+  }
+
+  private static DataPoints series(final String metric,
+                                   final List<DataPoint> dps) {
+    final DataPoints series = mock(DataPoints.class);
+    when(series.metricName()).thenReturn(metric);
+    when(series.getTags()).thenReturn(new HashMap<String, String>());
+    // a fresh iterator for each pass
+    when(series.iterator()).thenAnswer(new Answer<SeekableView>() {
+      @Override
+      public SeekableView answer(final InvocationOnMock invocation) {
+        return SeekableViewsForTest.fromArray(
+            dps.toArray(new DataPoint[dps.size()]));
+      }
+    });
+    return series;
+  }
+
+  private static int countColor(final BufferedImage image, final int rgb) {
+    int count = 0;
+    for (int x = 0; x < image.getWidth(); x++) {
+      for (int y = 0; y < image.getHeight(); y++) {
+        if ((image.getRGB(x, y) & 0xFFFFFF) == rgb) {
+          count++;
+        }
+      }
+    }
+    return count;
+  }
+}
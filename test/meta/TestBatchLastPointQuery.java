@@ -0,0 +1,193 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.meta;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+
+import net.opentsdb.core.BaseTsdbTest;
+import net.opentsdb.core.IncomingDataPoint;
+import net.opentsdb.core.RowKey;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.storage.MockBase;
+import net.opentsdb.uid.UniqueId;
+import net.opentsdb.utils.Config;
+import net.opentsdb.utils.DateTime;
+
+import org.hbase.async.AtomicIncrementRequest;
+import org.hbase.async.DeleteRequest;
+import org.hbase.async.GetRequest;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.KeyValue;
+import org.hbase.async.PutRequest;
+import org.hbase.async.Scanner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+  "ch.qos.*", "org.slf4j.*",
+  "com.sum.*", "org.xml.*"})
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({TSDB.class, Config.class, UniqueId.class, HBaseClient.class,
+  GetRequest.class, PutRequest.class, DeleteRequest.class, KeyValue.class,
+  Scanner.class, TSMeta.class, AtomicIncrementRequest.class, DateTime.class })
+public final class TestBatchLastPointQuery extends BaseTsdbTest {
+  private static final byte[] TSUID = new byte[] { 0, 0, 1, 0, 0, 1, 0, 0, 1 };
+  private static final byte[] TSUID_B =
+      new byte[] { 0, 0, 1, 0, 0, 1, 0, 0, 2 };
+
+  @Before
+  public void beforeLocal() throws Exception {
+    storage = new MockBase(tsdb, client, true, true, true, true);
+    TestTSUIDQuery.setupStorage(tsdb, storage);
+    Whitebox.setInternalState(config, "enable_tsuid_incrementing", false);
+    Whitebox.setInternalState(config, "enable_realtime_ts", false);
+    storage.flushStorage(tsdb.dataTable());
+    PowerMockito.mockStatic(DateTime.class);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorNegativeBackscan() throws Exception {
+    new BatchLastPointQuery(tsdb, false, -1);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorBatchingDisabled() throws Exception {
+    config.overrideConfig("tsd.query.last.batch_size", "0");
+    new BatchLastPointQuery(tsdb, false, 1);
+  }
+
+  @Test
+  public void backscanStopsOnFirstValue() throws Exception {
+    tsdb.addPoint(METRIC_STRING, 1356998400L, 42, tags);
+    tags.put(TAGK_STRING, TAGV_B_STRING);
+    tsdb.addPoint(METRIC_STRING, 1357002000L, 24, tags);
+    PowerMockito.when(DateTime.currentTimeMillis()).thenReturn(1357002000000L);
+
+    final BatchLastPointQuery query = new BatchLastPointQuery(tsdb, false, 24);
+    query.addTSUID(TSUID, 0);
+    query.addTSUID(TSUID_B, 0);
+    final ArrayList<IncomingDataPoint> dps = query.fetch().join();
+    assertEquals(2, dps.size());
+    assertEquals(UniqueId.uidToString(TSUID), dps.get(0).getTSUID());
+    assertEquals(1356998400000L, dps.get(0).getTimestamp());
+    assertEquals("42", dps.get(0).getValue());
+    assertNull(dps.get(0).getMetric());
+    assertEquals(UniqueId.uidToString(TSUID_B), dps.get(1).getTSUID());
+    assertEquals(1357002000000L, dps.get(1).getTimestamp());
+    assertEquals("24", dps.get(1).getValue());
+
+    // both in the first hour, only the first series in the second
+    assertEquals(3, query.getGets());
+    verify(client, times(2)).get(anyListOf(GetRequest.class));
+  }
+
+  @Test
+  public void batchSize() throws Exception {
+    config.overrideConfig("tsd.query.last.batch_size", "1");
+    tsdb.addPoint(METRIC_STRING, 1357002000L, 42, tags);
+    tags.put(TAGK_STRING, TAGV_B_STRING);
+    tsdb.addPoint(METRIC_STRING, 1357002000L, 24, tags);
+    PowerMockito.when(DateTime.currentTimeMillis()).thenReturn(1357002000000L);
+
+    final BatchLastPointQuery query = new BatchLastPointQuery(tsdb, false, 1);
+    query.addTSUID(TSUID, 0);
+    query.addTSUID(TSUID_B, 0);
+    assertEquals(2, query.fetch().join().size());
+    assertEquals(2, query.getGets());
+    verify(client, times(2)).get(anyListOf(GetRequest.class));
+  }
+
+  @Test
+  public void noValues() throws Exception {
+    PowerMockito.when(DateTime.currentTimeMillis()).thenReturn(1357002000000L);
+
+    final BatchLastPointQuery query = new BatchLastPointQuery(tsdb, false, 2);
+    query.addTSUID(TSUID, 0);
+    query.addTSUID(TSUID_B, 0);
+    assertTrue(query.fetch().join().isEmpty());
+    assertEquals(6, query.getGets());
+  }
+
+  @Test
+  public void lastTimestampKnown() throws Exception {
+    tsdb.addPoint(METRIC_STRING, 1356998400L, 42, tags);
+    PowerMockito.when(DateTime.currentTimeMillis()).thenReturn(1360681200000L);
+
+    final BatchLastPointQuery query = new BatchLastPointQuery(tsdb, false, 0);
+    query.addTSUID(TSUID, 1356998401000L);
+    final ArrayList<IncomingDataPoint> dps = query.fetch().join();
+    assertEquals(1, dps.size());
+    assertEquals("42", dps.get(0).getValue());
+    assertEquals(1, query.getGets());
+  }
+
+  @Test
+  public void metaCounter() throws Exception {
+    Whitebox.setInternalState(config, "enable_tsuid_incrementing", true);
+    Whitebox.setInternalState(config, "enable_realtime_ts", true);
+    tsdb.addPoint(METRIC_STRING, 1388534400L, 42, tags);
+    PowerMockito.when(DateTime.currentTimeMillis()).thenReturn(1356998400000L);
+
+    final BatchLastPointQuery query = new BatchLastPointQuery(tsdb, false, 0);
+    query.addTSUID(TSUID, 0);
+    query.addTSUID(TSUID_B, 0);
+    final ArrayList<IncomingDataPoint> dps = query.fetch().join();
+    assertEquals(1, dps.size());
+    assertEquals(1388534400000L, dps.get(0).getTimestamp());
+    assertEquals("42", dps.get(0).getValue());
+    // two counters then the hour of each counter
+    assertEquals(4, query.getGets());
+  }
+
+  @Test
+  public void resolveNames() throws Exception {
+    tsdb.addPoint(METRIC_STRING, 1356998400L, 42, tags);
+    PowerMockito.when(DateTime.currentTimeMillis()).thenReturn(1356998400000L);
+
+    final BatchLastPointQuery query = new BatchLastPointQuery(tsdb, true, 0);
+    query.addTSUID(TSUID, 0);
+    final ArrayList<IncomingDataPoint> dps = query.fetch().join();
+    assertEquals(1, dps.size());
+    assertEquals(METRIC_STRING, dps.get(0).getMetric());
+    assertEquals(TAGV_STRING, dps.get(0).getTags().get(TAGK_STRING));
+  }
+
+  @Test
+  public void getFailed() throws Exception {
+    PowerMockito.when(DateTime.currentTimeMillis()).thenReturn(1356998400000L);
+    storage.throwException(RowKey.rowKeyFromTSUID(tsdb, TSUID_B, 1356998400L),
+        new UnitTestException());
+
+    final BatchLastPointQuery query = new BatchLastPointQuery(tsdb, false, 0);
+    query.addTSUID(TSUID, 0);
+    query.addTSUID(TSUID_B, 0);
+    try {
+      query.fetch().join();
+      fail("Expected UnitTestException");
+    } catch (UnitTestException e) { }
+  }
+}
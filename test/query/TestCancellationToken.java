@@ -0,0 +1,236 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.opentsdb.core.QueryException;
+import net.opentsdb.query.CancellationToken.Reason;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.stumbleupon.async.Callback;
+
+public final class TestCancellationToken {
+
+  @Test
+  public void cancel() throws Exception {
+    final CancellationToken token = new CancellationToken();
+    assertFalse(token.isCancelled());
+    assertNull(token.getReason());
+    assertNull(token.getException());
+
+    assertTrue(token.cancel(Reason.TIMED_OUT));
+    assertTrue(token.isCancelled());
+    assertEquals(Reason.TIMED_OUT, token.getReason());
+    assertEquals(HttpResponseStatus.REQUEST_TIMEOUT,
+        token.getException().getStatus());
+
+    // the first reason sticks
+    assertFalse(token.cancel(Reason.DISCONNECTED));
+    assertEquals(Reason.TIMED_OUT, token.getReason());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void cancelNullReason() throws Exception {
+    new CancellationToken().cancel(null);
+  }
+
+  @Test
+  public void complete() throws Exception {
+    final CancellationToken token = new CancellationToken();
+    final List<QueryException> calls = new ArrayList<QueryException>();
+    token.addListener(new RecordCB(calls));
+    token.complete();
+    assertFalse(token.cancel(Reason.DISCONNECTED));
+    assertFalse(token.isCancelled());
+    assertTrue(calls.isEmpty());
+
+    // too late to be called
+    token.addListener(new RecordCB(calls));
+    assertTrue(calls.isEmpty());
+  }
+
+  @Test
+  public void completeAfterCancel() throws Exception {
+    final CancellationToken token = new CancellationToken();
+    token.cancel(Reason.DISCONNECTED);
+    token.complete();
+    assertTrue(token.isCancelled());
+  }
+
+  @Test
+  public void listeners() throws Exception {
+    final CancellationToken token = new CancellationToken();
+    final List<QueryException> calls = new ArrayList<QueryException>();
+    token.addListener(new RecordCB(calls));
+    token.addListener(new Callback<Object, QueryException>() {
+      @Override
+      public Object call(final QueryException e) {
+        throw new RuntimeException("Boo!");
+      }
+    });
+    token.addListener(new RecordCB(calls));
+    token.cancel(Reason.DISCONNECTED);
+    // a failing listener doesn't stop the others
+    assertEquals(2, calls.size());
+    assertEquals(CancellationToken.CLIENT_CLOSED_REQUEST,
+        calls.get(0).getStatus());
+
+    // listeners added after cancellation are called right away
+    token.addListener(new RecordCB(calls));
+    assertEquals(3, calls.size());
+    token.cancel(Reason.TIMED_OUT);
+    assertEquals(3, calls.size());
+  }
+
+  @Test
+  public void cancelOnClose() throws Exception {
+    final Channel channel = mock(Channel.class);
+    final ChannelFuture close_future = mock(ChannelFuture.class);
+    when(channel.getCloseFuture()).thenReturn(close_future);
+    final CancellationToken token = new CancellationToken();
+    token.cancelOnClose(channel);
+
+    final ArgumentCaptor<ChannelFutureListener> listener =
+        ArgumentCaptor.forClass(ChannelFutureListener.class);
+    verify(close_future).addListener(listener.capture());
+    assertFalse(token.isCancelled());
+    listener.getValue().operationComplete(close_future);
+    assertTrue(token.isCancelled());
+    assertEquals(Reason.DISCONNECTED, token.getReason());
+  }
+
+  @Test
+  public void cancelOnCloseRemovedOnComplete() throws Exception {
+    final Channel channel = mock(Channel.class);
+    final ChannelFuture close_future = mock(ChannelFuture.class);
+    when(channel.getCloseFuture()).thenReturn(close_future);
+    final CancellationToken token = new CancellationToken();
+    token.cancelOnClose(channel);
+
+    final ArgumentCaptor<ChannelFutureListener> listener =
+        ArgumentCaptor.forClass(ChannelFutureListener.class);
+    verify(close_future).addListener(listener.capture());
+    token.complete();
+    verify(close_future).removeListener(listener.getValue());
+  }
+
+  @Test
+  public void cancelOnCloseRemovedOnCancel() throws Exception {
+    final Channel channel = mock(Channel.class);
+    final ChannelFuture close_future = mock(ChannelFuture.class);
+    when(channel.getCloseFuture()).thenReturn(close_future);
+    final CancellationToken token = new CancellationToken();
+    token.cancelOnClose(channel);
+
+    final ArgumentCaptor<ChannelFutureListener> listener =
+        ArgumentCaptor.forClass(ChannelFutureListener.class);
+    verify(close_future).addListener(listener.capture());
+    token.cancel(Reason.TIMED_OUT);
+    verify(close_future).removeListener(listener.getValue());
+  }
+
+  @Test
+  public void cancelOnCloseAfterComplete() throws Exception {
+    final Channel channel = mock(Channel.class);
+    final ChannelFuture close_future = mock(ChannelFuture.class);
+    when(channel.getCloseFuture()).thenReturn(close_future);
+    final CancellationToken token = new CancellationToken();
+    token.complete();
+    token.cancelOnClose(channel);
+    verify(close_future, never()).addListener(any(ChannelFutureListener.class));
+  }
+
+  @Test
+  public void cancelOnCloseNoFuture() throws Exception {
+    final CancellationToken token = new CancellationToken();
+    token.cancelOnClose(mock(Channel.class));
+    assertFalse(token.isCancelled());
+  }
+
+  @Test
+  public void scheduleDeadline() throws Exception {
+    final Timer timer = mock(Timer.class);
+    final Timeout timeout = mock(Timeout.class);
+    final ArgumentCaptor<TimerTask> task =
+        ArgumentCaptor.forClass(TimerTask.class);
+    when(timer.newTimeout(task.capture(), eq(5000L),
+        eq(TimeUnit.MILLISECONDS))).thenReturn(timeout);
+    final CancellationToken token = new CancellationToken();
+    token.scheduleDeadline(timer, 5000);
+
+    task.getValue().run(timeout);
+    assertTrue(token.isCancelled());
+    assertEquals(Reason.TIMED_OUT, token.getReason());
+  }
+
+  @Test
+  public void scheduleDeadlineCancelledOnComplete() throws Exception {
+    final Timer timer = mock(Timer.class);
+    final Timeout timeout = mock(Timeout.class);
+    when(timer.newTimeout(any(TimerTask.class), anyLong(),
+        any(TimeUnit.class))).thenReturn(timeout);
+    final CancellationToken token = new CancellationToken();
+    token.scheduleDeadline(timer, 5000);
+    token.complete();
+    verify(timeout).cancel();
+  }
+
+  @Test
+  public void scheduleDeadlineDisabled() throws Exception {
+    final Timer timer = mock(Timer.class);
+    final CancellationToken token = new CancellationToken();
+    token.scheduleDeadline(timer, 0);
+    verify(timer, never()).newTimeout(any(TimerTask.class), anyLong(),
+        any(TimeUnit.class));
+  }
+
+  /** Records the exceptions passed to the listener */
+  private static final class RecordCB
+      implements Callback<Object, QueryException> {
+    private final List<QueryException> calls;
+
+    RecordCB(final List<QueryException> calls) {
+      this.calls = calls;
+    }
+
+    @Override
+    public Object call(final QueryException e) {
+      calls.add(e);
+      return null;
+    }
+  }
+}
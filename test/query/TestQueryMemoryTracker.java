@@ -0,0 +1,117 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import net.opentsdb.core.QueryException;
+import net.opentsdb.utils.Config;
+
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class TestQueryMemoryTracker {
+  private long global;
+
+  @Before
+  public void before() throws Exception {
+    global = QueryMemoryTracker.getGlobalUsed();
+  }
+
+  @Test
+  public void ctorConfig() throws Exception {
+    final Config config = new Config(false);
+    config.overrideConfig("tsd.query.limits.memory.bytes", "1024");
+    final QueryMemoryTracker tracker = new QueryMemoryTracker(config);
+    tracker.allocate(1024);
+    try {
+      tracker.allocate(1);
+      fail("Expected a QueryException");
+    } catch (QueryException e) { }
+    tracker.releaseAll();
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorNegativeQueryLimit() throws Exception {
+    new QueryMemoryTracker(-1, 0);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorNegativeGlobalLimit() throws Exception {
+    new QueryMemoryTracker(0, -1);
+  }
+
+  @Test
+  public void allocateAndRelease() throws Exception {
+    final QueryMemoryTracker tracker = new QueryMemoryTracker(0, 0);
+    tracker.allocate(100);
+    tracker.allocate(50);
+    tracker.allocate(0);
+    tracker.allocate(-10);
+    assertEquals(150, tracker.getUsed());
+    assertEquals(global + 150, QueryMemoryTracker.getGlobalUsed());
+
+    tracker.release(100);
+    tracker.allocate(20);
+    assertEquals(70, tracker.getUsed());
+    assertEquals(150, tracker.getPeak());
+
+    tracker.releaseAll();
+    tracker.releaseAll();
+    assertEquals(0, tracker.getUsed());
+    assertEquals(150, tracker.getPeak());
+    assertEquals(global, QueryMemoryTracker.getGlobalUsed());
+  }
+
+  @Test
+  public void queryLimit() throws Exception {
+    final QueryMemoryTracker tracker = new QueryMemoryTracker(100, 0);
+    tracker.allocate(60);
+    try {
+      tracker.allocate(41);
+      fail("Expected a QueryException");
+    } catch (QueryException e) {
+      assertEquals(HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, e.getStatus());
+    }
+    // the rejected bytes were not charged
+    assertEquals(60, tracker.getUsed());
+    assertEquals(60, tracker.getPeak());
+    assertEquals(global + 60, QueryMemoryTracker.getGlobalUsed());
+    tracker.allocate(40);
+    tracker.releaseAll();
+  }
+
+  @Test
+  public void globalLimit() throws Exception {
+    final QueryMemoryTracker tracker_a =
+        new QueryMemoryTracker(0, global + 100);
+    final QueryMemoryTracker tracker_b =
+        new QueryMemoryTracker(0, global + 100);
+    tracker_a.allocate(80);
+    try {
+      tracker_b.allocate(21);
+      fail("Expected a QueryException");
+    } catch (QueryException e) {
+      assertEquals(HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, e.getStatus());
+    }
+    assertEquals(0, tracker_b.getUsed());
+
+    // space frees up once the first query is done
+    tracker_a.releaseAll();
+    tracker_b.allocate(21);
+    tracker_b.releaseAll();
+    assertEquals(global, QueryMemoryTracker.getGlobalUsed());
+  }
+}
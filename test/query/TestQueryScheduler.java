@@ -0,0 +1,218 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import net.opentsdb.core.QueryException;
+import net.opentsdb.query.QueryScheduler.Priority;
+import net.opentsdb.utils.Config;
+
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.junit.Test;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+public final class TestQueryScheduler {
+
+  @Test
+  public void ctorConfig() throws Exception {
+    final Config config = new Config(false);
+    config.overrideConfig("tsd.query.scheduler.max_concurrent", "2");
+    config.overrideConfig("tsd.query.scheduler.source_weights", "10.0.0.1:3");
+    final QueryScheduler scheduler = new QueryScheduler(config);
+    scheduler.acquire("a", Priority.INTERACTIVE);
+    scheduler.acquire("a", Priority.INTERACTIVE);
+    assertEquals(2, scheduler.getRunning());
+    scheduler.acquire("a", Priority.INTERACTIVE);
+    assertEquals(1, scheduler.getQueued());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroConcurrent() throws Exception {
+    new QueryScheduler(0, 0, 1, null);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorNegativeQueued() throws Exception {
+    new QueryScheduler(1, -1, 1, null);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroWeight() throws Exception {
+    new QueryScheduler(1, 0, 0, null);
+  }
+
+  @Test
+  public void parseWeights() throws Exception {
+    final Map<String, Integer> weights = QueryScheduler.parseWeights(
+        "10.0.0.1:4, grafana:2,::1:3");
+    assertEquals(3, weights.size());
+    assertEquals(4, (int) weights.get("10.0.0.1"));
+    assertEquals(2, (int) weights.get("grafana"));
+    assertEquals(3, (int) weights.get("::1"));
+    assertTrue(QueryScheduler.parseWeights("").isEmpty());
+    assertTrue(QueryScheduler.parseWeights(null).isEmpty());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void parseWeightsMissingWeight() throws Exception {
+    QueryScheduler.parseWeights("grafana");
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void parseWeightsNotANumber() throws Exception {
+    QueryScheduler.parseWeights("grafana:lots");
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void parseWeightsZero() throws Exception {
+    QueryScheduler.parseWeights("grafana:0");
+  }
+
+  @Test
+  public void priorityFromString() throws Exception {
+    assertEquals(Priority.INTERACTIVE, Priority.fromString("interactive"));
+    assertEquals(Priority.BATCH, Priority.fromString(" Batch "));
+    try {
+      Priority.fromString("urgent");
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      Priority.fromString("");
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+  }
+
+  @Test
+  public void acquireAndRelease() throws Exception {
+    final QueryScheduler scheduler = new QueryScheduler(2, 0, 1, null);
+    final List<String> admitted = new ArrayList<String>();
+    track(scheduler.acquire("a", Priority.INTERACTIVE), "a1", admitted);
+    track(scheduler.acquire("a", Priority.INTERACTIVE), "a2", admitted);
+    track(scheduler.acquire("a", Priority.INTERACTIVE), "a3", admitted);
+    assertEquals(2, scheduler.getRunning());
+    assertEquals(1, scheduler.getQueued());
+    assertEquals("[a1, a2]", admitted.toString());
+
+    scheduler.release();
+    assertEquals(2, scheduler.getRunning());
+    assertEquals(0, scheduler.getQueued());
+    assertEquals("[a1, a2, a3]", admitted.toString());
+
+    scheduler.release();
+    scheduler.release();
+    assertEquals(0, scheduler.getRunning());
+  }
+
+  @Test (expected = IllegalStateException.class)
+  public void releaseTooMany() throws Exception {
+    new QueryScheduler(1, 0, 1, null).release();
+  }
+
+  @Test
+  public void queueFull() throws Exception {
+    final QueryScheduler scheduler = new QueryScheduler(1, 1, 1, null);
+    scheduler.acquire("a", Priority.INTERACTIVE);
+    scheduler.acquire("a", Priority.INTERACTIVE);
+    try {
+      scheduler.acquire("b", Priority.INTERACTIVE);
+      fail("Expected a QueryException");
+    } catch (QueryException e) {
+      assertEquals(HttpResponseStatus.SERVICE_UNAVAILABLE, e.getStatus());
+    }
+    assertEquals(1, scheduler.getQueued());
+  }
+
+  @Test
+  public void fairAcrossSources() throws Exception {
+    final QueryScheduler scheduler = new QueryScheduler(1, 0, 1, null);
+    final List<String> admitted = new ArrayList<String>();
+    scheduler.acquire("hold", Priority.INTERACTIVE);
+    // a busy source queues many queries before a quiet one shows up
+    for (int i = 0; i < 4; i++) {
+      track(scheduler.acquire("busy", Priority.INTERACTIVE), "busy", admitted);
+    }
+    track(scheduler.acquire("quiet", Priority.INTERACTIVE), "quiet", admitted);
+    drain(scheduler, 5);
+    assertEquals("[busy, quiet, busy, busy, busy]", admitted.toString());
+  }
+
+  @Test
+  public void sourceWeights() throws Exception {
+    final Map<String, Integer> weights = QueryScheduler.parseWeights("a:2");
+    final QueryScheduler scheduler = new QueryScheduler(1, 0, 1, weights);
+    final List<String> admitted = new ArrayList<String>();
+    scheduler.acquire("hold", Priority.INTERACTIVE);
+    for (int i = 0; i < 4; i++) {
+      track(scheduler.acquire("a", Priority.INTERACTIVE), "a", admitted);
+      track(scheduler.acquire("b", Priority.INTERACTIVE), "b", admitted);
+    }
+    drain(scheduler, 8);
+    assertEquals("[a, a, b, a, a, b, b, b]", admitted.toString());
+  }
+
+  @Test
+  public void interactiveBeforeBatch() throws Exception {
+    final QueryScheduler scheduler = new QueryScheduler(1, 0, 2, null);
+    final List<String> admitted = new ArrayList<String>();
+    scheduler.acquire("hold", Priority.INTERACTIVE);
+    for (int i = 0; i < 3; i++) {
+      track(scheduler.acquire("job", Priority.BATCH), "batch", admitted);
+    }
+    for (int i = 0; i < 5; i++) {
+      track(scheduler.acquire("ui", Priority.INTERACTIVE), "ui", admitted);
+    }
+    drain(scheduler, 8);
+    // batch work still gets a turn after every two interactive queries
+    assertEquals("[ui, ui, batch, ui, ui, batch, ui, batch]",
+        admitted.toString());
+  }
+
+  @Test
+  public void waitTime() throws Exception {
+    final QueryScheduler scheduler = new QueryScheduler(1, 0, 1, null);
+    assertEquals(0L, (long) scheduler.acquire("a", Priority.INTERACTIVE)
+        .joinUninterruptibly());
+    final Deferred<Long> waiting = scheduler.acquire("a", Priority.INTERACTIVE);
+    Thread.sleep(5);
+    scheduler.release();
+    assertTrue(waiting.joinUninterruptibly() >= 5000000L);
+  }
+
+  /** Adds the name to the list once the deferred is called back */
+  private static void track(final Deferred<Long> deferred, final String name,
+      final List<String> admitted) {
+    deferred.addCallback(new Callback<Object, Long>() {
+      @Override
+      public Object call(final Long wait) {
+        admitted.add(name);
+        return null;
+      }
+    });
+  }
+
+  /** Releases the given number of slots */
+  private static void drain(final QueryScheduler scheduler, final int count) {
+    for (int i = 0; i < count; i++) {
+      scheduler.release();
+    }
+  }
+}
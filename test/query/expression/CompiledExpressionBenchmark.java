@@ -0,0 +1,108 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.query.expression;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.apache.commons.jexl2.JexlContext;
+import org.apache.commons.jexl2.MapContext;
+import org.apache.commons.jexl2.Script;
+
+/**
+ * Compares the time to evaluate expressions through JEXL, the way the
+ * {@link ExpressionIterator} used to for every series and timestamp, with the
+ * {@link CompiledExpression}. Not a unit test, run it by hand with:
+ * <pre>
+ * java -cp &lt;classpath&gt; net.opentsdb.query.expression.CompiledExpressionBenchmark
+ * </pre>
+ */
+public final class CompiledExpressionBenchmark {
+  private static final List<String> VARIABLES = Arrays.asList("a", "b", "c");
+  private static final String[] EXPRESSIONS = {
+    "a + b",
+    "a * 100 / (a + b)",
+    "(a + b + c) / 3",
+    "a > b ? a - b : b - a",
+    "a > 0 && b > 0 || c < 0" };
+  private static final int VALUES = 100000;
+  private static final int ITERATIONS = 20;
+
+  public static void main(final String[] args) {
+    final Random random = new Random(42);
+    final double[][] values = new double[VALUES][VARIABLES.size()];
+    for (final double[] row : values) {
+      for (int i = 0; i < row.length; i++) {
+        row[i] = random.nextDouble() * 1000 - 100;
+      }
+    }
+    System.out.println(String.format(Locale.US, "%-25s %10s %12s %8s",
+        "expression", "jexl ns", "compiled ns", "speedup"));
+    for (final String expression : EXPRESSIONS) {
+      final Script script =
+          ExpressionIterator.JEXL_ENGINE.createScript(expression);
+      final CompiledExpression compiled =
+          CompiledExpression.compile(expression, VARIABLES);
+
+      // warm up the JIT before timing
+      timeJexl(script, values);
+      timeCompiled(compiled, values);
+      final double jexl_ns = timeJexl(script, values);
+      final double compiled_ns = timeCompiled(compiled, values);
+      System.out.println(String.format(Locale.US, "%-25s %10.1f %12.1f %7.1fx",
+          expression, jexl_ns, compiled_ns, jexl_ns / compiled_ns));
+    }
+  }
+
+  /** @return The average nanoseconds per evaluation with JEXL */
+  private static double timeJexl(final Script script, final double[][] values) {
+    final JexlContext context = new MapContext();
+    double sink = 0;
+    final long start = System.nanoTime();
+    for (int n = 0; n < ITERATIONS; n++) {
+      for (final double[] row : values) {
+        for (int i = 0; i < row.length; i++) {
+          context.set(VARIABLES.get(i), row[i]);
+        }
+        final Object output = script.execute(context);
+        sink += output instanceof Boolean ? ((Boolean) output ? 1 : 0) :
+          (Double) output;
+      }
+    }
+    return elapsed(start, sink);
+  }
+
+  /** @return The average nanoseconds per evaluation of the compiled form */
+  private static double timeCompiled(final CompiledExpression compiled,
+      final double[][] values) {
+    double sink = 0;
+    final long start = System.nanoTime();
+    for (int n = 0; n < ITERATIONS; n++) {
+      for (final double[] row : values) {
+        sink += compiled.evaluate(row);
+      }
+    }
+    return elapsed(start, sink);
+  }
+
+  private static double elapsed(final long start, final double sink) {
+    final long elapsed = System.nanoTime() - start;
+    if (sink == Double.MIN_VALUE) {
+      // keeps the JIT from dropping the loop
+      System.out.println(sink);
+    }
+    return (double) elapsed / ((long) ITERATIONS * VALUES);
+  }
+}
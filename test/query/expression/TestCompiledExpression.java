@@ -0,0 +1,204 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.query.expression;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.jexl2.JexlContext;
+import org.apache.commons.jexl2.MapContext;
+import org.apache.commons.jexl2.Script;
+import org.junit.Test;
+
+public class TestCompiledExpression {
+  private static final List<String> VARIABLES = Arrays.asList("a", "b", "c");
+
+  /** Values to try for each variable, including the awkward ones */
+  private static final double[] VALUES = { 0, -0.0, 1, -1, 2.5, -7.25, 3,
+    Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY };
+
+  @Test
+  public void arithmetic() throws Exception {
+    assertSameAsJexl("a + b");
+    assertSameAsJexl("a - b");
+    assertSameAsJexl("a * b");
+    assertSameAsJexl("a / b");
+    assertSameAsJexl("a % b");
+    assertSameAsJexl("a div b");
+    assertSameAsJexl("a mod b");
+    assertSameAsJexl("-a");
+    assertSameAsJexl("- -a");
+    assertSameAsJexl("-(a / 0)");
+    assertSameAsJexl("a + b * c");
+    assertSameAsJexl("(a + b) * c");
+    assertSameAsJexl("a - b - c");
+    assertSameAsJexl("a / b / c");
+    assertSameAsJexl("a*b+c");
+    assertSameAsJexl("(a + b + c) / 3");
+  }
+
+  @Test
+  public void constants() throws Exception {
+    assertSameAsJexl("a + 1");
+    assertSameAsJexl("a * 1.5");
+    assertSameAsJexl("a + 1 / 2");
+    assertSameAsJexl("a + 1.0 / 2");
+    assertSameAsJexl("a + (2 - 3) * 4");
+    assertSameAsJexl("a * -2");
+    assertSameAsJexl("a / 0");
+    assertSameAsJexl("a % 0");
+    assertSameAsJexl("100 * a / (a + b)");
+    assertSameAsJexl("a + 1L");
+  }
+
+  @Test
+  public void comparisons() throws Exception {
+    assertSameAsJexl("a < b");
+    assertSameAsJexl("a > b");
+    assertSameAsJexl("a <= b");
+    assertSameAsJexl("a >= b");
+    assertSameAsJexl("a == b");
+    assertSameAsJexl("a != b");
+    assertSameAsJexl("a < a");
+    assertSameAsJexl("a == a");
+    assertSameAsJexl("a lt b");
+    assertSameAsJexl("a gt b");
+    assertSameAsJexl("a le b");
+    assertSameAsJexl("a ge b");
+    assertSameAsJexl("a eq b");
+    assertSameAsJexl("a ne b");
+    assertSameAsJexl("a > 1");
+    assertSameAsJexl("1 > a");
+    assertSameAsJexl("a + b > c * 2");
+  }
+
+  @Test
+  public void logic() throws Exception {
+    assertSameAsJexl("a > b && b > c");
+    assertSameAsJexl("a > b || b > c");
+    assertSameAsJexl("a > b and b > c or a == c");
+    assertSameAsJexl("!(a > b)");
+    assertSameAsJexl("not (a > b)");
+    assertSameAsJexl("!a");
+    assertSameAsJexl("a && b");
+    assertSameAsJexl("a || b");
+  }
+
+  @Test
+  public void ternary() throws Exception {
+    assertSameAsJexl("a > b ? a : b");
+    assertSameAsJexl("a ? b : c");
+    assertSameAsJexl("a > b ? a : b > c ? b : c");
+    assertSameAsJexl("(a > 0 ? 1 : a) + b");
+    assertSameAsJexl("a > 0 ? a > b : b > c");
+    assertSameAsJexl("(a > b ? a : b) * c");
+  }
+
+  @Test
+  public void whitespace() throws Exception {
+    assertSameAsJexl("  a+b  ");
+    assertSameAsJexl("\ta\n*\nb");
+  }
+
+  @Test
+  public void unsupported() throws Exception {
+    // functions, methods and strings
+    assertNull(CompiledExpression.compile("math:abs(a)", VARIABLES));
+    assertNull(CompiledExpression.compile("a.intValue()", VARIABLES));
+    assertNull(CompiledExpression.compile("a + 'b'", VARIABLES));
+    assertNull(CompiledExpression.compile("size(a)", VARIABLES));
+    // unknown variables and reserved words
+    assertNull(CompiledExpression.compile("a + d", VARIABLES));
+    assertNull(CompiledExpression.compile("a + null", VARIABLES));
+    assertNull(CompiledExpression.compile("empty(a)", VARIABLES));
+    // bitwise, assignments, regex and multiple statements
+    assertNull(CompiledExpression.compile("a & b", VARIABLES));
+    assertNull(CompiledExpression.compile("a | b", VARIABLES));
+    assertNull(CompiledExpression.compile("a ^ b", VARIABLES));
+    assertNull(CompiledExpression.compile("~a", VARIABLES));
+    assertNull(CompiledExpression.compile("a = b", VARIABLES));
+    assertNull(CompiledExpression.compile("a =~ b", VARIABLES));
+    assertNull(CompiledExpression.compile("a; b", VARIABLES));
+    assertNull(CompiledExpression.compile("a ?: b", VARIABLES));
+    assertNull(CompiledExpression.compile("a[0]", VARIABLES));
+    // literals JEXL may type differently
+    assertNull(CompiledExpression.compile("a + 0x10", VARIABLES));
+    assertNull(CompiledExpression.compile("a + 1e3", VARIABLES));
+    // booleans in arithmetic or comparisons
+    assertNull(CompiledExpression.compile("(a > b) * 2", VARIABLES));
+    assertNull(CompiledExpression.compile("(a > b) == (b > c)", VARIABLES));
+    assertNull(CompiledExpression.compile("-(a > b)", VARIABLES));
+    // results that aren't doubles or booleans
+    assertNull(CompiledExpression.compile("a > b ? 1 : 0", VARIABLES));
+    assertNull(CompiledExpression.compile("1 + 2", VARIABLES));
+    // syntax errors
+    assertNull(CompiledExpression.compile("a +", VARIABLES));
+    assertNull(CompiledExpression.compile("(a + b", VARIABLES));
+    assertNull(CompiledExpression.compile("a b", VARIABLES));
+    assertNull(CompiledExpression.compile("", VARIABLES));
+  }
+
+  @Test
+  public void reuse() throws Exception {
+    final CompiledExpression compiled =
+        CompiledExpression.compile("a > b ? a - b : b - a", VARIABLES);
+    assertNotNull(compiled);
+    assertEquals(1, compiled.evaluate(new double[] { 2, 1, 0 }), 0);
+    assertEquals(3, compiled.evaluate(new double[] { 1, 4, 0 }), 0);
+    assertEquals(0, compiled.evaluate(new double[] { 1, 1, 0 }), 0);
+  }
+
+  /**
+   * Compiles the expression and compares the results with JEXL's for every
+   * combination of {@link #VALUES}.
+   */
+  private static void assertSameAsJexl(final String expression) {
+    final CompiledExpression compiled =
+        CompiledExpression.compile(expression, VARIABLES);
+    if (compiled == null) {
+      fail("Failed to compile: " + expression);
+    }
+    final Script script =
+        ExpressionIterator.JEXL_ENGINE.createScript(expression);
+    final JexlContext context = new MapContext();
+    final double[] values = new double[VARIABLES.size()];
+    for (final double a : VALUES) {
+      for (final double b : VALUES) {
+        for (final double c : VALUES) {
+          values[0] = a;
+          values[1] = b;
+          values[2] = c;
+          context.set("a", a);
+          context.set("b", b);
+          context.set("c", c);
+          final Object output = script.execute(context);
+          final double expected = output instanceof Boolean ?
+              ((Boolean) output ? 1 : 0) : (Double) output;
+          final double actual = compiled.evaluate(values);
+          // compare the raw bits so -0.0 and NaN must match as well
+          if (Double.doubleToLongBits(expected) !=
+              Double.doubleToLongBits(actual)) {
+            fail(expression + " with a=" + a + ", b=" + b + ", c=" + c
+                + " expected " + expected + " but was " + actual + " for "
+                + compiled);
+          }
+        }
+      }
+    }
+  }
+}
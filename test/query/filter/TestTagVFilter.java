@@ -19,6 +19,7 @@ import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.mockito.Mockito.when;
 
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -29,6 +30,7 @@ import java.util.Set;
 import net.opentsdb.core.BaseTsdbTest;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.uid.NoSuchUniqueName;
+import net.opentsdb.uid.UidDictionary;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -252,6 +254,60 @@ public class TestTagVFilter extends BaseTsdbTest {
     new TagVWildcardFilter("host", "*omnia").resolveTagkName(null);
   }
   
+  @Test
+  public void resolveNameRegexExpanded() throws Exception {
+    setDictionary();
+    final TagVFilter filter = new TagVRegexFilter(TAGK_STRING, "^web0[12]$");
+    filter.resolveTagkName(tsdb).join();
+    assertArrayEquals(TAGK_BYTES, filter.getTagkBytes());
+    assertTrue(filter.isExpanded());
+    assertTrue(filter.postScan());
+    assertEquals(2, filter.getTagVUids().size());
+    assertArrayEquals(TAGV_BYTES, filter.getTagVUids().get(0));
+    assertArrayEquals(TAGV_B_BYTES, filter.getTagVUids().get(1));
+  }
+  
+  @Test
+  public void resolveNameWildcardExpanded() throws Exception {
+    setDictionary();
+    final TagVFilter filter = new TagVWildcardFilter(TAGK_STRING, "WEB*", true);
+    filter.resolveTagkName(tsdb).join();
+    assertTrue(filter.isExpanded());
+    assertEquals(2, filter.getTagVUids().size());
+    assertArrayEquals(TAGV_BYTES, filter.getTagVUids().get(0));
+  }
+  
+  @Test
+  public void resolveNameWildcardMatchAllNotExpanded() throws Exception {
+    setDictionary();
+    final TagVFilter filter = new TagVWildcardFilter(TAGK_STRING, "*");
+    filter.resolveTagkName(tsdb).join();
+    assertFalse(filter.isExpanded());
+    assertTrue(filter.getTagVUids().isEmpty());
+    assertFalse(filter.postScan());
+  }
+  
+  @Test
+  public void resolveNameExpandedTooMany() throws Exception {
+    setDictionary();
+    config.overrideConfig("tsd.query.filter.expansion_limit", "1");
+    final TagVFilter filter = new TagVRegexFilter(TAGK_STRING, "^web");
+    filter.resolveTagkName(tsdb).join();
+    assertFalse(filter.isExpanded());
+    assertTrue(filter.getTagVUids().isEmpty());
+  }
+  
+  @Test
+  public void resolveNameDictionaryNotLoaded() throws Exception {
+    final UidDictionary dictionary = new UidDictionary("tagv", (short) 3);
+    dictionary.add(TAGV_STRING, TAGV_BYTES);
+    when(tag_values.getDictionary()).thenReturn(dictionary);
+    final TagVFilter filter = new TagVRegexFilter(TAGK_STRING, "^web");
+    filter.resolveTagkName(tsdb).join();
+    assertFalse(filter.isExpanded());
+    assertTrue(filter.getTagVUids().isEmpty());
+  }
+  
   @Test
   public void comparableTest() throws Exception {
     final TagVFilter filter_a = new TagVWildcardFilter("host", "*omnia");
@@ -418,4 +474,14 @@ public class TestTagVFilter extends BaseTsdbTest {
   }
   
   // TODO - test the plugin loader similar to the other plugins
+  
+  /** Mocks a loaded tag value dictionary with web01, web02 and a db value */
+  private void setDictionary() {
+    final UidDictionary dictionary = new UidDictionary("tagv", (short) 3);
+    dictionary.add(TAGV_STRING, TAGV_BYTES);
+    dictionary.add(TAGV_B_STRING, TAGV_B_BYTES);
+    dictionary.add("db01", new byte[] { 0, 0, 9 });
+    Whitebox.setInternalState(dictionary, "loaded", true);
+    when(tag_values.getDictionary()).thenReturn(dictionary);
+  }
 }
@@ -0,0 +1,146 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.query.filter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.hbase.async.Bytes.ByteMap;
+import org.junit.Before;
+import org.junit.Test;
+import org.powermock.reflect.Whitebox;
+
+import com.stumbleupon.async.Deferred;
+
+public class TestTagVFilterCache {
+  private static final byte[] HOST = new byte[] { 0, 0, 1 };
+  private static final byte[] DC = new byte[] { 0, 0, 2 };
+  private static final byte[] WEB01 = new byte[] { 0, 0, 1 };
+  private static final byte[] WEB02 = new byte[] { 0, 0, 2 };
+
+  private TagVFilterCache cache;
+  private TagVFilter regex;
+  private ByteMap<byte[]> web01;
+  private ByteMap<byte[]> web02;
+
+  @Before
+  public void before() throws Exception {
+    cache = new TagVFilterCache(16);
+    regex = new TagVRegexFilter("host", "web01");
+    Whitebox.setInternalState(regex, "tagk_bytes", HOST);
+    web01 = new ByteMap<byte[]>();
+    web01.put(HOST, WEB01);
+    web02 = new ByteMap<byte[]>();
+    web02.put(HOST, WEB02);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroEntries() throws Exception {
+    new TagVFilterCache(0);
+  }
+
+  @Test
+  public void putAndMatch() throws Exception {
+    final List<TagVFilter> filters = Arrays.asList(regex);
+    assertNull(cache.match(filters, web01));
+
+    cache.put(filters, web01, Arrays.asList(true));
+    cache.put(filters, web02, Arrays.asList(false));
+    assertTrue(cache.match(filters, web01));
+    assertFalse(cache.match(filters, web02));
+    assertEquals(2, cache.size());
+  }
+
+  @Test
+  public void sameFilterDifferentInstance() throws Exception {
+    cache.put(Arrays.asList(regex), web01, Arrays.asList(true));
+
+    final TagVFilter other = new TagVRegexFilter("host", "web01");
+    Whitebox.setInternalState(other, "tagk_bytes", HOST);
+    assertTrue(cache.match(Arrays.<TagVFilter>asList(other), web01));
+
+    // same expression but a different filter type
+    final TagVFilter literal = new TagVLiteralOrFilter("host", "web01");
+    Whitebox.setInternalState(literal, "tagk_bytes", HOST);
+    assertNull(cache.match(Arrays.<TagVFilter>asList(literal), web01));
+  }
+
+  @Test
+  public void multipleFilters() throws Exception {
+    final TagVFilter not_dc = new TagVNotLiteralOrFilter("dc", "lga");
+    Whitebox.setInternalState(not_dc, "tagk_bytes", DC);
+    final List<TagVFilter> filters = Arrays.asList(regex, not_dc);
+
+    // the row has no dc tag
+    cache.put(filters, web01, Arrays.asList(true, true));
+    assertTrue(cache.match(filters, web01));
+
+    // one known miss is enough to skip the row
+    cache.put(Arrays.asList(regex), web02, Arrays.asList(false));
+    assertFalse(cache.match(filters, web02));
+
+    final ByteMap<byte[]> web01_lga = new ByteMap<byte[]>();
+    web01_lga.put(HOST, WEB01);
+    web01_lga.put(DC, new byte[] { 0, 0, 3 });
+    assertNull(cache.match(filters, web01_lga));
+  }
+
+  @Test
+  public void notCacheable() throws Exception {
+    final TagVFilter plugin = new TagVFilter("host", "web01") {
+      @Override
+      public Deferred<Boolean> match(final Map<String, String> tags) {
+        return Deferred.fromResult(true);
+      }
+      @Override
+      public String getType() {
+        return "plugin";
+      }
+      @Override
+      public String debugInfo() {
+        return "{}";
+      }
+    };
+    Whitebox.setInternalState(plugin, "tagk_bytes", HOST);
+    final List<TagVFilter> filters = Arrays.asList(plugin);
+    cache.put(filters, web01, Arrays.asList(true));
+    assertNull(cache.match(filters, web01));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void unresolvedTagk() throws Exception {
+    final TagVFilter unresolved = new TagVRegexFilter("host", "web01");
+    final List<TagVFilter> filters = Arrays.asList(unresolved);
+    cache.put(filters, web01, Arrays.asList(true));
+    assertNull(cache.match(filters, web01));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void bounded() throws Exception {
+    final List<TagVFilter> filters = Arrays.asList(regex);
+    for (int i = 0; i < 64; i++) {
+      final ByteMap<byte[]> row = new ByteMap<byte[]>();
+      row.put(HOST, new byte[] { 1, 0, (byte) i });
+      cache.put(filters, row, Arrays.asList(false));
+    }
+    assertTrue(cache.size() <= 16);
+  }
+}
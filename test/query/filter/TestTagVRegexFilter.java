@@ -123,4 +123,15 @@ public class TestTagVRegexFilter {
     assertFalse(filter_a.equals(filter_c));
     assertFalse(filter_a.equals(filter_d));
   }
+  
+  @Test
+  public void literalPrefix() throws Exception {
+    assertEquals("web", TagVRegexFilter.literalPrefix("^web.*"));
+    assertEquals("web0", TagVRegexFilter.literalPrefix("^web0\\d$"));
+    assertEquals("web", TagVRegexFilter.literalPrefix("^webs?01"));
+    assertEquals("ogg-01", TagVRegexFilter.literalPrefix("^ogg-01.ops"));
+    assertEquals("", TagVRegexFilter.literalPrefix("web.*"));
+    assertEquals("", TagVRegexFilter.literalPrefix("^web|^db"));
+    assertEquals("", TagVRegexFilter.literalPrefix("^(?i)web"));
+  }
 }
@@ -0,0 +1,176 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.rollup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import net.opentsdb.core.DownsamplingSpecification;
+import net.opentsdb.utils.Config;
+
+import org.junit.Test;
+
+public final class TestRollupConfig {
+  /** Query end time that is well past any flush delay */
+  private static final long END = 1356998400L;
+  private static final long START = END - 86400;
+
+  private static final String INTERVALS =
+      "1h:tsdb-rollup-1h:1d,1m:tsdb-rollup-1m:1d";
+
+  @Test
+  public void ctor() throws Exception {
+    final RollupConfig config = new RollupConfig(INTERVALS, 70);
+    assertEquals(2, config.getIntervals().size());
+    // sorted finest first
+    assertEquals(60, config.getIntervals().get(0).getInterval());
+    assertEquals(3600, config.getIntervals().get(1).getInterval());
+    assertEquals(70, config.getFlushDelay());
+  }
+
+  @Test
+  public void ctorConfig() throws Exception {
+    final Config config = new Config(false);
+    final RollupConfig rollups = new RollupConfig(config);
+    assertEquals(2, rollups.getIntervals().size());
+    assertEquals(70, rollups.getFlushDelay());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorNull() throws Exception {
+    new RollupConfig((String) null, 0);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorEmpty() throws Exception {
+    new RollupConfig("", 0);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorMissingTable() throws Exception {
+    new RollupConfig("1m:1d", 0);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorDuplicate() throws Exception {
+    new RollupConfig("1m:tsdb-a:1d,60s:tsdb-b:1d", 0);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorNegativeDelay() throws Exception {
+    new RollupConfig(INTERVALS, -1);
+  }
+
+  @Test
+  public void getRollupQueryCoarsest() throws Exception {
+    final RollupConfig config = new RollupConfig(INTERVALS, 0);
+    RollupQuery query = config.getRollupQuery(
+        new DownsamplingSpecification("1h-sum"), START, END);
+    assertEquals(3600, query.getRollupInterval().getInterval());
+    assertEquals(RollupUtils.AGG_SUM, query.getAggregatorId());
+
+    query = config.getRollupQuery(
+        new DownsamplingSpecification("1d-max"), START, END);
+    assertEquals(3600, query.getRollupInterval().getInterval());
+    assertEquals(RollupUtils.AGG_MAX, query.getAggregatorId());
+
+    query = config.getRollupQuery(
+        new DownsamplingSpecification("5m-min"), START, END);
+    assertEquals(60, query.getRollupInterval().getInterval());
+    assertEquals(RollupUtils.AGG_MIN, query.getAggregatorId());
+
+    query = config.getRollupQuery(
+        new DownsamplingSpecification("15m-count"), START, END);
+    assertEquals(60, query.getRollupInterval().getInterval());
+    assertEquals(RollupUtils.AGG_COUNT, query.getAggregatorId());
+  }
+
+  @Test
+  public void getRollupQueryAvg() throws Exception {
+    final RollupConfig config = new RollupConfig(INTERVALS, 0);
+    RollupQuery query = config.getRollupQuery(
+        new DownsamplingSpecification("1m-avg"), START, END);
+    assertEquals(60, query.getRollupInterval().getInterval());
+    assertEquals(RollupUtils.AGG_AVG, query.getAggregatorId());
+
+    query = config.getRollupQuery(
+        new DownsamplingSpecification("1h-avg"), START, END);
+    assertEquals(3600, query.getRollupInterval().getInterval());
+
+    // can't re-combine averages
+    assertNull(config.getRollupQuery(
+        new DownsamplingSpecification("5m-avg"), START, END));
+  }
+
+  @Test
+  public void getRollupQueryRaw() throws Exception {
+    final RollupConfig config = new RollupConfig(INTERVALS, 0);
+    assertNull(config.getRollupQuery(null, START, END));
+    assertNull(config.getRollupQuery(
+        DownsamplingSpecification.NO_DOWNSAMPLER, START, END));
+    assertNull(config.getRollupQuery(
+        new DownsamplingSpecification("30s-sum"), START, END));
+    assertNull(config.getRollupQuery(
+        new DownsamplingSpecification("90s-sum"), START, END));
+    assertNull(config.getRollupQuery(
+        new DownsamplingSpecification("1m-dev"), START, END));
+    assertNull(config.getRollupQuery(
+        new DownsamplingSpecification("1m-p99"), START, END));
+    assertNull(config.getRollupQuery(
+        new DownsamplingSpecification("0all-sum"), START, END));
+    assertNull(config.getRollupQuery(
+        new DownsamplingSpecification("1hc-sum"), START, END));
+  }
+
+  @Test
+  public void getRollupQueryPast() throws Exception {
+    final RollupConfig config = new RollupConfig(INTERVALS, 60);
+    final RollupQuery query = config.getRollupQuery(
+        new DownsamplingSpecification("1h-sum"), START, END);
+    assertEquals(-1, query.getRawStartTime());
+  }
+
+  @Test
+  public void getRollupQueryRecent() throws Exception {
+    final RollupConfig config = new RollupConfig(INTERVALS, 60);
+    final long now = System.currentTimeMillis() / 1000;
+    RollupQuery query = config.getRollupQuery(
+        new DownsamplingSpecification("1h-sum"), now - 86400, -1);
+    assertEquals(3600, query.getRollupInterval().getInterval());
+    assertEquals(0, query.getRawStartTime() % 3600);
+    assertTrue(query.getRawStartTime() <= now - 60);
+    assertTrue(query.getRawStartTime() > now - 60 - 7200);
+
+    query = config.getRollupQuery(
+        new DownsamplingSpecification("1m-max"), now - 86400, now);
+    assertEquals(60, query.getRollupInterval().getInterval());
+    assertEquals(0, query.getRawStartTime() % 3600);
+    assertTrue(query.getRawStartTime() > now - 120 - 3600);
+  }
+
+  @Test
+  public void getRollupQueryRecentOnly() throws Exception {
+    final RollupConfig config = new RollupConfig(INTERVALS, 60);
+    final long now = System.currentTimeMillis() / 1000;
+    // nothing before the raw start time
+    assertNull(config.getRollupQuery(
+        new DownsamplingSpecification("1h-sum"), now - 60, -1));
+    // counts are not split
+    assertNull(config.getRollupQuery(
+        new DownsamplingSpecification("1h-count"), now - 86400, -1));
+    // the raw range can't start on a downsample interval and a row
+    assertNull(config.getRollupQuery(
+        new DownsamplingSpecification("7m-sum"), now - 86400, -1));
+  }
+}
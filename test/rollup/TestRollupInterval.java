@@ -0,0 +1,90 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.rollup;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.Test;
+
+public final class TestRollupInterval {
+
+  @Test
+  public void ctor() throws Exception {
+    final RollupInterval interval =
+        new RollupInterval("1m", "tsdb-rollup-1m", "1d");
+    assertEquals("1m", interval.getStringInterval());
+    assertEquals(60, interval.getInterval());
+    assertEquals(60000, interval.getIntervalMs());
+    assertEquals(86400, interval.getRowSpan());
+    assertEquals("tsdb-rollup-1m", interval.getTableName());
+    assertArrayEquals("tsdb-rollup-1m".getBytes(), interval.getTable());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorNullInterval() throws Exception {
+    new RollupInterval(null, "tsdb-rollup-1m", "1d");
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorEmptyTable() throws Exception {
+    new RollupInterval("1m", "", "1d");
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorNullRowSpan() throws Exception {
+    new RollupInterval("1m", "tsdb-rollup-1m", null);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorMilliseconds() throws Exception {
+    new RollupInterval("500ms", "tsdb-rollup-1m", "1h");
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorUneven() throws Exception {
+    new RollupInterval("7m", "tsdb-rollup-7m", "1h");
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorTooManyIntervals() throws Exception {
+    new RollupInterval("1s", "tsdb-rollup-1s", "1d");
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorBadInterval() throws Exception {
+    new RollupInterval("foo", "tsdb-rollup-1m", "1d");
+  }
+
+  @Test
+  public void alignment() throws Exception {
+    final RollupInterval interval =
+        new RollupInterval("1m", "tsdb-rollup-1m", "1d");
+    // Tue, 01 Jan 2013 01:02:03 GMT
+    final long ts = 1356998400L + 3723;
+    assertEquals(1356998400L, interval.getRowBaseTime(ts));
+    assertEquals(1356998400L + 3720, interval.getIntervalStart(ts));
+    assertEquals(62, interval.getOffset(ts));
+  }
+
+  @Test
+  public void equality() throws Exception {
+    final RollupInterval a = new RollupInterval("1m", "tsdb-rollup-1m", "1d");
+    final RollupInterval b = new RollupInterval("60s", "tsdb-rollup-1m", "1d");
+    final RollupInterval c = new RollupInterval("1m", "tsdb-rollup-1m", "1h");
+    assertEquals(a, b);
+    assertEquals(a.hashCode(), b.hashCode());
+    assertFalse(a.equals(c));
+  }
+}
@@ -0,0 +1,167 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.rollup;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.opentsdb.core.Internal;
+import net.opentsdb.storage.MockBase;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+import org.junit.Test;
+
+public final class TestRollupQuery {
+  private static final byte[] FAMILY = { 't' };
+  /** Tue, 01 Jan 2013 00:00:00 GMT */
+  private static final long BASE_TIME = 1356998400L;
+
+  private final RollupInterval interval =
+      new RollupInterval("1m", "tsdb-rollup-1m", "1d");
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorNullInterval() throws Exception {
+    new RollupQuery(null, RollupUtils.AGG_SUM);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorBadAgg() throws Exception {
+    new RollupQuery(interval, (byte) 0);
+  }
+
+  @Test
+  public void convertRowEmpty() throws Exception {
+    final RollupQuery query = new RollupQuery(interval, RollupUtils.AGG_SUM);
+    assertTrue(query.convertRow(null).isEmpty());
+    assertTrue(query.convertRow(new ArrayList<KeyValue>()).isEmpty());
+  }
+
+  @Test
+  public void convertRowLongs() throws Exception {
+    final RollupQuery query = new RollupQuery(interval, RollupUtils.AGG_MAX);
+    final List<KeyValue> row = buildRow();
+    final ArrayList<KeyValue> converted = query.convertRow(row);
+
+    // offsets 0 and 1 fall in the first hour, offset 61 in the second
+    assertEquals(2, converted.size());
+    KeyValue kv = converted.get(0);
+    assertEquals(BASE_TIME, Bytes.getUnsignedInt(kv.key(), 3));
+    assertEquals(4, kv.qualifier().length);
+    assertEquals(16, kv.value().length);
+    assertEquals(BASE_TIME * 1000, Internal.getTimestampFromQualifier(
+        kv.qualifier(), BASE_TIME, 0));
+    assertEquals((BASE_TIME + 60) * 1000, Internal.getTimestampFromQualifier(
+        kv.qualifier(), BASE_TIME, 2));
+    assertEquals(42, Bytes.getLong(kv.value(), 0));
+    assertEquals(24, Bytes.getLong(kv.value(), 8));
+
+    kv = converted.get(1);
+    assertEquals(BASE_TIME + 3600, Bytes.getUnsignedInt(kv.key(), 3));
+    assertArrayEquals(new byte[] { 0x03, (byte) 0xC7 }, kv.qualifier());
+    assertEquals(7, Bytes.getLong(kv.value()));
+  }
+
+  @Test
+  public void convertRowAvg() throws Exception {
+    final RollupQuery query = new RollupQuery(interval, RollupUtils.AGG_AVG);
+    final ArrayList<KeyValue> converted = query.convertRow(buildRow());
+    assertEquals(2, converted.size());
+    final KeyValue kv = converted.get(0);
+    assertEquals(4, kv.qualifier().length);
+    assertTrue(Internal.isFloat(kv.qualifier(), 0));
+    assertEquals(50.0 / 2, Double.longBitsToDouble(
+        Bytes.getLong(kv.value(), 0)), 0.0001);
+    assertEquals(30.0 / 3, Double.longBitsToDouble(
+        Bytes.getLong(kv.value(), 8)), 0.0001);
+  }
+
+  @Test
+  public void convertRowDoubles() throws Exception {
+    final RollupQuery query = new RollupQuery(interval, RollupUtils.AGG_SUM);
+    final byte[] key = key();
+    final List<KeyValue> row = new ArrayList<KeyValue>();
+    row.add(new KeyValue(key, FAMILY, RollupUtils.buildQualifier(
+        RollupUtils.AGG_SUM, 5, RollupUtils.DOUBLE_FLAGS),
+        Bytes.fromLong(Double.doubleToRawLongBits(4.5))));
+    final ArrayList<KeyValue> converted = query.convertRow(row);
+    assertEquals(1, converted.size());
+    assertTrue(Internal.isFloat(converted.get(0).qualifier(), 0));
+    assertEquals((BASE_TIME + 300) * 1000, Internal.getTimestampFromQualifier(
+        converted.get(0).qualifier(), BASE_TIME, 0));
+    assertEquals(4.5, Double.longBitsToDouble(
+        Bytes.getLong(converted.get(0).value())), 0.0001);
+  }
+
+  @Test
+  public void convertRowRawStart() throws Exception {
+    final RollupQuery query = new RollupQuery(interval, RollupUtils.AGG_MAX,
+        BASE_TIME + 3600);
+    final ArrayList<KeyValue> converted = query.convertRow(buildRow());
+    assertEquals(1, converted.size());
+    assertEquals(BASE_TIME, Bytes.getUnsignedInt(converted.get(0).key(), 3));
+    assertEquals(BASE_TIME + 3600, query.getRawStartTime());
+  }
+
+  @Test
+  public void convertRowMixedEncodings() throws Exception {
+    final byte[] key = key();
+    final List<KeyValue> row = new ArrayList<KeyValue>();
+    addCell(row, key, RollupUtils.AGG_MIN, 0, 3);
+    row.add(new KeyValue(key, FAMILY, RollupUtils.buildQualifier(
+        RollupUtils.AGG_MIN, 0, RollupUtils.DOUBLE_FLAGS),
+        Bytes.fromLong(Double.doubleToRawLongBits(2.5))));
+    addCell(row, key, RollupUtils.AGG_SUM, 0, 10);
+    row.add(new KeyValue(key, FAMILY, RollupUtils.buildQualifier(
+        RollupUtils.AGG_SUM, 0, RollupUtils.DOUBLE_FLAGS),
+        Bytes.fromLong(Double.doubleToRawLongBits(2.5))));
+
+    KeyValue kv = new RollupQuery(interval, RollupUtils.AGG_MIN)
+        .convertRow(row).get(0);
+    assertEquals(2.5, Double.longBitsToDouble(Bytes.getLong(kv.value())),
+        0.0001);
+    kv = new RollupQuery(interval, RollupUtils.AGG_SUM).convertRow(row).get(0);
+    assertEquals(12.5, Double.longBitsToDouble(Bytes.getLong(kv.value())),
+        0.0001);
+  }
+
+  /** @return a row with sum, count and max at offsets 0, 1 and 61 */
+  private List<KeyValue> buildRow() {
+    final byte[] key = key();
+    final List<KeyValue> row = new ArrayList<KeyValue>();
+    addCell(row, key, RollupUtils.AGG_SUM, 0, 50);
+    addCell(row, key, RollupUtils.AGG_SUM, 1, 30);
+    addCell(row, key, RollupUtils.AGG_SUM, 61, 7);
+    addCell(row, key, RollupUtils.AGG_COUNT, 0, 2);
+    addCell(row, key, RollupUtils.AGG_COUNT, 1, 3);
+    addCell(row, key, RollupUtils.AGG_COUNT, 61, 1);
+    addCell(row, key, RollupUtils.AGG_MAX, 0, 42);
+    addCell(row, key, RollupUtils.AGG_MAX, 1, 24);
+    addCell(row, key, RollupUtils.AGG_MAX, 61, 7);
+    return row;
+  }
+
+  private static void addCell(final List<KeyValue> row, final byte[] key,
+      final byte agg, final int offset, final long value) {
+    row.add(new KeyValue(key, FAMILY, RollupUtils.buildQualifier(agg, offset,
+        RollupUtils.LONG_FLAGS), Bytes.fromLong(value)));
+  }
+
+  private static byte[] key() {
+    return MockBase.stringToBytes("00000150E22700000001000001");
+  }
+}
@@ -0,0 +1,274 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.rollup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import net.opentsdb.core.Const;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.storage.MockBase;
+import net.opentsdb.utils.Config;
+
+import org.hbase.async.AtomicIncrementRequest;
+import org.hbase.async.Bytes;
+import org.hbase.async.Bytes.ByteMap;
+import org.hbase.async.GetRequest;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.KeyValue;
+import org.hbase.async.PutRequest;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import com.stumbleupon.async.Deferred;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+  "ch.qos.*", "org.slf4j.*",
+  "com.sum.*", "org.xml.*"})
+@PrepareForTest({ TSDB.class, HBaseClient.class })
+public final class TestRollupQueue {
+  /** Tue, 01 Jan 2013 00:00:00 GMT */
+  private static final long BASE_TIME = 1356998400L;
+  private static final byte[] ROW =
+      MockBase.stringToBytes("00000150E22700000001000001");
+  private static final byte[] FAMILY = { 't' };
+  private static final byte[] TABLE_1M = "tsdb-rollup-1m".getBytes();
+  private static final byte[] TABLE_1H = "tsdb-rollup-1h".getBytes();
+
+  private TSDB tsdb;
+  private HBaseClient client;
+  private Timer timer;
+  private RollupConfig rollup_config;
+  private MockBase storage;
+
+  @Before
+  public void before() throws Exception {
+    tsdb = mock(TSDB.class);
+    client = mock(HBaseClient.class);
+    timer = mock(Timer.class);
+    when(tsdb.getConfig()).thenReturn(new Config(false));
+    when(tsdb.getClient()).thenReturn(client);
+    when(tsdb.getTimer()).thenReturn(timer);
+    rollup_config = new RollupConfig(
+        "1m:tsdb-rollup-1m:1d,1h:tsdb-rollup-1h:1d", 0);
+    storage = new MockBase(tsdb, client, true, true, true, true);
+    storage.addTable(TABLE_1M, Collections.singletonList(FAMILY));
+    storage.addTable(TABLE_1H, Collections.singletonList(FAMILY));
+  }
+
+  @Test
+  public void ctor() throws Exception {
+    final RollupQueue queue = new RollupQueue(tsdb, rollup_config);
+    assertEquals(0, queue.size());
+    verify(timer, times(1)).newTimeout(any(TimerTask.class), anyLong(),
+        any(TimeUnit.class));
+  }
+
+  @Test
+  public void addAndFlushLongs() throws Exception {
+    final RollupQueue queue = new RollupQueue(tsdb, rollup_config);
+    queue.addPoint(ROW, BASE_TIME + 60, Bytes.fromLong(4), (short) 7);
+    queue.addPoint(ROW, BASE_TIME + 90, new byte[] { 2 }, (short) 0);
+    queue.addPoint(ROW, (BASE_TIME + 150) * 1000, Bytes.fromShort((short) 9),
+        (short) 1);
+    // 2 minute buckets and 1 hour bucket
+    assertEquals(3, queue.size());
+
+    // only the first minute is done
+    queue.flush(BASE_TIME + 120).joinUninterruptibly();
+    assertEquals(2, queue.size());
+    assertEquals(4, columns(TABLE_1M));
+    assertEquals(6, getLong(TABLE_1M, RollupUtils.AGG_SUM, 1));
+    assertEquals(2, getLong(TABLE_1M, RollupUtils.AGG_COUNT, 1));
+    assertEquals(2, getLong(TABLE_1M, RollupUtils.AGG_MIN, 1));
+    assertEquals(4, getLong(TABLE_1M, RollupUtils.AGG_MAX, 1));
+    assertEquals(0, columns(TABLE_1H));
+
+    queue.flush().joinUninterruptibly();
+    assertEquals(0, queue.size());
+    assertEquals(8, columns(TABLE_1M));
+    assertEquals(15, getLong(TABLE_1H, RollupUtils.AGG_SUM, 0));
+    assertEquals(3, getLong(TABLE_1H, RollupUtils.AGG_COUNT, 0));
+    assertEquals(2, getLong(TABLE_1H, RollupUtils.AGG_MIN, 0));
+    assertEquals(9, getLong(TABLE_1H, RollupUtils.AGG_MAX, 0));
+  }
+
+  @Test
+  public void addAndFlushMixed() throws Exception {
+    final RollupQueue queue = new RollupQueue(tsdb, rollup_config);
+    queue.addPoint(ROW, BASE_TIME, Bytes.fromLong(4), (short) 7);
+    queue.addPoint(ROW, BASE_TIME + 1,
+        Bytes.fromInt(Float.floatToRawIntBits(1.5f)),
+        (short) (Const.FLAG_FLOAT | 0x3));
+    queue.flush(BASE_TIME + 60).joinUninterruptibly();
+    assertEquals(4, columns(TABLE_1M));
+    assertEquals(5.5, getDouble(TABLE_1M, RollupUtils.AGG_SUM, 0), 0.0001);
+    // count is always a long
+    assertEquals(2, getLong(TABLE_1M, RollupUtils.AGG_COUNT, 0));
+    assertEquals(1.5, getDouble(TABLE_1M, RollupUtils.AGG_MIN, 0), 0.0001);
+    assertEquals(4, getDouble(TABLE_1M, RollupUtils.AGG_MAX, 0), 0.0001);
+  }
+
+  @Test
+  public void mergedWithStored() throws Exception {
+    // written by another TSD or before a restart
+    putLong(RollupUtils.AGG_SUM, 10);
+    putLong(RollupUtils.AGG_COUNT, 3);
+    putLong(RollupUtils.AGG_MIN, 1);
+    putLong(RollupUtils.AGG_MAX, 20);
+    final RollupQueue queue = new RollupQueue(tsdb, rollup_config);
+    queue.addPoint(ROW, BASE_TIME, Bytes.fromLong(4), (short) 7);
+    queue.addPoint(ROW, BASE_TIME + 1, Bytes.fromLong(30), (short) 7);
+    queue.flush(BASE_TIME + 60).joinUninterruptibly();
+    assertEquals(44, getLong(TABLE_1M, RollupUtils.AGG_SUM, 0));
+    assertEquals(5, getLong(TABLE_1M, RollupUtils.AGG_COUNT, 0));
+    assertEquals(1, getLong(TABLE_1M, RollupUtils.AGG_MIN, 0));
+    assertEquals(30, getLong(TABLE_1M, RollupUtils.AGG_MAX, 0));
+  }
+
+  @Test
+  public void flushedTwice() throws Exception {
+    final RollupQueue queue = new RollupQueue(tsdb, rollup_config);
+    queue.addPoint(ROW, BASE_TIME, Bytes.fromLong(4), (short) 7);
+    queue.flush().joinUninterruptibly();
+    // a restarted TSD flushing the rest of the interval
+    final RollupQueue restarted = new RollupQueue(tsdb, rollup_config);
+    restarted.addPoint(ROW, BASE_TIME + 30,
+        Bytes.fromInt(Float.floatToRawIntBits(2.5f)),
+        (short) (Const.FLAG_FLOAT | 0x3));
+    restarted.addPoint(ROW, BASE_TIME + 40,
+        Bytes.fromInt(Float.floatToRawIntBits(0.5f)),
+        (short) (Const.FLAG_FLOAT | 0x3));
+    restarted.flush().joinUninterruptibly();
+    assertEquals(3, getLong(TABLE_1M, RollupUtils.AGG_COUNT, 0));
+    assertEquals(4, getLong(TABLE_1M, RollupUtils.AGG_SUM, 0));
+    assertEquals(3, getDouble(TABLE_1M, RollupUtils.AGG_SUM, 0), 0.0001);
+    assertEquals(0.5, getDouble(TABLE_1M, RollupUtils.AGG_MIN, 0), 0.0001);
+    assertEquals(4, getLong(TABLE_1M, RollupUtils.AGG_MAX, 0));
+  }
+
+  @Test
+  public void casRetried() throws Exception {
+    putLong(RollupUtils.AGG_MAX, 5);
+    final byte[] max = RollupUtils.buildQualifier(RollupUtils.AGG_MAX, 0,
+        RollupUtils.LONG_FLAGS);
+    doAnswer(new Answer<Deferred<ArrayList<KeyValue>>>() {
+      private boolean raced;
+      @Override
+      public Deferred<ArrayList<KeyValue>> answer(
+          final InvocationOnMock invocation) throws Throwable {
+        final GetRequest get = (GetRequest) invocation.getArguments()[0];
+        final byte[] qualifier = get.qualifiers()[0];
+        final byte[] value = storage.getColumn(get.table(), get.key(),
+            FAMILY, qualifier);
+        if (!raced && Bytes.equals(max, qualifier)) {
+          // another TSD replaced the max in between
+          raced = true;
+          storage.addColumn(get.table(), get.key(), FAMILY, qualifier,
+              Bytes.fromLong(3));
+        }
+        if (value == null) {
+          return Deferred.fromResult(null);
+        }
+        final ArrayList<KeyValue> row = new ArrayList<KeyValue>(1);
+        row.add(new KeyValue(get.key(), FAMILY, qualifier, value));
+        return Deferred.fromResult(row);
+      }
+    }).when(client).get(any(GetRequest.class));
+    final RollupQueue queue = new RollupQueue(tsdb, rollup_config);
+    queue.addPoint(ROW, BASE_TIME, Bytes.fromLong(4), (short) 7);
+    queue.flush(BASE_TIME + 60).joinUninterruptibly();
+    assertEquals(4, getLong(TABLE_1M, RollupUtils.AGG_MAX, 0));
+  }
+
+  @Test
+  public void casGivesUp() throws Exception {
+    doAnswer(new Answer<Deferred<Boolean>>() {
+      @Override
+      public Deferred<Boolean> answer(final InvocationOnMock invocation) {
+        return Deferred.fromResult(false);
+      }
+    }).when(client).compareAndSet(any(PutRequest.class), any(byte[].class));
+    final RollupQueue queue = new RollupQueue(tsdb, rollup_config);
+    queue.addPoint(ROW, BASE_TIME, Bytes.fromLong(4), (short) 7);
+    queue.flush(BASE_TIME + 60).joinUninterruptibly();
+    // min and max
+    verify(client, times(32)).compareAndSet(any(PutRequest.class),
+        any(byte[].class));
+    assertNull(storage.getColumn(TABLE_1M, ROW, FAMILY,
+        RollupUtils.buildQualifier(RollupUtils.AGG_MAX, 0,
+            RollupUtils.LONG_FLAGS)));
+  }
+
+  @Test
+  public void lateDataDropped() throws Exception {
+    final RollupQueue queue = new RollupQueue(tsdb, rollup_config);
+    queue.flush(BASE_TIME + 3600).joinUninterruptibly();
+    queue.addPoint(ROW, BASE_TIME + 60, Bytes.fromLong(4), (short) 7);
+    assertEquals(0, queue.size());
+    queue.flush().joinUninterruptibly();
+    verify(client, never()).atomicIncrement(
+        any(AtomicIncrementRequest.class));
+  }
+
+  @Test
+  public void bucketFlushedOnce() throws Exception {
+    final RollupQueue.Bucket bucket = new RollupQueue.Bucket(0);
+    assertFalse(bucket.close());
+    assertEquals(false, bucket.add(false, 1, 1));
+  }
+
+  private long getLong(final byte[] table, final byte agg, final int offset) {
+    return Bytes.getLong(storage.getColumn(table, ROW, FAMILY,
+        RollupUtils.buildQualifier(agg, offset, RollupUtils.LONG_FLAGS)));
+  }
+
+  private double getDouble(final byte[] table, final byte agg,
+      final int offset) {
+    return Double.longBitsToDouble(Bytes.getLong(storage.getColumn(table, ROW,
+        FAMILY, RollupUtils.buildQualifier(agg, offset,
+            RollupUtils.DOUBLE_FLAGS))));
+  }
+
+  private int columns(final byte[] table) {
+    final ByteMap<byte[]> columns = storage.getColumnFamily(table, ROW, FAMILY);
+    return columns == null ? 0 : columns.size();
+  }
+
+  private void putLong(final byte agg, final long value) {
+    storage.addColumn(TABLE_1M, ROW, FAMILY, RollupUtils.buildQualifier(agg,
+        0, RollupUtils.LONG_FLAGS), Bytes.fromLong(value));
+  }
+}
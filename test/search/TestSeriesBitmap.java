@@ -0,0 +1,109 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.search;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+public final class TestSeriesBitmap {
+
+  @Test
+  public void addRemoveContains() throws Exception {
+    final SeriesBitmap bitmap = new SeriesBitmap();
+    assertTrue(bitmap.add(42));
+    assertFalse(bitmap.add(42));
+    assertTrue(bitmap.add(1 << 20));
+    assertTrue(bitmap.add(0));
+    assertTrue(bitmap.contains(42));
+    assertFalse(bitmap.contains(43));
+    assertEquals(3, bitmap.cardinality());
+    assertArrayEquals(new int[] { 0, 42, 1 << 20 }, bitmap.toArray());
+
+    assertTrue(bitmap.remove(42));
+    assertFalse(bitmap.remove(42));
+    assertTrue(bitmap.remove(1 << 20));
+    assertArrayEquals(new int[] { 0 }, bitmap.toArray());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void addNegative() throws Exception {
+    new SeriesBitmap().add(-1);
+  }
+
+  @Test
+  public void denseContainer() throws Exception {
+    final SeriesBitmap bitmap = new SeriesBitmap();
+    for (int i = 0; i < SeriesBitmap.ARRAY_LIMIT * 4; i++) {
+      bitmap.add(i);
+    }
+    assertEquals(SeriesBitmap.ARRAY_LIMIT * 4, bitmap.cardinality());
+    // a full bitmap container is far smaller than the array would be
+    assertTrue(bitmap.bytes() < SeriesBitmap.ARRAY_LIMIT * 4 * 2);
+    for (int i = 0; i < SeriesBitmap.ARRAY_LIMIT * 4; i += 2) {
+      bitmap.remove(i);
+    }
+    assertEquals(SeriesBitmap.ARRAY_LIMIT * 2, bitmap.cardinality());
+    assertFalse(bitmap.contains(0));
+    assertTrue(bitmap.contains(1));
+  }
+
+  @Test
+  public void andOrMatchSets() throws Exception {
+    final Random random = new Random(42);
+    for (int round = 0; round < 20; round++) {
+      final SeriesBitmap a = new SeriesBitmap();
+      final SeriesBitmap b = new SeriesBitmap();
+      final TreeSet<Integer> set_a = new TreeSet<Integer>();
+      final TreeSet<Integer> set_b = new TreeSet<Integer>();
+      // mix sparse and dense containers across a few keys
+      final int range = 1 << (14 + random.nextInt(5));
+      final int count = random.nextInt(range);
+      for (int i = 0; i < count; i++) {
+        final int value = random.nextInt(range);
+        a.add(value);
+        set_a.add(value);
+        final int other = random.nextInt(range);
+        if (random.nextBoolean()) {
+          b.add(other);
+          set_b.add(other);
+        }
+      }
+
+      final TreeSet<Integer> and = new TreeSet<Integer>(set_a);
+      and.retainAll(set_b);
+      final TreeSet<Integer> or = new TreeSet<Integer>(set_a);
+      or.addAll(set_b);
+      assertArrayEquals(toArray(and), SeriesBitmap.and(a, b).toArray());
+      assertArrayEquals(toArray(or), SeriesBitmap.or(a, b).toArray());
+      // arguments are left untouched
+      assertArrayEquals(toArray(set_a), a.toArray());
+      assertArrayEquals(toArray(set_b), b.toArray());
+    }
+  }
+
+  private static int[] toArray(final TreeSet<Integer> set) {
+    final int[] values = new int[set.size()];
+    int i = 0;
+    for (final int value : set) {
+      values[i++] = value;
+    }
+    return values;
+  }
+}
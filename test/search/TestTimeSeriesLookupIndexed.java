@@ -0,0 +1,128 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.search;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.opentsdb.core.TSDB;
+import net.opentsdb.meta.TSMeta;
+import net.opentsdb.uid.UniqueId;
+import net.opentsdb.utils.Config;
+import net.opentsdb.utils.Pair;
+
+import org.hbase.async.HBaseClient;
+import org.hbase.async.KeyValue;
+import org.hbase.async.Scanner;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+/**
+ * Runs the meta table lookups against a {@link TagIndex} loaded from the mock
+ * meta table. Data table lookups still scan.
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({TSDB.class, Config.class, UniqueId.class, HBaseClient.class, 
+  KeyValue.class, Scanner.class, TimeSeriesLookup.class })
+public class TestTimeSeriesLookupIndexed extends TestTimeSeriesLookup {
+  private TagIndex index;
+  
+  @Before
+  public void beforeLocalIndexed() throws Exception {
+    // load lazily as the tests write the meta table after the setup
+    when(tsdb.getTagIndex()).thenAnswer(new Answer<TagIndex>() {
+      @Override
+      public TagIndex answer(final InvocationOnMock invocation) 
+          throws Throwable {
+        if (index == null) {
+          index = new TagIndex();
+          index.load(client, "tsdb-meta".getBytes()).join();
+        }
+        return index;
+      }
+    });
+  }
+  
+  @Test
+  public void newSeriesVisible() throws Exception {
+    generateMeta(tsdb, storage);
+    final SearchQuery query = new SearchQuery(METRIC_STRING);
+    assertEquals(2, new TimeSeriesLookup(tsdb, query).lookup().size());
+    
+    index.add(new byte[] { 0, 0, 1, 0, 0, 1, 0, 0, 3 });
+    assertEquals(3, new TimeSeriesLookup(tsdb, query).lookup().size());
+    
+    index.remove(test_tsuids.get(0));
+    final List<byte[]> tsuids = new TimeSeriesLookup(tsdb, query).lookup();
+    assertEquals(2, tsuids.size());
+  }
+  
+  @Test
+  public void refreshSeesOtherWriters() throws Exception {
+    generateMeta(tsdb, storage);
+    final SearchQuery query = new SearchQuery(METRIC_STRING);
+    assertEquals(2, new TimeSeriesLookup(tsdb, query).lookup().size());
+    
+    // another TSD adds a series and deletes one
+    final byte[] tsuid = new byte[] { 0, 0, 1, 0, 0, 1, 0, 0, 3 };
+    storage.addColumn("tsdb-meta".getBytes(), tsuid, TSMeta.FAMILY, 
+        TSMeta.COUNTER_QUALIFIER(), new byte[] { 0, 0, 0, 0, 0, 0, 0, 1 });
+    storage.flushRow("tsdb-meta".getBytes(), test_tsuids.get(0));
+    assertEquals(2, new TimeSeriesLookup(tsdb, query).lookup().size());
+    
+    // a series written locally while the scan runs is kept
+    final Timer timer = mock(Timer.class);
+    index.scheduleRefresh(timer, client, "tsdb-meta".getBytes(), 60);
+    final ArgumentCaptor<TimerTask> task = 
+        ArgumentCaptor.forClass(TimerTask.class);
+    verify(timer).newTimeout(task.capture(), eq(60L), eq(TimeUnit.SECONDS));
+    task.getValue().run(null);
+    
+    final List<byte[]> tsuids = new TimeSeriesLookup(tsdb, query).lookup();
+    assertEquals(2, tsuids.size());
+    assertArrayEquals(test_tsuids.get(1), tsuids.get(0));
+    assertArrayEquals(tsuid, tsuids.get(1));
+    // and the next refresh is scheduled
+    verify(timer, times(2)).newTimeout(any(TimerTask.class), eq(60L), 
+        eq(TimeUnit.SECONDS));
+  }
+  
+  @Test
+  public void tagvOrTagkAnd() throws Exception {
+    generateMeta(tsdb, storage);
+    final List<Pair<String, String>> tags = 
+        new ArrayList<Pair<String, String>>(2);
+    tags.add(new Pair<String, String>(TAGK_STRING, TAGV_STRING));
+    tags.add(new Pair<String, String>(TAGK_STRING, TAGV_B_STRING));
+    final SearchQuery query = new SearchQuery(METRIC_STRING, tags);
+    assertEquals(2, new TimeSeriesLookup(tsdb, query).lookup().size());
+  }
+}
@@ -0,0 +1,247 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.stats;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.opentsdb.utils.Config;
+
+import org.junit.After;
+import org.junit.Test;
+
+public final class TestLatencyHistogram {
+
+  @After
+  public void after() throws Exception {
+    StatsCollector.setHistogramConfig(new Config(false));
+  }
+
+  @Test
+  public void buckets() throws Exception {
+    assertEquals(0, LatencyHistogram.bucketIndexFor(0));
+    assertEquals(255, LatencyHistogram.bucketIndexFor(255));
+    assertEquals(256, LatencyHistogram.bucketIndexFor(256));
+    assertEquals(256, LatencyHistogram.bucketIndexFor(257));
+    assertEquals(257, LatencyHistogram.bucketIndexFor(258));
+    assertEquals(384, LatencyHistogram.bucketIndexFor(512));
+    int previous = -1;
+    for (long value = 0; value < 1L << 40; value = value * 3 / 2 + 1) {
+      final int index = LatencyHistogram.bucketIndexFor(value);
+      assertTrue(index >= previous);
+      final long high = LatencyHistogram.bucketHighValue(index);
+      assertTrue(high >= value);
+      assertTrue(high - value <= value / 128);
+      assertEquals(index + 1, LatencyHistogram.bucketIndexFor(high + 1));
+      previous = index;
+    }
+  }
+
+  @Test
+  public void empty() throws Exception {
+    final LatencyHistogram histo = new LatencyHistogram();
+    assertEquals(0, histo.count());
+    assertEquals(0, histo.percentile(50));
+    assertEquals(0, histo.percentile(99.9));
+  }
+
+  @Test
+  public void smallValuesAreExact() throws Exception {
+    final LatencyHistogram histo = new LatencyHistogram();
+    for (int i = 1; i <= 100; i++) {
+      histo.add(i);
+    }
+    assertEquals(100, histo.count());
+    assertArrayEquals(new long[] { 1, 50, 99, 100 },
+        histo.percentiles(new double[] { 1, 50, 99, 100 }));
+  }
+
+  @Test
+  public void highPercentiles() throws Exception {
+    final LatencyHistogram histo = new LatencyHistogram();
+    for (int i = 1; i <= 100000; i++) {
+      histo.add(i);
+    }
+    final long p999 = histo.percentile(99.9);
+    assertTrue(p999 >= 99900 && p999 <= 99900 * 1.01);
+    final long p99 = histo.percentile(99);
+    assertTrue(p99 >= 99000 && p99 <= 99000 * 1.01);
+  }
+
+  @Test
+  public void clampedToMax() throws Exception {
+    final LatencyHistogram histo = new LatencyHistogram(1000);
+    histo.add(1);
+    histo.add(Long.MAX_VALUE);
+    assertEquals(1, histo.percentile(50));
+    assertEquals(1000, histo.percentile(100));
+  }
+
+  @Test
+  public void concurrentAdds() throws Exception {
+    final LatencyHistogram histo = new LatencyHistogram();
+    final List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 8; i++) {
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < 100000; j++) {
+            histo.add(j % 200);
+          }
+        }
+      });
+    }
+    for (final Thread thread : threads) {
+      thread.start();
+    }
+    for (final Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(800000, histo.count());
+    assertEquals(99, histo.percentile(50));
+  }
+
+  @Test
+  public void toHistogram() throws Exception {
+    final LatencyHistogram histo = new LatencyHistogram();
+    final Histogram expected = new Histogram(16000, (short) 2, 100);
+    for (int i = 1; i <= 200; i++) {
+      histo.add(i);
+      expected.add(i);
+    }
+    final Histogram copy = histo.toHistogram(16000, (short) 2, 100);
+    for (final int p : new int[] { 1, 50, 75, 90, 95, 99, 100 }) {
+      assertEquals(expected.percentile(p), copy.percentile(p));
+    }
+    assertEquals(0, new LatencyHistogram().toHistogram(16000, (short) 2, 100)
+        .percentile(50));
+  }
+
+  @Test
+  public void reset() throws Exception {
+    final LatencyHistogram histo = new LatencyHistogram();
+    histo.add(42);
+    histo.reset();
+    assertEquals(0, histo.count());
+  }
+
+  @Test
+  public void windowExpires() throws Exception {
+    LatencyHistogram.setWindow(1);
+    final LatencyHistogram histo = new LatencyHistogram();
+    histo.add(42);
+    Thread.sleep(10);
+    // moved to the previous window
+    assertEquals(1, histo.count());
+    Thread.sleep(10);
+    assertEquals(0, histo.count());
+  }
+
+  @Test
+  public void readAfterLongGap() throws Exception {
+    LatencyHistogram.setWindow(5);
+    final LatencyHistogram histo = new LatencyHistogram();
+    histo.add(42);
+    histo.add(24);
+    // more than two windows without a read
+    Thread.sleep(50);
+    assertEquals(42, histo.percentile(100));
+  }
+
+  @Test
+  public void noWindow() throws Exception {
+    LatencyHistogram.setWindow(0);
+    final LatencyHistogram histo = new LatencyHistogram();
+    histo.add(42);
+    Thread.sleep(10);
+    assertEquals(1, histo.count());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void negativeWindow() throws Exception {
+    LatencyHistogram.setWindow(-1);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void negativeValue() throws Exception {
+    new LatencyHistogram().add(-1);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void zeroPercentile() throws Exception {
+    new LatencyHistogram().percentile(0);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void percentileTooHigh() throws Exception {
+    new LatencyHistogram().percentile(100.1);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void zeroMax() throws Exception {
+    new LatencyHistogram(0);
+  }
+
+  @Test
+  public void recordDefaultPercentiles() throws Exception {
+    final LatencyHistogram histo = new LatencyHistogram();
+    histo.add(42);
+    final List<String> emitted = record(histo);
+    assertEquals(6, emitted.size());
+    assertTrue(emitted.get(0).startsWith("tsd.latency_50pct "));
+    assertTrue(emitted.get(4).startsWith("tsd.latency_99pct "));
+    assertTrue(emitted.get(5).startsWith("tsd.latency_99.9pct "));
+    assertTrue(emitted.get(5).contains(" 42 type=put"));
+  }
+
+  @Test
+  public void recordConfiguredPercentiles() throws Exception {
+    final Config config = new Config(false);
+    config.overrideConfig("tsd.stats.percentiles", "99, 99.99");
+    config.overrideConfig("tsd.stats.histogram.window", "0");
+    StatsCollector.setHistogramConfig(config);
+    final List<String> emitted = record(new LatencyHistogram());
+    assertEquals(2, emitted.size());
+    assertTrue(emitted.get(0).startsWith("tsd.latency_99pct "));
+    assertTrue(emitted.get(1).startsWith("tsd.latency_99.99pct "));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void recordConfiguredPercentilesInvalid() throws Exception {
+    final Config config = new Config(false);
+    config.overrideConfig("tsd.stats.percentiles", "50,foo");
+    StatsCollector.setHistogramConfig(config);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void recordConfiguredPercentilesOutOfRange() throws Exception {
+    final Config config = new Config(false);
+    config.overrideConfig("tsd.stats.percentiles", "0");
+    StatsCollector.setHistogramConfig(config);
+  }
+
+  private static List<String> record(final LatencyHistogram histo) {
+    final List<String> emitted = new ArrayList<String>();
+    new StatsCollector("tsd") {
+      @Override
+      public void emit(final String datapoint) {
+        emitted.add(datapoint);
+      }
+    }.record("latency", histo, "type=put");
+    return emitted;
+  }
+}
@@ -15,6 +15,7 @@ package net.opentsdb.stats;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
@@ -31,6 +32,8 @@ import com.google.common.cache.CacheBuilder;
 
 import net.opentsdb.core.QueryException;
 import net.opentsdb.core.TSQuery;
+import net.opentsdb.query.CancellationToken;
+import net.opentsdb.query.QueryMemoryTracker;
 import net.opentsdb.stats.QueryStats.QueryStat;
 import net.opentsdb.utils.DateTime;
 
@@ -301,4 +304,97 @@ public final class TestQueryStats {
     assertEquals(1000.0, stats.getTimeStat(QueryStat.PROCESSING_PRE_WRITE_TIME), 0.001);
     assertEquals(Double.NaN, stats.getTimeStat(QueryStat.AVG_AGGREGATION_TIME), 0.001);
   }
+  
+  @Test
+  public void addScanPlan() throws Exception {
+    final TSQuery query = new TSQuery();
+    query.setStart("1h-ago");
+    final QueryStats stats = new QueryStats(remote, query, headers);
+    stats.addScanPlan(0, "MULTI_GET", 13);
+    stats.addScanPlan(1, "SCAN", -1);
+    assertEquals("MULTI_GET", stats.getScanPlan(0));
+    assertEquals("SCAN", stats.getScanPlan(1));
+    assertEquals(null, stats.getScanPlan(2));
+    
+    Map<String, Object> sub_query = stats.getQueryStats(0, false);
+    assertEquals("MULTI_GET", sub_query.get("scanPlan"));
+    assertEquals(13L, sub_query.get("scanPlanRowEstimate"));
+    sub_query = stats.getQueryStats(1, false);
+    // unknown estimates are not recorded so there aren't any stats
+    assertEquals(null, sub_query);
+  }
+  
+  @Test
+  public void addNodeTime() throws Exception {
+    final TSQuery query = new TSQuery();
+    query.setStart("1h-ago");
+    final QueryStats stats = new QueryStats(remote, query, headers);
+    assertTrue(stats.getNodeTimes().isEmpty());
+    assertNull(stats.getStats().get("nodeTimes"));
+    
+    stats.addNodeTime("a", 2000000);
+    stats.addNodeTime("e", 500000);
+    final Map<String, Double> times = stats.getNodeTimes();
+    assertEquals(2, times.size());
+    assertEquals(2.0, times.get("a"), 0.001);
+    assertEquals(0.5, times.get("e"), 0.001);
+    assertEquals(times, stats.getStats().get("nodeTimes"));
+  }
+  
+  @Test
+  public void memoryTracker() throws Exception {
+    final TSQuery query = new TSQuery();
+    query.setStart("1h-ago");
+    final QueryStats stats = new QueryStats(remote, query, headers);
+    final QueryMemoryTracker tracker = new QueryMemoryTracker(0, 0);
+    stats.setMemoryTracker(tracker);
+    assertSame(tracker, stats.getMemoryTracker());
+    final long global = QueryMemoryTracker.getGlobalUsed();
+    tracker.allocate(1024);
+    tracker.release(512);
+    assertEquals(global + 512, QueryMemoryTracker.getGlobalUsed());
+    
+    stats.markSerializationSuccessful();
+    assertEquals(1024, stats.getStat(QueryStat.PEAK_MEMORY_BYTES));
+    assertEquals(0, tracker.getUsed());
+    assertEquals(global, QueryMemoryTracker.getGlobalUsed());
+  }
+  
+  @Test
+  public void cancellationToken() throws Exception {
+    final TSQuery query = new TSQuery();
+    query.setStart("1h-ago");
+    final QueryStats stats = new QueryStats(remote, query, headers);
+    final QueryMemoryTracker tracker = new QueryMemoryTracker(0, 0);
+    final CancellationToken token = new CancellationToken();
+    stats.setMemoryTracker(tracker);
+    stats.setCancellationToken(token);
+    assertSame(token, stats.getCancellationToken());
+    final long global = QueryMemoryTracker.getGlobalUsed();
+    tracker.allocate(1024);
+    
+    // memory is freed as soon as the query is cancelled
+    token.cancel(CancellationToken.Reason.DISCONNECTED);
+    assertEquals(0, tracker.getUsed());
+    assertEquals(global, QueryMemoryTracker.getGlobalUsed());
+    tracker.allocate(1024);
+    assertEquals(0, tracker.getUsed());
+    
+    stats.markSerialized(CancellationToken.CLIENT_CLOSED_REQUEST, 
+        token.getException());
+    assertTrue(token.isCancelled());
+  }
+  
+  @Test
+  public void cancellationTokenCompleted() throws Exception {
+    final TSQuery query = new TSQuery();
+    query.setStart("1h-ago");
+    final QueryStats stats = new QueryStats(remote, query, headers);
+    final CancellationToken token = new CancellationToken();
+    stats.setCancellationToken(token);
+    stats.markSerializationSuccessful();
+    // closing the connection afterward is not a cancellation
+    assertFalse(token.cancel(CancellationToken.Reason.DISCONNECTED));
+    assertFalse(token.isCancelled());
+  }
 }
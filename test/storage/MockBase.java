@@ -13,6 +13,7 @@
 package net.opentsdb.storage;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.when;
@@ -44,6 +45,7 @@ import org.hbase.async.AppendRequest;
 import org.hbase.async.DeleteRequest;
 import org.hbase.async.FilterList;
 import org.hbase.async.GetRequest;
+import org.hbase.async.GetResultOrException;
 import org.hbase.async.HBaseClient;
 import org.hbase.async.KeyRegexpFilter;
 import org.hbase.async.KeyValue;
@@ -148,6 +150,8 @@ public final class MockBase {
     // Default get answer will return one or more columns from the requested row
     if (default_get) {
       when(client.get((GetRequest)any())).thenAnswer(new MockGet());
+      when(client.get(anyListOf(GetRequest.class)))
+        .thenAnswer(new MockMultiGet());
     }
     
     // Default put answer will store the given values in the proper location.
@@ -980,6 +984,32 @@ public final class MockBase {
     }
   }
   
+  /**
+   * Runs each get of a multi-get through the single get answer so that the
+   * same exceptions apply. Failed gets are returned as exceptions.
+   */
+  private class MockMultiGet 
+    implements Answer<Deferred<List<GetResultOrException>>> {
+    @Override
+    public Deferred<List<GetResultOrException>> answer(
+        final InvocationOnMock invocation) throws Throwable {
+      @SuppressWarnings("unchecked")
+      final List<GetRequest> gets = 
+          (List<GetRequest>)invocation.getArguments()[0];
+      final List<GetResultOrException> results = 
+          new ArrayList<GetResultOrException>(gets.size());
+      for (final GetRequest get : gets) {
+        try {
+          results.add(new GetResultOrException(
+              tsdb.getClient().get(get).join()));
+        } catch (Exception e) {
+          results.add(new GetResultOrException(e));
+        }
+      }
+      return Deferred.fromResult(results);
+    }
+  }
+  
   /**
    * Stores one or more columns in a row. If the row does not exist, it's
    * created.
@@ -0,0 +1,153 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.opentsdb.stats.StatsCollector;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.UpstreamMessageEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public final class TestExecutionStage {
+  private ExecutionStage stage;
+
+  @Before
+  public void before() throws Exception {
+    stage = new ExecutionStage(4, 0, 0);
+  }
+
+  @After
+  public void after() throws Exception {
+    stage.releaseExternalResources();
+  }
+
+  @Test
+  public void orderedPerChannel() throws Exception {
+    final Channel channel = channel();
+    final List<Object> handled =
+        Collections.synchronizedList(new ArrayList<Object>());
+    final List<String> threads =
+        Collections.synchronizedList(new ArrayList<String>());
+    final CountDownLatch done = new CountDownLatch(100);
+    final ChannelHandlerContext ctx = context(new Answer<Void>() {
+      @Override
+      public Void answer(final InvocationOnMock invocation) {
+        final MessageEvent e = (MessageEvent) invocation.getArguments()[0];
+        handled.add(e.getMessage());
+        threads.add(Thread.currentThread().getName());
+        done.countDown();
+        return null;
+      }
+    });
+
+    for (int i = 0; i < 100; i++) {
+      stage.handleUpstream(ctx, new UpstreamMessageEvent(channel, i, null));
+    }
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    for (int i = 0; i < 100; i++) {
+      assertEquals(i, handled.get(i));
+      assertTrue(threads.get(i).startsWith("OpenTSDB RPC #"));
+    }
+  }
+
+  @Test
+  public void blockedChannelDoesNotStallOthers() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch other_done = new CountDownLatch(1);
+    final CountDownLatch blocked_done = new CountDownLatch(1);
+    final ChannelHandlerContext ctx = context(new Answer<Void>() {
+      @Override
+      public Void answer(final InvocationOnMock invocation) throws Exception {
+        final MessageEvent e = (MessageEvent) invocation.getArguments()[0];
+        if ("blocking".equals(e.getMessage())) {
+          release.await();
+          blocked_done.countDown();
+        } else {
+          other_done.countDown();
+        }
+        return null;
+      }
+    });
+
+    stage.handleUpstream(ctx,
+        new UpstreamMessageEvent(channel(), "blocking", null));
+    stage.handleUpstream(ctx,
+        new UpstreamMessageEvent(channel(), "other", null));
+    assertTrue(other_done.await(10, TimeUnit.SECONDS));
+    assertEquals(1, blocked_done.getCount());
+    release.countDown();
+    assertTrue(blocked_done.await(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void collectStats() throws Exception {
+    final List<String> emitted = new ArrayList<String>();
+    ExecutionStage.collectStats(new StatsCollector("tsd") {
+      @Override
+      public void emit(final String datapoint) {
+        emitted.add(datapoint);
+      }
+    });
+    assertEquals(14, emitted.size());
+    assertTrue(emitted.get(0).startsWith("tsd.rpc.executor.events "));
+    assertTrue(emitted.get(1).startsWith("tsd.rpc.executor.pending "));
+    assertTrue(emitted.get(2).startsWith("tsd.rpc.executor.latency_50pct "));
+    assertTrue(emitted.get(2).contains(" type=queue"));
+    assertTrue(emitted.get(13).contains(" type=run"));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void noThreads() throws Exception {
+    new ExecutionStage(0, 0, 0);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void negativeLimit() throws Exception {
+    new ExecutionStage(1, -1, 0);
+  }
+
+  private static Channel channel() {
+    final Channel channel = NettyMocks.fakeChannel();
+    when(channel.getCloseFuture()).thenReturn(Channels.future(channel));
+    assertFalse(channel.getCloseFuture().isDone());
+    return channel;
+  }
+
+  private static ChannelHandlerContext context(final Answer<Void> handler) {
+    final ChannelHandlerContext ctx = mock(ChannelHandlerContext.class);
+    doAnswer(handler).when(ctx).sendUpstream(any(ChannelEvent.class));
+    return ctx;
+  }
+}
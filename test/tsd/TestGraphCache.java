@@ -0,0 +1,249 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.stumbleupon.async.Deferred;
+
+public final class TestGraphCache {
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private String dir;
+
+  @Before
+  public void before() throws Exception {
+    dir = folder.getRoot().getPath() + File.separator;
+  }
+
+  @Test
+  public void indexExistingFiles() throws Exception {
+    write("1a2b.png", 100);
+    write("1a2b_0.dat", 50);
+    write("3c4d.txt", 25);
+    write("README", 10);
+    final GraphCache cache = new GraphCache(dir, 0, 0, 0, 0);
+    assertEquals(175, cache.diskBytes());
+  }
+
+  @Test
+  public void indexEvictsOverBudget() throws Exception {
+    write("1a2b.png", 100);
+    new File(dir + "1a2b.png").setLastModified(1000000L);
+    write("3c4d.png", 100);
+    final GraphCache cache = new GraphCache(dir, 150, 0, 0, 0);
+    assertEquals(100, cache.diskBytes());
+    assertFalse(new File(dir + "1a2b.png").exists());
+    assertTrue(new File(dir + "3c4d.png").exists());
+  }
+
+  @Test
+  public void evictLeastRecentlyUsed() throws Exception {
+    final GraphCache cache = new GraphCache(dir, 250, 0, 0, 0);
+    write("a.png", 100);
+    write("a_0.dat", 10);
+    cache.written(dir + "a");
+    write("b.png", 100);
+    cache.written(dir + "b");
+    cache.touch(dir + "a");
+    write("c.png", 100);
+    cache.written(dir + "c");
+
+    assertEquals(210, cache.diskBytes());
+    assertTrue(new File(dir + "a.png").exists());
+    assertTrue(new File(dir + "a_0.dat").exists());
+    assertFalse(new File(dir + "b.png").exists());
+    assertTrue(new File(dir + "c.png").exists());
+  }
+
+  @Test
+  public void evictExpired() throws Exception {
+    final GraphCache cache = new GraphCache(dir, 0, 1, 0, 0);
+    write("a.png", 100);
+    write("a.json", 10);
+    cache.written(dir + "a");
+    Thread.sleep(1100);
+    write("b.png", 100);
+    cache.written(dir + "b");
+
+    assertEquals(100, cache.diskBytes());
+    assertFalse(new File(dir + "a.png").exists());
+    assertFalse(new File(dir + "a.json").exists());
+    assertTrue(new File(dir + "b.png").exists());
+  }
+
+  @Test
+  public void writtenTracksGraphFiles() throws Exception {
+    final GraphCache cache = new GraphCache(dir, 150, 0, 0, 0);
+    write("a.png", 100);
+    write("a_0.dat", 10);
+    write("a_1.dat", 10);
+    write("a.gnuplot", 5);
+    write("ab.png", 50);
+    cache.written(dir + "a");
+    assertEquals(125, cache.diskBytes());
+
+    write("b.png", 100);
+    cache.written(dir + "b");
+    assertEquals(100, cache.diskBytes());
+    assertFalse(new File(dir + "a.png").exists());
+    assertFalse(new File(dir + "a_1.dat").exists());
+    assertFalse(new File(dir + "a.gnuplot").exists());
+    // not a file of the evicted graph
+    assertTrue(new File(dir + "ab.png").exists());
+  }
+
+  @Test
+  public void rewrittenGraph() throws Exception {
+    final GraphCache cache = new GraphCache(dir, 0, 0, 0, 0);
+    write("a.png", 100);
+    cache.written(dir + "a");
+    write("a.png", 40);
+    cache.written(dir + "a");
+    assertEquals(40, cache.diskBytes());
+  }
+
+  @Test
+  public void memoryTier() throws Exception {
+    final GraphCache cache = new GraphCache(dir, 0, 0, 150, 100);
+    final File file = write("a.png", 80);
+    final String path = file.getPath();
+    assertNull(cache.getImage(path, file.lastModified()));
+
+    cache.offerImage(path);
+    assertEquals(80, cache.memoryBytes());
+    final byte[] image = cache.getImage(path, file.lastModified());
+    assertNotNull(image);
+    assertArrayEquals(contents(80), image);
+
+    // a rewritten file is dropped from memory
+    assertNull(cache.getImage(path, file.lastModified() + 1000));
+    assertEquals(0, cache.memoryBytes());
+  }
+
+  @Test
+  public void memoryTierLimits() throws Exception {
+    final GraphCache cache = new GraphCache(dir, 0, 0, 150, 100);
+    final File large = write("a.png", 101);
+    cache.offerImage(large.getPath());
+    assertEquals(0, cache.memoryBytes());
+
+    final File b = write("b.png", 80);
+    final File c = write("c.png", 80);
+    cache.offerImage(b.getPath());
+    cache.offerImage(c.getPath());
+    assertEquals(80, cache.memoryBytes());
+    assertNull(cache.getImage(b.getPath(), b.lastModified()));
+    assertNotNull(cache.getImage(c.getPath(), c.lastModified()));
+  }
+
+  @Test
+  public void memoryTierDisabled() throws Exception {
+    final GraphCache cache = new GraphCache(dir, 0, 0, 0, 100);
+    final File file = write("a.png", 80);
+    cache.offerImage(file.getPath());
+    assertEquals(0, cache.memoryBytes());
+  }
+
+  @Test
+  public void evictionDropsMemoryTier() throws Exception {
+    final GraphCache cache = new GraphCache(dir, 100, 0, 1000, 1000);
+    final File file = write("a.png", 80);
+    cache.written(dir + "a");
+    cache.offerImage(file.getPath());
+    assertEquals(80, cache.memoryBytes());
+    write("b.png", 80);
+    cache.written(dir + "b");
+    assertEquals(0, cache.memoryBytes());
+  }
+
+  @Test
+  public void coalesce() throws Exception {
+    final GraphCache cache = new GraphCache(dir, 0, 0, 0, 0);
+    assertNull(cache.join("a.png"));
+    final Deferred<Object> first = cache.join("a.png");
+    final Deferred<Object> second = cache.join("a.png");
+    assertNotNull(first);
+    assertNotNull(second);
+    assertNull(cache.join("b.png"));
+
+    cache.complete("a.png", null);
+    assertNull(first.join());
+    assertNull(second.join());
+    // the next request generates the graph again
+    assertNull(cache.join("a.png"));
+  }
+
+  @Test
+  public void coalesceError() throws Exception {
+    final GraphCache cache = new GraphCache(dir, 0, 0, 0, 0);
+    assertNull(cache.join("a.png"));
+    final Deferred<Object> waiting = cache.join("a.png");
+    final Exception error = new IOException("Boo!");
+    cache.complete("a.png", error);
+    try {
+      waiting.join();
+      fail("Expected IOException");
+    } catch (IOException e) {
+      assertSame(error, e);
+    }
+  }
+
+  @Test
+  public void completeWithoutWaiters() throws Exception {
+    final GraphCache cache = new GraphCache(dir, 0, 0, 0, 0);
+    cache.complete("a.png", null);
+    assertNull(cache.join("a.png"));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void negativeBudget() throws Exception {
+    new GraphCache(dir, -1, 0, 0, 0);
+  }
+
+  private File write(final String name, final int length) throws IOException {
+    final File file = new File(dir + name);
+    final FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(contents(length));
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+
+  private static byte[] contents(final int length) {
+    final byte[] contents = new byte[length];
+    for (int i = 0; i < length; i++) {
+      contents[i] = (byte) i;
+    }
+    return contents;
+  }
+}
@@ -0,0 +1,261 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.opentsdb.core.DataPoint;
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.MutableDataPoint;
+import net.opentsdb.core.SeekableView;
+import net.opentsdb.core.SeekableViewsForTest;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.core.TSQuery;
+import net.opentsdb.core.TSSubQuery;
+import net.opentsdb.meta.Annotation;
+import net.opentsdb.stats.QueryStats;
+import net.opentsdb.storage.MockDataPoints;
+import net.opentsdb.tsd.ColumnarQueryDecoder.Series;
+import net.opentsdb.utils.Config;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import com.google.common.cache.CacheBuilder;
+import com.stumbleupon.async.Deferred;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ TSDB.class, Config.class, HttpQuery.class })
+public final class TestHttpColumnarSerializer {
+  private static final long START = 1356998400000L;
+
+  private TSDB tsdb;
+
+  @Before
+  public void before() throws Exception {
+    tsdb = NettyMocks.getMockedHTTPTSDB();
+    Field field = QueryStats.class.getDeclaredField("running_queries");
+    field.setAccessible(true);
+    field.set(null, new ConcurrentHashMap<Integer, QueryStats>());
+    field = QueryStats.class.getDeclaredField("completed_queries");
+    field.setAccessible(true);
+    field.set(null, CacheBuilder.newBuilder().maximumSize(2).build());
+  }
+
+  @Test
+  public void roundTrip() throws Exception {
+    final List<DataPoint> dps = new ArrayList<DataPoint>();
+    dps.add(MutableDataPoint.ofLongValue(START - 1000, 42));
+    dps.add(MutableDataPoint.ofLongValue(START, 42));
+    dps.add(MutableDataPoint.ofLongValue(START + 15000, -7));
+    dps.add(MutableDataPoint.ofLongValue(START + 30000, Long.MAX_VALUE));
+    dps.add(MutableDataPoint.ofLongValue(START + 45000, Long.MIN_VALUE));
+    final List<DataPoint> floats = new ArrayList<DataPoint>();
+    floats.add(MutableDataPoint.ofDoubleValue(START + 1, 0.5));
+    floats.add(MutableDataPoint.ofDoubleValue(START + 2, Double.NaN));
+    floats.add(MutableDataPoint.ofDoubleValue(START + 3, -1e300));
+
+    final TSQuery data_query = query(false);
+    final List<Series> results = ColumnarQueryDecoder.decode(format(
+        data_query, series("sys.cpu.user", dps),
+        series("sys.cpu.nice", floats)));
+    assertEquals(2, results.size());
+
+    Series series = results.get(0);
+    assertEquals("sys.cpu.user", series.getMetric());
+    assertEquals("web01", series.getTags().get("host"));
+    assertEquals(Arrays.asList("dc"), series.getAggregatedTags());
+    assertTrue(series.getTSUIDs().isEmpty());
+    // the first point is before the start of the query
+    assertEquals(4, series.size());
+    assertEquals(START, series.timestamp(0));
+    assertEquals(START + 45000, series.timestamp(3));
+    assertTrue(series.isInteger(0));
+    assertEquals(42, series.longValue(0));
+    assertEquals(-7, series.longValue(1));
+    assertEquals(Long.MAX_VALUE, series.longValue(2));
+    assertEquals(Long.MIN_VALUE, series.longValue(3));
+
+    series = results.get(1);
+    assertEquals("sys.cpu.nice", series.getMetric());
+    assertEquals(3, series.size());
+    assertFalse(series.isInteger(0));
+    assertEquals(0.5, series.doubleValue(0), 0.0);
+    assertTrue(Double.isNaN(series.doubleValue(1)));
+    assertEquals(-1e300, series.doubleValue(2), 0.0);
+  }
+
+  @Test
+  public void mixedValues() throws Exception {
+    final List<DataPoint> dps = new ArrayList<DataPoint>();
+    for (int i = 0; i < 20; i++) {
+      dps.add(i % 3 == 0 ? MutableDataPoint.ofDoubleValue(START + i, i + 0.25)
+          : MutableDataPoint.ofLongValue(START + i, i));
+    }
+    final Series series = ColumnarQueryDecoder.decode(
+        format(query(false), series("sys.cpu.user", dps))).get(0);
+    assertEquals(20, series.size());
+    for (int i = 0; i < 20; i++) {
+      assertEquals(START + i, series.timestamp(i));
+      if (i % 3 == 0) {
+        assertFalse(series.isInteger(i));
+        assertEquals(i + 0.25, series.doubleValue(i), 0.0);
+      } else {
+        assertTrue(series.isInteger(i));
+        assertEquals(i, series.longValue(i));
+      }
+    }
+  }
+
+  @Test
+  public void tsuids() throws Exception {
+    final DataPoints dps = series("sys.cpu.user", new ArrayList<DataPoint>());
+    when(dps.getTSUIDs()).thenReturn(
+        Arrays.asList("000001000001000002", "000001000001000001"));
+    final Series series = ColumnarQueryDecoder.decode(
+        format(query(true), dps)).get(0);
+    assertEquals(Arrays.asList("000001000001000001", "000001000001000002"),
+        series.getTSUIDs());
+    assertEquals(0, series.size());
+  }
+
+  @Test
+  public void empty() throws Exception {
+    assertTrue(ColumnarQueryDecoder.decode(format(query(false))).isEmpty());
+  }
+
+  @Test
+  public void contentType() throws Exception {
+    final HttpColumnarSerializer serdes = new HttpColumnarSerializer(
+        NettyMocks.getQuery(tsdb, "/api/query"));
+    assertEquals("application/json; charset=UTF-8",
+        serdes.responseContentType());
+    serdes.formatQueryAsyncV1(query(false), new ArrayList<DataPoints[]>(),
+        Collections.<Annotation>emptyList()).joinUninterruptibly();
+    assertEquals(HttpColumnarSerializer.CONTENT_TYPE,
+        serdes.responseContentType());
+    assertEquals(HttpColumnarSerializer.CONTENT_TYPE,
+        new HttpColumnarSerializer().responseContentType());
+  }
+
+  @Test
+  public void smallerThanJson() throws Exception {
+    final TSQuery data_query = query(false);
+    final List<DataPoints[]> results = new ArrayList<DataPoints[]>(1);
+    results.add(new DataPoints[] { new MockDataPoints().getMock() });
+    final ChannelBuffer json = new HttpJsonSerializer(
+        NettyMocks.getQuery(tsdb, "/api/query")).formatQueryAsyncV1(
+            data_query, results, Collections.<Annotation>emptyList())
+            .joinUninterruptibly();
+
+    final TSQuery columnar_query = query(false);
+    results.set(0, new DataPoints[] { new MockDataPoints().getMock() });
+    final byte[] columnar = format(columnar_query, results);
+    assertEquals(401, ColumnarQueryDecoder.decode(columnar).get(0).size());
+    assertTrue(columnar.length * 3 < json.readableBytes());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void decodeBadMagic() throws Exception {
+    ColumnarQueryDecoder.decode("[{}]".getBytes());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void decodeBadVersion() throws Exception {
+    ColumnarQueryDecoder.decode(new byte[] { 'T', 'S', 'D', 'C', 2, 0 });
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void decodeTruncated() throws Exception {
+    final List<DataPoint> dps = new ArrayList<DataPoint>();
+    dps.add(MutableDataPoint.ofLongValue(START, 42));
+    final byte[] response = format(query(false), series("sys.cpu.user", dps));
+    ColumnarQueryDecoder.decode(
+        Arrays.copyOf(response, response.length - 1));
+  }
+
+  /** @return A validated query over a year of data */
+  private static TSQuery query(final boolean show_tsuids) {
+    final TSQuery data_query = new TSQuery();
+    data_query.setStart("1356998400");
+    data_query.setEnd("1388534400");
+    data_query.setShowTSUIDs(show_tsuids);
+    final TSSubQuery sub_query = new TSSubQuery();
+    sub_query.setMetric("sys.cpu.user");
+    sub_query.setAggregator("sum");
+    final ArrayList<TSSubQuery> sub_queries = new ArrayList<TSSubQuery>(1);
+    sub_queries.add(sub_query);
+    data_query.setQueries(sub_queries);
+    data_query.validateAndSetQuery();
+    data_query.setQueryStats(new QueryStats("192.168.1.1:4242", data_query,
+        null));
+    return data_query;
+  }
+
+  private byte[] format(final TSQuery data_query, final DataPoints... series)
+      throws Exception {
+    final List<DataPoints[]> results = new ArrayList<DataPoints[]>(1);
+    results.add(series);
+    return format(data_query, results);
+  }
+
+  private byte[] format(final TSQuery data_query,
+      final List<DataPoints[]> results) throws Exception {
+    final HttpColumnarSerializer serdes = new HttpColumnarSerializer(
+        NettyMocks.getQuery(tsdb, "/api/query"));
+    final ChannelBuffer buf = serdes.formatQueryAsyncV1(data_query, results,
+        Collections.<Annotation>emptyList()).joinUninterruptibly();
+    final byte[] bytes = new byte[buf.readableBytes()];
+    buf.readBytes(bytes);
+    return bytes;
+  }
+
+  private static DataPoints series(final String metric,
+      final List<DataPoint> dps) {
+    final DataPoints series = mock(DataPoints.class);
+    final Map<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    final List<String> agg_tags = Arrays.asList("dc");
+    when(series.metricNameAsync()).thenReturn(Deferred.fromResult(metric));
+    when(series.getTagsAsync()).thenReturn(Deferred.fromResult(tags));
+    when(series.getAggregatedTagsAsync()).thenReturn(
+        Deferred.fromResult(agg_tags));
+    when(series.iterator()).thenAnswer(new Answer<SeekableView>() {
+      @Override
+      public SeekableView answer(final InvocationOnMock invocation) {
+        return SeekableViewsForTest.fromArray(
+            dps.toArray(new DataPoint[dps.size()]));
+      }
+    });
+    return series;
+  }
+}
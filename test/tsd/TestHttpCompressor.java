@@ -0,0 +1,177 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.DownstreamMessageEvent;
+import org.jboss.netty.channel.UpstreamMessageEvent;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class TestHttpCompressor {
+  private Channel channel;
+  private ChannelHandlerContext ctx;
+
+  @Before
+  public void before() throws Exception {
+    channel = mock(Channel.class);
+    ctx = mock(ChannelHandlerContext.class);
+  }
+
+  @Test
+  public void gzip() throws Exception {
+    final byte[] body = body(4096);
+    final HttpResponse response = exchange(new HttpCompressor(6, 1024),
+        "gzip, deflate", body, "application/json");
+    assertEquals("gzip",
+        response.headers().get(HttpHeaders.Names.CONTENT_ENCODING));
+    final byte[] compressed = content(response);
+    assertTrue(compressed.length < body.length);
+    assertEquals(Integer.toString(compressed.length),
+        response.headers().get(HttpHeaders.Names.CONTENT_LENGTH));
+    assertArrayEquals(body, inflate(
+        new GZIPInputStream(new ByteArrayInputStream(compressed))));
+  }
+
+  @Test
+  public void deflate() throws Exception {
+    final byte[] body = body(4096);
+    final HttpResponse response = exchange(new HttpCompressor(1, 1024),
+        "deflate", body, "application/json");
+    assertEquals("deflate",
+        response.headers().get(HttpHeaders.Names.CONTENT_ENCODING));
+    assertArrayEquals(body, inflate(new InflaterInputStream(
+        new ByteArrayInputStream(content(response)))));
+  }
+
+  @Test
+  public void notAccepted() throws Exception {
+    final byte[] body = body(4096);
+    final HttpResponse response = exchange(new HttpCompressor(6, 1024),
+        "identity", body, "application/json");
+    assertNull(response.headers().get(HttpHeaders.Names.CONTENT_ENCODING));
+    assertArrayEquals(body, content(response));
+  }
+
+  @Test
+  public void belowThreshold() throws Exception {
+    final byte[] body = body(1023);
+    final HttpResponse response = exchange(new HttpCompressor(6, 1024),
+        "gzip", body, "application/json");
+    assertNull(response.headers().get(HttpHeaders.Names.CONTENT_ENCODING));
+    assertArrayEquals(body, content(response));
+  }
+
+  @Test
+  public void alreadyCompressed() throws Exception {
+    final byte[] body = body(4096);
+    final HttpResponse response = exchange(new HttpCompressor(6, 0),
+        "gzip", body, "image/png");
+    assertNull(response.headers().get(HttpHeaders.Names.CONTENT_ENCODING));
+    assertArrayEquals(body, content(response));
+  }
+
+  @Test
+  public void isCompressed() throws Exception {
+    assertTrue(HttpCompressor.isCompressed("image/png"));
+    assertTrue(HttpCompressor.isCompressed("application/gzip"));
+    assertFalse(HttpCompressor.isCompressed("application/json"));
+    assertFalse(HttpCompressor.isCompressed("text/html; charset=UTF-8"));
+    assertFalse(HttpCompressor.isCompressed(null));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void negativeThreshold() throws Exception {
+    new HttpCompressor(6, -1);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void badLevel() throws Exception {
+    new HttpCompressor(10, 1024);
+  }
+
+  /**
+   * Runs a request and its response through the compressor.
+   * @return The response as sent downstream.
+   */
+  private HttpResponse exchange(final HttpCompressor compressor,
+      final String accept_encoding, final byte[] body,
+      final String content_type) throws Exception {
+    final HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1,
+        HttpMethod.GET, "/api/query");
+    request.headers().set(HttpHeaders.Names.ACCEPT_ENCODING, accept_encoding);
+    compressor.messageReceived(ctx,
+        new UpstreamMessageEvent(channel, request, null));
+
+    final HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1,
+        HttpResponseStatus.OK);
+    response.headers().set(HttpHeaders.Names.CONTENT_TYPE, content_type);
+    response.setContent(ChannelBuffers.wrappedBuffer(body));
+    HttpHeaders.setContentLength(response, body.length);
+    compressor.writeRequested(ctx, new DownstreamMessageEvent(channel,
+        Channels.future(channel), response, null));
+    return response;
+  }
+
+  private static byte[] content(final HttpResponse response) {
+    final byte[] content = new byte[response.getContent().readableBytes()];
+    response.getContent().getBytes(response.getContent().readerIndex(),
+        content);
+    return content;
+  }
+
+  private static byte[] inflate(final InputStream in) throws Exception {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final byte[] buf = new byte[1024];
+    int read;
+    while ((read = in.read(buf)) > 0) {
+      out.write(buf, 0, read);
+    }
+    in.close();
+    return out.toByteArray();
+  }
+
+  /** @return A compressible JSON-ish body of the given length */
+  private static byte[] body(final int length) {
+    final byte[] body = new byte[length];
+    final byte[] pattern = "{\"1356998400\":42.5},".getBytes();
+    for (int i = 0; i < length; i++) {
+      body[i] = pattern[i % pattern.length];
+    }
+    return body;
+  }
+}
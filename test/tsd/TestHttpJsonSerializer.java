@@ -296,6 +296,25 @@ public final class TestHttpJsonSerializer {
     assertFalse(json.contains("\"query\":"));
   }
 
+  @Test
+  public void formatQueryAsyncV1MaxPoints() throws Exception {
+    setupFormatQuery();
+    HttpQuery query = NettyMocks.getQuery(tsdb, "");
+    HttpJsonSerializer serdes = new HttpJsonSerializer(query);
+    final TSQuery data_query = getTestQuery(false);
+    data_query.setMaxPoints(10);
+    validateTestQuery(data_query);
+    final List<DataPoints[]> results = new ArrayList<DataPoints[]>(1);
+    results.add(new DataPoints[] { new MockDataPoints().getMock() });
+
+    ChannelBuffer cb = serdes.formatQueryAsyncV1(data_query, results, 
+        Collections.<Annotation> emptyList()).joinUninterruptibly();
+    final String json = cb.toString(Charset.forName("UTF-8"));
+    // all of the points fall in the first of 5 buckets, only the min and
+    // max are left
+    assertTrue(json.contains("\"dps\":{\"1356998700\":1,\"1357118700\":401}"));
+  }
+
   @Test
   public void formatQueryAsyncV1wQuery() throws Exception {
     setupFormatQuery();
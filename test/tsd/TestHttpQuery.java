@@ -768,6 +768,46 @@ public final class TestHttpQuery {
         query.serializer().getClass().getCanonicalName());
   }
   
+  @Test
+  public void setSerializerColumnarQS() throws Exception {
+    HttpQuery.initializeSerializerMaps(null);
+    HttpQuery query = NettyMocks.getQuery(tsdb, 
+        "/api/query?serializer=columnar");
+    query.setSerializer();
+    assertEquals(HttpColumnarSerializer.class.getCanonicalName(), 
+        query.serializer().getClass().getCanonicalName());
+  }
+  
+  @Test
+  public void setSerializerColumnarAccept() throws Exception {
+    HttpQuery.initializeSerializerMaps(null);
+    final Channel channelMock = NettyMocks.fakeChannel();
+    final HttpRequest req = new DefaultHttpRequest(HttpVersion.HTTP_1_1, 
+        HttpMethod.POST, "/api/query");
+    req.headers().add("Content-Type", "application/json");
+    req.headers().add("Accept", 
+        "text/html, application/x-opentsdb-columnar;q=0.9");
+    final HttpQuery query = new HttpQuery(tsdb, req, channelMock);
+    query.setSerializer();
+    assertEquals(HttpColumnarSerializer.class.getCanonicalName(), 
+        query.serializer().getClass().getCanonicalName());
+  }
+  
+  @Test
+  public void setSerializerAcceptJson() throws Exception {
+    PluginLoader.loadJAR("plugin_test.jar");
+    HttpQuery.initializeSerializerMaps(null);
+    final Channel channelMock = NettyMocks.fakeChannel();
+    final HttpRequest req = new DefaultHttpRequest(HttpVersion.HTTP_1_1, 
+        HttpMethod.GET, "/");
+    req.headers().add("Content-Type", "application/tsdbdummy");
+    req.headers().add("Accept", "application/json");
+    final HttpQuery query = new HttpQuery(tsdb, req, channelMock);
+    query.setSerializer();
+    assertEquals("net.opentsdb.tsd.DummyHttpSerializer", 
+        query.serializer().getClass().getCanonicalName());
+  }
+  
   @Test (expected = BadRequestException.class)
   public void setSerializerNotFound() throws Exception {
     HttpQuery.initializeSerializerMaps(null);
@@ -1200,6 +1240,25 @@ public final class TestHttpQuery {
     sendBuffer.invoke(query, HttpResponseStatus.OK, null);
   }
 
+  @Test
+  public void sendFileFromMemory() throws Exception {
+    HttpQuery query = NettyMocks.getQuery(tsdb, "");
+    query.sendFile("/tmp/1a2b.png", "Hello World".getBytes("UTF-8"),
+        System.currentTimeMillis(), 60);
+    assertEquals(HttpResponseStatus.OK, query.response().getStatus());
+    assertEquals("image/png", query.response().headers().get("Content-Type"));
+    assertEquals("max-age=60",
+        query.response().headers().get("Cache-Control"));
+    assertEquals("Hello World",
+        query.response().getContent().toString(Charset.forName("UTF-8")));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void sendFileFromMemoryNegativeMaxAge() throws Exception {
+    HttpQuery query = NettyMocks.getQuery(tsdb, "");
+    query.sendFile("/tmp/1a2b.png", new byte[] { 1 }, 0, -1);
+  }
+
   @Test
   public void getSerializerStatus() throws Exception {
     HttpQuery.initializeSerializerMaps(tsdb);
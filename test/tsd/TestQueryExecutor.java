@@ -12,16 +12,21 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.tsd;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 import net.opentsdb.core.FillPolicy;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.core.TSQuery;
+import net.opentsdb.core.TSSubQuery;
+import net.opentsdb.query.QueryMemoryTracker;
 import net.opentsdb.query.expression.NumericFillPolicy;
 import net.opentsdb.query.expression.BaseTimeSyncedIteratorTest;
 import net.opentsdb.query.expression.VariableIterator.SetOperator;
@@ -38,10 +43,12 @@ import net.opentsdb.storage.MockBase;
 import net.opentsdb.utils.Config;
 import net.opentsdb.utils.DateTime;
 import net.opentsdb.utils.JSON;
+import net.opentsdb.utils.Threads;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
@@ -643,6 +650,24 @@ System.out.println(response);
     assertTrue(response.contains("\"message\":\"No intersections found"));
   }
   
+  @Test
+  public void failedExpressionReleasesMemory() throws Exception {
+    threeDifE();
+    
+    String json = JSON.serializeToString(getDefaultQueryBuilder());
+    final QueryRpc rpc = new QueryRpc();
+    final HttpQuery query = NettyMocks.postQuery(tsdb, 
+        "/api/query/exp", json);
+    query.getQueryBaseRoute(); // to the correct serializer
+    NettyMocks.mockChannelFuture(query);
+    
+    rpc.execute(tsdb, query);
+    final String response = 
+        query.response().getContent().toString(Charset.forName("UTF-8"));
+    assertTrue(response.contains("\"code\":400"));
+    assertEquals(0, QueryMemoryTracker.getGlobalUsed());
+  }
+  
   @Test
   public void noIntersectionsFoundNestedExpression() throws Exception {
     oneExtraSameE();
@@ -713,6 +738,105 @@ System.out.println(response);
     rpc.execute(tsdb, query);
   }
 
+  @Test
+  public void identicalMetricsShareOneScan() throws Exception {
+    oneExtraSameE();
+    final Metric metric1 = Metric.Builder().setMetric("A").setId("a")
+        .setFilter("f1").build();
+    final Metric metric2 = Metric.Builder().setMetric("A").setId("a2")
+        .setFilter("f1").build();
+    metrics = Arrays.asList(metric1, metric2);
+    expressions = Arrays.asList(Expression.Builder().setId("e")
+        .setExpression("a + a2").setJoin(intersection).build());
+    outputs = Arrays.asList(Output.Builder().setId("e").build(), 
+        Output.Builder().setId("a2").build());
+    
+    final String json = JSON.serializeToString(getDefaultQueryBuilder().build());
+    final QueryRpc rpc = new QueryRpc();
+    final HttpQuery query = NettyMocks.postQuery(tsdb, 
+        "/api/query/exp?show_summary", json);
+    NettyMocks.mockChannelFuture(query);
+    
+    rpc.execute(tsdb, query);
+    final String response = 
+        query.response().getContent().toString(Charset.forName("UTF-8"));
+    assertTrue(response.contains("\"dps\":[[1431561600000,2.0,8.0]"));
+    assertTrue(response.contains("\"id\":\"a2\""));
+    assertTrue(response.contains("\"dps\":[[1431561600000,1.0,4.0]"));
+    assertTrue(response.contains("\"queryIdx_00\""));
+    assertFalse(response.contains("\"queryIdx_01\""));
+    assertTrue(response.contains("\"nodeTimes\":{\"a\":"));
+    assertTrue(response.contains("\"a2\":"));
+    assertTrue(response.contains("\"e\":"));
+  }
+  
+  @Test
+  public void sameScan() throws Exception {
+    final TSSubQuery a = new TSSubQuery();
+    a.setMetric("A");
+    a.setAggregator("sum");
+    a.setFilters(new ArrayList<TagVFilter>(Arrays.asList(
+        new TagVFilter.Builder().setFilter("*").setGroupBy(true)
+          .setTagk("D").setType("wildcard").build())));
+    final TSSubQuery b = new TSSubQuery();
+    b.setMetric("A");
+    b.setAggregator("sum");
+    b.setFilters(new ArrayList<TagVFilter>(Arrays.asList(
+        new TagVFilter.Builder().setFilter("*").setGroupBy(true)
+          .setTagk("D").setType("wildcard").build())));
+    assertTrue(QueryExecutor.sameScan(a, b));
+    
+    b.getFilters().get(0).setGroupBy(false);
+    assertFalse(QueryExecutor.sameScan(a, b));
+    
+    b.getFilters().get(0).setGroupBy(true);
+    b.setAggregator("max");
+    assertFalse(QueryExecutor.sameScan(a, b));
+  }
+  
+  @Test
+  public void nestedExpressionsOnComputePool() throws Exception {
+    oneExtraSameE();
+    final ExecutorService pool = Threads.newFixedPool(4, "Test Compute");
+    PowerMockito.doReturn(pool).when(tsdb).getQueryComputePool();
+    expressions = Arrays.asList(
+        Expression.Builder().setId("e").setExpression("a + b").setJoin(intersection).build(),
+        Expression.Builder().setId("e2").setExpression("e * 2").setJoin(intersection).build(),
+        Expression.Builder().setId("e3").setExpression("e * 2").setJoin(intersection).build(),
+        Expression.Builder().setId("e4").setExpression("e2 + e3").setJoin(intersection).build());
+    
+    final Query q = Query.Builder().setExpressions(expressions)
+        .setFilters(filters).setMetrics(metrics).setName("q1")
+        .setTime(time).build();
+    final String json = JSON.serializeToString(q);
+    final QueryRpc rpc = new QueryRpc();
+    final HttpQuery query = NettyMocks.postQuery(tsdb, 
+        "/api/query/exp", json);
+    NettyMocks.mockChannelFuture(query);
+    
+    try {
+      rpc.execute(tsdb, query);
+      // the response is sent from the pool
+      final long deadline = System.currentTimeMillis() + 10000;
+      while (query.response().getContent().readableBytes() < 1 && 
+          System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+    } finally {
+      pool.shutdown();
+    }
+    final String response = 
+        query.response().getContent().toString(Charset.forName("UTF-8"));
+    assertTrue(response.contains("\"id\":\"e\""));
+    assertTrue(response.contains("\"dps\":[[1431561600000,12.0,18.0]"));
+    assertTrue(response.contains("\"id\":\"e2\""));
+    assertTrue(response.contains("\"dps\":[[1431561600000,24.0,36.0]"));
+    assertTrue(response.contains("\"id\":\"e3\""));
+    assertTrue(response.contains("\"id\":\"e4\""));
+    assertTrue(response.contains("\"dps\":[[1431561600000,48.0,72.0]"));
+    assertTrue(response.contains("[1431561720000,64.0,88.0]"));
+  }
+
   protected Query.Builder getDefaultQueryBuilder() {
     return Query.Builder().setExpressions(expressions).setFilters(filters)
         .setMetrics(metrics).setName("q1").setTime(time).setOutputs(outputs);
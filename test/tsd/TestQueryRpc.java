@@ -30,6 +30,7 @@ import net.opentsdb.core.Query;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.core.TSQuery;
 import net.opentsdb.core.TSSubQuery;
+import net.opentsdb.query.QueryScheduler;
 import net.opentsdb.query.expression.ExpressionTree;
 import net.opentsdb.query.filter.TagVLiteralOrFilter;
 import net.opentsdb.query.filter.TagVRegexFilter;
@@ -114,7 +115,15 @@ public final class TestQueryRpc {
     TSQuery tsq = (TSQuery) parseQuery.invoke(rpc, tsdb, query, expressions);
     assertEquals("5m-ago", tsq.getEnd());
   }
-  
+
+  @Test
+  public void parseQueryMTypeWMaxPoints() throws Exception {
+    HttpQuery query = NettyMocks.getQuery(tsdb,
+      "/api/query?start=1h-ago&max_points=800&m=sum:sys.cpu.0");
+    TSQuery tsq = (TSQuery) parseQuery.invoke(rpc, tsdb, query, expressions);
+    assertEquals(800, tsq.getMaxPoints());
+  }
+
   @Test
   public void parseQuery2MType() throws Exception {
     HttpQuery query = NettyMocks.getQuery(tsdb, 
@@ -578,6 +587,43 @@ public final class TestQueryRpc {
     }
   }
   
+  @Test
+  public void executeScheduled() throws Exception {
+    final DataPoints[] datapoints = new DataPoints[1];
+    datapoints[0] = new MockDataPoints().getMock();
+    when(query_result.runAsync()).thenReturn(
+        Deferred.fromResult(datapoints));
+    final QueryScheduler scheduler = setupScheduler();
+    // hold the only slot so the query has to wait
+    scheduler.acquire("10.0.0.1", QueryScheduler.Priority.BATCH);
+    
+    final HttpQuery query = NettyMocks.getQuery(tsdb, 
+        "/api/query?start=1h-ago&m=sum:sys.cpu.user");
+    NettyMocks.mockChannelFuture(query);
+    rpc.execute(tsdb, query);
+    assertEquals(1, scheduler.getQueued());
+    assertEquals(0, query.response().getContent().readableBytes());
+    
+    scheduler.release();
+    final String json = 
+        query.response().getContent().toString(Charset.forName("UTF-8"));
+    assertTrue(json.contains("\"metric\":\"system.cpu.user\""));
+    assertEquals(0, scheduler.getQueued());
+    assertEquals(0, scheduler.getRunning());
+  }
+  
+  @Test
+  public void executeScheduledBadPriority() throws Exception {
+    final QueryScheduler scheduler = setupScheduler();
+    
+    final HttpQuery query = NettyMocks.getQuery(tsdb, 
+        "/api/query?start=1h-ago&m=sum:sys.cpu.user");
+    query.request().headers().set("X-OpenTSDB-Query-Priority", "urgent");
+    rpc.execute(tsdb, query);
+    assertEquals(HttpResponseStatus.BAD_REQUEST, query.response().getStatus());
+    assertEquals(0, scheduler.getRunning());
+  }
+  
   @Test (expected = BadRequestException.class)
   public void deleteDatapointsBadRequest() throws Exception {
     HttpQuery query = NettyMocks.deleteQuery(tsdb,
@@ -623,4 +669,17 @@ public final class TestQueryRpc {
   }
   
   //TODO(cl) add unit tests for the rate options parsing
-}
\ No newline at end of file
+
+  /** Enables a scheduler with a single slot on the mock TSDB */
+  private QueryScheduler setupScheduler() {
+    final QueryScheduler scheduler = new QueryScheduler(1, 0, 4, null);
+    when(tsdb.getQueryScheduler()).thenReturn(scheduler);
+    when(tsdb.getConfig().getString("tsd.query.scheduler.source_header"))
+      .thenReturn("");
+    when(tsdb.getConfig().getString("tsd.query.scheduler.priority_header"))
+      .thenReturn("X-OpenTSDB-Query-Priority");
+    when(tsdb.getConfig().getString("tsd.query.scheduler.default_priority"))
+      .thenReturn("interactive");
+    return scheduler;
+  }
+}
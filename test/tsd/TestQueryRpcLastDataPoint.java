@@ -481,6 +481,42 @@ public class TestQueryRpcLastDataPoint extends BaseTsdbTest {
     assertFalse(json.contains("\"tags\""));
   }
   
+  @Test
+  public void qsTSUIDCommaSeparatedBackscanUnbatched() throws Exception {
+    config.overrideConfig("tsd.query.last.batch_size", "0");
+    PowerMockito.mockStatic(DateTime.class);
+    PowerMockito.when(DateTime.currentTimeMillis()).thenReturn(1356998400000L);
+    tsdb.addPoint("sys.cpu.user", 1356998400L, 42, tags);
+    tags.put("host", "web02");
+    tsdb.addPoint("sys.cpu.user", 1356998400L, 24, tags);
+    
+    final long gets = QueryRpc.last_point_gets.get();
+    final HttpQuery query = NettyMocks.getQuery(tsdb, 
+        "/api/query/last?tsuids=000001000001000001,000001000001000002&back_scan=1");
+    rpc.execute(tsdb, query);
+    final String json = getContent(query);
+    assertEquals(HttpResponseStatus.OK, query.response().getStatus());
+    assertTrue(json.contains("\"value\":\"42\""));
+    assertTrue(json.contains("\"value\":\"24\""));
+    assertEquals(gets, QueryRpc.last_point_gets.get());
+  }
+  
+  @Test
+  public void qsTSUIDCommaSeparatedBackscanGetsCounted() throws Exception {
+    PowerMockito.mockStatic(DateTime.class);
+    PowerMockito.when(DateTime.currentTimeMillis()).thenReturn(1357002000000L);
+    tsdb.addPoint("sys.cpu.user", 1356998400L, 42, tags);
+    
+    final long gets = QueryRpc.last_point_gets.get();
+    final HttpQuery query = NettyMocks.getQuery(tsdb, 
+        "/api/query/last?tsuids=000001000001000001,000001000001000002&back_scan=1");
+    rpc.execute(tsdb, query);
+    final String json = getContent(query);
+    assertEquals(HttpResponseStatus.OK, query.response().getStatus());
+    assertTrue(json.contains("\"value\":\"42\""));
+    assertEquals(gets + 4, QueryRpc.last_point_gets.get());
+  }
+  
   @Test
   public void qsTSUIDCommaSeparatedOneMissingBackscan() throws Exception {
     PowerMockito.mockStatic(DateTime.class);
@@ -0,0 +1,263 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2017  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.uid;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.KeyValue;
+import org.hbase.async.Scanner;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+import com.stumbleupon.async.Deferred;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+                  "ch.qos.*", "org.slf4j.*",
+                  "com.sum.*", "org.xml.*"})
+@PrepareForTest({ HBaseClient.class, Scanner.class })
+public final class TestUidDictionary {
+  private static final byte[] TABLE = "tsdb-uid".getBytes();
+  private static final byte[] ID = { 'i', 'd' };
+  private static final byte[] TAGV = { 't', 'a', 'g', 'v' };
+  private static final UidDictionary.Matcher ALL =
+      new UidDictionary.Matcher() {
+    @Override
+    public boolean matches(final String name) {
+      return true;
+    }
+  };
+
+  private UidDictionary dictionary;
+
+  @Before
+  public void before() throws Exception {
+    dictionary = new UidDictionary("tagv", (short) 3);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorNullKind() throws Exception {
+    new UidDictionary(null, (short) 3);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroWidth() throws Exception {
+    new UidDictionary("tagv", (short) 0);
+  }
+
+  @Test
+  public void addAndRemove() throws Exception {
+    dictionary.add("web01", new byte[] { 0, 0, 1 });
+    dictionary.add("web02", new byte[] { 0, 0, 2 });
+    assertArrayEquals(new byte[] { 0, 0, 1 }, dictionary.getId("web01"));
+    assertEquals(2, dictionary.size());
+
+    dictionary.remove("web01");
+    assertNull(dictionary.getId("web01"));
+    assertEquals(1, dictionary.size());
+    assertFalse(dictionary.isLoaded());
+  }
+
+  @Test
+  public void findPrefix() throws Exception {
+    dictionary.add("web01", new byte[] { 0, 0, 1 });
+    dictionary.add("web02", new byte[] { 0, 0, 2 });
+    dictionary.add("db01", new byte[] { 0, 0, 3 });
+    dictionary.compact();
+    dictionary.add("web03", new byte[] { 0, 0, 4 });
+    dictionary.add("weather", new byte[] { 0, 0, 5 });
+
+    final List<byte[]> uids = dictionary.find("web", ALL, 10);
+    Collections.sort(uids, Bytes.MEMCMP);
+    assertEquals(3, uids.size());
+    assertArrayEquals(new byte[] { 0, 0, 1 }, uids.get(0));
+    assertArrayEquals(new byte[] { 0, 0, 2 }, uids.get(1));
+    assertArrayEquals(new byte[] { 0, 0, 4 }, uids.get(2));
+
+    assertEquals(5, dictionary.find("", ALL, 10).size());
+    assertTrue(dictionary.find("zzz", ALL, 10).isEmpty());
+  }
+
+  @Test
+  public void findMatcher() throws Exception {
+    dictionary.add("web01", new byte[] { 0, 0, 1 });
+    dictionary.add("web02", new byte[] { 0, 0, 2 });
+    dictionary.compact();
+    final List<byte[]> uids = dictionary.find("",
+        new UidDictionary.Matcher() {
+      @Override
+      public boolean matches(final String name) {
+        return name.endsWith("2");
+      }
+    }, 10);
+    assertEquals(1, uids.size());
+    assertArrayEquals(new byte[] { 0, 0, 2 }, uids.get(0));
+  }
+
+  @Test
+  public void findOverLimit() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      dictionary.add("web0" + i, new byte[] { 0, 0, (byte) i });
+    }
+    assertNull(dictionary.find("web", ALL, 9));
+    assertEquals(10, dictionary.find("web", ALL, 10).size());
+  }
+
+  @Test
+  public void suggest() throws Exception {
+    dictionary.add("web02", new byte[] { 0, 0, 2 });
+    dictionary.add("web04", new byte[] { 0, 0, 4 });
+    dictionary.add("db01", new byte[] { 0, 0, 5 });
+    dictionary.compact();
+    dictionary.add("web01", new byte[] { 0, 0, 1 });
+    dictionary.add("web03", new byte[] { 0, 0, 3 });
+    dictionary.add("web02", new byte[] { 0, 0, 6 });
+
+    assertEquals(Arrays.asList("web01", "web02", "web03", "web04"),
+        dictionary.suggest("web", 10));
+    assertEquals(Arrays.asList("web01", "web02"),
+        dictionary.suggest("web", 2));
+    assertEquals(Arrays.asList("db01", "web01"), dictionary.suggest("", 2));
+    assertTrue(dictionary.suggest("zzz", 10).isEmpty());
+
+    dictionary.remove("web04");
+    dictionary.remove("web03");
+    assertEquals(Arrays.asList("web01", "web02"),
+        dictionary.suggest("web", 10));
+  }
+
+  @Test
+  public void compactKeepsChanges() throws Exception {
+    dictionary.add("web01", new byte[] { 0, 0, 1 });
+    dictionary.add("web02", new byte[] { 0, 0, 2 });
+    dictionary.compact();
+    dictionary.remove("web01");
+    dictionary.add("web02", new byte[] { 0, 0, 9 });
+    assertArrayEquals(new byte[] { 0, 0, 9 }, dictionary.getId("web02"));
+    assertEquals(1, dictionary.find("web", ALL, 10).size());
+
+    dictionary.compact();
+    assertNull(dictionary.getId("web01"));
+    assertArrayEquals(new byte[] { 0, 0, 9 }, dictionary.getId("web02"));
+    assertEquals(1, dictionary.size());
+  }
+
+  @Test
+  public void compactAtThreshold() throws Exception {
+    final Timer timer = mock(Timer.class);
+    dictionary.scheduleRefresh(timer, mock(HBaseClient.class), TABLE, 60);
+    for (int i = 0; i < UidDictionary.COMPACT_THRESHOLD + 1; i++) {
+      dictionary.add("web" + i, uid(i + 1));
+    }
+    assertEquals(UidDictionary.COMPACT_THRESHOLD + 1, dictionary.size());
+    assertEquals(UidDictionary.COMPACT_THRESHOLD + 1, recent().size());
+
+    // compacted once, on the timer rather than by the caller
+    final ArgumentCaptor<TimerTask> task =
+        ArgumentCaptor.forClass(TimerTask.class);
+    verify(timer).newTimeout(task.capture(), eq(0L),
+        eq(TimeUnit.MILLISECONDS));
+    task.getValue().run(null);
+    assertEquals(0, recent().size());
+    assertEquals(UidDictionary.COMPACT_THRESHOLD + 1, dictionary.size());
+    assertArrayEquals(uid(1), dictionary.getId("web0"));
+
+    // and can be scheduled again
+    for (int i = 0; i < UidDictionary.COMPACT_THRESHOLD; i++) {
+      dictionary.add("db" + i, uid(i + 1));
+    }
+    verify(timer, times(2)).newTimeout(any(TimerTask.class), eq(0L),
+        eq(TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void noCompactionWithoutTimer() throws Exception {
+    for (int i = 0; i < UidDictionary.COMPACT_THRESHOLD + 1; i++) {
+      dictionary.add("web" + i, uid(i + 1));
+    }
+    assertEquals(UidDictionary.COMPACT_THRESHOLD + 1, recent().size());
+    assertEquals(UidDictionary.COMPACT_THRESHOLD + 1, dictionary.size());
+    dictionary.remove("web0");
+    dictionary.add("web1", uid(2));
+    assertEquals(UidDictionary.COMPACT_THRESHOLD, dictionary.size());
+  }
+
+  @Test
+  public void load() throws Exception {
+    final HBaseClient client = mock(HBaseClient.class);
+    final Scanner scanner = mock(Scanner.class);
+    when(client.newScanner(TABLE)).thenReturn(scanner);
+
+    final ArrayList<ArrayList<KeyValue>> rows =
+        new ArrayList<ArrayList<KeyValue>>(2);
+    ArrayList<KeyValue> row = new ArrayList<KeyValue>(1);
+    row.add(new KeyValue("web01".getBytes(), ID, TAGV, new byte[] { 0, 0, 1 }));
+    rows.add(row);
+    row = new ArrayList<KeyValue>(1);
+    row.add(new KeyValue("web02".getBytes(), ID, TAGV, new byte[] { 0, 0, 2 }));
+    rows.add(row);
+    when(scanner.nextRows())
+      .thenReturn(Deferred.<ArrayList<ArrayList<KeyValue>>>fromResult(rows))
+      .thenReturn(Deferred.<ArrayList<ArrayList<KeyValue>>>fromResult(null));
+
+    // a name assigned locally while the scan runs is kept
+    dictionary.add("db01", new byte[] { 0, 0, 3 });
+    assertEquals(0, dictionary.getLoadStartTime());
+    final long start = System.currentTimeMillis();
+    assertEquals(2, (int) dictionary.load(client, TABLE).join());
+    assertTrue(dictionary.isLoaded());
+    assertTrue(dictionary.getLoadStartTime() >= start);
+    assertEquals(3, dictionary.size());
+    assertArrayEquals(new byte[] { 0, 0, 2 }, dictionary.getId("web02"));
+    assertArrayEquals(new byte[] { 0, 0, 3 }, dictionary.getId("db01"));
+    verify(scanner).setFamily(ID);
+    verify(scanner).setQualifier(TAGV);
+  }
+
+  /** @return The names added since the snapshot was built */
+  private Map<String, byte[]> recent() {
+    return Whitebox.getInternalState(dictionary, "recent");
+  }
+
+  /** @return A 3 byte UID */
+  private static byte[] uid(final int id) {
+    return Arrays.copyOfRange(Bytes.fromInt(id), 1, 4);
+  }
+}
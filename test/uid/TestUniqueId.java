@@ -61,6 +61,7 @@ import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PowerMockIgnore;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
 
 import static org.powermock.api.mockito.PowerMockito.mock;
 
@@ -890,6 +891,40 @@ public final class TestUniqueId {
     verify(client, never()).get(anyGet());
   }
 
+  @Test
+  public void suggestFromDictionary() {
+    uid = new UniqueId(client, table, METRIC, 3);
+    final UidDictionary dictionary = new UidDictionary(METRIC, (short) 3);
+    dictionary.add("foo.bar", new byte[] { 0, 0, 1 });
+    dictionary.add("foo.baz", new byte[] { 0, 0, 2 });
+    dictionary.add("bar", new byte[] { 0, 0, 3 });
+    Whitebox.setInternalState(dictionary, "loaded", true);
+    uid.setDictionary(dictionary);
+
+    final ArrayList<String> expected = new ArrayList<String>(2);
+    expected.add("foo.bar");
+    expected.add("foo.baz");
+    assertEquals(expected, uid.suggest("foo"));
+    verify(client, never()).newScanner(table);
+  }
+
+  @Test
+  public void suggestScansUntilDictionaryLoaded() {
+    uid = new UniqueId(client, table, METRIC, 3);
+    final UidDictionary dictionary = new UidDictionary(METRIC, (short) 3);
+    dictionary.add("foo.bar", new byte[] { 0, 0, 1 });
+    uid.setDictionary(dictionary);
+
+    final Scanner fake_scanner = mock(Scanner.class);
+    when(client.newScanner(table))
+      .thenReturn(fake_scanner);
+    when(fake_scanner.nextRows())
+      .thenReturn(Deferred.<ArrayList<ArrayList<KeyValue>>>fromResult(null));
+
+    assertEquals(0, uid.suggest("foo").size());
+    verify(client).newScanner(table);
+  }
+
   @Test
   public void uidToString() {
     assertEquals("01", UniqueId.uidToString(new byte[] { 1 }));